@@ -0,0 +1,123 @@
+package bench;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.IRemoteServer;
+import server.GroupCommitter;
+import server.LogRecord;
+import server.Server;
+import entities.ServerConfig;
+
+
+/**
+ * Counts the calls to other servers needed for concurrent registrations,
+ * when they are committed in groups to the metadata log.
+ */
+public class GroupCommitBenchmark {
+
+	static final int PEERS = 8;
+	static final int LATENCY = 2;
+	static final int REGISTRATIONS = 50;
+	
+	/**
+	 * The main method.
+	 * 
+	 * @param args the arguments
+	 */
+	public static void main( String[] args ) throws Exception {
+		System.out.println( "clients\tregistrations\tcalls\tcalls/registration\tthroughput (1/s)" );
+		
+		for( int clients : new int[]{ 1, 16, 64, 256 } )
+		{
+			final AtomicLong calls = new AtomicLong();
+			String[] names = new String[PEERS];
+			for( int i=0 ; i < PEERS ; i++ )
+				names[i] = "peer" + i;
+			
+			Properties props = new Properties();
+			props.setProperty( "wal.dir", new File( System.getProperty( "java.io.tmpdir" ), "gc-bench-" + System.nanoTime() ).getPath() );
+			props.setProperty( "raft.election.timeout", "150" );
+			props.setProperty( "raft.heartbeat", "30" );
+			Server srv = new Server( "bench", false, null, new ServerConfig( props ), names );
+			for( String name : names )
+				srv.addServer( name, createPeer( calls ) );
+			
+			//Wait until this server leads the metadata log
+			srv.getMetadata().start();
+			while( !"bench".equals( srv.getMetadata().getRaft().getLeader() ) )
+				Thread.sleep( 10 );
+			calls.set( 0 );
+			
+			final GroupCommitter gc = srv.getGroupCommitter();
+			gc.start();
+			
+			Thread[] threads = new Thread[clients];
+			for( int i=0 ; i < clients ; i++ )
+			{
+				final int client = i;
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						try {
+							for( int j=0 ; j < REGISTRATIONS ; j++ )
+								gc.submit( LogRecord.register( "user" + client + "_" + j, "pwd", "bench" ) );
+						} catch( InterruptedException iex ) {
+							return;
+						} catch( RemoteException rex ) {
+							System.err.println( rex.getMessage() );
+						}
+					}
+				};
+			}
+			
+			long start = System.nanoTime();
+			for( Thread t : threads )
+				t.start();
+			for( Thread t : threads )
+				t.join();
+			double secs = (System.nanoTime() - start) / 1e9;
+			
+			gc.stop();
+			srv.getMetadata().stop();
+			srv.getExecutor().shutdown();
+			
+			int total = clients * REGISTRATIONS;
+			System.out.println( String.format( "%d\t%d\t\t%d\t%.3f\t\t\t%.0f",
+												clients, total, calls.get(),
+												calls.get() / (double)total,
+												total / secs ) );
+		}
+	}
+	
+	/**
+	 * Creates an in-process peer, which votes for every candidate and
+	 * appends every entry after a short delay.
+	 */
+	static IRemoteServer createPeer( final AtomicLong calls )
+	{
+		return (IRemoteServer)Proxy.newProxyInstance(
+				IRemoteServer.class.getClassLoader(),
+				new Class<?>[]{ IRemoteServer.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method m, Object[] args ) throws Throwable {
+						calls.incrementAndGet();
+						Thread.sleep( LATENCY );
+						
+						if( m.getName().equals( "requestVote" ) )
+							return new long[]{ (Long)args[0], 1 };
+						if( m.getName().equals( "appendEntries" ) )
+							return new long[]{ (Long)args[0], 1, (Long)args[2] + ((List<?>)args[4]).size() };
+						
+						return m.getReturnType() == boolean.class ? Boolean.TRUE : null;
+					}
+				});
+	}
+}
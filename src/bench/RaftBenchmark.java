@@ -0,0 +1,206 @@
+package bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.LocalRaftTransport;
+import server.RaftNode;
+
+
+/**
+ * Runs the replicated log on members in this process, with the log kept
+ * in memory and on disk: measures how long electing a leader takes, the
+ * commit throughput for concurrent proposals, how long it takes to elect
+ * a new leader after the leader is cut off, and how long the old leader
+ * takes to catch up after a restart. Checks that all members applied the
+ * entries in order.
+ */
+public class RaftBenchmark {
+
+	static final long ELECTION_TIMEOUT = 150;
+	static final long HEARTBEAT = 30;
+	static final int MAX_BATCH = 512;
+	static final int PROPOSALS = 20000;
+	static final long LATENCY = 1;
+	static final int SNAPSHOT_ENTRIES = 5000;
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 */
+	public static void main( String[] args ) throws Exception {
+		System.out.println( "log\tmembers\tclients\telection (ms)\tcommits/s\tfailover (ms)\trestart (ms)\tconsistent" );
+
+		for( boolean disk : new boolean[]{ false, true } )
+		{
+			for( int members : new int[]{ 3, 5 } )
+			{
+				for( int clients : new int[]{ 1, 16, 64 } )
+					run( disk, members, clients );
+			}
+		}
+		System.exit( 0 );
+	}
+
+	/**
+	 * Runs a fresh group of members.
+	 */
+	static void run( boolean disk, int count, final int clients ) throws Exception
+	{
+		ExecutorService pool = Executors.newCachedThreadPool();
+		LocalRaftTransport transport = new LocalRaftTransport();
+		transport.setLatency( LATENCY );
+		File base = disk ? new File( System.getProperty( "java.io.tmpdir" ), "raft-bench-" + System.nanoTime() ) : null;
+
+		List<String> names = new ArrayList<String>();
+		for( int i=0 ; i < count ; i++ )
+			names.add( "node" + i );
+
+		long begin = System.nanoTime();
+		List<RaftNode> nodes = new ArrayList<RaftNode>();
+		List<List<Long>> applied = new ArrayList<List<Long>>();
+		for( String name : names )
+			nodes.add( create( name, names, transport, pool, base, applied ) );
+		RaftNode leader = awaitLeader( nodes, null );
+		long election = (System.nanoTime() - begin) / 1000000;
+
+		//Every client proposes and waits for its entry, like a registration does
+		final RaftNode l = leader;
+		final AtomicLong committed = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch( clients );
+		begin = System.nanoTime();
+		for( int c=0 ; c < clients ; c++ )
+		{
+			pool.submit( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for( int i=0 ; i < PROPOSALS / clients ; i++ )
+						{
+							long[] t = l.propose( new byte[]{ 1 } );
+							if( t != null && l.awaitApplied( t[0], t[1], 5000 ) )
+								committed.incrementAndGet();
+						}
+					} catch( InterruptedException iex ) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		done.await();
+		double throughput = committed.get() / ((System.nanoTime() - begin) / 1e9);
+
+		//Cut the leader off and wait for the others to elect a new one
+		begin = System.nanoTime();
+		transport.setCut( leader.getName(), true );
+		RaftNode next = awaitLeader( nodes, leader );
+		long failover = (System.nanoTime() - begin) / 1000000;
+
+		//The new leader commits an entry of its term, which all others apply
+		long[] t = next.propose( new byte[]{ 1 } );
+		next.awaitApplied( t[0], t[1], 5000 );
+
+		//Restart the old leader, which gets what it is missing
+		leader.stop();
+		nodes.remove( leader );
+		begin = System.nanoTime();
+		RaftNode restarted = create( leader.getName(), names, transport, pool, base, applied );
+		nodes.add( restarted );
+		transport.setCut( leader.getName(), false );
+		while( restarted.getCommitIndex() < t[0] )
+			Thread.sleep( 1 );
+		long restart = (System.nanoTime() - begin) / 1000000;
+		Thread.sleep( 5 * ELECTION_TIMEOUT );
+
+		long min = Long.MAX_VALUE;
+		for( RaftNode n : nodes )
+			min = Math.min( min, n.getCommitIndex() );
+
+		boolean consistent = true;
+		for( List<Long> log : applied )
+		{
+			synchronized( log ) {
+				for( int i=0 ; i < log.size() - 1 && consistent ; i++ )
+					consistent = log.get( i ) < log.get( i + 1 );
+			}
+		}
+		consistent &= min >= t[0];
+
+		System.out.println( String.format( "%s\t%d\t%d\t%d\t\t%.0f\t\t%d\t\t%d\t\t%s", disk ? "disk" : "memory", count, clients,
+											election, throughput, failover, restart, consistent ) );
+
+		for( RaftNode n : nodes )
+			n.stop();
+		pool.shutdownNow();
+		delete( base );
+	}
+
+	/**
+	 * Creates and starts a member, which notes the entries it applies.
+	 */
+	static RaftNode create( String name, List<String> names, LocalRaftTransport transport, ExecutorService pool,
+							File base, List<List<Long>> applied ) throws Exception
+	{
+		final List<Long> log = Collections.synchronizedList( new ArrayList<Long>() );
+		applied.add( log );
+
+		RaftNode ret = new RaftNode( name, names, transport, new RaftNode.Applier() {
+			@Override
+			public void apply( long index, byte[] data ) {
+				log.add( index );
+			}
+
+			@Override
+			public byte[] snapshot() {
+				return new byte[0];
+			}
+
+			@Override
+			public void restore( byte[] data ) {
+			}
+		}, pool, ELECTION_TIMEOUT, HEARTBEAT, MAX_BATCH, base != null ? new File( base, name ) : null, SNAPSHOT_ENTRIES, CHUNK_SIZE );
+		transport.add( ret );
+		ret.start();
+		return ret;
+	}
+
+	/**
+	 * Deletes the given directory and all below it.
+	 */
+	static void delete( File f )
+	{
+		if( f == null )
+			return;
+
+		File[] files = f.listFiles();
+		for( int i=0 ; files != null && i < files.length ; i++ )
+			delete( files[i] );
+		f.delete();
+	}
+
+	/**
+	 * Waits until a member other than the given one leads.
+	 */
+	static RaftNode awaitLeader( List<RaftNode> nodes, RaftNode old ) throws InterruptedException
+	{
+		while( true )
+		{
+			for( RaftNode n : nodes )
+			{
+				if( n != old && n.getRole() == RaftNode.Role.LEADER )
+					return n;
+			}
+			Thread.sleep( 1 );
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package bench;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import server.LogRecord;
+import server.Server;
+import server.Snapshot;
+import server.StateMachine;
+import server.WriteAheadLog;
+import entities.ServerConfig;
+
+
+/**
+ * Measures how long replaying the write-ahead log takes, depending on its
+ * size, and how long loading a snapshot of a million users takes.
+ */
+public class RecoveryBenchmark {
+
+	/**
+	 * The main method.
+	 * 
+	 * @param args the arguments
+	 */
+	public static void main( String[] args ) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		
+		System.out.println( "records\tsize (MB)\tread (ms)\treplay 1 thread (ms)\treplay " + threads + " threads (ms)" );
+		
+		for( int n : new int[]{ 10000, 100000, 1000000 } )
+		{
+			File dir = new File( System.getProperty( "java.io.tmpdir" ), "wal-bench-" + System.nanoTime() );
+			
+			WriteAheadLog wal = new WriteAheadLog( dir, 16 * 1024 * 1024, 5 );
+			wal.open( 0 );
+			write( wal, n );
+			wal.close();
+			
+			long start = System.nanoTime();
+			List<LogRecord> records = wal.read();
+			long read = System.nanoTime() - start;
+			
+			long single = replay( records, 1 );
+			long multi = replay( records, threads );
+			
+			System.out.println( String.format( "%d\t%.1f\t\t%d\t\t%d\t\t\t%d",
+												records.size(), wal.getSize() / 1048576.0,
+												read / 1000000, single / 1000000, multi / 1000000 ) );
+			
+			for( File f : dir.listFiles() )
+				f.delete();
+			dir.delete();
+		}
+		
+		File file = new File( System.getProperty( "java.io.tmpdir" ), "snapshot-bench-" + System.nanoTime() + ".snap" );
+		Snapshot snap = new Snapshot( file );
+		snap.create();
+		for( int i=0 ; i < 1000000 ; i++ )
+			snap.write( LogRecord.register( "user" + i, "pwd", "server1" ) );
+		snap.commit();
+		
+		long start = System.nanoTime();
+		List<LogRecord> records = snap.read();
+		long read = System.nanoTime() - start;
+		long replay = replay( records, threads );
+		
+		System.out.println();
+		System.out.println( String.format( "snapshot of %d users (%.1f MB): read %d ms, replay %d ms, total %d ms",
+											records.size(), file.length() / 1048576.0,
+											read / 1000000, replay / 1000000, (read + replay) / 1000000 ) );
+		file.delete();
+	}
+	
+	/**
+	 * Writes about n records for users, events, invitations and votes.
+	 */
+	static void write( WriteAheadLog wal, int n ) throws Exception
+	{
+		int events = n / 10;
+		for( int i=0 ; i < events ; i++ )
+		{
+			String user = "user" + i;
+			String event = "event" + i;
+			
+			wal.append( LogRecord.register( user, "pwd", "server1" ) );
+			wal.append( LogRecord.create( event, "location", 60, user ) );
+			for( int j=0 ; j < 3 ; j++ )
+				wal.append( LogRecord.addDate( event, new Date( j * 3600000L ) ) );
+			for( int j=1 ; j <= 2 ; j++ )
+			{
+				String invitee = "user" + ((i + j) % events);
+				wal.append( LogRecord.invite( event, invitee ) );
+				wal.append( LogRecord.invitation( invitee, event, user ) );
+				wal.append( LogRecord.vote( event, invitee, Collections.singleton( new Date( j * 3600000L ) ) ) );
+			}
+		}
+	}
+	
+	/**
+	 * Replays the records into a fresh server.
+	 */
+	static long replay( List<LogRecord> records, int threads ) throws Exception
+	{
+		Server srv = new Server( "bench", false, null, new ServerConfig() );
+		ExecutorService pool = Executors.newFixedThreadPool( threads );
+		
+		long start = System.nanoTime();
+		new StateMachine( srv ).replay( records, pool, threads );
+		long ret = System.nanoTime() - start;
+		
+		pool.shutdown();
+		srv.getExecutor().shutdown();
+		return ret;
+	}
+}
@@ -0,0 +1,108 @@
+package bench;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import server.LogRecord;
+import server.Server;
+import entities.ServerConfig;
+
+
+/**
+ * Measures the vote throughput while many threads vote on a few events,
+ * with events locked by the voting threads and with events owned by
+ * shard workers.
+ */
+public class ShardBenchmark {
+
+	static final int EVENTS = 16;
+	static final int INVITEES = 1000;
+	static final int OPTIONS = 10;
+	static final int VOTES = 200000;
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 */
+	public static void main( String[] args ) throws Exception {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int shards = Math.max( 2, cpus );
+
+		System.out.println( "model\t\t\tthreads\tvotes/s" );
+
+		for( int threads : new int[]{ 1, 2 * cpus, 8 * cpus } )
+		{
+			//Warm up both models once
+			if( threads == 1 )
+			{
+				run( 0, threads );
+				run( shards, threads );
+			}
+
+			System.out.println( String.format( "locked\t\t\t%d\t%.0f", threads, run( 0, threads ) ) );
+			System.out.println( String.format( "%d shards\t\t%d\t%.0f", shards, threads, run( shards, threads ) ) );
+		}
+	}
+
+	/**
+	 * Lets the given number of threads vote on the events of a fresh server.
+	 *
+	 * @return the votes per second
+	 */
+	static double run( int shards, int threads ) throws Exception
+	{
+		Properties props = new Properties();
+		props.setProperty( "event.shards", String.valueOf( shards ) );
+		props.setProperty( "wal.sync.wait", "0" );
+		final Server srv = new Server( "bench", false, null, new ServerConfig( props ) );
+
+		for( int i=0 ; i < EVENTS ; i++ )
+		{
+			String event = "event" + i;
+			srv.apply( LogRecord.create( event, "location", 60, "author" ) );
+			for( int j=0 ; j < OPTIONS ; j++ )
+				srv.apply( LogRecord.addDate( event, new Date( j * 3600000L ) ) );
+			for( int j=0 ; j < INVITEES ; j++ )
+				srv.apply( LogRecord.invite( event, "user" + j ) );
+		}
+
+		final int perThread = VOTES / threads;
+		final CountDownLatch start = new CountDownLatch( 1 );
+		final CountDownLatch done = new CountDownLatch( threads );
+
+		for( int t=0 ; t < threads ; t++ )
+		{
+			final long seed = t;
+			new Thread( new Runnable() {
+				@Override
+				public void run() {
+					Random rnd = new Random( seed );
+					try {
+						start.await();
+						for( int i=0 ; i < perThread ; i++ )
+						{
+							Date option = new Date( rnd.nextInt( OPTIONS ) * 3600000L );
+							srv.apply( LogRecord.vote( "event" + rnd.nextInt( EVENTS ), "user" + rnd.nextInt( INVITEES ), Collections.singleton( option ) ) );
+						}
+					} catch( Exception ex ) {
+						ex.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		srv.getExecutor().shutdown();
+		return perThread * threads / (elapsed / 1e9);
+	}
+}
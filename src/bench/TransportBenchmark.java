@@ -0,0 +1,180 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.IRemoteServer;
+import remote.RaftEntry;
+import server.NioTransport;
+
+
+/**
+ * Calls the same server in this process through RMI and through the nio
+ * transport, with small calls (membership heartbeats) and large ones
+ * (metadata log entries), from a growing number of threads. Measures the
+ * calls per second and the bytes allocated per call by all threads of the
+ * process, callers and server alike.
+ */
+public class TransportBenchmark {
+
+	static final long DURATION = 2000;
+	static final int ENTRIES = 16;
+	static final int ENTRY_SIZE = 16 * 1024;
+	static final int WORKERS = 16;
+	static final int THRESHOLD = 64 * 1024;
+
+	static final long[] ANSWER = new long[]{ 1, 1, 1 };
+
+	/**
+	 * The main method.
+	 *
+	 * @param args the arguments
+	 */
+	public static void main( String[] args ) throws Exception {
+		//Answers every call right away
+		IRemoteServer target = (IRemoteServer)Proxy.newProxyInstance( IRemoteServer.class.getClassLoader(),
+				new Class<?>[]{ IRemoteServer.class }, new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method m, Object[] args ) {
+						if( m.getName().equals( "heartbeat" ) )
+							return true;
+						if( m.getName().equals( "appendEntries" ) )
+							return ANSWER;
+						if( m.getName().equals( "hashCode" ) )
+							return System.identityHashCode( proxy );
+						if( m.getName().equals( "equals" ) )
+							return proxy == args[0];
+						return null;
+					}
+				});
+
+		IRemoteServer rmi = (IRemoteServer)UnicastRemoteObject.exportObject( target, 0 );
+
+		NioTransport server = new NioTransport( "127.0.0.1", 0, WORKERS, THRESHOLD, 30000 );
+		server.start( target );
+		NioTransport client = new NioTransport( "127.0.0.1", 0, WORKERS, THRESHOLD, 30000 );
+		client.start( null );
+		IRemoteServer nio = client.connect( server.getEndpoint() );
+
+		List<RaftEntry> entries = new ArrayList<RaftEntry>();
+		for( int i=0 ; i < ENTRIES ; i++ )
+			entries.add( new RaftEntry( 1, new byte[ ENTRY_SIZE ] ) );
+
+		System.out.println( "call\t\tthreads\trmi calls/s\tnio calls/s\trmi bytes/call\tnio bytes/call" );
+		for( boolean large : new boolean[]{ false, true } )
+		{
+			for( int threads : new int[]{ 1, 16, 64 } )
+			{
+				//Warm up both first
+				run( rmi, large, threads, entries, DURATION / 4 );
+				run( nio, large, threads, entries, DURATION / 4 );
+
+				double[] r = run( rmi, large, threads, entries, DURATION );
+				double[] n = run( nio, large, threads, entries, DURATION );
+				System.out.println( String.format( "%s\t%d\t%.0f\t\t%.0f\t\t%.0f\t\t%.0f", large ? "appendEntries" : "heartbeat\t",
+													threads, r[0], n[0], r[1], n[1] ) );
+			}
+		}
+
+		client.stop();
+		server.stop();
+		System.exit( 0 );
+	}
+
+	/**
+	 * Calls the given server from the given number of threads for a while.
+	 *
+	 * @return the calls per second and the bytes allocated per call
+	 */
+	static double[] run( final IRemoteServer s, final boolean large, int threads, final List<RaftEntry> entries, long duration ) throws Exception
+	{
+		final long end = System.currentTimeMillis() + duration;
+		final AtomicLong calls = new AtomicLong();
+		final AtomicLong callers = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch( threads );
+
+		Map<Long, Long> allocated = allocated();
+		long begin = System.nanoTime();
+		for( int t=0 ; t < threads ; t++ )
+		{
+			new Thread( new Runnable() {
+				@Override
+				public void run() {
+					long before = allocated( Thread.currentThread().getId() );
+					try {
+						long n = 0;
+						while( System.currentTimeMillis() < end )
+						{
+							if( large )
+								s.appendEntries( 1, "bench", 0, 0, entries, 0 );
+							else
+								s.heartbeat( "bench", 1, 1 );
+							n++;
+						}
+						calls.addAndGet( n );
+					} catch( Exception ex ) {
+						ex.printStackTrace();
+					} finally {
+						callers.addAndGet( allocated( Thread.currentThread().getId() ) - before );
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+		done.await();
+
+		double secs = (System.nanoTime() - begin) / 1e9;
+		return new double[]{ calls.get() / secs, (allocatedSince( allocated ) + callers.get()) / (double)Math.max( 1, calls.get() ) };
+	}
+
+	/**
+	 * Gets the bytes allocated so far by each live thread of this process.
+	 */
+	static Map<Long, Long> allocated()
+	{
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long[] ids = mx.getAllThreadIds();
+		long[] bytes = mx.getThreadAllocatedBytes( ids );
+
+		Map<Long, Long> ret = new HashMap<Long, Long>();
+		for( int i=0 ; i < ids.length ; i++ )
+		{
+			if( bytes[i] >= 0 )
+				ret.put( ids[i], bytes[i] );
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the bytes allocated since the given snapshot by the threads
+	 * still alive. Threads that ended are left out, so the callers count
+	 * their own.
+	 */
+	static long allocatedSince( Map<Long, Long> before )
+	{
+		long sum = 0;
+		for( Map.Entry<Long, Long> e : allocated().entrySet() )
+		{
+			Long b = before.get( e.getKey() );
+			sum += e.getValue() - (b != null ? b : 0);
+		}
+		return sum;
+	}
+
+	/**
+	 * Gets the bytes allocated so far by the given thread.
+	 */
+	static long allocated( long thread )
+	{
+		return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes( thread );
+	}
+}
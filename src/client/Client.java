@@ -10,13 +10,26 @@ import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
+import remote.EventPage;
+import remote.EventQuery;
+import remote.EventSummary;
+import remote.EventUpdate;
 import remote.IDistributor;
 import remote.IRemoteClient;
+import remote.ListFilter;
+import remote.MultiGetResult;
+import remote.Operation;
+import remote.OperationResult;
+import remote.ReadConsistency;
 import cmd.Command;
 import cmd.CommandLineParser;
 import cmd.CommandParser;
@@ -104,7 +117,7 @@ public class Client {
 		ClientCallback callback = null;
 		IClientCallback stub = null;
 		try{
-			callback = new ClientCallback();
+			callback = new DigestCallback();
 			stub = (IClientCallback)UnicastRemoteObject.exportObject( callback, 0 );
 		}catch( RemoteException rex )
 		{
@@ -135,6 +148,18 @@ public class Client {
 					continue;
 				}
 				
+				//Pipelined commands are only sent once enough of them were entered
+				if( pipelineSize > 0 && (cmd == CMD_ADDDATE || cmd == CMD_INVITE || cmd == CMD_VOTE) )
+				{
+					queue( cmd );
+					if( pending.size() >= pipelineSize )
+						flush( server );
+					continue;
+				}
+				
+				//Everything else must see the pipelined commands entered before
+				flush( server );
+				
 				if( cmd == CMD_REGISTER )
 					doRegister(server, cmd);
 				else if( cmd == CMD_LOGIN )
@@ -147,12 +172,24 @@ public class Client {
 					doInvite(server, cmd);
 				else if( cmd == CMD_GET )
 					doGet(server, cmd);
+				else if( cmd == CMD_FETCH )
+					doFetch(server, cmd);
+				else if( cmd == CMD_POLL )
+					doPoll(server, cmd);
+				else if( cmd == CMD_LEADER )
+					doLeader(server, cmd);
+				else if( cmd == CMD_LIST )
+					doList(server, cmd);
+				else if( cmd == CMD_FIND )
+					doFind(server, cmd);
 				else if( cmd == CMD_VOTE )
 					doVote(server, cmd);
 				else if( cmd == CMD_FINALIZE )
 					doFinalize( server, cmd );
 				else if( cmd == CMD_LOGOUT )
 					doLogout(server);
+				else if( cmd == CMD_PIPELINE )
+					doPipeline(cmd);
 				
 				
 				
@@ -173,6 +210,12 @@ public class Client {
 		}
 		
 		
+		try {
+			flush( server );
+		} catch( RemoteException rex ) {
+			System.out.println( "Error: " + rex.getMessage() );
+		}
+		
 		System.out.println( "Shutting down..." );
 		
 		try {
@@ -200,6 +243,13 @@ public class Client {
 	private static void doVote(IRemoteClient server, Command cmd)
 			throws RemoteException {
 		String name = (String)cmd.getParameter( "name of event" ).getValue();
+		Set<Date> dates = parseDates( cmd );
+		
+		if( dates != null )
+			server.vote( name, dates );
+	}
+
+	private static Set<Date> parseDates(Command cmd) {
 		Set<Date> dates = new TreeSet<Date>();
 		
 		SimpleDateFormat sdf = new SimpleDateFormat( DateParameter.FORMAT_STRING );
@@ -210,17 +260,199 @@ public class Client {
 				dates.add( sdf.parse( str ) );
 			}
 			
-			server.vote( name, dates );
+			return dates;
 		} catch (java.text.ParseException e) {
 			System.out.println( "The date does not have the valid format. Please use " + DateParameter.FORMAT_STRING );
+			return null;
 		}
 	}
 
+	private static void doPipeline(Command cmd) {
+		pipelineSize = (Integer)cmd.getParameter( "size" ).getValue();
+		
+		if( pipelineSize > 0 )
+			System.out.println( "Sending addDate, invite and vote in batches of " + pipelineSize + "." );
+		else
+			System.out.println( "Sending every command right away." );
+	}
+
+	private static void queue(Command cmd) {
+		String name = (String)cmd.getParameter( "name of event" ).getValue();
+		
+		if( cmd == CMD_ADDDATE )
+			pending.add( Operation.addDate( name, (Date)cmd.getParameter( "date" ).getValue() ) );
+		else if( cmd == CMD_INVITE )
+			pending.add( Operation.invite( name, (String)cmd.getParameter( "username" ).getValue() ) );
+		else
+		{
+			Set<Date> dates = parseDates( cmd );
+			if( dates != null )
+				pending.add( Operation.vote( name, dates ) );
+		}
+	}
+
+	private static void flush(IRemoteClient server) throws RemoteException {
+		if( pending.isEmpty() )
+			return;
+		
+		List<Operation> ops = new ArrayList<Operation>( pending );
+		pending.clear();
+		
+		List<OperationResult> results = server.executeBatch( ops );
+		
+		int failed = 0;
+		for( int i=0 ; i < ops.size() ; i++ )
+		{
+			OperationResult r = results.get( i );
+			if( r.isFailed() )
+			{
+				System.out.println( ops.get( i ) + ": Error: " + r.getError() );
+				failed++;
+			}
+			else if( !r.isSuccess() && ops.get( i ).getKind() == Operation.Kind.ADD_DATE )
+				System.out.println( ops.get( i ) + ": This date option already exists." );
+		}
+		
+		System.out.println( "Sent " + ops.size() + " commands, " + failed + " failed." );
+	}
+
 	private static void doGet(IRemoteClient server, Command cmd)
 			throws RemoteException {
 		String name = (String)cmd.getParameter( "name of event" ).getValue();
 		
-		System.out.println( server.get( name ) );
+		//"!get <event> strict" sees every change made before
+		if( "strict".equals( cmd.getRest().trim() ) )
+			System.out.println( server.get( name, ReadConsistency.LINEARIZABLE ) );
+		else
+			System.out.println( server.get( name ) );
+	}
+
+	private static void doFetch(IRemoteClient server, Command cmd)
+			throws RemoteException {
+		List<String> names = new ArrayList<String>();
+		for( String name : cmd.getRest().trim().split( "\\s+" ) )
+		{
+			if( name.length() > 0 )
+				names.add( name );
+		}
+		
+		MultiGetResult result = server.getAll( names );
+		for( String name : names )
+		{
+			if( result.getEvents().containsKey( name ) )
+				System.out.println( result.getEvents().get( name ) );
+			else
+				System.out.println( name + ": Error: " + result.getErrors().get( name ) );
+		}
+	}
+
+	private static void doPoll(IRemoteClient server, Command cmd)
+			throws RemoteException {
+		String name = (String)cmd.getParameter( "name of event" ).getValue();
+		
+		Long known = knownVersions.get( name );
+		EventUpdate update = server.get( name, known != null ? known : -1 );
+		
+		knownVersions.put( name, update.getVersion() );
+		System.out.println( update );
+	}
+
+	private static void doList(IRemoteClient server, Command cmd)
+			throws RemoteException {
+		String arg = cmd.getRest().trim();
+		
+		//"!list more" continues the last listing, anything else starts a new one
+		if( "more".equals( arg ) )
+		{
+			if( listCursor == null )
+			{
+				System.out.println( "There are no more events." );
+				return;
+			}
+		}
+		else
+		{
+			try {
+				listFilter = arg.length() > 0 ? ListFilter.valueOf( arg.toUpperCase() ) : ListFilter.ALL;
+			} catch( IllegalArgumentException iaex ) {
+				System.out.println( "Unknown filter \"" + arg + "\". Please use all, authored, invited or more." );
+				return;
+			}
+			listCursor = null;
+		}
+		
+		EventPage page = server.listEvents( listFilter, listCursor, LIST_PAGE_SIZE );
+		for( EventSummary s : page.getEvents() )
+			System.out.println( s );
+		
+		listCursor = page.getNext();
+		if( page.hasNext() )
+			System.out.println( "Enter !list more for the next page." );
+		else if( page.getEvents().isEmpty() )
+			System.out.println( "No events." );
+	}
+
+	private static void doFind(IRemoteClient server, Command cmd)
+			throws RemoteException {
+		String[] args = cmd.getRest().trim().split( "\\s+", 2 );
+		String kind = args[0];
+		String arg = args.length > 1 ? args[1].trim() : "";
+		
+		//"!find more" continues the last query, anything else starts a new one
+		if( "more".equals( kind ) )
+		{
+			if( findCursor == null )
+			{
+				System.out.println( "There are no more events." );
+				return;
+			}
+		}
+		else if( "author".equals( kind ) && arg.length() > 0 )
+			findQuery = EventQuery.byAuthor( arg );
+		else if( "location".equals( kind ) && arg.length() > 0 )
+			findQuery = EventQuery.atLocation( arg );
+		else if( "dates".equals( kind ) && arg.length() > 0 )
+		{
+			SimpleDateFormat sdf = new SimpleDateFormat( DateParameter.FORMAT_STRING );
+			String[] range = arg.split( "\\s+" );
+			try {
+				if( range.length != 2 )
+					throw new java.text.ParseException( arg, 0 );
+				findQuery = EventQuery.withOptionBetween( sdf.parse( range[0] ), sdf.parse( range[1] ) );
+			} catch (java.text.ParseException e) {
+				System.out.println( "Please give the range as two dates in the format " + DateParameter.FORMAT_STRING );
+				return;
+			}
+		}
+		else
+		{
+			System.out.println( "Please use !find author <name>, !find location <location>, !find dates <from> <to> or !find more." );
+			return;
+		}
+		
+		if( !"more".equals( kind ) )
+			findCursor = null;
+		
+		EventPage page = server.findEvents( findQuery, findCursor, LIST_PAGE_SIZE );
+		for( EventSummary s : page.getEvents() )
+			System.out.println( s );
+		
+		findCursor = page.getNext();
+		if( page.hasNext() )
+			System.out.println( "Enter !find more for the next page." );
+		else if( page.getEvents().isEmpty() )
+			System.out.println( "No events." );
+	}
+
+	private static void doLeader(IRemoteClient server, Command cmd)
+			throws RemoteException {
+		String name = (String)cmd.getParameter( "name of event" ).getValue();
+		
+		Date leader = server.getLeader( name );
+		if( leader == null )
+			System.out.println( "The event does not have any date options." );
+		else
+			System.out.println( "Leading date/time is: " + new SimpleDateFormat( DateParameter.FORMAT_STRING ).format( leader ) );
 	}
 
 	private static void doInvite(IRemoteClient server, Command cmd)
@@ -249,7 +481,20 @@ public class Client {
 		String location = (String)cmd.getParameter( "location" ).getValue();
 		int duration = (Integer)cmd.getParameter( "duration" ).getValue();
 		
-		if( server.create( name, location, duration ) )
+		//"!create <name> <location> <duration> <deadline>" finalizes the event at the deadline
+		Date deadline = null;
+		String rest = cmd.getRest().trim();
+		if( rest.length() > 0 )
+		{
+			try {
+				deadline = new SimpleDateFormat( DateParameter.FORMAT_STRING ).parse( rest );
+			} catch (java.text.ParseException e) {
+				System.out.println( "The deadline does not have the valid format. Please use " + DateParameter.FORMAT_STRING );
+				return;
+			}
+		}
+		
+		if( server.create( name, location, duration, deadline ) )
 			System.out.println( "Event created successfully." );
 		else
 			System.out.println( "Error: An event of with this name already exists." );
@@ -276,6 +521,22 @@ public class Client {
 			System.out.println( "Username already registered." );
 	}
 	
+	/** The versions of the events from the last poll. */
+	static final Map<String, Long> knownVersions = new HashMap<String, Long>();
+	
+	/** The filter and cursor of the last listing, the cursor is null after the last page. */
+	static final int LIST_PAGE_SIZE = 20;
+	static ListFilter listFilter = ListFilter.ALL;
+	static String listCursor = null;
+	
+	/** The query and cursor of the last search, the cursor is null after the last page. */
+	static EventQuery findQuery = null;
+	static String findCursor = null;
+	
+	/** The pipelined commands not yet sent, and how many to send at once (0 = off). */
+	static final List<Operation> pending = new ArrayList<Operation>();
+	static int pipelineSize = 0;
+	
 	/** Command parsing stuff... */
 	static final Command CMD_REGISTER;
 	static final Command CMD_LOGIN;
@@ -283,9 +544,15 @@ public class Client {
 	static final Command CMD_ADDDATE;
 	static final Command CMD_INVITE;
 	static final Command CMD_GET;
+	static final Command CMD_LEADER;
+	static final Command CMD_LIST;
+	static final Command CMD_POLL;
+	static final Command CMD_FETCH;
+	static final Command CMD_FIND;
 	static final Command CMD_VOTE;
 	static final Command CMD_FINALIZE;
 	static final Command CMD_LOGOUT;
+	static final Command CMD_PIPELINE;
 	static final Command CMD_EXIT;
 	static CommandParser cmdParser;
 	
@@ -303,6 +570,7 @@ public class Client {
 		CMD_CREATE.addParameter( new StringParameter( "name", "The name of the event to create." ) );
 		CMD_CREATE.addParameter( new StringParameter( "location", "The location of the event to create." ) );
 		CMD_CREATE.addParameter( new IntegerParameter( "duration", 0, Integer.MAX_VALUE, "The duration (in minutes) of the event." ) );
+		CMD_CREATE.setHasRest( true );
 		
 		CMD_ADDDATE = new Command( "addDate" );
 		CMD_ADDDATE.addParameter( new StringParameter( "name of event", "The name of the event to add a possible date to" ) );
@@ -314,7 +582,23 @@ public class Client {
 		
 		CMD_GET = new Command( "get" );
 		CMD_GET.addParameter( new StringParameter( "name of event", "The name of the event to retrieve information about." ) );
+		CMD_GET.setHasRest( true );
+		
+		CMD_FETCH = new Command( "fetch" );
+		CMD_FETCH.setHasRest( true );
+		
+		CMD_FIND = new Command( "find" );
+		CMD_FIND.setHasRest( true );
+		
+		CMD_POLL = new Command( "poll" );
+		CMD_POLL.addParameter( new StringParameter( "name of event", "The name of the event to get the changes since the last poll of." ) );
+		
+		CMD_LEADER = new Command( "leader" );
+		CMD_LEADER.addParameter( new StringParameter( "name of event", "The name of the event to get the leading date of." ) );
 	
+		CMD_LIST = new Command( "list" );
+		CMD_LIST.setHasRest( true );
+		
 		CMD_VOTE = new Command( "vote" );
 		CMD_VOTE.addParameter( new StringParameter( "name of event", "The name of the event to vote on." ) );
 		CMD_VOTE.setHasRest( true );
@@ -326,9 +610,12 @@ public class Client {
 		
 		CMD_EXIT = new Command( "exit" );
 		
+		CMD_PIPELINE = new Command( "pipeline" );
+		CMD_PIPELINE.addParameter( new IntegerParameter( "size", 0, Integer.MAX_VALUE, "The number of addDate, invite and vote commands to send at once, 0 to send them right away." ) );
+		
 		cmdParser = new CommandParser();
-		cmdParser.addCommands(	CMD_ADDDATE, CMD_CREATE, CMD_EXIT, CMD_FINALIZE, CMD_GET,
-								CMD_INVITE, CMD_LOGIN, CMD_LOGOUT, CMD_REGISTER, CMD_VOTE );
+		cmdParser.addCommands(	CMD_ADDDATE, CMD_CREATE, CMD_EXIT, CMD_FETCH, CMD_FIND, CMD_FINALIZE, CMD_GET,
+								CMD_INVITE, CMD_LEADER, CMD_LIST, CMD_LOGIN, CMD_LOGOUT, CMD_PIPELINE, CMD_POLL, CMD_REGISTER, CMD_VOTE );
 	}
 
 }
@@ -0,0 +1,36 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.Map;
+
+
+/**
+ * The callback of the command line client, taking several notifications
+ * in one call. Finalizations are shown one by one, like single ones.
+ */
+public class DigestCallback extends ClientCallback implements IDigestCallback {
+
+	/* (non-Javadoc)
+	 * @see client.IDigestCallback#onFinalizations(java.util.Map)
+	 */
+	@Override
+	public void onFinalizations( Map<String, Date> finalized ) throws RemoteException {
+		for( Map.Entry<String, Date> f : finalized.entrySet() )
+			onFinalization( f.getKey(), f.getValue() );
+	}
+
+	/* (non-Javadoc)
+	 * @see client.IDigestCallback#onInbox(java.util.Map, java.util.Map)
+	 */
+	@Override
+	public void onInbox( Map<String, Date> finalized, Map<String, String> invitations ) throws RemoteException {
+		if( !invitations.isEmpty() || !finalized.isEmpty() )
+			System.out.println( "While you were offline:" );
+		
+		for( Map.Entry<String, String> i : invitations.entrySet() )
+			System.out.println( "You were invited to \"" + i.getKey() + "\" by " + i.getValue() );
+		
+		onFinalizations( finalized );
+	}
+}
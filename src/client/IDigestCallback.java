@@ -0,0 +1,34 @@
+package client;
+
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.Map;
+
+
+/**
+ * A client callback that can take several notifications in one call.
+ * Servers call {@link #onFinalizations(Map)} instead of calling
+ * {@link IClientCallback#onFinalization(String, Date)} once per event, if
+ * the client's callback implements this interface. Only such clients are
+ * told about invitations they missed while offline.
+ */
+public interface IDigestCallback extends IClientCallback {
+
+	/**
+	 * Notifies the client of the finalization of several events.
+	 *
+	 * @param finalized the final date, by event name, in the order the events were finalized
+	 * @throws RemoteException the remote exception
+	 */
+	void onFinalizations( Map<String, Date> finalized ) throws RemoteException;
+
+	/**
+	 * Notifies the client, right after logging in, of everything that
+	 * happened while the user was offline.
+	 *
+	 * @param finalized the final date, by event name
+	 * @param invitations the author, by name of the event the user was invited to
+	 * @throws RemoteException the remote exception
+	 */
+	void onInbox( Map<String, Date> finalized, Map<String, String> invitations ) throws RemoteException;
+}
@@ -0,0 +1,722 @@
+package entities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+
+/**
+ * Tuning parameters for a server, read from a properties file.
+ * Every key is optional, missing keys fall back to their defaults.
+ */
+public class ServerConfig {
+
+	static final Logger logger = Logger.getLogger( ServerConfig.class.getName() );
+
+	/** Keys in the properties file */
+	static final String KEY_COMMIT_TIMEOUT = "commit.timeout";
+	static final String KEY_BATCH_WINDOW = "batch.window";
+	static final String KEY_BATCH_SIZE = "batch.size";
+	static final String KEY_RING_VNODES = "ring.vnodes";
+	static final String KEY_RING_REPLICAS = "ring.replicas";
+	static final String KEY_WAL_DIR = "wal.dir";
+	static final String KEY_WAL_SEGMENT_SIZE = "wal.segment.size";
+	static final String KEY_WAL_SYNC_INTERVAL = "wal.sync.interval";
+	static final String KEY_WAL_SYNC_WAIT = "wal.sync.wait";
+	static final String KEY_RECOVERY_THREADS = "recovery.threads";
+	static final String KEY_SNAPSHOT_INTERVAL = "snapshot.interval";
+	static final String KEY_SNAPSHOT_MIN_RECORDS = "snapshot.min.records";
+	static final String KEY_TRANSFER_CHUNK_SIZE = "transfer.chunk.size";
+	static final String KEY_TRANSFER_EXPIRY = "transfer.expiry";
+	static final String KEY_FILTER_BITS = "filter.bits";
+	static final String KEY_FILTER_HASHES = "filter.hashes";
+	static final String KEY_METRICS_INTERVAL = "metrics.interval";
+	static final String KEY_EVENT_SHARDS = "event.shards";
+	static final String KEY_REPLICATION_INTERVAL = "replication.interval";
+	static final String KEY_REPLICATION_HEARTBEAT = "replication.heartbeat";
+	static final String KEY_REPLICATION_BATCH = "replication.batch";
+	static final String KEY_REPLICATION_MAX_PENDING = "replication.max.pending";
+	static final String KEY_READ_MAX_STALENESS = "read.max.staleness";
+	static final String KEY_EVENT_HISTORY = "event.history";
+	static final String KEY_LIST_PAGE_MAX = "list.page.max";
+	static final String KEY_NOTIFY_THREADS = "notify.threads";
+	static final String KEY_NOTIFY_QUEUE_SIZE = "notify.queue.size";
+	static final String KEY_NOTIFY_QUEUE_POLICY = "notify.queue.policy";
+	static final String KEY_NOTIFY_MAX_FAILURES = "notify.max.failures";
+	static final String KEY_NOTIFY_TIMEOUT = "notify.timeout";
+	static final String KEY_NOTIFY_INBOX_SIZE = "notify.inbox.size";
+	static final String KEY_DEADLINE_TICK = "deadline.tick";
+	static final String KEY_MEMBERSHIP_HEARTBEAT = "membership.heartbeat";
+	static final String KEY_MEMBERSHIP_WINDOW = "membership.window";
+	static final String KEY_MEMBERSHIP_MIN_STDDEV = "membership.min.stddev";
+	static final String KEY_MEMBERSHIP_PHI_SUSPECT = "membership.phi.suspect";
+	static final String KEY_MEMBERSHIP_PHI_DOWN = "membership.phi.down";
+	static final String KEY_RAFT_ELECTION_TIMEOUT = "raft.election.timeout";
+	static final String KEY_RAFT_HEARTBEAT = "raft.heartbeat";
+	static final String KEY_RAFT_BATCH = "raft.batch";
+	static final String KEY_RAFT_SNAPSHOT_ENTRIES = "raft.snapshot.entries";
+	static final String KEY_PEER_FAILURES = "peer.failures";
+	static final String KEY_PEER_BACKOFF_MIN = "peer.backoff.min";
+	static final String KEY_PEER_BACKOFF_MAX = "peer.backoff.max";
+	static final String KEY_TRANSPORT = "transport";
+	static final String KEY_TRANSPORT_PORT = "transport.port";
+	static final String KEY_TRANSPORT_WORKERS = "transport.workers";
+	static final String KEY_TRANSPORT_DIRECT_THRESHOLD = "transport.direct.threshold";
+	static final String KEY_TRANSPORT_TIMEOUT = "transport.timeout";
+
+	/** Default values */
+	static final long DEFAULT_COMMIT_TIMEOUT = 2000;
+	static final long DEFAULT_BATCH_WINDOW = 2;
+	static final long DEFAULT_BATCH_SIZE = 256;
+	static final long DEFAULT_RING_VNODES = 128;
+	static final long DEFAULT_RING_REPLICAS = 2;
+	static final String DEFAULT_WAL_DIR = "data";
+	static final long DEFAULT_WAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+	static final long DEFAULT_WAL_SYNC_INTERVAL = 5;
+	static final long DEFAULT_WAL_SYNC_WAIT = 50;
+	static final long DEFAULT_SNAPSHOT_INTERVAL = 10 * 60 * 1000;
+	static final long DEFAULT_SNAPSHOT_MIN_RECORDS = 10000;
+	static final long DEFAULT_TRANSFER_CHUNK_SIZE = 256 * 1024;
+	static final long DEFAULT_TRANSFER_EXPIRY = 60 * 1000;
+	static final long DEFAULT_FILTER_BITS = 8 * 1024 * 1024;
+	static final long DEFAULT_FILTER_HASHES = 7;
+	static final long DEFAULT_METRICS_INTERVAL = 60 * 1000;
+	static final long DEFAULT_REPLICATION_INTERVAL = 5;
+	static final long DEFAULT_REPLICATION_HEARTBEAT = 200;
+	static final long DEFAULT_REPLICATION_BATCH = 1024;
+	static final long DEFAULT_REPLICATION_MAX_PENDING = 100000;
+	static final long DEFAULT_READ_MAX_STALENESS = 1000;
+	static final long DEFAULT_EVENT_HISTORY = 32;
+	static final long DEFAULT_LIST_PAGE_MAX = 100;
+	static final long DEFAULT_NOTIFY_THREADS = 4;
+	static final long DEFAULT_NOTIFY_QUEUE_SIZE = 256;
+	static final String DEFAULT_NOTIFY_QUEUE_POLICY = "drop-oldest";
+	static final long DEFAULT_NOTIFY_MAX_FAILURES = 3;
+	static final long DEFAULT_NOTIFY_TIMEOUT = 10 * 1000;
+	static final long DEFAULT_NOTIFY_INBOX_SIZE = 1000;
+	static final long DEFAULT_DEADLINE_TICK = 100;
+	static final long DEFAULT_MEMBERSHIP_HEARTBEAT = 500;
+	static final long DEFAULT_MEMBERSHIP_WINDOW = 100;
+	static final long DEFAULT_MEMBERSHIP_MIN_STDDEV = 250;
+	static final long DEFAULT_MEMBERSHIP_PHI_SUSPECT = 3;
+	static final long DEFAULT_MEMBERSHIP_PHI_DOWN = 8;
+	static final long DEFAULT_RAFT_ELECTION_TIMEOUT = 1000;
+	static final long DEFAULT_RAFT_HEARTBEAT = 100;
+	static final long DEFAULT_RAFT_BATCH = 512;
+	static final long DEFAULT_RAFT_SNAPSHOT_ENTRIES = 10000;
+	static final long DEFAULT_PEER_FAILURES = 3;
+	static final long DEFAULT_PEER_BACKOFF_MIN = 100;
+	static final long DEFAULT_PEER_BACKOFF_MAX = 10 * 1000;
+	static final String DEFAULT_TRANSPORT = "rmi";
+	static final long DEFAULT_TRANSPORT_PORT = 0;
+	static final long DEFAULT_TRANSPORT_WORKERS = 16;
+	static final long DEFAULT_TRANSPORT_DIRECT_THRESHOLD = 64 * 1024;
+	static final long DEFAULT_TRANSPORT_TIMEOUT = 30 * 1000;
+
+	Properties props;
+
+
+	/**
+	 * Instantiates a new server config using only default values.
+	 */
+	public ServerConfig()
+	{
+		this( new Properties() );
+	}
+
+	/**
+	 * Instantiates a new server config.
+	 *
+	 * @param props the properties
+	 */
+	public ServerConfig( Properties props )
+	{
+		this.props = props;
+	}
+
+
+	/**
+	 * Gets the time (in ms) a registration or creation may take to commit, and other servers have to answer.
+	 *
+	 * @return the commit timeout
+	 */
+	public long getCommitTimeout()
+	{
+		return getLong( KEY_COMMIT_TIMEOUT, DEFAULT_COMMIT_TIMEOUT );
+	}
+
+	
+	/**
+	 * Gets the time (in ms) registrations and event creations are collected
+	 * before they are committed together.
+	 *
+	 * @return the batch window
+	 */
+	public long getBatchWindow()
+	{
+		return getLong( KEY_BATCH_WINDOW, DEFAULT_BATCH_WINDOW );
+	}
+	
+	/**
+	 * Gets the maximum number of registrations and event creations committed together.
+	 *
+	 * @return the batch size
+	 */
+	public int getBatchSize()
+	{
+		return (int)getLong( KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE );
+	}
+
+	
+	/**
+	 * Gets the number of positions each server gets on the hash ring.
+	 *
+	 * @return the number of virtual nodes
+	 */
+	public int getRingVirtualNodes()
+	{
+		return (int)getLong( KEY_RING_VNODES, DEFAULT_RING_VNODES );
+	}
+	
+	/**
+	 * Gets the number of servers holding each user and event (its owner plus replicas).
+	 *
+	 * @return the number of replicas
+	 */
+	public int getRingReplicas()
+	{
+		return (int)getLong( KEY_RING_REPLICAS, DEFAULT_RING_REPLICAS );
+	}
+
+	
+	/**
+	 * Gets the directory the servers keep their data in. Each server uses
+	 * a sub directory named after its binding name.
+	 *
+	 * @return the data directory
+	 */
+	public String getWalDir()
+	{
+		return this.props.getProperty( KEY_WAL_DIR, DEFAULT_WAL_DIR ).trim();
+	}
+	
+	/**
+	 * Gets the size (in bytes) of a single write-ahead log segment.
+	 *
+	 * @return the segment size
+	 */
+	public int getWalSegmentSize()
+	{
+		return (int)getLong( KEY_WAL_SEGMENT_SIZE, DEFAULT_WAL_SEGMENT_SIZE );
+	}
+	
+	/**
+	 * Gets the time (in ms) between two forces of the write-ahead log to disk.
+	 *
+	 * @return the sync interval
+	 */
+	public long getWalSyncInterval()
+	{
+		return getLong( KEY_WAL_SYNC_INTERVAL, DEFAULT_WAL_SYNC_INTERVAL );
+	}
+	
+	/**
+	 * Gets the maximum time (in ms) a request waits for its changes to be
+	 * forced to disk. 0 means requests don't wait at all.
+	 *
+	 * @return the sync wait
+	 */
+	public long getWalSyncWait()
+	{
+		return getLong( KEY_WAL_SYNC_WAIT, DEFAULT_WAL_SYNC_WAIT );
+	}
+	
+	/**
+	 * Gets the number of threads replaying the write-ahead log on startup.
+	 *
+	 * @return the number of recovery threads
+	 */
+	public int getRecoveryThreads()
+	{
+		return (int)getLong( KEY_RECOVERY_THREADS, Runtime.getRuntime().availableProcessors() );
+	}
+
+	
+	/**
+	 * Gets the time (in ms) between two checks whether a snapshot should be taken.
+	 *
+	 * @return the snapshot interval
+	 */
+	public long getSnapshotInterval()
+	{
+		return getLong( KEY_SNAPSHOT_INTERVAL, DEFAULT_SNAPSHOT_INTERVAL );
+	}
+	
+	/**
+	 * Gets the minimum number of new log records for taking a snapshot.
+	 *
+	 * @return the minimum number of records
+	 */
+	public long getSnapshotMinRecords()
+	{
+		return getLong( KEY_SNAPSHOT_MIN_RECORDS, DEFAULT_SNAPSHOT_MIN_RECORDS );
+	}
+
+	
+	/**
+	 * Gets the size (in bytes) of the chunks the state is sent in to servers
+	 * catching up, also the most the metadata log sends in one message.
+	 *
+	 * @return the chunk size
+	 */
+	public int getTransferChunkSize()
+	{
+		return (int)getLong( KEY_TRANSFER_CHUNK_SIZE, DEFAULT_TRANSFER_CHUNK_SIZE );
+	}
+	
+	/**
+	 * Gets the time (in ms) after which an unused state transfer is deleted.
+	 *
+	 * @return the transfer expiry
+	 */
+	public long getTransferExpiry()
+	{
+		return getLong( KEY_TRANSFER_EXPIRY, DEFAULT_TRANSFER_EXPIRY );
+	}
+
+	
+	/**
+	 * Gets the number of bits of the filters for taken user and event names.
+	 * Must be the same on all servers.
+	 *
+	 * @return the number of bits
+	 */
+	public int getFilterBits()
+	{
+		return (int)getLong( KEY_FILTER_BITS, DEFAULT_FILTER_BITS );
+	}
+	
+	/**
+	 * Gets the number of hashes of the filters for taken user and event names.
+	 * Must be the same on all servers.
+	 *
+	 * @return the number of hashes
+	 */
+	public int getFilterHashes()
+	{
+		return (int)getLong( KEY_FILTER_HASHES, DEFAULT_FILTER_HASHES );
+	}
+	
+	/**
+	 * Gets the time (in ms) between two log messages containing the metrics, 0 to never log them.
+	 *
+	 * @return the metrics interval
+	 */
+	public long getMetricsInterval()
+	{
+		return getLong( KEY_METRICS_INTERVAL, DEFAULT_METRICS_INTERVAL );
+	}
+
+	
+	/**
+	 * Gets the number of event shards, each owned by one worker thread.
+	 * 0 means events are changed by the calling threads, holding a lock.
+	 * Defaults to one shard per cpu.
+	 *
+	 * @return the number of event shards
+	 */
+	public int getEventShards()
+	{
+		return (int)getLong( KEY_EVENT_SHARDS, Runtime.getRuntime().availableProcessors() );
+	}
+
+	
+	/**
+	 * Gets the time (in ms) between two batches of event changes sent to the other servers holding the events.
+	 *
+	 * @return the replication interval
+	 */
+	public long getReplicationInterval()
+	{
+		return getLong( KEY_REPLICATION_INTERVAL, DEFAULT_REPLICATION_INTERVAL );
+	}
+	
+	/**
+	 * Gets the maximum time (in ms) between two batches to the same server, even if nothing changed.
+	 *
+	 * @return the replication heartbeat
+	 */
+	public long getReplicationHeartbeat()
+	{
+		return getLong( KEY_REPLICATION_HEARTBEAT, DEFAULT_REPLICATION_HEARTBEAT );
+	}
+	
+	/**
+	 * Gets the maximum number of event changes sent in one batch.
+	 *
+	 * @return the replication batch size
+	 */
+	public int getReplicationBatch()
+	{
+		return (int)getLong( KEY_REPLICATION_BATCH, DEFAULT_REPLICATION_BATCH );
+	}
+	
+	/**
+	 * Gets the maximum number of event changes queued for a server that doesn't
+	 * answer. Beyond this the oldest changes are dropped, the server then
+	 * forwards reads until it catches up.
+	 *
+	 * @return the maximum number of pending changes
+	 */
+	public int getReplicationMaxPending()
+	{
+		return (int)getLong( KEY_REPLICATION_MAX_PENDING, DEFAULT_REPLICATION_MAX_PENDING );
+	}
+	
+	/**
+	 * Gets the maximum time (in ms) since the last batch from an event's server,
+	 * for answering bounded-staleness reads of the event from the local copy.
+	 *
+	 * @return the maximum staleness
+	 */
+	public long getReadMaxStaleness()
+	{
+		return getLong( KEY_READ_MAX_STALENESS, DEFAULT_READ_MAX_STALENESS );
+	}
+
+	
+	/**
+	 * Gets the number of latest changes kept per event, for sending clients
+	 * only what changed since their version instead of the whole event.
+	 *
+	 * @return the event history size
+	 */
+	public int getEventHistory()
+	{
+		return (int)getLong( KEY_EVENT_HISTORY, DEFAULT_EVENT_HISTORY );
+	}
+
+	
+	/**
+	 * Gets the maximum number of events on a page of a listing.
+	 *
+	 * @return the maximum page size
+	 */
+	public int getListPageMax()
+	{
+		return (int)getLong( KEY_LIST_PAGE_MAX, DEFAULT_LIST_PAGE_MAX );
+	}
+
+	
+	/**
+	 * Gets the number of threads calling back clients.
+	 *
+	 * @return the number of notification threads
+	 */
+	public int getNotifyThreads()
+	{
+		return (int)getLong( KEY_NOTIFY_THREADS, DEFAULT_NOTIFY_THREADS );
+	}
+
+	
+	/**
+	 * Gets the maximum number of notifications queued for a single client.
+	 *
+	 * @return the notification queue size
+	 */
+	public int getNotifyQueueSize()
+	{
+		return (int)getLong( KEY_NOTIFY_QUEUE_SIZE, DEFAULT_NOTIFY_QUEUE_SIZE );
+	}
+
+	
+	/**
+	 * Gets what to do with a notification for a client whose queue is full:
+	 * "drop-oldest" drops the oldest queued notification, "drop-newest" the new one.
+	 *
+	 * @return the notification queue policy
+	 */
+	public String getNotifyQueuePolicy()
+	{
+		return this.props.getProperty( KEY_NOTIFY_QUEUE_POLICY, DEFAULT_NOTIFY_QUEUE_POLICY ).trim();
+	}
+
+	
+	/**
+	 * Gets the number of failed callbacks in a row after which a client is logged out.
+	 *
+	 * @return the maximum number of failures
+	 */
+	public int getNotifyMaxFailures()
+	{
+		return (int)getLong( KEY_NOTIFY_MAX_FAILURES, DEFAULT_NOTIFY_MAX_FAILURES );
+	}
+
+	
+	/**
+	 * Gets the maximum time (in ms) a callback may take before the client is considered stuck and logged out.
+	 *
+	 * @return the notification timeout
+	 */
+	public long getNotifyTimeout()
+	{
+		return getLong( KEY_NOTIFY_TIMEOUT, DEFAULT_NOTIFY_TIMEOUT );
+	}
+
+	
+	/**
+	 * Gets the maximum number of notifications kept for a user who is offline.
+	 *
+	 * @return the inbox size
+	 */
+	public int getNotifyInboxSize()
+	{
+		return (int)getLong( KEY_NOTIFY_INBOX_SIZE, DEFAULT_NOTIFY_INBOX_SIZE );
+	}
+
+	
+	/**
+	 * Gets the time (in ms) between two checks for events whose voting deadline passed.
+	 *
+	 * @return the deadline tick
+	 */
+	public long getDeadlineTick()
+	{
+		return getLong( KEY_DEADLINE_TICK, DEFAULT_DEADLINE_TICK );
+	}
+	
+	/**
+	 * Gets the time (in ms) between two heartbeats to each other server.
+	 *
+	 * @return the heartbeat interval
+	 */
+	public long getMembershipHeartbeat()
+	{
+		return getLong( KEY_MEMBERSHIP_HEARTBEAT, DEFAULT_MEMBERSHIP_HEARTBEAT );
+	}
+	
+	/**
+	 * Gets the number of latest heartbeat intervals the failure detector learns from.
+	 *
+	 * @return the window
+	 */
+	public int getMembershipWindow()
+	{
+		return (int)getLong( KEY_MEMBERSHIP_WINDOW, DEFAULT_MEMBERSHIP_WINDOW );
+	}
+	
+	/**
+	 * Gets the minimum standard deviation (in ms) of the heartbeat intervals
+	 * assumed by the failure detector.
+	 *
+	 * @return the minimum standard deviation
+	 */
+	public long getMembershipMinStdDev()
+	{
+		return getLong( KEY_MEMBERSHIP_MIN_STDDEV, DEFAULT_MEMBERSHIP_MIN_STDDEV );
+	}
+	
+	/**
+	 * Gets the suspicion level (phi) at which a server is suspected.
+	 *
+	 * @return the threshold
+	 */
+	public long getMembershipPhiSuspect()
+	{
+		return getLong( KEY_MEMBERSHIP_PHI_SUSPECT, DEFAULT_MEMBERSHIP_PHI_SUSPECT );
+	}
+	
+	/**
+	 * Gets the suspicion level (phi) at which a server is considered down.
+	 *
+	 * @return the threshold
+	 */
+	public long getMembershipPhiDown()
+	{
+		return getLong( KEY_MEMBERSHIP_PHI_DOWN, DEFAULT_MEMBERSHIP_PHI_DOWN );
+	}
+	
+	/**
+	 * Gets the minimum time (in ms) without a leader of the metadata log
+	 * before a server stands for election. The actual time is random, up
+	 * to twice as long.
+	 *
+	 * @return the election timeout
+	 */
+	public long getRaftElectionTimeout()
+	{
+		return getLong( KEY_RAFT_ELECTION_TIMEOUT, DEFAULT_RAFT_ELECTION_TIMEOUT );
+	}
+	
+	/**
+	 * Gets the maximum time (in ms) between two messages of the leader of the metadata log.
+	 *
+	 * @return the heartbeat interval
+	 */
+	public long getRaftHeartbeat()
+	{
+		return getLong( KEY_RAFT_HEARTBEAT, DEFAULT_RAFT_HEARTBEAT );
+	}
+	
+	/**
+	 * Gets the maximum number of metadata log entries sent in one message.
+	 *
+	 * @return the batch size
+	 */
+	public int getRaftBatch()
+	{
+		return (int)getLong( KEY_RAFT_BATCH, DEFAULT_RAFT_BATCH );
+	}
+	
+	/**
+	 * Gets the number of applied metadata log entries compacted into a snapshot.
+	 *
+	 * @return the number of entries, or 0 to never compact
+	 */
+	public int getRaftSnapshotEntries()
+	{
+		return (int)getLong( KEY_RAFT_SNAPSHOT_ENTRIES, DEFAULT_RAFT_SNAPSHOT_ENTRIES );
+	}
+	
+	/**
+	 * Gets the number of failed calls in a row after which calls to another
+	 * server fail right away, until it could be reached again.
+	 *
+	 * @return the number of failures
+	 */
+	public int getPeerFailures()
+	{
+		return (int)getLong( KEY_PEER_FAILURES, DEFAULT_PEER_FAILURES );
+	}
+	
+	/**
+	 * Gets the time (in ms) before the first attempt to reach a failed server again.
+	 * The time doubles with every failed attempt.
+	 *
+	 * @return the minimum backoff
+	 */
+	public long getPeerBackoffMin()
+	{
+		return getLong( KEY_PEER_BACKOFF_MIN, DEFAULT_PEER_BACKOFF_MIN );
+	}
+	
+	/**
+	 * Gets the maximum time (in ms) between two attempts to reach a failed server again.
+	 *
+	 * @return the maximum backoff
+	 */
+	public long getPeerBackoffMax()
+	{
+		return getLong( KEY_PEER_BACKOFF_MAX, DEFAULT_PEER_BACKOFF_MAX );
+	}
+	
+	/**
+	 * Gets the transport for calls between servers: "rmi", or "nio" for
+	 * binary frames over non-blocking sockets. Clients always use RMI.
+	 *
+	 * @return the transport
+	 */
+	public String getTransport()
+	{
+		return this.props.getProperty( KEY_TRANSPORT, DEFAULT_TRANSPORT ).trim();
+	}
+	
+	/**
+	 * Gets the port the nio transport listens on, 0 for any free port.
+	 *
+	 * @return the port
+	 */
+	public int getTransportPort()
+	{
+		return (int)getLong( KEY_TRANSPORT_PORT, DEFAULT_TRANSPORT_PORT );
+	}
+	
+	/**
+	 * Gets the number of threads running the calls of other servers
+	 * received by the nio transport.
+	 *
+	 * @return the number of threads
+	 */
+	public int getTransportWorkers()
+	{
+		return (int)getLong( KEY_TRANSPORT_WORKERS, DEFAULT_TRANSPORT_WORKERS );
+	}
+	
+	/**
+	 * Gets the size (in bytes) from which frames of the nio transport are
+	 * kept in direct buffers, which are written to and read from the socket
+	 * without another copy.
+	 *
+	 * @return the threshold
+	 */
+	public int getTransportDirectThreshold()
+	{
+		return (int)getLong( KEY_TRANSPORT_DIRECT_THRESHOLD, DEFAULT_TRANSPORT_DIRECT_THRESHOLD );
+	}
+	
+	/**
+	 * Gets the maximum time (in ms) to wait for the answer to a call made
+	 * over the nio transport.
+	 *
+	 * @return the timeout
+	 */
+	public long getTransportTimeout()
+	{
+		return getLong( KEY_TRANSPORT_TIMEOUT, DEFAULT_TRANSPORT_TIMEOUT );
+	}
+
+
+	/**
+	 * Gets the given key as long value. Values that cannot be parsed
+	 * are reported and replaced by the default.
+	 *
+	 * @param key the key
+	 * @param def the default value
+	 * @return the value
+	 */
+	protected long getLong( String key, long def )
+	{
+		String sz = this.props.getProperty( key );
+
+		if( sz == null )
+			return def;
+
+		try
+		{
+			return Long.parseLong( sz.trim() );
+		}catch( NumberFormatException nfex )
+		{
+			logger.warning( "The value of \"" + key + "\" could not be parsed, using " + def );
+			return def;
+		}
+	}
+
+
+	/**
+	 * Read the server config from the given properties file. If the file
+	 * does not exist, a config containing only default values is returned.
+	 *
+	 * @param propertiesFile the properties file
+	 * @return the server config
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static ServerConfig readServerConfig( String propertiesFile ) throws IOException
+	{
+		Properties props = new Properties();
+
+		InputStream in = ClassLoader.getSystemResourceAsStream( propertiesFile );
+
+		if( in != null )
+		{
+			try {
+				props.load( in );
+			} finally {
+				in.close();
+			}
+		}
+
+		return new ServerConfig( props );
+	}
+
+}
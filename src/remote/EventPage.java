@@ -0,0 +1,55 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.List;
+
+
+/**
+ * A page of a listing, and the cursor to get the next page with.
+ */
+public class EventPage implements Serializable {
+
+	private static final long serialVersionUID = -8263390186950874511L;
+
+	List<EventSummary> events;
+	String next;
+
+	/**
+	 * Instantiates a new page.
+	 *
+	 * @param events the events on this page
+	 * @param next the cursor of the next page, null if this is the last page
+	 */
+	public EventPage( List<EventSummary> events, String next )
+	{
+		this.events = events;
+		this.next = next;
+	}
+
+	/**
+	 * Gets the events on this page, ordered by name.
+	 *
+	 * @return the events
+	 */
+	public List<EventSummary> getEvents() {
+		return events;
+	}
+
+	/**
+	 * Gets the cursor to pass for the next page.
+	 *
+	 * @return the cursor, or null if this is the last page
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	/**
+	 * Checks whether there are more pages.
+	 *
+	 * @return true, if there are
+	 */
+	public boolean hasNext() {
+		return next != null;
+	}
+}
@@ -0,0 +1,104 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.Date;
+
+
+/**
+ * A query on the secondary indexes of the events, see
+ * {@link IRemoteClient#findEvents(EventQuery, String, int)}.
+ */
+public class EventQuery implements Serializable {
+
+	private static final long serialVersionUID = -1786306517744031725L;
+
+	/** What to look for. */
+	public enum Kind { AUTHOR, LOCATION, DATES }
+
+	Kind kind;
+	String value;
+	Date from;
+	Date to;
+
+	/**
+	 * Instantiates a new query.
+	 */
+	EventQuery( Kind kind, String value, Date from, Date to )
+	{
+		this.kind = kind;
+		this.value = value;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * The events created by the given user.
+	 */
+	public static EventQuery byAuthor( String author )
+	{ return new EventQuery( Kind.AUTHOR, author, null, null ); }
+
+	/**
+	 * The events at the given location, ignoring case and extra whitespace.
+	 */
+	public static EventQuery atLocation( String location )
+	{ return new EventQuery( Kind.LOCATION, location, null, null ); }
+
+	/**
+	 * The events with a date option from the first (inclusive) to the second
+	 * date (exclusive). Of finalized events, only the final date counts.
+	 */
+	public static EventQuery withOptionBetween( Date from, Date to )
+	{ return new EventQuery( Kind.DATES, null, from, to ); }
+
+	/**
+	 * Gets the kind.
+	 *
+	 * @return the kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Gets the author or location to look for.
+	 *
+	 * @return the value
+	 */
+	public String getValue() {
+		return value;
+	}
+
+	/**
+	 * Gets the first date of the range.
+	 *
+	 * @return the from
+	 */
+	public Date getFrom() {
+		return from;
+	}
+
+	/**
+	 * Gets the end of the range.
+	 *
+	 * @return the to
+	 */
+	public Date getTo() {
+		return to;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		switch( this.kind )
+		{
+			case AUTHOR:
+				return "events by " + this.value;
+			case LOCATION:
+				return "events at " + this.value;
+			default:
+				return "events with an option from " + this.from + " to " + this.to;
+		}
+	}
+}
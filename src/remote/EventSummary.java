@@ -0,0 +1,66 @@
+package remote;
+
+import java.io.Serializable;
+
+
+/**
+ * A light summary of an event in a listing: just enough to tell the events
+ * apart and to get the rest with a get.
+ */
+public class EventSummary implements Serializable {
+
+	private static final long serialVersionUID = 5106388423316625194L;
+
+	String name;
+	String author;
+	boolean invited;
+
+	/**
+	 * Instantiates a new event summary.
+	 *
+	 * @param name the event name
+	 * @param author the author of the event
+	 * @param invited whether the listing user was invited to the event
+	 */
+	public EventSummary( String name, String author, boolean invited )
+	{
+		this.name = name;
+		this.author = author;
+		this.invited = invited;
+	}
+
+	/**
+	 * Gets the event name.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the author of the event.
+	 *
+	 * @return the author
+	 */
+	public String getAuthor() {
+		return author;
+	}
+
+	/**
+	 * Checks whether the listing user was invited to the event.
+	 *
+	 * @return true, if invited
+	 */
+	public boolean isInvited() {
+		return invited;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.name + " (by " + this.author + (this.invited ? ", invited" : "") + ")";
+	}
+}
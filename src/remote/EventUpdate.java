@@ -0,0 +1,219 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import entities.EventInfo;
+
+
+/**
+ * The answer to a conditional get: either nothing changed since the
+ * version the client knows, or the changes made since, or, if the server
+ * can't tell what changed, the whole event info.
+ */
+public class EventUpdate implements Serializable {
+
+	private static final long serialVersionUID = 3518800232957245717L;
+
+	/** What the update contains. */
+	public enum Kind { NOT_MODIFIED, DELTA, FULL }
+
+	Kind kind;
+	String name;
+	long version;
+	EventInfo info;
+	List<Date> dates;
+	List<String> invitations;
+	Map<String, Set<Date>> votes;
+	Date finalizedDate;
+
+	/**
+	 * Instantiates a new event update.
+	 *
+	 * @param kind the kind
+	 * @param name the event name
+	 * @param version the version the client knows after this update
+	 */
+	EventUpdate( Kind kind, String name, long version )
+	{
+		this.kind = kind;
+		this.name = name;
+		this.version = version;
+	}
+
+	/**
+	 * Nothing changed since the given version.
+	 */
+	public static EventUpdate notModified( String name, long version )
+	{
+		return new EventUpdate( Kind.NOT_MODIFIED, name, version );
+	}
+
+	/**
+	 * The whole event info at the given version.
+	 */
+	public static EventUpdate full( String name, long version, EventInfo info )
+	{
+		EventUpdate ret = new EventUpdate( Kind.FULL, name, version );
+		ret.info = info;
+		return ret;
+	}
+
+	/**
+	 * An empty delta leading to the given version, filled by the add methods.
+	 */
+	public static EventUpdate delta( String name, long version )
+	{
+		EventUpdate ret = new EventUpdate( Kind.DELTA, name, version );
+		ret.dates = new ArrayList<Date>();
+		ret.invitations = new ArrayList<String>();
+		ret.votes = new LinkedHashMap<String, Set<Date>>();
+		return ret;
+	}
+
+	/**
+	 * Adds a date option to this delta.
+	 *
+	 * @param date the date
+	 */
+	public void addDate( Date date )
+	{
+		this.dates.add( date );
+	}
+
+	/**
+	 * Adds an invitation to this delta. A vote of the user made earlier in
+	 * this delta is dropped, as the invitation replaces it.
+	 *
+	 * @param user the invited user
+	 */
+	public void addInvitation( String user )
+	{
+		this.invitations.add( user );
+		this.votes.remove( user );
+	}
+
+	/**
+	 * Adds a vote to this delta, replacing an earlier vote of the same user.
+	 *
+	 * @param user the user
+	 * @param dates the dates the user voted for
+	 */
+	public void addVote( String user, Set<Date> dates )
+	{
+		this.votes.remove( user );
+		this.votes.put( user, dates );
+	}
+
+	/**
+	 * Sets the final date of the event.
+	 *
+	 * @param date the date
+	 */
+	public void setFinalizedDate( Date date )
+	{
+		this.finalizedDate = date;
+	}
+
+	/**
+	 * Gets the kind of this update.
+	 *
+	 * @return the kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Gets the event name.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the version to pass with the next conditional get.
+	 *
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets the whole event info, for full updates.
+	 *
+	 * @return the event info, or null
+	 */
+	public EventInfo getInfo() {
+		return info;
+	}
+
+	/**
+	 * Gets the added date options, for deltas.
+	 *
+	 * @return the dates, or null
+	 */
+	public List<Date> getDates() {
+		return dates;
+	}
+
+	/**
+	 * Gets the invited users, for deltas.
+	 *
+	 * @return the users, or null
+	 */
+	public List<String> getInvitations() {
+		return invitations;
+	}
+
+	/**
+	 * Gets the latest vote of each user who voted, for deltas.
+	 *
+	 * @return the votes, or null
+	 */
+	public Map<String, Set<Date>> getVotes() {
+		return votes;
+	}
+
+	/**
+	 * Gets the final date, if the event was finalized within this delta.
+	 *
+	 * @return the final date, or null
+	 */
+	public Date getFinalizedDate() {
+		return finalizedDate;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		switch( this.kind )
+		{
+			case NOT_MODIFIED:
+				return "\"" + this.name + "\" not modified";
+			case FULL:
+				return String.valueOf( this.info );
+			default:
+				StringBuilder sb = new StringBuilder( "Changes of \"" + this.name + "\":" );
+				for( Date d : this.dates )
+					sb.append( "\n  new date option " ).append( d );
+				for( String u : this.invitations )
+					sb.append( "\n  invited " ).append( u );
+				for( Map.Entry<String, Set<Date>> v : this.votes.entrySet() )
+					sb.append( "\n  " ).append( v.getKey() ).append( " voted for " ).append( v.getValue() );
+				if( this.finalizedDate != null )
+					sb.append( "\n  finalized on " ).append( this.finalizedDate );
+				return sb.toString();
+		}
+	}
+}
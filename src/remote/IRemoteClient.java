@@ -2,7 +2,9 @@ package remote;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import client.IClientCallback;
@@ -46,6 +48,20 @@ public interface IRemoteClient extends Remote {
 	boolean create( String name, String location, int duration )
 			throws RemoteException;
 	
+	/**
+	 * Creates the given event, which is finalized automatically once the
+	 * given voting deadline passed, unless the author finalizes it before.
+	 * 
+	 * @param name the name
+	 * @param location the location
+	 * @param duration the duration
+	 * @param deadline the voting deadline, null for none
+	 * @return true, if successful
+	 * @throws RemoteException the remote exception
+	 */
+	boolean create( String name, String location, int duration, Date deadline )
+			throws RemoteException;
+	
 	/**
 	 * Adds the date to the given event.
 	 * 
@@ -67,13 +83,56 @@ public interface IRemoteClient extends Remote {
 	boolean invite( String eventName, String userName ) throws RemoteException;
 
 	/**
-	 * Gets the EventInfo about the given event.
+	 * Gets the EventInfo about the given event, with bounded staleness.
 	 * 
 	 * @param name the name
 	 * @return the event info
 	 * @throws RemoteException the remote exception
 	 */
 	public EventInfo get( String name ) throws RemoteException;
+	
+	/**
+	 * Gets the EventInfo about the given event.
+	 * 
+	 * @param name the name
+	 * @param consistency how up to date the event info has to be
+	 * @return the event info
+	 * @throws RemoteException the remote exception
+	 */
+	public EventInfo get( String name, ReadConsistency consistency ) throws RemoteException;
+	
+	/**
+	 * Gets the EventInfo about each of the given events, with bounded
+	 * staleness. Events that can't be read are reported as errors, the
+	 * others are returned anyway.
+	 * 
+	 * @param names the names
+	 * @return the event infos and errors
+	 * @throws RemoteException the remote exception
+	 */
+	public MultiGetResult getAll( Collection<String> names ) throws RemoteException;
+	
+	/**
+	 * Gets what changed in the given event since the given version, with
+	 * bounded staleness. Pass the version of the previous update, or -1
+	 * to get the whole event info.
+	 * 
+	 * @param name the name
+	 * @param knownVersion the known version
+	 * @return the update
+	 * @throws RemoteException the remote exception
+	 */
+	public EventUpdate get( String name, long knownVersion ) throws RemoteException;
+	
+	/**
+	 * Gets the date currently leading the votes of the given event,
+	 * or its final date, if it is finalized.
+	 * 
+	 * @param name the name
+	 * @return the date, or null if the event has no date options
+	 * @throws RemoteException the remote exception
+	 */
+	public Date getLeader( String name ) throws RemoteException;
 
 	/**
 	 * Vote for the given dates on the specified event.
@@ -92,6 +151,43 @@ public interface IRemoteClient extends Remote {
 	 */
 	public void finalizeEvent(String name) throws RemoteException;
 
+	/**
+	 * Lists the events the user created or was invited to, a page at a
+	 * time, ordered by name.
+	 * 
+	 * @param filter which events to list
+	 * @param cursor the cursor of the previous page, null for the first page
+	 * @param limit the maximum number of events on the page, the server may return less
+	 * @return the page
+	 * @throws RemoteException if the server network is not available or the client is not logged in
+	 */
+	public EventPage listEvents( ListFilter filter, String cursor, int limit ) throws RemoteException;
+	
+	/**
+	 * Finds the events matching the given query, on all servers, a page at
+	 * a time, ordered by name.
+	 * 
+	 * @param q the query
+	 * @param cursor the cursor of the previous page, null for the first page
+	 * @param limit the maximum number of events on the page, the server may return less
+	 * @return the page
+	 * @throws RemoteException if the server network is not available or the client is not logged in
+	 */
+	public EventPage findEvents( EventQuery q, String cursor, int limit ) throws RemoteException;
+	
+	/**
+	 * Executes the given operations in one call, in order. Operations the
+	 * server has to forward are sent to each other server in one call, the
+	 * operations of the same event still run in order. A failing operation
+	 * doesn't stop the others. If another server didn't answer, the result
+	 * of its operations is unknown.
+	 * 
+	 * @param ops the operations
+	 * @return the result of each operation
+	 * @throws RemoteException if the server network is not available or the client is not logged in
+	 */
+	public List<OperationResult> executeBatch( List<Operation> ops ) throws RemoteException;
+	
 	/**
 	 * Logout the client.
 	 * 
@@ -2,7 +2,10 @@ package remote;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import entities.EventInfo;
@@ -14,59 +17,43 @@ import entities.EventInfo;
 public interface IRemoteServer extends Remote {
 
 	/**
-	 * Begin to register the given user.
+	 * Gets a chunk of this server's state, for a server catching up.
+	 * Only users and events held by the requesting server are sent.
 	 * 
-	 * @param userName the user name
-	 * @param pwd the pwd
-	 * @param server the server
-	 * @return true, if successful
-	 * @throws RemoteException the remote exception
+	 * @param requester the name of the requesting server
+	 * @param transferId the transfer to resume, or null to start a new transfer
+	 * @param offset the offset of the chunk within the transfer
+	 * @param maxBytes the maximum size of the chunk
+	 * @return the chunk
+	 * @throws RemoteException if the transfer is unknown or couldn't be read
 	 */
-	boolean beginRegister(String userName, String pwd, String server) throws RemoteException;
+	StateChunk fetchState( String requester, String transferId, long offset, int maxBytes ) throws RemoteException;
 	
 	/**
-	 * Rollback registering the given user.
+	 * Gets the bits of this server's filters of taken names.
 	 * 
-	 * @param userName the user name
+	 * @return the bits of the user filter and the event filter
 	 * @throws RemoteException the remote exception
 	 */
-	void rollbackRegister(String userName) throws RemoteException;
+	long[][] getNameFilters() throws RemoteException;
 	
 	/**
-	 * Commit registering the given user.
+	 * Gets the server the given user registered at, if this server holds the user.
 	 * 
 	 * @param userName the user name
+	 * @return the server name, or null if the user is unknown here
 	 * @throws RemoteException the remote exception
 	 */
-	void commitRegister(String userName) throws RemoteException;
-	
-	/**
-	 * Begin creating the given event.
-	 * 
-	 * @param eventName the event name
-	 * @param location the location
-	 * @param duration the duration
-	 * @param authorName the author name
-	 * @return true, if successful
-	 * @throws RemoteException the remote exception
-	 */
-	boolean beginCreate( String eventName, String location, int duration, String authorName ) throws RemoteException;
-	
-	/**
-	 * Rollback creating the given event.
-	 * 
-	 * @param eventName the event name
-	 * @throws RemoteException the remote exception
-	 */
-	void rollbackCreate( String eventName ) throws RemoteException;
+	String locateUser( String userName ) throws RemoteException;
 	
 	/**
-	 * Commit creating the given event.
+	 * Gets the author of the given event, if this server holds the event.
 	 * 
 	 * @param eventName the event name
+	 * @return the author name, or null if the event is unknown here
 	 * @throws RemoteException the remote exception
 	 */
-	void commitCreate( String eventName ) throws RemoteException;
+	String locateEvent( String eventName ) throws RemoteException;
 	
 	/**
 	 * Invite the given user to the given event.
@@ -98,6 +85,29 @@ public interface IRemoteServer extends Remote {
 	 */
 	void onFinalization(String eventName, Date finalizedDate, String user ) throws RemoteException;
 	
+	/**
+	 * Notifies the given users of this server of the finalization of the
+	 * given event. Returns right away, the users are called back in the
+	 * background.
+	 * 
+	 * @param eventName the event name
+	 * @param finalizedDate the final date
+	 * @param users the users
+	 * @throws RemoteException the remote exception
+	 */
+	void onFinalizationBatch( String eventName, Date finalizedDate, Collection<String> users ) throws RemoteException;
+	
+	/**
+	 * Notifies the given users of this server of the finalization of
+	 * several events, like {@link #onFinalizationBatch(String, Date, Collection)}
+	 * does for a single event.
+	 * 
+	 * @param finalizedDates the final date, by event name
+	 * @param users the users to notify, by event name
+	 * @throws RemoteException the remote exception
+	 */
+	void onFinalizations( Map<String, Date> finalizedDates, Map<String, List<String>> users ) throws RemoteException;
+	
 	/**
 	 * Gets the EventInfo for the given event.
 	 * 
@@ -107,5 +117,202 @@ public interface IRemoteServer extends Remote {
 	 */
 	EventInfo get(String name) throws RemoteException;
 	
+	/**
+	 * Gets the EventInfo about the given event, already serialized. A server
+	 * holding a copy of the event answers from it, if it heard from the
+	 * event's server within the given time, otherwise it asks that server.
+	 * 
+	 * @param name the name
+	 * @param maxStaleness the maximum staleness (in ms), 0 to read from the event's server
+	 * @return the serialized event info, or null if the event doesn't exist
+	 * @throws RemoteException the remote exception
+	 */
+	byte[] getEventInfoData( String name, long maxStaleness ) throws RemoteException;
+	
+	/**
+	 * Gets the EventInfo about each of the given events, like
+	 * {@link #getEventInfoData(String, long)} does for a single event.
+	 * 
+	 * @param names the event names
+	 * @param maxStaleness the maximum staleness (in ms), 0 to read from the events' servers
+	 * @return the event infos and an error for each event that couldn't be read
+	 * @throws RemoteException the remote exception
+	 */
+	MultiGetResult getAll( List<String> names, long maxStaleness ) throws RemoteException;
+	
+	/**
+	 * Gets a page of the events held by this server that match the given query.
+	 * 
+	 * @param q the query
+	 * @param cursor the last event name of the previous page, null for the first page
+	 * @param limit the maximum number of events on the page
+	 * @return the page
+	 * @throws RemoteException the remote exception
+	 */
+	EventPage findEvents( EventQuery q, String cursor, int limit ) throws RemoteException;
+	
+	/**
+	 * Executes votes and invitations forwarded from another server's batch, in order.
+	 * 
+	 * @param ops the votes on events of this server and invitations of users of this server
+	 * @param user the user who voted or invited
+	 * @return the result of each operation
+	 * @throws RemoteException the remote exception
+	 */
+	List<OperationResult> executeForwarded( List<Operation> ops, String user ) throws RemoteException;
+	
+	/**
+	 * Gets what changed in the given event since the given version. Only
+	 * the server the event was created at answers, so versions stay valid.
+	 * 
+	 * @param name the name
+	 * @param knownVersion the version from the last update, or -1
+	 * @return the update, or null if the event doesn't exist
+	 * @throws RemoteException the remote exception
+	 */
+	EventUpdate get( String name, long knownVersion ) throws RemoteException;
+	
+	/**
+	 * Applies changes of events created at the given server, in order.
+	 * 
+	 * @param from the server the events were created at
+	 * @param records the encoded changes
+	 * @param gap true, if changes before these were lost
+	 * @throws RemoteException the remote exception
+	 */
+	void replicate( String from, List<byte[]> records, boolean gap ) throws RemoteException;
+	
+	/**
+	 * Sends the events created here and held by the given server to it
+	 * again, after it lost changes of them. Returns once they were sent.
+	 * 
+	 * @param requester the name of the server that lost changes
+	 * @throws RemoteException if the events couldn't be sent
+	 */
+	void resyncEvents( String requester ) throws RemoteException;
+	
+	/**
+	 * Gets the date currently leading the votes of the given event.
+	 * 
+	 * @param name the name
+	 * @return the date, or null if the event doesn't exist here or has no date options
+	 * @throws RemoteException the remote exception
+	 */
+	Date getLeader( String name ) throws RemoteException;
+	
+	/**
+	 * Announces the given server, which just started or was told it is
+	 * unknown. A server that is not part of the network yet joins it.
+	 * 
+	 * @param name the name of the announced server
+	 * @param server its remote interface
+	 * @param incarnation the time it was started
+	 * @param epoch the epoch of its view
+	 * @return false, if it has the name of this server
+	 * @throws RemoteException the remote exception
+	 */
+	boolean join( String name, IRemoteServer server, long incarnation, long epoch ) throws RemoteException;
+	
+	/**
+	 * Tells this server that the given server is alive.
+	 * 
+	 * @param from the name of the sending server
+	 * @param incarnation the time it was started
+	 * @param epoch the epoch of the sender's view
+	 * @return false, if this server doesn't know the sender and it should announce itself
+	 * @throws RemoteException the remote exception
+	 */
+	boolean heartbeat( String from, long incarnation, long epoch ) throws RemoteException;
+	
+	/**
+	 * Sends a new view, replacing the current one if it is newer.
+	 * 
+	 * @param view the view
+	 * @throws RemoteException the remote exception
+	 */
+	void onView( MemberView view ) throws RemoteException;
+	
+	/**
+	 * Gets the current view of this server.
+	 * 
+	 * @return the view
+	 * @throws RemoteException the remote exception
+	 */
+	MemberView getView() throws RemoteException;
+	
+	/**
+	 * Asks this server for its vote in an election of the metadata log.
+	 * 
+	 * @param term the term of the candidate
+	 * @param candidate the name of the candidate
+	 * @param lastIndex the index of the last entry of the candidate
+	 * @param lastTerm the term of the last entry of the candidate
+	 * @return the term of this server, and 1 if the vote is granted, 0 otherwise
+	 * @throws RemoteException the remote exception
+	 */
+	long[] requestVote( long term, String candidate, long lastIndex, long lastTerm ) throws RemoteException;
+	
+	/**
+	 * Appends entries of the metadata log sent by the leader. Sent without
+	 * entries as a heartbeat.
+	 * 
+	 * @param term the term of the leader
+	 * @param leader the name of the leader
+	 * @param prevIndex the index of the entry before the new ones
+	 * @param prevTerm the term of the entry before the new ones
+	 * @param entries the new entries
+	 * @param commitIndex the index of the last committed entry
+	 * @return the term of this server, 1 if the entries were appended, 0 otherwise,
+	 *         and the index of the last entry of this server
+	 * @throws RemoteException the remote exception
+	 */
+	long[] appendEntries( long term, String leader, long prevIndex, long prevTerm, List<RaftEntry> entries, long commitIndex ) throws RemoteException;
+	
+	/**
+	 * Receives a chunk of the leader's snapshot of the metadata log, sent
+	 * in place of compacted entries this server is missing.
+	 * 
+	 * @param term the term of the leader
+	 * @param leader the name of the leader
+	 * @param index the index of the last entry the snapshot covers
+	 * @param lastTerm the term of that entry
+	 * @param offset the offset of the chunk within the snapshot
+	 * @param data the chunk
+	 * @param done true for the last chunk
+	 * @return the term of this server, 1 if the chunk was accepted, 0 otherwise,
+	 *         and the offset of the next chunk this server expects
+	 * @throws RemoteException the remote exception
+	 */
+	long[] installSnapshot( long term, String leader, long index, long lastTerm, long offset, byte[] data, boolean done ) throws RemoteException;
+	
+	/**
+	 * Appends an entry made at another server to the metadata log, as its
+	 * leader: registrations and creations, or a new view. The other server
+	 * learns the decisions when it applies the entry.
+	 * 
+	 * @param entry the encoded entry
+	 * @return the index and term of the entry
+	 * @throws RemoteException if this server is not the leader and doesn't know one
+	 */
+	long[] proposeMetadata( byte[] entry ) throws RemoteException;
+	
+	/**
+	 * Looks up a user or event in the metadata log, as its leader.
+	 * 
+	 * @param user true for users, false for events
+	 * @param name the name
+	 * @return the server of the user or the author of the event, or null if there is none
+	 * @throws RemoteException if this server can't answer as the leader right now
+	 */
+	String lookupMetadata( boolean user, String name ) throws RemoteException;
+	
+	/**
+	 * Gets where this server takes calls of other servers over the nio transport.
+	 * 
+	 * @return host and port, or null if it only takes them through RMI
+	 * @throws RemoteException the remote exception
+	 */
+	String getEndpoint() throws RemoteException;
+	
 
 }
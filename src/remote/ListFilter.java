@@ -0,0 +1,17 @@
+package remote;
+
+
+/**
+ * Which events of a user to list.
+ */
+public enum ListFilter {
+	
+	/** The events the user created or was invited to. */
+	ALL,
+	
+	/** The events the user created. */
+	AUTHORED,
+	
+	/** The events the user was invited to. */
+	INVITED
+}
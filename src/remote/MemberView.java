@@ -0,0 +1,97 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+
+/**
+ * The servers of the network at a point in time. Every change of the
+ * members makes a new view with the next epoch, so servers can tell which
+ * of two views is newer. Views never change once made.
+ */
+public class MemberView implements Serializable {
+
+	private static final long serialVersionUID = 6417733409254370385L;
+
+	final long epoch;
+	final List<String> members;
+
+	/**
+	 * Instantiates a new view.
+	 *
+	 * @param epoch the epoch
+	 * @param members the server names
+	 */
+	public MemberView( long epoch, Collection<String> members )
+	{
+		this.epoch = epoch;
+		this.members = Collections.unmodifiableList( new ArrayList<String>( new TreeSet<String>( members ) ) );
+	}
+
+	/**
+	 * Makes the next view, with the given server added.
+	 *
+	 * @param name the server name
+	 * @return the new view
+	 */
+	public MemberView with( String name )
+	{
+		List<String> m = new ArrayList<String>( this.members );
+		m.add( name );
+		return new MemberView( this.epoch + 1, m );
+	}
+
+	/**
+	 * Makes the next view, with the given server removed.
+	 *
+	 * @param name the server name
+	 * @return the new view
+	 */
+	public MemberView without( String name )
+	{
+		List<String> m = new ArrayList<String>( this.members );
+		m.remove( name );
+		return new MemberView( this.epoch + 1, m );
+	}
+
+	/**
+	 * Checks if the given server is a member.
+	 *
+	 * @param name the server name
+	 * @return true, if it is a member
+	 */
+	public boolean contains( String name )
+	{
+		return Collections.binarySearch( this.members, name ) >= 0;
+	}
+
+	/**
+	 * Gets the epoch, which grows with every change.
+	 *
+	 * @return the epoch
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Gets the names of the members, sorted.
+	 *
+	 * @return the members
+	 */
+	public List<String> getMembers() {
+		return members;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "epoch " + this.epoch + " " + this.members;
+	}
+}
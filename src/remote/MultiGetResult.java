@@ -0,0 +1,80 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import entities.EventInfo;
+
+
+/**
+ * The answer to a multi-get: the event info of each event that could be
+ * read, and an error message for each event that couldn't.
+ */
+public class MultiGetResult implements Serializable {
+
+	private static final long serialVersionUID = -2440926338418766003L;
+
+	Map<String, EventInfo> events;
+	Map<String, String> errors;
+
+	/**
+	 * Instantiates a new, empty result.
+	 */
+	public MultiGetResult()
+	{
+		this.events = new LinkedHashMap<String, EventInfo>();
+		this.errors = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Adds the event info of the given event.
+	 *
+	 * @param name the event name
+	 * @param info the event info
+	 */
+	public void addEvent( String name, EventInfo info )
+	{
+		this.events.put( name, info );
+	}
+
+	/**
+	 * Adds an error for the given event.
+	 *
+	 * @param name the event name
+	 * @param message what went wrong
+	 */
+	public void addError( String name, String message )
+	{
+		this.errors.put( name, message );
+	}
+
+	/**
+	 * Adds all events and errors of the given result.
+	 *
+	 * @param other the other result
+	 */
+	public void addAll( MultiGetResult other )
+	{
+		this.events.putAll( other.events );
+		this.errors.putAll( other.errors );
+	}
+
+	/**
+	 * Gets the event infos, by event name.
+	 *
+	 * @return the events
+	 */
+	public Map<String, EventInfo> getEvents() {
+		return events;
+	}
+
+	/**
+	 * Gets the error messages, by event name.
+	 *
+	 * @return the errors
+	 */
+	public Map<String, String> getErrors() {
+		return errors;
+	}
+}
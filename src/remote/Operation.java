@@ -0,0 +1,136 @@
+package remote;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.Set;
+
+
+/**
+ * A single client command within a batch, see {@link IRemoteClient#executeBatch(java.util.List)}.
+ */
+public class Operation implements Serializable {
+
+	private static final long serialVersionUID = 7790046231453412367L;
+
+	/**
+	 * The kind of operation. INVITATION is only sent between servers, it
+	 * records an invitation at the server of the invited user.
+	 */
+	public enum Kind { ADD_DATE, INVITE, VOTE, INVITATION }
+
+	Kind kind;
+	String event;
+	String user;
+	Date date;
+	Set<Date> dates;
+	String author;
+
+	/**
+	 * Instantiates a new operation.
+	 */
+	Operation( Kind kind, String event, String user, Date date, Set<Date> dates, String author )
+	{
+		this.kind = kind;
+		this.event = event;
+		this.user = user;
+		this.date = date;
+		this.dates = dates;
+		this.author = author;
+	}
+
+	/**
+	 * Adds the given date to the given event.
+	 */
+	public static Operation addDate( String event, Date date )
+	{ return new Operation( Kind.ADD_DATE, event, null, date, null, null ); }
+
+	/**
+	 * Invites the given user to the given event.
+	 */
+	public static Operation invite( String event, String user )
+	{ return new Operation( Kind.INVITE, event, user, null, null, null ); }
+
+	/**
+	 * Votes for the given dates on the given event.
+	 */
+	public static Operation vote( String event, Set<Date> dates )
+	{ return new Operation( Kind.VOTE, event, null, null, dates, null ); }
+
+	/**
+	 * Records the invitation of the given user to the given event by the given author.
+	 */
+	public static Operation invitation( String user, String event, String author )
+	{ return new Operation( Kind.INVITATION, event, user, null, null, author ); }
+
+	/**
+	 * Gets the kind.
+	 *
+	 * @return the kind
+	 */
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Gets the event name.
+	 *
+	 * @return the event
+	 */
+	public String getEvent() {
+		return event;
+	}
+
+	/**
+	 * Gets the invited user.
+	 *
+	 * @return the user
+	 */
+	public String getUser() {
+		return user;
+	}
+
+	/**
+	 * Gets the date to add.
+	 *
+	 * @return the date
+	 */
+	public Date getDate() {
+		return date;
+	}
+
+	/**
+	 * Gets the dates voted for.
+	 *
+	 * @return the dates
+	 */
+	public Set<Date> getDates() {
+		return dates;
+	}
+
+	/**
+	 * Gets the author of an invitation.
+	 *
+	 * @return the author
+	 */
+	public String getAuthor() {
+		return author;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		switch( this.kind )
+		{
+			case ADD_DATE:
+				return "addDate " + this.event + " " + this.date;
+			case INVITE:
+				return "invite " + this.event + " " + this.user;
+			case VOTE:
+				return "vote " + this.event + " " + this.dates;
+			default:
+				return "invitation of " + this.user + " to " + this.event;
+		}
+	}
+}
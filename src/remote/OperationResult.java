@@ -0,0 +1,87 @@
+package remote;
+
+import java.io.Serializable;
+
+
+/**
+ * The outcome of a single operation within a batch.
+ */
+public class OperationResult implements Serializable {
+
+	private static final long serialVersionUID = -4168712540436236810L;
+
+	boolean success;
+	String error;
+	boolean unknown;
+
+	/**
+	 * Instantiates a new operation result.
+	 *
+	 * @param success the result of the operation
+	 * @param error the error message, if the operation failed
+	 */
+	OperationResult( boolean success, String error )
+	{
+		this.success = success;
+		this.error = error;
+	}
+
+	/**
+	 * The operation was executed and returned the given result.
+	 */
+	public static OperationResult done( boolean success )
+	{ return new OperationResult( success, null ); }
+
+	/**
+	 * The operation failed with the given message.
+	 */
+	public static OperationResult failed( String error )
+	{ return new OperationResult( false, error ); }
+
+	/**
+	 * It's not known whether the operation took effect, with the given
+	 * message. It may have been executed only in part.
+	 */
+	public static OperationResult unknown( String error )
+	{
+		OperationResult ret = new OperationResult( false, error );
+		ret.unknown = true;
+		return ret;
+	}
+
+	/**
+	 * Gets the result of the operation, false if it failed.
+	 *
+	 * @return the result
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * Gets the error message.
+	 *
+	 * @return the error message, or null if the operation didn't fail
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * Checks if the operation failed, or may have.
+	 *
+	 * @return true, if it failed
+	 */
+	public boolean isFailed() {
+		return error != null;
+	}
+
+	/**
+	 * Checks if it's not known whether the operation took effect.
+	 *
+	 * @return true, if the outcome is unknown
+	 */
+	public boolean isUnknown() {
+		return unknown;
+	}
+}
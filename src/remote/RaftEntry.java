@@ -0,0 +1,46 @@
+package remote;
+
+import java.io.Serializable;
+
+
+/**
+ * An entry of the replicated metadata log: the term of the leader that
+ * appended it, and the commands it carries.
+ */
+public class RaftEntry implements Serializable {
+
+	private static final long serialVersionUID = -4103562981745012286L;
+
+	final long term;
+	final byte[] data;
+
+	/**
+	 * Instantiates a new entry.
+	 *
+	 * @param term the term it was appended in
+	 * @param data the commands, empty for the entry a new leader starts its term with
+	 */
+	public RaftEntry( long term, byte[] data )
+	{
+		this.term = term;
+		this.data = data;
+	}
+
+	/**
+	 * Gets the term it was appended in.
+	 *
+	 * @return the term
+	 */
+	public long getTerm() {
+		return term;
+	}
+
+	/**
+	 * Gets the commands.
+	 *
+	 * @return the data
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
@@ -0,0 +1,14 @@
+package remote;
+
+
+/**
+ * How up to date the answer of a read has to be.
+ */
+public enum ReadConsistency {
+	
+	/** Any server holding the event may answer, if it heard from the event's server recently enough. */
+	BOUNDED_STALENESS,
+	
+	/** Only the server the event was created at may answer, it sees every change. */
+	LINEARIZABLE
+}
@@ -1,10 +1,29 @@
 package remote;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import server.BloomFilter;
+import server.EventSnapshot;
+import server.LogRecord;
 import server.Server;
 import client.IClientCallback;
 import entities.Event;
@@ -50,42 +69,20 @@ public class RemoteClient implements IRemoteClient {
 	 * @see remote.IRemoteClient#register(java.lang.String, java.lang.String)
 	 */
 	@Override
-	public boolean register(String name, String pwd) throws RemoteException {
+	public boolean register( String name, String pwd ) throws RemoteException {
 		
-		ensureAllServersOnline();
+		ensureReady();
 		
 		logger.info( "\"" + name + "\" wants to register" );
 		
-		User u = new User( name, pwd, this.srv.getName() );
-		
-		//First, check own users
-		//If this fails, no other servers have to be informed
-		if( this.srv.getUsers().putIfAbsent( name, u ) != null )
+		//Names known to be taken don't need a commit round at all
+		if( isTaken( name, true ) )
 			return false;
 		
-		//Continue, asking each server about the availability of the username
-		boolean ok = true;
-		for( String serverName : this.srv.getServerNames() )
-		{
-			ok &= this.srv.getServer( serverName ).beginRegister( name, pwd, this.srv.getName() );
-		}
-		
-		//If ok, commit the changes, rollback
-		for( String serverName : this.srv.getServerNames() )
-		{
-			if( !ok )
-				this.srv.getServer( serverName ).rollbackRegister( name );
-			else
-				this.srv.getServer( serverName ).commitRegister( name );
-		}
-		
-		//Finally, commit or rollback own changes
-		if( !ok )
-			this.srv.getUsers().remove( name );
-		else
-			u.commit();
-		
-		return ok;
+		//Ask the metadata log for the name, together with other registrations
+		//arriving at the same time. The first registration in the log wins,
+		//and the user is added here once the log is applied.
+		return commitBatched( LogRecord.register( name, pwd, this.srv.getName() ) );
 	}
 	
 	/* (non-Javadoc)
@@ -95,24 +92,26 @@ public class RemoteClient implements IRemoteClient {
 	public boolean login(String user, String pwd, IClientCallback callback )
 			throws RemoteException {
 		
-		ensureAllServersOnline();
+		ensureReady();
 		
 		User u = this.srv.getUsers().get( user );
 		
+		//Check if this is the right server
+		String home = u != null ? u.getServer() : this.srv.findUserServer( user );
+		if( home != null && !home.equals( this.srv.getName() ) )
+			throw new RemoteException( "The user \"" + user + "\" can only login from server \"" + home + "\"" );
+		
 		//Check if user exists
 		if( u == null )
 			return false;
 		
-		//Check if this is the right server
-		if( !u.getServer().equals( this.srv.getName() ) )
-			throw new RemoteException( "The user \"" + user + "\" can only login from server \"" + u.getServer() + "\"" );
-		
 		if( pwd.equals( u.getPassword() ) )
 		{
 			//log the user in
 			if( u.login( callback ) )
 			{
 				this.user = u;
+				this.srv.getNotifier().loggedIn( user, callback );
 				return true;
 			}else
 				throw new RemoteException( "This user is already logged in." );
@@ -127,37 +126,30 @@ public class RemoteClient implements IRemoteClient {
 	 */
 	@Override
 	public boolean create( String name, String location, int duration ) throws RemoteException
+	{
+		return create( name, location, duration, null );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#create(java.lang.String, java.lang.String, int, java.util.Date)
+	 */
+	@Override
+	public boolean create( String name, String location, int duration, Date deadline ) throws RemoteException
 	{
 		// Same as register
 		
-		ensureAllServersOnline();
+		ensureReady();
 		ensureLogin();
 		
-		Event e = new Event( name, location, duration, this.user.getName() );
+		if( deadline != null && deadline.getTime() <= System.currentTimeMillis() )
+			throw new RemoteException( "The voting deadline must be in the future." );
 		
-		if( this.srv.getEvents().putIfAbsent( name, e ) != null )
+		if( isTaken( name, false ) )
 			return false;
 		
-		boolean ok = true;
-		for( String serverName : this.srv.getServerNames() )
-		{
-			ok &= this.srv.getServer( serverName ).beginCreate( name, location, duration, this.user.getName() );
-		}
-		
-		for( String serverName : this.srv.getServerNames() )
-		{
-			if( !ok )
-				this.srv.getServer( serverName ).rollbackCreate( name );
-			else
-				this.srv.getServer( serverName ).commitCreate( name );
-		}
-		
-		if( !ok )
-			this.srv.getEvents().remove( name );
-		else
-			e.commit();
-		
-		return ok;
+		if( deadline != null )
+			return commitBatched( LogRecord.create( name, location, duration, this.user.getName(), deadline.getTime() ) );
+		return commitBatched( LogRecord.create( name, location, duration, this.user.getName() ) );
 	}
 	
 	
@@ -170,6 +162,22 @@ public class RemoteClient implements IRemoteClient {
 	@Override
 	public boolean addDate(String name, Date dt) throws RemoteException {
 		
+		ensureReady();
+		ensureLogin();
+		
+		return addDateChecked( name, dt );
+	}
+	
+	/**
+	 * Adds the date to the given event, once the server and the user are known to be ready.
+	 * 
+	 * @param name the name
+	 * @param dt the dt
+	 * @return true, if the date was added
+	 * @throws RemoteException the remote exception
+	 */
+	protected boolean addDateChecked( String name, Date dt ) throws RemoteException
+	{
 		Event evt = this.srv.getEvents().get( name );
 		
 		ensureAvailability( evt );
@@ -177,7 +185,7 @@ public class RemoteClient implements IRemoteClient {
 		if( !this.user.getName().equals( evt.getAuthor() ) )
 			throw new RemoteException( "Only the author of an event can add dates to it." );
 		
-		return evt.addDate( dt );
+		return this.srv.apply( LogRecord.addDate( name, dt ) );
 	}
 	
 	/* (non-Javadoc)
@@ -186,9 +194,44 @@ public class RemoteClient implements IRemoteClient {
 	@Override
 	public boolean invite( String eventName, String userName ) throws RemoteException
 	{
-		ensureAllServersOnline();
+		ensureReady();
 		ensureLogin();
 		
+		String home = inviteLocally( eventName, userName );
+		
+		//Sonst an den verantwortlichen Server weiterleiten
+		if( home != null )
+			this.srv.getServer( home ).invite( userName, eventName, this.user.getName() );
+		
+		return true;
+	}
+	
+	/**
+	 * Invites the given user to the given event, as far as this server is concerned.
+	 * 
+	 * @param eventName the event name
+	 * @param userName the user name
+	 * @return the server of the user, if it still has to record the invitation, otherwise null
+	 * @throws RemoteException the remote exception
+	 */
+	protected String inviteLocally( String eventName, String userName ) throws RemoteException
+	{
+		String home = findInvitee( eventName, userName );
+		recordInvite( eventName, userName, home );
+		
+		return this.srv.getName().equals( home ) ? null : home;
+	}
+	
+	/**
+	 * Checks if the given user may be invited to the given event.
+	 * 
+	 * @param eventName the event name
+	 * @param userName the user name
+	 * @return the server of the user
+	 * @throws RemoteException if the user can't be invited
+	 */
+	protected String findInvitee( String eventName, String userName ) throws RemoteException
+	{
 		Event evt = this.srv.getEvents().get( eventName );
 		
 		ensureAvailability( evt );
@@ -196,25 +239,32 @@ public class RemoteClient implements IRemoteClient {
 		if( userName.equals( this.user.getName() ) )
 			throw new RemoteException( "You cannot invite yourself." );
 		
-		User u = this.srv.getUsers().get( userName );
+		String home = this.srv.findUserServer( userName );
 		
-		if( u == null )
+		if( home == null )
 			throw new RemoteException( "The specified user does not exist." );
 		
-		//Let the event know about the invitation
-		evt.invite( userName );
+		return home;
+	}
+	
+	/**
+	 * Lets the event know about the invitation, and the user too if it's a user of this server.
+	 * 
+	 * @param eventName the event name
+	 * @param userName the user name
+	 * @param home the server of the user
+	 * @throws RemoteException the remote exception
+	 */
+	protected void recordInvite( String eventName, String userName, String home ) throws RemoteException
+	{
+		this.srv.apply( LogRecord.invite( eventName, userName ) );
 		
 		//Mein User? => direkt inviten
-		if( this.srv.getName().equals( u.getServer() ) )
+		if( this.srv.getName().equals( home ) )
 		{
-			u.invite( eventName, this.user.getName() );
+			if( this.srv.apply( LogRecord.invitation( userName, eventName, this.user.getName() ) ) )
+				this.srv.getNotifier().invited( userName, eventName, this.user.getName() );
 		}
-		else	//Sonst an den verantwortlichen Server weiterleiten
-			this.srv.getServer( u.getServer() ).invite( u.getName(), eventName, this.user.getName() );
-		
-		
-		
-		return true;
 	}
 	
 	/* (non-Javadoc)
@@ -222,27 +272,236 @@ public class RemoteClient implements IRemoteClient {
 	 */
 	@Override
 	public EventInfo get( String name ) throws RemoteException {
-		ensureAllServersOnline();
+		return get( name, ReadConsistency.BOUNDED_STALENESS );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#get(java.lang.String, remote.ReadConsistency)
+	 */
+	@Override
+	public EventInfo get( String name, ReadConsistency consistency ) throws RemoteException {
+		ensureReady();
 		ensureLogin();
 		
-		Event evt = this.srv.getEvents().get( name );
+		long maxStaleness = consistency == ReadConsistency.LINEARIZABLE ? 0 : this.srv.getConfig().getReadMaxStaleness();
 		
-		if( evt == null )
+		//Answer from the local copy, if it is fresh enough
+		EventSnapshot snap = this.srv.getLocalSnapshot( name, maxStaleness );
+		if( snap != null )
+		{
+			this.srv.getMetrics().counter( "reads.local" ).incrementAndGet();
+			return snap.getInfo();
+		}
+		
+		String responsible = findServerForEvent( name );
+		
+		if( responsible == null )
 			throw new RemoteException( "The given event does not exist." );
 		
-		String responsible = findServerForEvent( evt );
+		//Any other server holding a copy may answer, spreading the reads of popular events
+		if( maxStaleness > 0 )
+			responsible = pickReplica( name, responsible );
 		
-		if( this.srv.getName().equals( responsible ) )
-		{			
-			return new EventInfo( evt );
-		}else
+		IRemoteServer srv = this.srv.getServer( responsible );
+		if( srv == null )
+			throw new RemoteException( "The server of the given event is not available." );
+		
+		this.srv.getMetrics().counter( "reads.forwarded" ).incrementAndGet();
+		
+		EventInfo ret;
+		byte[] data = srv.getEventInfoData( name, maxStaleness );
+		try {
+			ret = data != null ? EventSnapshot.read( data ) : null;
+		} catch( IOException ioex ) {
+			throw new RemoteException( "Couldn't read the event info", ioex );
+		}
+		
+		if( ret == null )
+			throw new RemoteException( "The given event does not exist." );
+		return ret;
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#getAll(java.util.Collection)
+	 */
+	@Override
+	public MultiGetResult getAll( Collection<String> names ) throws RemoteException {
+		ensureReady();
+		ensureLogin();
+		
+		final long maxStaleness = this.srv.getConfig().getReadMaxStaleness();
+		MultiGetResult found = new MultiGetResult();
+		Map<String, List<String>> byServer = new LinkedHashMap<String, List<String>>();
+		
+		//Answer what's possible locally, group the rest by the server to ask
+		for( String name : new LinkedHashSet<String>( names ) )
+		{
+			try {
+				EventSnapshot snap = this.srv.getLocalSnapshot( name, maxStaleness );
+				if( snap != null )
+				{
+					this.srv.getMetrics().counter( "reads.local" ).incrementAndGet();
+					found.addEvent( name, snap.getInfo() );
+					continue;
+				}
+				
+				String target = pickHolder( name );
+				if( target == null )
+				{
+					found.addError( name, "The given event does not exist." );
+					continue;
+				}
+				
+				List<String> group = byServer.get( target );
+				if( group == null )
+					byServer.put( target, group = new ArrayList<String>() );
+				group.add( name );
+			} catch( RemoteException rex ) {
+				found.addError( name, rex.getMessage() );
+			}
+		}
+		
+		//Ask each server once, all of them at the same time
+		Map<String, Future<MultiGetResult>> pending = new LinkedHashMap<String, Future<MultiGetResult>>();
+		for( Map.Entry<String, List<String>> group : byServer.entrySet() )
+		{
+			final IRemoteServer server = this.srv.getServer( group.getKey() );
+			final List<String> batch = group.getValue();
+			
+			pending.put( group.getKey(), this.srv.getExecutor().submit( new Callable<MultiGetResult>() {
+				@Override
+				public MultiGetResult call() throws RemoteException {
+					return server.getAll( batch, maxStaleness );
+				}
+			}));
+			this.srv.getMetrics().counter( "reads.forwarded" ).addAndGet( batch.size() );
+		}
+		
+		long deadline = System.currentTimeMillis() + this.srv.getConfig().getCommitTimeout();
+		for( Map.Entry<String, Future<MultiGetResult>> p : pending.entrySet() )
+		{
+			try {
+				found.addAll( p.getValue().get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS ) );
+			} catch( Exception ex ) {
+				p.getValue().cancel( true );
+				
+				Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+				String msg = "\"" + p.getKey() + "\" didn't answer: " + cause;
+				for( String name : byServer.get( p.getKey() ) )
+					found.addError( name, msg );
+				
+				if( ex instanceof InterruptedException )
+					Thread.currentThread().interrupt();
+			}
+		}
+		
+		//Keep the order of the request
+		MultiGetResult ret = new MultiGetResult();
+		for( String name : new LinkedHashSet<String>( names ) )
+		{
+			if( found.getEvents().containsKey( name ) )
+				ret.addEvent( name, found.getEvents().get( name ) );
+			else
+				ret.addError( name, found.getErrors().get( name ) );
+		}
+		return ret;
+	}
+	
+	/**
+	 * Picks a random other server holding the given event, without asking
+	 * any server. If none is available, the event's server is looked up.
+	 * 
+	 * @param name the event name
+	 * @return the server name, or null if the event doesn't exist
+	 * @throws RemoteException the remote exception
+	 */
+	protected String pickHolder( String name ) throws RemoteException
+	{
+		List<String> holders = new ArrayList<String>( this.srv.getEventOwners( name ) );
+		holders.remove( this.srv.getName() );
+		
+		for( Iterator<String> it = holders.iterator() ; it.hasNext() ; )
 		{
+			if( this.srv.getServer( it.next() ) == null )
+				it.remove();
+		}
+		
+		if( !holders.isEmpty() )
+			return holders.get( (int)(Math.random() * holders.size()) );
+		
+		String home = findServerForEvent( name );
+		return home == null || home.equals( this.srv.getName() ) ? null : home;
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#get(java.lang.String, long)
+	 */
+	@Override
+	public EventUpdate get( String name, long knownVersion ) throws RemoteException {
+		ensureReady();
+		ensureLogin();
+		
+		EventUpdate ret = this.srv.getEventUpdate( name, knownVersion, this.srv.getConfig().getReadMaxStaleness() );
+		
+		if( ret == null )
+		{
+			//Versions are only known where they were handed out, ask the event's server
+			String responsible = findServerForEvent( name );
+			if( responsible == null )
+				throw new RemoteException( "The given event does not exist." );
+			
 			IRemoteServer srv = this.srv.getServer( responsible );
+			if( srv == null )
+				throw new RemoteException( "The server of the given event is not available." );
 			
-			return srv.get( name );
+			ret = srv.get( name, knownVersion );
+		}
+		
+		if( ret == null )
+			throw new RemoteException( "The given event does not exist." );
+		return ret;
+	}
+	
+	/**
+	 * Picks a random server holding the given event, other than this one.
+	 * 
+	 * @param name the event name
+	 * @param home the server the event was created at
+	 * @return the server name
+	 */
+	protected String pickReplica( String name, String home )
+	{
+		List<String> holders = new ArrayList<String>( this.srv.getEventOwners( name ) );
+		if( !holders.contains( home ) )
+			holders.add( home );
+		holders.remove( this.srv.getName() );
+		
+		for( Iterator<String> it = holders.iterator() ; it.hasNext() ; )
+		{
+			if( this.srv.getServer( it.next() ) == null )
+				it.remove();
 		}
 		
+		return holders.isEmpty() ? home : holders.get( (int)(Math.random() * holders.size()) );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#getLeader(java.lang.String)
+	 */
+	@Override
+	public Date getLeader( String name ) throws RemoteException {
+		ensureReady();
+		ensureLogin();
+		
+		String responsible = findServerForEvent( name );
+		
+		if( responsible == null )
+			throw new RemoteException( "The given event does not exist." );
 		
+		if( this.srv.getName().equals( responsible ) )
+			return this.srv.getLeader( name );
+		else
+			return this.srv.getServer( responsible ).getLeader( name );
 	}
 
 
@@ -251,27 +510,324 @@ public class RemoteClient implements IRemoteClient {
 	 */
 	@Override
 	public void vote( String name, Set<Date> dates ) throws RemoteException {
-		ensureAllServersOnline();
+		ensureReady();
 		ensureLogin();
 		
-		Event evt = this.srv.getEvents().get( name );
+		String responsible = voteLocally( name, dates );
 		
-		ensureAvailability( evt );
+		//Else, send the vote to the responsible server
+		if( responsible != null )
+			this.srv.getServer( responsible ).vote( name, dates, this.user.getName() );
+	}
+	
+	/**
+	 * Votes for the given dates on the given event, if this is the event's server.
+	 * 
+	 * @param name the name
+	 * @param dates the dates
+	 * @return the server of the event, if the vote has to be sent there, otherwise null
+	 * @throws RemoteException the remote exception
+	 */
+	protected String voteLocally( String name, Set<Date> dates ) throws RemoteException
+	{
+		String responsible = findServerForEvent( name );
 		
-		String responsible = findServerForEvent( evt );
+		if( responsible == null )
+			throw new RemoteException( "The given event does not exist." );
 		
 		//Check if this is the responsible server
 		if( this.srv.getName().equals( responsible ) )
 		{
+			Event evt = this.srv.getEvents().get( name );
+			
+			ensureAvailability( evt );
+			
 			//yes? Vote directly
-			if( !evt.vote( this.user.getName(), dates ) )
+			if( !this.srv.apply( LogRecord.vote( name, this.user.getName(), dates ) ) )
 				throw new RemoteException( "You are not allowed to vote for this event." );
-		}else
+			return null;
+		}
+		
+		return responsible;
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#listEvents(remote.ListFilter, java.lang.String, int)
+	 */
+	@Override
+	public EventPage listEvents( ListFilter filter, String cursor, int limit ) throws RemoteException {
+		ensureLogin();
+		
+		if( limit < 1 )
+			throw new RemoteException( "The page size must be at least 1." );
+		
+		//Users are created and invited at their own server, it knows all their events
+		return this.srv.getUserIndex().page( this.user.getName(), filter != null ? filter : ListFilter.ALL,
+											cursor, Math.min( limit, this.srv.getConfig().getListPageMax() ) );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#findEvents(remote.EventQuery, java.lang.String, int)
+	 */
+	@Override
+	public EventPage findEvents( final EventQuery q, final String cursor, int limit ) throws RemoteException {
+		ensureReady();
+		ensureLogin();
+		
+		if( limit < 1 )
+			throw new RemoteException( "The page size must be at least 1." );
+		if( q.getKind() == EventQuery.Kind.DATES && !q.getFrom().before( q.getTo() ) )
+			throw new RemoteException( "The range must end after it starts." );
+		
+		int max = Math.min( limit, this.srv.getConfig().getListPageMax() );
+		
+		MemberView view = this.srv.getView();
+		EventPage ret = findEverywhere( q, cursor, max, view );
+		
+		//Events may have moved to a server that joined while asking, so ask the new view once more
+		MemberView now = this.srv.getView();
+		if( now.getEpoch() != view.getEpoch() )
+			ret = findEverywhere( q, cursor, max, now );
+		
+		return ret;
+	}
+	
+	/**
+	 * Asks all servers of the given view for a page of the events matching
+	 * the given query, and merges their pages.
+	 */
+	private EventPage findEverywhere( final EventQuery q, final String cursor, final int max, MemberView view ) throws RemoteException
+	{
+		//Every server only knows the events it holds, so ask all of them at the same time
+		Map<String, Future<EventPage>> pending = new LinkedHashMap<String, Future<EventPage>>();
+		for( String name : view.getMembers() )
 		{
-			//Else, send the invitation to the responsible server
-			this.srv.getServer( responsible ).vote( name, dates, this.user.getName() );
+			final IRemoteServer server = this.srv.getServer( name );
+			if( server == null )
+			{
+				//Itself, or down; the other holders of its events answer for it
+				if( !name.equals( this.srv.getName() ) )
+					this.srv.getMetrics().counter( "queries.incomplete" ).incrementAndGet();
+				continue;
+			}
+			
+			pending.put( name, this.srv.getExecutor().submit( new Callable<EventPage>() {
+				@Override
+				public EventPage call() throws RemoteException {
+					return server.findEvents( q, cursor, max );
+				}
+			}));
 		}
 		
+		//Events are held by several servers, keep each once
+		TreeMap<String, EventSummary> found = new TreeMap<String, EventSummary>();
+		boolean more = false;
+		
+		EventPage local = this.srv.findEvents( q, cursor, max );
+		for( EventSummary s : local.getEvents() )
+			found.put( s.getName(), s );
+		more |= local.hasNext();
+		
+		long deadline = System.currentTimeMillis() + this.srv.getConfig().getCommitTimeout();
+		for( Map.Entry<String, Future<EventPage>> p : pending.entrySet() )
+		{
+			try {
+				EventPage page = p.getValue().get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+				for( EventSummary s : page.getEvents() )
+					found.put( s.getName(), s );
+				more |= page.hasNext();
+			} catch( Exception ex ) {
+				p.getValue().cancel( true );
+				
+				//The other holders of its events usually answered for it
+				this.srv.getMetrics().counter( "queries.incomplete" ).incrementAndGet();
+				Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+				logger.warning( "\"" + p.getKey() + "\" didn't answer " + q + ": " + cause );
+				
+				if( ex instanceof InterruptedException )
+					Thread.currentThread().interrupt();
+			}
+		}
+		
+		//A server that had more only returned names up to its last one, so nothing is skipped after the cut
+		List<EventSummary> ret = new ArrayList<EventSummary>( Math.min( max, found.size() ) );
+		for( EventSummary s : found.values() )
+		{
+			if( ret.size() == max )
+			{
+				more = true;
+				break;
+			}
+			ret.add( s );
+		}
+		
+		return new EventPage( ret, more && !ret.isEmpty() ? ret.get( ret.size() - 1 ).getName() : null );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteClient#executeBatch(java.util.List)
+	 */
+	@Override
+	public List<OperationResult> executeBatch( List<Operation> ops ) throws RemoteException {
+		ensureReady();
+		ensureLogin();
+		
+		OperationResult[] results = new OperationResult[ ops.size() ];
+		List<Integer> todo = new ArrayList<Integer>( ops.size() );
+		for( int i=0 ; i < results.length ; i++ )
+			todo.add( i );
+		
+		while( !todo.isEmpty() )
+			todo = executeRound( ops, todo, results );
+		
+		return Arrays.asList( results );
+	}
+	
+	/**
+	 * Executes in order what this server can do of the given operations,
+	 * and sends each other server its part, all at the same time. Once an
+	 * operation of an event was forwarded, the later ones of the same event
+	 * wait for the next round, so they run after it. The part of a forwarded
+	 * invitation this server records is only recorded once the user's
+	 * server recorded its part.
+	 * 
+	 * @param ops all operations
+	 * @param todo the indices of the operations to execute, in order
+	 * @param results the results of all operations
+	 * @return the indices of the operations left for the next round
+	 */
+	private List<Integer> executeRound( List<Operation> ops, List<Integer> todo, OperationResult[] results )
+	{
+		List<Integer> deferred = new ArrayList<Integer>();
+		Set<String> waiting = new HashSet<String>();
+		Map<String, List<Operation>> forwards = new LinkedHashMap<String, List<Operation>>();
+		Map<String, List<Integer>> forwarded = new LinkedHashMap<String, List<Integer>>();
+		
+		for( int i : todo )
+		{
+			Operation op = ops.get( i );
+			if( waiting.contains( op.getEvent() ) )
+			{
+				deferred.add( i );
+				continue;
+			}
+			
+			try {
+				String peer = null;
+				Operation forward = null;
+				
+				switch( op.getKind() )
+				{
+					case ADD_DATE:
+						results[i] = OperationResult.done( addDateChecked( op.getEvent(), op.getDate() ) );
+						break;
+					case INVITE:
+						peer = findInvitee( op.getEvent(), op.getUser() );
+						if( this.srv.getName().equals( peer ) )
+						{
+							recordInvite( op.getEvent(), op.getUser(), peer );
+							peer = null;
+						}else
+							forward = Operation.invitation( op.getUser(), op.getEvent(), this.user.getName() );
+						results[i] = OperationResult.done( true );
+						break;
+					case VOTE:
+						peer = voteLocally( op.getEvent(), op.getDates() );
+						forward = op;
+						results[i] = OperationResult.done( true );
+						break;
+					default:
+						results[i] = OperationResult.failed( "Unknown operation " + op );
+						break;
+				}
+				
+				if( peer != null )
+				{
+					if( !forwards.containsKey( peer ) )
+					{
+						forwards.put( peer, new ArrayList<Operation>() );
+						forwarded.put( peer, new ArrayList<Integer>() );
+					}
+					forwards.get( peer ).add( forward );
+					forwarded.get( peer ).add( i );
+					waiting.add( op.getEvent() );
+				}
+			} catch( RemoteException rex ) {
+				results[i] = OperationResult.failed( rex.getMessage() );
+			}
+		}
+		
+		//Send each server its part, all at the same time
+		final String userName = this.user.getName();
+		Map<String, Future<List<OperationResult>>> pending = new LinkedHashMap<String, Future<List<OperationResult>>>();
+		for( final Map.Entry<String, List<Operation>> f : forwards.entrySet() )
+		{
+			final IRemoteServer server = this.srv.getServer( f.getKey() );
+			if( server == null )
+			{
+				for( int idx : forwarded.get( f.getKey() ) )
+					results[idx] = OperationResult.failed( "\"" + f.getKey() + "\" is not available." );
+				continue;
+			}
+			
+			pending.put( f.getKey(), this.srv.getExecutor().submit( new Callable<List<OperationResult>>() {
+				@Override
+				public List<OperationResult> call() throws RemoteException {
+					return server.executeForwarded( f.getValue(), userName );
+				}
+			}));
+		}
+		
+		long deadline = System.currentTimeMillis() + this.srv.getConfig().getCommitTimeout();
+		for( Map.Entry<String, Future<List<OperationResult>>> p : pending.entrySet() )
+		{
+			List<Integer> indices = forwarded.get( p.getKey() );
+			try {
+				List<OperationResult> answers = p.getValue().get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+				for( int j=0 ; j < indices.size() ; j++ )
+				{
+					if( answers.get( j ).isFailed() )
+						results[ indices.get( j ) ] = answers.get( j );
+				}
+			} catch( Exception ex ) {
+				p.getValue().cancel( true );
+				
+				//The other server may have executed them anyway
+				Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+				for( int idx : indices )
+					results[idx] = OperationResult.unknown( "\"" + p.getKey() + "\" didn't answer, the operation may have been executed there: " + cause.getMessage() );
+				
+				if( ex instanceof InterruptedException )
+					Thread.currentThread().interrupt();
+			}
+		}
+		
+		//The invitations the users' servers recorded are recorded by the events here now
+		for( Map.Entry<String, List<Integer>> f : forwarded.entrySet() )
+		{
+			for( int idx : f.getValue() )
+			{
+				Operation op = ops.get( idx );
+				if( op.getKind() != Operation.Kind.INVITE || results[idx].isFailed() )
+					continue;
+				
+				try {
+					recordInvite( op.getEvent(), op.getUser(), f.getKey() );
+				} catch( RemoteException rex ) {
+					results[idx] = OperationResult.unknown( "The invitation was recorded for the user, but not for the event: " + rex.getMessage() );
+				}
+			}
+		}
+		
+		//Interrupted while waiting, don't start another round
+		if( Thread.currentThread().isInterrupted() )
+		{
+			for( int idx : deferred )
+				results[idx] = OperationResult.failed( "Interrupted" );
+			return Collections.<Integer>emptyList();
+		}
+		
+		return deferred;
 	}
 
 	/* (non-Javadoc)
@@ -279,7 +835,7 @@ public class RemoteClient implements IRemoteClient {
 	 */
 	@Override
 	public void finalizeEvent( String eventName ) throws RemoteException {
-		ensureAllServersOnline();
+		ensureReady();
 		ensureLogin();
 		
 		Event evt = this.srv.getEvents().get( eventName );
@@ -289,27 +845,14 @@ public class RemoteClient implements IRemoteClient {
 		//finalizing is only allowed for the author
 		if( this.user.getName().equals( evt.getAuthor() ) )
 		{
-			if( !evt.finalizeDate() )
+			if( !this.srv.apply( LogRecord.finalizeEvent( eventName ) ) )
 				throw new RemoteException( "The event does not have any date options." );
 			
-			//Notify each paticipant of the finalization
-			for( String participant : evt.getInvited().keySet() )
-			{
-				User u = this.srv.getUsers().get(participant);
-				if( u != null )
-				{
-					//Check if this is the responsible server
-					if( this.srv.getName().equals(u.getServer()) )
-						u.getCallback().onFinalization( eventName, evt.getFinalizedDate() );
-					else
-					{
-						//If not, send the notification to the responsible server
-						IRemoteServer server = this.srv.getServer( u.getServer() );
-						
-						server.onFinalization( eventName, evt.getFinalizedDate(), participant );
-					}
-				}
-			}
+			Date finalized = this.srv.getLeader( eventName );
+			List<String> participants = this.srv.getParticipants( eventName );
+			
+			//The final date is durable, the participants are told in the background
+			this.srv.getNotifier().finalized( eventName, finalized, participants );
 			
 		}else
 			throw new RemoteException( "You can only finalize your own events." );
@@ -324,6 +867,7 @@ public class RemoteClient implements IRemoteClient {
 	 */
 	@Override
 	public void logout() throws RemoteException {
+		this.srv.getNotifier().loggedOut( this.user.getName() );
 		this.user.setCallback( null );
 		this.user.logout();
 		this.user = null;		
@@ -331,16 +875,63 @@ public class RemoteClient implements IRemoteClient {
 	
 	
 	/**
-	 * Throws a RemoteException if the server network is not completely available.
+	 * Commits the given registration or creation to the metadata log, as
+	 * part of the next batch.
 	 * 
+	 * @param entry the registration or creation
+	 * @return true, if the entry took its name
+	 * @throws RemoteException if the server is interrupted while waiting, or the entry wasn't decided in time
+	 */
+	protected boolean commitBatched( LogRecord entry ) throws RemoteException
+	{
+		try {
+			return this.srv.getGroupCommitter().submit( entry );
+		} catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException( "The server was interrupted while committing " + entry );
+		}
+	}
+	
+	/**
+	 * Checks whether the given user or event name is already taken. Names
+	 * the filter of taken names doesn't contain are never taken, all others
+	 * are confirmed at their owners, as the filter may give false positives.
+	 * 
+	 * @param name the name
+	 * @param user true for a user name, false for an event name
+	 * @return true, if the name is taken for sure
 	 * @throws RemoteException the remote exception
 	 */
-	public void ensureAllServersOnline() throws RemoteException
+	protected boolean isTaken( String name, boolean user ) throws RemoteException
+	{
+		BloomFilter filter = user ? this.srv.getUserFilter() : this.srv.getEventFilter();
+		
+		if( !filter.mightContain( name ) )
+			return false;
+		
+		String home = user ? this.srv.findUserServer( name ) : this.srv.findEventServer( name );
+		if( home == null )
+		{
+			this.srv.getMetrics().counter( "filter.false.positives" ).incrementAndGet();
+			return false;
+		}
+		
+		this.srv.getMetrics().counter( "filter.rejects" ).incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Throws a RemoteException if the server has not caught up with the
+	 * network yet. Servers joining or leaving later don't interrupt clients.
+	 * 
+	 * @throws RemoteException the remote exception
+	 */
+	public void ensureReady() throws RemoteException
 	{
 		assert srv != null;
 		
-		if( !srv.isNetworkComplete() )
-			throw new RemoteException( "The server network is not completely available yet, please try again later." );
+		if( !srv.isReady() )
+			throw new RemoteException( "The server is still catching up with the others, please try again later." );
 	}
 
 	/**
@@ -372,18 +963,16 @@ public class RemoteClient implements IRemoteClient {
 	
 	/**
 	 * Find the responsible server for the given event via it's author.
+	 * Events and users this server doesn't hold are looked up at their
+	 * owners on the hash ring.
 	 * 
-	 * @param evt the evt
-	 * @return the string
+	 * @param name the event name
+	 * @return the server name, or null if the event does not exist
+	 * @throws RemoteException the remote exception
 	 */
-	protected String findServerForEvent( Event evt )
+	protected String findServerForEvent( String name ) throws RemoteException
 	{
-		User u = this.srv.getUsers().get( evt.getAuthor() );
-	
-		if( u != null )
-			return u.getServer();
-		else
-			return null;
+		return this.srv.findEventServer( name );
 	}
 
 	
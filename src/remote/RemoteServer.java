@@ -1,10 +1,23 @@
 package remote;
 
+import java.io.IOException;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
+import server.EventSnapshot;
+import server.LogRecord;
 import server.Server;
 import entities.Event;
 import entities.EventInfo;
@@ -33,66 +46,49 @@ public class RemoteServer implements IRemoteServer {
 	}
 
 	/* (non-Javadoc)
-	 * @see remote.IRemoteServer#beginRegister(java.lang.String, java.lang.String, java.lang.String)
+	 * @see remote.IRemoteServer#fetchState(java.lang.String, java.lang.String, long, int)
 	 */
 	@Override
-	public boolean beginRegister( String name, String pwd, String server )
-			throws RemoteException {
-		
-		User u = new User( name, pwd, server );
-		u.setServer( server );
-		return this.srv.getUsers().putIfAbsent( name, u ) == null;
+	public StateChunk fetchState( String requester, String transferId, long offset, int maxBytes ) throws RemoteException
+	{
+		try {
+			return this.srv.getStateTransfer().fetch( requester, transferId, offset, maxBytes );
+		} catch( UnknownTransferException utex ) {
+			throw utex;
+		} catch( IOException ioex ) {
+			throw new RemoteException( ioex.getMessage(), ioex );
+		}
 	}
 	
 	/* (non-Javadoc)
-	 * @see remote.IRemoteServer#rollbackRegister(java.lang.String)
+	 * @see remote.IRemoteServer#getNameFilters()
 	 */
 	@Override
-	public void rollbackRegister( String name ) throws RemoteException
+	public long[][] getNameFilters() throws RemoteException
 	{
-		User u = this.srv.getUsers().get( name );
-		
-		if( !u.isCommitted() )
-			this.srv.getUsers().remove( name );
+		return new long[][]{ this.srv.getUserFilter().toArray(), this.srv.getEventFilter().toArray() };
 	}
-
+	
 	/* (non-Javadoc)
-	 * @see remote.IRemoteServer#commitRegister(java.lang.String)
+	 * @see remote.IRemoteServer#locateUser(java.lang.String)
 	 */
 	@Override
-	public void commitRegister( String name ) throws RemoteException
+	public String locateUser( String userName ) throws RemoteException
 	{
-		this.srv.getUsers().get( name ).commit();
-	}
-
-	/* (non-Javadoc)
-	 * @see remote.IRemoteServer#beginCreate(java.lang.String, java.lang.String, int, java.lang.String)
-	 */
-	@Override
-	public boolean beginCreate(String name, String location, int duration, String authorName )
-			throws RemoteException {
-
-		Event e = new Event( name, location, duration, authorName );
-		return this.srv.getEvents().putIfAbsent( name, e ) == null;
-	}
-
-	/* (non-Javadoc)
-	 * @see remote.IRemoteServer#rollbackCreate(java.lang.String)
-	 */
-	@Override
-	public void rollbackCreate(String name) throws RemoteException {
-		Event e = this.srv.getEvents().get( name );
+		User u = this.srv.getUsers().get( userName );
 		
-		if( !e.isCommitted() )
-			this.srv.getEvents().remove( e );
+		return u != null && u.isCommitted() ? u.getServer() : null;
 	}
 	
 	/* (non-Javadoc)
-	 * @see remote.IRemoteServer#commitCreate(java.lang.String)
+	 * @see remote.IRemoteServer#locateEvent(java.lang.String)
 	 */
 	@Override
-	public void commitCreate(String name) throws RemoteException {
-		this.srv.getEvents().get( name ).commit();
+	public String locateEvent( String eventName ) throws RemoteException
+	{
+		Event e = this.srv.getEvents().get( eventName );
+		
+		return e != null && e.isCommitted() ? e.getAuthor() : null;
 	}
 
 	/* (non-Javadoc)
@@ -105,7 +101,8 @@ public class RemoteServer implements IRemoteServer {
 		
 		if( u != null )
 		{
-			u.invite( event, author );
+			if( this.srv.apply( LogRecord.invitation( user, event, author ) ) )
+				this.srv.getNotifier().invited( user, event, author );
 		}else
 			logger.warning( "The user you want to invite is not on this server." );
 	}
@@ -119,13 +116,15 @@ public class RemoteServer implements IRemoteServer {
 	{
 		Event evt = this.srv.getEvents().get( name );
 		
-		if( evt != null )
-		{
-			if( !evt.vote( user, dates ) )
-				throw new RemoteException( "You are not allowed to vote for this event." );
-		}
+		if( evt == null )
+			throw new RemoteException( "The given event does not exist." );
 		
+		if( evt.isFinalized() )
+			throw new RemoteException( "The given event is already finalized." );
 		
+		if( !this.srv.apply( LogRecord.vote( name, user, dates ) ) )
+			throw new RemoteException( "You are not allowed to vote for this event." );
+
 	}
 
 	/* (non-Javadoc)
@@ -135,13 +134,34 @@ public class RemoteServer implements IRemoteServer {
 	public void onFinalization(String eventName, Date finalizedDate, String userName )
 			throws RemoteException {
 		
-		User u = this.srv.getUsers().get( userName );
+		onFinalizationBatch( eventName, finalizedDate, Collections.singleton( userName ) );
+	}
+
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#onFinalizationBatch(java.lang.String, java.util.Date, java.util.Collection)
+	 */
+	@Override
+	public void onFinalizationBatch( String eventName, Date finalizedDate, Collection<String> users )
+			throws RemoteException {
 		
-		if( u != null )
-			u.getCallback().onFinalization( eventName, finalizedDate );
-		else
-			logger.warning( "The given user does not exist on this server" );
+		for( String userName : users )
+		{
+			if( this.srv.getUsers().get( userName ) == null )
+				logger.warning( "The given user \"" + userName + "\" does not exist on this server" );
+		}
 		
+		this.srv.getNotifier().deliver( eventName, finalizedDate, users );
+	}
+
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#onFinalizations(java.util.Map, java.util.Map)
+	 */
+	@Override
+	public void onFinalizations( Map<String, Date> finalizedDates, Map<String, List<String>> users )
+			throws RemoteException {
+		
+		for( Map.Entry<String, List<String>> event : users.entrySet() )
+			onFinalizationBatch( event.getKey(), finalizedDates.get( event.getKey() ), event.getValue() );
 	}
 
 	/* (non-Javadoc)
@@ -150,11 +170,269 @@ public class RemoteServer implements IRemoteServer {
 	@Override
 	public EventInfo get(String name) throws RemoteException {
 		
-		Event evt = this.srv.getEvents().get( name );
+		return this.srv.getEventInfo( name );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#getEventInfoData(java.lang.String, long)
+	 */
+	@Override
+	public byte[] getEventInfoData( String name, long maxStaleness ) throws RemoteException {
+		EventSnapshot snap = this.srv.getLocalSnapshot( name, maxStaleness );
+		if( snap != null )
+			return snap.getData();
+		
+		//Too stale or not held here, ask the event's server
+		String home = this.srv.findEventServer( name );
+		if( home == null || home.equals( this.srv.getName() ) )
+			return null;
+		
+		IRemoteServer server = this.srv.getServer( home );
+		if( server == null )
+			throw new RemoteException( "The server of the given event is not available." );
+		return server.getEventInfoData( name, 0 );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#getAll(java.util.List, long)
+	 */
+	@Override
+	public MultiGetResult getAll( List<String> names, long maxStaleness ) throws RemoteException {
+		MultiGetResult ret = new MultiGetResult();
+		Map<String, List<String>> byHome = new LinkedHashMap<String, List<String>>();
+		
+		//Answer what's possible here, group the rest by the events' servers
+		for( String name : names )
+		{
+			try {
+				EventSnapshot snap = this.srv.getLocalSnapshot( name, maxStaleness );
+				if( snap != null )
+				{
+					ret.addEvent( name, snap.getInfo() );
+					continue;
+				}
+				
+				String home = this.srv.findEventServer( name );
+				if( home == null || home.equals( this.srv.getName() ) )
+				{
+					ret.addError( name, "The given event does not exist." );
+					continue;
+				}
+				
+				List<String> group = byHome.get( home );
+				if( group == null )
+					byHome.put( home, group = new ArrayList<String>() );
+				group.add( name );
+			} catch( RemoteException rex ) {
+				ret.addError( name, rex.getMessage() );
+			}
+		}
+		
+		//Too stale or not held here, ask each of their servers once, all at the same time
+		Map<String, Future<MultiGetResult>> pending = new LinkedHashMap<String, Future<MultiGetResult>>();
+		for( Map.Entry<String, List<String>> group : byHome.entrySet() )
+		{
+			final IRemoteServer server = this.srv.getServer( group.getKey() );
+			final List<String> batch = group.getValue();
+			if( server == null )
+			{
+				for( String name : batch )
+					ret.addError( name, "The server of the given event is not available." );
+				continue;
+			}
+			
+			pending.put( group.getKey(), this.srv.getExecutor().submit( new Callable<MultiGetResult>() {
+				@Override
+				public MultiGetResult call() throws RemoteException {
+					return server.getAll( batch, 0 );
+				}
+			}));
+		}
+		
+		long deadline = System.currentTimeMillis() + this.srv.getConfig().getCommitTimeout();
+		for( Map.Entry<String, Future<MultiGetResult>> p : pending.entrySet() )
+		{
+			try {
+				ret.addAll( p.getValue().get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS ) );
+			} catch( Exception ex ) {
+				p.getValue().cancel( true );
+				
+				Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+				String msg = "\"" + p.getKey() + "\" didn't answer: " + cause;
+				for( String name : byHome.get( p.getKey() ) )
+					ret.addError( name, msg );
+				
+				if( ex instanceof InterruptedException )
+					Thread.currentThread().interrupt();
+			}
+		}
+		
+		return ret;
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#findEvents(remote.EventQuery, java.lang.String, int)
+	 */
+	@Override
+	public EventPage findEvents( EventQuery q, String cursor, int limit ) throws RemoteException {
+		return this.srv.findEvents( q, cursor, limit );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#executeForwarded(java.util.List, java.lang.String)
+	 */
+	@Override
+	public List<OperationResult> executeForwarded( List<Operation> ops, String user ) throws RemoteException {
+		List<OperationResult> ret = new ArrayList<OperationResult>( ops.size() );
 		
-		if( evt != null )
-			return new EventInfo( evt );
-		return null;
+		for( Operation op : ops )
+		{
+			try {
+				switch( op.getKind() )
+				{
+					case VOTE:
+						vote( op.getEvent(), op.getDates(), user );
+						ret.add( OperationResult.done( true ) );
+						break;
+					case INVITATION:
+						if( this.srv.getUsers().get( op.getUser() ) == null )
+							throw new RemoteException( "The specified user does not exist." );
+						invite( op.getUser(), op.getEvent(), op.getAuthor() );
+						ret.add( OperationResult.done( true ) );
+						break;
+					default:
+						ret.add( OperationResult.failed( "Can't execute " + op + " for another server" ) );
+						break;
+				}
+			} catch( RemoteException rex ) {
+				ret.add( OperationResult.failed( rex.getMessage() ) );
+			}
+		}
+		
+		return ret;
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#get(java.lang.String, long)
+	 */
+	@Override
+	public EventUpdate get( String name, long knownVersion ) throws RemoteException {
+		EventUpdate ret = this.srv.getEventUpdate( name, knownVersion, 0 );
+		if( ret != null )
+			return ret;
+		
+		String home = this.srv.findEventServer( name );
+		if( home == null || home.equals( this.srv.getName() ) )
+			return null;
+		
+		IRemoteServer server = this.srv.getServer( home );
+		if( server == null )
+			throw new RemoteException( "The server of the given event is not available." );
+		return server.get( name, knownVersion );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#replicate(java.lang.String, java.util.List, boolean)
+	 */
+	@Override
+	public void replicate( String from, List<byte[]> records, boolean gap ) throws RemoteException {
+		this.srv.onReplicated( from, records, gap );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#resyncEvents(java.lang.String)
+	 */
+	@Override
+	public void resyncEvents( String requester ) throws RemoteException {
+		this.srv.resyncEvents( requester );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#getLeader(java.lang.String)
+	 */
+	@Override
+	public Date getLeader( String name ) throws RemoteException {
+		return this.srv.getLeader( name );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#join(java.lang.String, remote.IRemoteServer, long, long)
+	 */
+	@Override
+	public boolean join( String name, IRemoteServer server, long incarnation, long epoch ) throws RemoteException {
+		return this.srv.getMembership().onJoin( name, server, incarnation, epoch );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#heartbeat(java.lang.String, long, long)
+	 */
+	@Override
+	public boolean heartbeat( String from, long incarnation, long epoch ) throws RemoteException {
+		return this.srv.getMembership().onHeartbeat( from, incarnation, epoch );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#onView(remote.MemberView)
+	 */
+	@Override
+	public void onView( MemberView view ) throws RemoteException {
+		this.srv.getMembership().onView( view );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#getView()
+	 */
+	@Override
+	public MemberView getView() throws RemoteException {
+		return this.srv.getView();
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#requestVote(long, java.lang.String, long, long)
+	 */
+	@Override
+	public long[] requestVote( long term, String candidate, long lastIndex, long lastTerm ) throws RemoteException {
+		return this.srv.getMetadata().getRaft().onRequestVote( term, candidate, lastIndex, lastTerm );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#appendEntries(long, java.lang.String, long, long, java.util.List, long)
+	 */
+	@Override
+	public long[] appendEntries( long term, String leader, long prevIndex, long prevTerm, List<RaftEntry> entries, long commitIndex ) throws RemoteException {
+		return this.srv.getMetadata().getRaft().onAppendEntries( term, leader, prevIndex, prevTerm, entries, commitIndex );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#installSnapshot(long, java.lang.String, long, long, long, byte[], boolean)
+	 */
+	@Override
+	public long[] installSnapshot( long term, String leader, long index, long lastTerm, long offset, byte[] data, boolean done ) throws RemoteException {
+		return this.srv.getMetadata().getRaft().onInstallSnapshot( term, leader, index, lastTerm, offset, data, done );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#proposeMetadata(byte[])
+	 */
+	@Override
+	public long[] proposeMetadata( byte[] entry ) throws RemoteException {
+		return this.srv.getMetadata().append( entry );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#lookupMetadata(boolean, java.lang.String)
+	 */
+	@Override
+	public String lookupMetadata( boolean user, String name ) throws RemoteException {
+		return this.srv.getMetadata().onLookup( user, name );
+	}
+	
+	/* (non-Javadoc)
+	 * @see remote.IRemoteServer#getEndpoint()
+	 */
+	@Override
+	public String getEndpoint() throws RemoteException {
+		return this.srv.getEndpoint();
 	}
 	
 	
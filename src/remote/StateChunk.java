@@ -0,0 +1,78 @@
+package remote;
+
+import java.io.Serializable;
+
+
+/**
+ * A part of the state of a server, sent to another server catching up.
+ */
+public class StateChunk implements Serializable {
+
+	private static final long serialVersionUID = -6000385409384862094L;
+	
+	String transferId;
+	long offset;
+	long total;
+	byte[] data;
+	
+	/**
+	 * Instantiates a new state chunk.
+	 * 
+	 * @param transferId the id of the transfer, used for resuming it
+	 * @param offset the offset of the data within the transfer
+	 * @param total the total size of the transfer
+	 * @param data the data
+	 */
+	public StateChunk( String transferId, long offset, long total, byte[] data )
+	{
+		this.transferId = transferId;
+		this.offset = offset;
+		this.total = total;
+		this.data = data;
+	}
+
+	/**
+	 * Gets the id of the transfer.
+	 * 
+	 * @return the transfer id
+	 */
+	public String getTransferId() {
+		return transferId;
+	}
+
+	/**
+	 * Gets the offset of the data within the transfer.
+	 * 
+	 * @return the offset
+	 */
+	public long getOffset() {
+		return offset;
+	}
+
+	/**
+	 * Gets the total size of the transfer.
+	 * 
+	 * @return the total
+	 */
+	public long getTotal() {
+		return total;
+	}
+
+	/**
+	 * Gets the data.
+	 * 
+	 * @return the data
+	 */
+	public byte[] getData() {
+		return data;
+	}
+	
+	/**
+	 * Checks if this is the last chunk of the transfer.
+	 * 
+	 * @return true, if it is the last chunk
+	 */
+	public boolean isLast() {
+		return this.offset + this.data.length >= this.total;
+	}
+}
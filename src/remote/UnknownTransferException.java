@@ -0,0 +1,41 @@
+package remote;
+
+import java.rmi.RemoteException;
+
+
+/**
+ * Thrown when a state transfer is resumed that the other server doesn't
+ * know (anymore), because it expired, was completed or the server was
+ * restarted. The transfer has to be started over.
+ */
+public class UnknownTransferException extends RemoteException {
+
+	private static final long serialVersionUID = 4127809153390485113L;
+
+	/**
+	 * Instantiates a new unknown transfer exception.
+	 * 
+	 * @param transferId the id of the transfer
+	 */
+	public UnknownTransferException( String transferId )
+	{
+		super( "The transfer \"" + transferId + "\" is unknown or expired" );
+	}
+	
+	/**
+	 * Checks whether the given exception was caused by an unknown transfer,
+	 * also when wrapped by the transport.
+	 * 
+	 * @param t the exception
+	 * @return true, if the transfer is unknown
+	 */
+	public static boolean isCause( Throwable t )
+	{
+		for( ; t != null ; t = t.getCause() )
+		{
+			if( t instanceof UnknownTransferException )
+				return true;
+		}
+		return false;
+	}
+}
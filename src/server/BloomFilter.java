@@ -0,0 +1,158 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Thread-safe Bloom filter over strings. Filters of the same size and
+ * number of hashes can be merged, the result contains the names of both.
+ */
+public class BloomFilter {
+
+	AtomicLongArray bits;
+	int size;
+	int hashes;
+	
+	/**
+	 * Instantiates a new bloom filter.
+	 * 
+	 * @param size the number of bits (rounded up to a multiple of 64)
+	 * @param hashes the number of hashes per name
+	 */
+	public BloomFilter( int size, int hashes )
+	{
+		this.bits = new AtomicLongArray( Math.max( 1, (size + 63) / 64 ) );
+		this.size = this.bits.length() * 64;
+		this.hashes = Math.max( 1, hashes );
+	}
+	
+	/**
+	 * Adds the given name.
+	 * 
+	 * @param name the name
+	 */
+	public void add( String name )
+	{
+		int h1 = name.hashCode();
+		int h2 = secondHash( name );
+		
+		for( int i=0 ; i < this.hashes ; i++ )
+			set( index( h1, h2, i ) );
+	}
+	
+	/**
+	 * Checks if the given name might have been added. If this returns
+	 * false, the name has definitely not been added.
+	 * 
+	 * @param name the name
+	 * @return true, if the name might have been added
+	 */
+	public boolean mightContain( String name )
+	{
+		int h1 = name.hashCode();
+		int h2 = secondHash( name );
+		
+		for( int i=0 ; i < this.hashes ; i++ )
+		{
+			int idx = index( h1, h2, i );
+			if( (this.bits.get( idx >>> 6 ) & (1L << idx)) == 0 )
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Adds all names of the given bits to this filter.
+	 * 
+	 * @param other the bits of a filter of the same size
+	 */
+	public void merge( long[] other )
+	{
+		if( other.length != this.bits.length() )
+			throw new IllegalArgumentException( "Cannot merge filters of different size" );
+		
+		for( int i=0 ; i < other.length ; i++ )
+		{
+			long cur;
+			do {
+				cur = this.bits.get( i );
+			} while( (cur | other[i]) != cur && !this.bits.compareAndSet( i, cur, cur | other[i] ) );
+		}
+	}
+	
+	/**
+	 * Gets a copy of the bits.
+	 * 
+	 * @return the bits
+	 */
+	public long[] toArray()
+	{
+		long[] ret = new long[ this.bits.length() ];
+		for( int i=0 ; i < ret.length ; i++ )
+			ret[i] = this.bits.get( i );
+		return ret;
+	}
+	
+	/**
+	 * Estimates the current false positive rate, from the share of bits set.
+	 * 
+	 * @return the false positive rate
+	 */
+	public double getFalsePositiveRate()
+	{
+		long set = 0;
+		for( int i=0 ; i < this.bits.length() ; i++ )
+			set += Long.bitCount( this.bits.get( i ) );
+		
+		return Math.pow( (double)set / this.size, this.hashes );
+	}
+	
+	/**
+	 * Gets the memory used by the bits.
+	 * 
+	 * @return the size in bytes
+	 */
+	public long getMemory()
+	{
+		return this.size / 8;
+	}
+	
+	/**
+	 * Sets the given bit.
+	 */
+	private void set( int idx )
+	{
+		int word = idx >>> 6;
+		long mask = 1L << idx;
+		
+		long cur;
+		do {
+			cur = this.bits.get( word );
+		} while( (cur & mask) == 0 && !this.bits.compareAndSet( word, cur, cur | mask ) );
+	}
+	
+	/**
+	 * Gets the bit for the i-th hash (double hashing).
+	 */
+	private int index( int h1, int h2, int i )
+	{
+		return ((h1 + i * h2) & Integer.MAX_VALUE) % this.size;
+	}
+	
+	/**
+	 * A second hash independent of {@link String#hashCode()} (FNV-1a).
+	 */
+	static int secondHash( String name )
+	{
+		int h = 0x811c9dc5;
+		for( int i=0 ; i < name.length() ; i++ )
+		{
+			h ^= name.charAt( i );
+			h *= 0x01000193;
+		}
+		
+		//Odd, so all bits can be reached
+		return h | 1;
+	}
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The buffers of the frames of the nio transport. Frames up to the
+ * threshold use heap buffers. Larger ones use direct buffers, which are
+ * slow to allocate and only given back when the garbage collector finds
+ * them, so they are kept for reuse once a frame was written or read.
+ * Direct buffers come in powers of two, and at most the given number of
+ * bytes is kept unused.
+ */
+public class BufferPool {
+
+	final int threshold;
+	final int shift;
+	final long capacity;
+	final List<ConcurrentLinkedQueue<ByteBuffer>> free;
+	final AtomicLong unused;
+
+	/**
+	 * Instantiates a new pool.
+	 *
+	 * @param threshold the size (in bytes) from which direct buffers are used
+	 * @param maxSize the size (in bytes) of the largest buffer kept for reuse
+	 * @param capacity the maximum number of bytes kept in unused buffers
+	 */
+	public BufferPool( int threshold, int maxSize, long capacity )
+	{
+		this.threshold = Math.max( 0, threshold );
+		this.shift = 32 - Integer.numberOfLeadingZeros( this.threshold );
+		this.capacity = capacity;
+		this.free = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+		for( int c=0 ; sizeOf( c ) > 0 && sizeOf( c ) <= maxSize ; c++ )
+			this.free.add( new ConcurrentLinkedQueue<ByteBuffer>() );
+		this.unused = new AtomicLong();
+	}
+
+	/**
+	 * Gets a buffer for the given number of bytes, a direct one if there
+	 * are more than the threshold.
+	 *
+	 * @param size the number of bytes
+	 * @return the buffer, with the size as its limit
+	 */
+	public ByteBuffer allocate( int size )
+	{
+		if( size <= this.threshold )
+			return ByteBuffer.allocate( size );
+
+		int c = classOf( size );
+		if( c >= this.free.size() )
+			return ByteBuffer.allocateDirect( size );
+
+		ByteBuffer ret = this.free.get( c ).poll();
+		if( ret != null )
+			this.unused.addAndGet( -ret.capacity() );
+		else
+			ret = ByteBuffer.allocateDirect( sizeOf( c ) );
+		ret.clear();
+		ret.limit( size );
+		return ret;
+	}
+
+	/**
+	 * Gives back a buffer no longer used. Heap buffers and those the pool
+	 * has no room for are left to the garbage collector.
+	 *
+	 * @param b the buffer
+	 */
+	public void release( ByteBuffer b )
+	{
+		if( b == null || !b.isDirect() )
+			return;
+
+		int c = classOf( b.capacity() );
+		if( c >= this.free.size() || sizeOf( c ) != b.capacity() )
+			return;
+
+		if( this.unused.addAndGet( b.capacity() ) > this.capacity )
+		{
+			this.unused.addAndGet( -b.capacity() );
+			return;
+		}
+		this.free.get( c ).add( b );
+	}
+
+	/**
+	 * Gets the class of the smallest buffer holding the given number of
+	 * bytes, more than the threshold.
+	 */
+	private int classOf( int size )
+	{
+		return Math.max( 0, 32 - Integer.numberOfLeadingZeros( size - 1 ) - this.shift );
+	}
+
+	/**
+	 * Gets the size of the buffers of the given class, 0 if it is too large.
+	 */
+	private int sizeOf( int c )
+	{
+		return c + this.shift < 31 ? 1 << (c + this.shift) : 0;
+	}
+}
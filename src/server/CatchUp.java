@@ -0,0 +1,191 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import remote.IRemoteServer;
+import remote.StateChunk;
+import remote.UnknownTransferException;
+
+
+/**
+ * Brings a (re)joining server up to date. The state is pulled from the
+ * given servers in parallel, chunk by chunk, into a local file. Failed
+ * requests are retried at the same offset, a transfer the other server
+ * doesn't know anymore is started over right away. The records of each
+ * complete transfer are applied, once caught up with a majority of the
+ * servers, the server starts serving requests. Servers whose transfer
+ * failed, or that were down, are caught up with once available again.
+ */
+public class CatchUp implements Runnable {
+
+	protected static final Logger logger = Logger.getLogger( CatchUp.class.getName() );
+	
+	static final int MAX_RETRIES = 5;
+	static final long RETRY_DELAY = 500;
+	
+	Server server;
+	Map<String, IRemoteServer> peers;
+	long round;
+	File dir;
+	int chunkSize;
+	
+	/**
+	 * Instantiates a new catch up.
+	 * 
+	 * @param server the server
+	 * @param peers the servers to catch up with, by name
+	 * @param round the round of catching up, see {@link Server#retryCatchUp()}
+	 * @param dir the directory for the received files
+	 * @param chunkSize the size of the chunks to ask for
+	 */
+	public CatchUp( Server server, Map<String, IRemoteServer> peers, long round, File dir, int chunkSize )
+	{
+		this.server = server;
+		this.peers = peers;
+		this.round = round;
+		this.dir = dir;
+		this.chunkSize = chunkSize;
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		long start = System.nanoTime();
+		
+		Map<String, Future<File>> received = new LinkedHashMap<String, Future<File>>();
+		for( final Map.Entry<String, IRemoteServer> peer : this.peers.entrySet() )
+		{
+			received.put( peer.getKey(), this.server.getExecutor().submit( new Callable<File>() {
+				@Override
+				public File call() throws Exception {
+					return receive( peer.getKey(), peer.getValue() );
+				}
+			}));
+		}
+		
+		int count = 0;
+		List<String> done = new ArrayList<String>();
+		for( Map.Entry<String, Future<File>> f : received.entrySet() )
+		{
+			try {
+				File file = f.getValue().get();
+				
+				//Applying the same records again has no effect, so a failed server is simply asked again
+				for( LogRecord r : new Snapshot( file ).read() )
+				{
+					this.server.apply( r );
+					count++;
+				}
+				
+				file.delete();
+				done.add( f.getKey() );
+			} catch( ExecutionException eex ) {
+				logger.warning( "Couldn't catch up with \"" + f.getKey() + "\": " + eex.getCause().getMessage() );
+			} catch( IOException ioex ) {
+				logger.warning( "Couldn't read the state received from \"" + f.getKey() + "\": " + ioex.getMessage() );
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		
+		//Names taken before this server joined
+		for( String name : done )
+		{
+			try {
+				long[][] filters = this.peers.get( name ).getNameFilters();
+				this.server.getUserFilter().merge( filters[0] );
+				this.server.getEventFilter().merge( filters[1] );
+			} catch( RemoteException rex ) {
+				logger.warning( "Couldn't fetch name filters: " + rex.getMessage() );
+			} catch( IllegalArgumentException iaex ) {
+				logger.warning( "Couldn't merge name filters: " + iaex.getMessage() );
+			}
+		}
+		
+		logger.info( "Caught up with " + done + " (" + count + " records) in " + (System.nanoTime() - start) / 1000000 + " ms" );
+		this.server.setCaughtUp( done, this.round );
+	}
+	
+	/**
+	 * Receives the state from the given server into a local file.
+	 * 
+	 * @param name the name of the server
+	 * @param peer the server
+	 * @return the file
+	 * @throws IOException if the state couldn't be received
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	protected File receive( String name, IRemoteServer peer ) throws IOException, InterruptedException
+	{
+		if( !this.dir.isDirectory() && !this.dir.mkdirs() )
+			throw new IOException( "Couldn't create directory \"" + this.dir + "\"" );
+		
+		File file = new File( this.dir, "received-" + name + ".snap" );
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		
+		try {
+			raf.setLength( 0 );
+			
+			String transferId = null;
+			long offset = 0;
+			int retries = 0;
+			
+			while( true )
+			{
+				StateChunk chunk;
+				try {
+					chunk = peer.fetchState( this.server.getName(), transferId, offset, this.chunkSize );
+					retries = 0;
+				} catch( RemoteException rex ) {
+					if( ++retries > MAX_RETRIES )
+						throw rex;
+					
+					//The other server forgot the transfer, or already sent all of it
+					if( transferId != null && UnknownTransferException.isCause( rex ) )
+					{
+						logger.info( "\"" + name + "\" doesn't know the transfer anymore, starting over" );
+						transferId = null;
+						offset = 0;
+						raf.setLength( 0 );
+						continue;
+					}
+					
+					logger.info( "Fetching state from \"" + name + "\" failed at offset " + offset + ", retrying: " + rex.getMessage() );
+					Thread.sleep( RETRY_DELAY * retries );
+					continue;
+				}
+				
+				if( chunk.getData().length == 0 && !chunk.isLast() )
+					throw new IOException( "\"" + name + "\" sent an empty chunk at offset " + offset );
+				
+				if( transferId == null )
+					transferId = chunk.getTransferId();
+				
+				raf.seek( chunk.getOffset() );
+				raf.write( chunk.getData() );
+				offset = chunk.getOffset() + chunk.getData().length;
+				
+				if( chunk.isLast() )
+					break;
+			}
+		} finally {
+			raf.close();
+		}
+		
+		return file;
+	}
+}
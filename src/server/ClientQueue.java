@@ -0,0 +1,179 @@
+package server;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import client.IClientCallback;
+
+
+/**
+ * The notifications not yet sent to a single logged in client. Several
+ * notifications of the same event are merged into the latest one, and at
+ * most one call to the client is on its way at a time.
+ */
+public class ClientQueue {
+
+	/** What to do with a notification for a full queue. */
+	public enum Policy { DROP_OLDEST, DROP_NEWEST }
+
+	/** What became of an offered notification. */
+	public enum Offer { QUEUED, COALESCED, DROPPED }
+
+	final String user;
+	final IClientCallback callback;
+	final int capacity;
+	final Policy policy;
+
+	/** The queued notifications, final date by event name. */
+	LinkedHashMap<String, Date> pending;
+	/** The notifications collected while the user was offline, sent before the others. */
+	Inbox inbox;
+	/** When the oldest queued notification was queued. */
+	long oldest;
+	/** Whether the queue is waiting for, or sending on, a delivery thread. */
+	boolean scheduled;
+	/** When the current call to the client started, 0 if there is none. */
+	volatile long sendingSince;
+	int failures;
+	volatile long lastLatency;
+	volatile boolean dead;
+
+	/**
+	 * Instantiates a new, empty queue.
+	 *
+	 * @param user the user
+	 * @param callback the callback of the user's client
+	 * @param capacity the maximum number of queued notifications
+	 * @param policy what to do with a notification for a full queue
+	 */
+	public ClientQueue( String user, IClientCallback callback, int capacity, Policy policy )
+	{
+		this.user = user;
+		this.callback = callback;
+		this.capacity = Math.max( 1, capacity );
+		this.policy = policy;
+		this.pending = new LinkedHashMap<String, Date>();
+	}
+
+	/**
+	 * Queues a notification.
+	 *
+	 * @param event the event name
+	 * @param date the final date
+	 * @return what became of the notification
+	 */
+	public synchronized Offer offer( String event, Date date )
+	{
+		if( this.pending.containsKey( event ) )
+		{
+			this.pending.put( event, date );
+			return Offer.COALESCED;
+		}
+
+		Offer ret = Offer.QUEUED;
+		if( this.pending.size() >= this.capacity )
+		{
+			if( this.policy == Policy.DROP_NEWEST )
+				return Offer.DROPPED;
+
+			Iterator<String> it = this.pending.keySet().iterator();
+			it.next();
+			it.remove();
+			ret = Offer.DROPPED;
+		}
+
+		if( this.pending.isEmpty() )
+			this.oldest = System.currentTimeMillis();
+		this.pending.put( event, date );
+		return ret;
+	}
+
+	/**
+	 * Marks the queue as scheduled, if it has notifications and isn't already.
+	 *
+	 * @return true, if the caller has to schedule the queue
+	 */
+	public synchronized boolean schedule()
+	{
+		if( this.scheduled || this.dead || (this.pending.isEmpty() && this.inbox == null) )
+			return false;
+		this.scheduled = true;
+		return true;
+	}
+
+	/**
+	 * Sets the notifications collected while the user was offline.
+	 *
+	 * @param inbox the inbox
+	 */
+	synchronized void setInbox( Inbox inbox )
+	{
+		this.inbox = inbox;
+		this.oldest = System.currentTimeMillis();
+	}
+
+	/**
+	 * Takes the notifications collected while the user was offline.
+	 *
+	 * @return the inbox, or null
+	 */
+	synchronized Inbox takeInbox()
+	{
+		Inbox ret = this.inbox;
+		this.inbox = null;
+		return ret;
+	}
+
+	/**
+	 * Takes all queued notifications, to send them in one go.
+	 *
+	 * @return the notifications
+	 */
+	synchronized LinkedHashMap<String, Date> take()
+	{
+		LinkedHashMap<String, Date> ret = this.pending;
+		this.pending = new LinkedHashMap<String, Date>();
+		return ret;
+	}
+
+	/**
+	 * Gets the number of queued notifications.
+	 *
+	 * @return the depth
+	 */
+	public synchronized int getDepth()
+	{
+		return this.pending.size();
+	}
+
+	/**
+	 * Gets the time (in ms) the oldest notification of the last call had been queued.
+	 *
+	 * @return the latency
+	 */
+	public long getLastLatency()
+	{
+		return this.lastLatency;
+	}
+
+	/**
+	 * Gets the user.
+	 *
+	 * @return the user
+	 */
+	public String getUser()
+	{
+		return this.user;
+	}
+
+	/**
+	 * Gets the callback of the user's client.
+	 *
+	 * @return the callback
+	 */
+	public IClientCallback getCallback()
+	{
+		return this.callback;
+	}
+}
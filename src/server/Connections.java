@@ -0,0 +1,136 @@
+package server;
+
+import java.util.Collection;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import remote.IRemoteServer;
+
+
+/**
+ * The connections to the other servers, one per server. Each connection
+ * outlives the server going down, so it can find the server again once
+ * it is back, and is only dropped when the server leaves the network.
+ * The circuit and latency of each connection are published as metrics.
+ */
+public class Connections {
+
+	Server server;
+	NioTransport transport;
+	int maxFailures;
+	long minBackoff;
+	long maxBackoff;
+
+	ConcurrentHashMap<String, PeerConnection> connections;
+	Timer timer;
+
+	/**
+	 * Instantiates the connections of the given server.
+	 *
+	 * @param server the server
+	 * @param transport the nio transport, or null to call the servers through RMI
+	 * @param maxFailures the number of failed calls in a row after which calls fail right away
+	 * @param minBackoff the time (in ms) before the first attempt to reach a failed server again
+	 * @param maxBackoff the maximum time (in ms) between two attempts
+	 */
+	public Connections( Server server, NioTransport transport, int maxFailures, long minBackoff, long maxBackoff )
+	{
+		this.server = server;
+		this.transport = transport;
+		this.maxFailures = maxFailures;
+		this.minBackoff = minBackoff;
+		this.maxBackoff = maxBackoff;
+		this.connections = new ConcurrentHashMap<String, PeerConnection>();
+		this.timer = new Timer( "reconnect", true );
+	}
+
+	/**
+	 * Uses the given remote interface for the given server from now on.
+	 *
+	 * @param name the server name
+	 * @param stub the remote interface the server sent
+	 * @return the proxy to call the server with
+	 */
+	public IRemoteServer connect( String name, IRemoteServer stub )
+	{
+		PeerConnection c = this.connections.get( name );
+		if( c == null )
+		{
+			PeerConnection prev = this.connections.putIfAbsent( name,
+					c = new PeerConnection( name, this.server, this.timer, this.transport, this.maxFailures, this.minBackoff, this.maxBackoff ) );
+			if( prev != null )
+				c = prev;
+			else
+				publish( c );
+		}
+
+		c.setStub( stub );
+		return c.getProxy();
+	}
+
+	/**
+	 * Gets the connection to the given server.
+	 *
+	 * @param name the server name
+	 * @return the connection, or null if the server was never connected to
+	 */
+	public PeerConnection get( String name )
+	{
+		return this.connections.get( name );
+	}
+
+	/**
+	 * Gets all connections.
+	 *
+	 * @return the connections
+	 */
+	public Collection<PeerConnection> getAll()
+	{
+		return this.connections.values();
+	}
+
+	/**
+	 * Drops the connection to the given server, after it left the network.
+	 *
+	 * @param name the server name
+	 */
+	public void remove( String name )
+	{
+		PeerConnection c = this.connections.remove( name );
+		if( c == null )
+			return;
+
+		c.shutdown();
+		this.server.getMetrics().removeGauge( "peer." + name + ".circuit" );
+		this.server.getMetrics().removeGauge( "peer." + name + ".latency" );
+	}
+
+	/**
+	 * Stops trying to reach any server.
+	 */
+	public void stop()
+	{
+		this.timer.cancel();
+		for( PeerConnection c : this.connections.values() )
+			c.shutdown();
+	}
+
+	/**
+	 * Publishes the circuit and latency of the given connection.
+	 */
+	private void publish( final PeerConnection c )
+	{
+		this.server.getMetrics().gauge( "peer." + c.getName() + ".circuit", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return c.getCircuit();
+			}
+		});
+		this.server.getMetrics().gauge( "peer." + c.getName() + ".latency", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return String.format( "%.3f", c.getLatency() );
+			}
+		});
+	}
+}
@@ -0,0 +1,161 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+
+/**
+ * Finalizes events automatically once their voting deadline passed. The
+ * deadlines wait in a timing wheel, which is advanced every tick; the
+ * events expiring in the same tick are finalized together and their
+ * participants notified in one go. Deadlines are part of the events'
+ * creation records, so replaying the log at startup schedules them again.
+ * Only the server an event was created at finalizes it.
+ */
+public class Deadlines extends TimerTask {
+
+	protected static final Logger logger = Logger.getLogger( Deadlines.class.getName() );
+
+	Server server;
+	TimingWheel<String> wheel;
+	ConcurrentHashMap<String, TimingWheel.Timeout<String>> pending;
+	Timer timer;
+
+	/**
+	 * Instantiates new deadlines.
+	 *
+	 * @param server the server
+	 * @param tick the duration (in ms) of a tick of the wheel
+	 */
+	public Deadlines( Server server, long tick )
+	{
+		this.server = server;
+		//4 wheels of 256 ticks cover 2^32 ticks, that is years for any sensible tick
+		this.wheel = new TimingWheel<String>( tick, 4, System.currentTimeMillis() );
+		this.pending = new ConcurrentHashMap<String, TimingWheel.Timeout<String>>();
+	}
+
+	/**
+	 * Schedules the finalization of the given event.
+	 *
+	 * @param event the event name
+	 * @param deadline the time (in ms) to finalize it at
+	 */
+	public void schedule( String event, long deadline )
+	{
+		TimingWheel.Timeout<String> prev = this.pending.put( event, this.wheel.add( event, deadline ) );
+		if( prev != null )
+			this.wheel.cancel( prev );
+	}
+
+	/**
+	 * Cancels the finalization of the given event, if it is scheduled.
+	 *
+	 * @param event the event name
+	 */
+	public void cancel( String event )
+	{
+		TimingWheel.Timeout<String> t = this.pending.remove( event );
+		if( t != null )
+			this.wheel.cancel( t );
+	}
+
+	/**
+	 * Gets the number of scheduled finalizations.
+	 *
+	 * @return the number of deadlines
+	 */
+	public int size()
+	{
+		return this.wheel.size();
+	}
+
+	/**
+	 * Start advancing the wheel.
+	 */
+	public void start()
+	{
+		this.timer = new Timer( "deadlines", true );
+		this.timer.schedule( this, this.wheel.tickMs, this.wheel.tickMs );
+	}
+
+	/**
+	 * Stop advancing the wheel.
+	 */
+	public void stop()
+	{
+		if( this.timer != null )
+			this.timer.cancel();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.TimerTask#run()
+	 */
+	@Override
+	public void run() {
+		final List<String> expired = new ArrayList<String>();
+		this.wheel.advance( System.currentTimeMillis(), expired );
+		if( expired.isEmpty() )
+			return;
+
+		for( String event : expired )
+			this.pending.remove( event );
+
+		try {
+			this.server.getExecutor().submit( new Runnable() {
+				@Override
+				public void run() {
+					finalizeAll( expired );
+				}
+			});
+		} catch( RejectedExecutionException rex ) {
+			logger.fine( "Didn't finalize " + expired.size() + " events, the server is shutting down" );
+		}
+	}
+
+	/**
+	 * Finalizes the given events created at this server and notifies all
+	 * their participants together.
+	 */
+	private void finalizeAll( List<String> events )
+	{
+		Map<String, Date> dates = new LinkedHashMap<String, Date>();
+		Map<String, Collection<String>> participants = new LinkedHashMap<String, Collection<String>>();
+
+		for( String event : events )
+		{
+			if( !this.server.isHomeOf( event ) )
+				continue;
+
+			try {
+				//Finalized by the author meanwhile, or without any date options
+				if( !this.server.apply( LogRecord.finalizeEvent( event ) ) )
+				{
+					logger.info( "Couldn't finalize \"" + event + "\" at its deadline, it has no date options or is already finalized" );
+					continue;
+				}
+
+				dates.put( event, this.server.getLeader( event ) );
+				participants.put( event, this.server.getParticipants( event ) );
+			} catch( RemoteException rex ) {
+				logger.warning( "Couldn't finalize \"" + event + "\" at its deadline: " + rex.getMessage() );
+			}
+		}
+
+		if( dates.isEmpty() )
+			return;
+
+		this.server.getMetrics().counter( "deadlines.finalized" ).addAndGet( dates.size() );
+		this.server.getNotifier().finalized( dates, participants );
+	}
+}
@@ -0,0 +1,221 @@
+package server;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import remote.EventQuery;
+
+
+/**
+ * Secondary indexes on the events of a server: by author, by normalized
+ * location and by date option. They are kept by the state machine, so they
+ * change together with the events. Changes of different events may run at
+ * the same time, each bucket is changed under its own lock and dropped
+ * when it becomes empty.
+ */
+public class EventIndex {
+
+	/** Rough sizes (in bytes) of a bucket and of an event name in a bucket, for reporting the memory used. */
+	static final int BUCKET_BYTES = 160;
+	static final int ENTRY_BYTES = 64;
+
+	Buckets<String> byAuthor;
+	Buckets<String> byLocation;
+	Buckets<Long> byDate;
+	ConcurrentSkipListMap<Long, Set<String>> dates;
+
+	/**
+	 * Event names by key. The buckets are sets, replaced once they were
+	 * emptied, so an event is never added to a bucket that was just dropped.
+	 */
+	static class Buckets<K> {
+		final ConcurrentMap<K, Set<String>> map;
+		final AtomicLong buckets = new AtomicLong();
+		final AtomicLong entries = new AtomicLong();
+
+		Buckets( ConcurrentMap<K, Set<String>> map ) {
+			this.map = map;
+		}
+
+		void add( K key, String event )
+		{
+			while( true )
+			{
+				Set<String> bucket = this.map.get( key );
+				if( bucket == null )
+				{
+					bucket = new TreeSet<String>();
+					if( this.map.putIfAbsent( key, bucket ) != null )
+						continue;
+					this.buckets.incrementAndGet();
+				}
+
+				synchronized( bucket ) {
+					if( this.map.get( key ) != bucket )
+						continue;
+					if( bucket.add( event ) )
+						this.entries.incrementAndGet();
+					return;
+				}
+			}
+		}
+
+		void remove( K key, String event )
+		{
+			Set<String> bucket = this.map.get( key );
+			if( bucket == null )
+				return;
+
+			synchronized( bucket ) {
+				if( bucket.remove( event ) )
+					this.entries.decrementAndGet();
+				if( bucket.isEmpty() && this.map.remove( key, bucket ) )
+					this.buckets.decrementAndGet();
+			}
+		}
+
+		void collect( K key, Collection<String> into )
+		{
+			Set<String> bucket = this.map.get( key );
+			if( bucket != null )
+				collect( bucket, into );
+		}
+
+		static void collect( Set<String> bucket, Collection<String> into )
+		{
+			synchronized( bucket ) {
+				into.addAll( bucket );
+			}
+		}
+
+		long getMemory()
+		{
+			return this.buckets.get() * BUCKET_BYTES + this.entries.get() * ENTRY_BYTES;
+		}
+	}
+
+	/**
+	 * Instantiates new, empty indexes.
+	 */
+	public EventIndex()
+	{
+		this.byAuthor = new Buckets<String>( new ConcurrentHashMap<String, Set<String>>() );
+		this.byLocation = new Buckets<String>( new ConcurrentHashMap<String, Set<String>>() );
+		this.dates = new ConcurrentSkipListMap<Long, Set<String>>();
+		this.byDate = new Buckets<Long>( this.dates );
+	}
+
+	/**
+	 * Adds a created event.
+	 *
+	 * @param event the event name
+	 * @param author the author
+	 * @param location the location
+	 */
+	public void created( String event, String author, String location )
+	{
+		this.byAuthor.add( author, event );
+		this.byLocation.add( normalize( location ), event );
+	}
+
+	/**
+	 * Adds a date option of an event.
+	 *
+	 * @param event the event name
+	 * @param dt the date
+	 */
+	public void dateAdded( String event, Date dt )
+	{
+		this.byDate.add( dt.getTime(), event );
+	}
+
+	/**
+	 * Drops the date options of a finalized event, except for the final date.
+	 *
+	 * @param event the event name
+	 * @param options the date options of the event
+	 * @param dt the final date
+	 */
+	public void finalized( String event, Collection<Date> options, Date dt )
+	{
+		for( Date option : options )
+		{
+			if( !option.equals( dt ) )
+				this.byDate.remove( option.getTime(), event );
+		}
+	}
+
+	/**
+	 * Finds the names of the events matching the given query.
+	 *
+	 * @param q the query
+	 * @return the event names, ordered
+	 */
+	public NavigableSet<String> find( EventQuery q )
+	{
+		NavigableSet<String> ret = new TreeSet<String>();
+
+		switch( q.getKind() )
+		{
+			case AUTHOR:
+				this.byAuthor.collect( q.getValue(), ret );
+				break;
+			case LOCATION:
+				this.byLocation.collect( normalize( q.getValue() ), ret );
+				break;
+			case DATES:
+				for( Set<String> bucket : this.dates.subMap( q.getFrom().getTime(), true, q.getTo().getTime(), false ).values() )
+					Buckets.collect( bucket, ret );
+				break;
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Gets the number of index entries, by index.
+	 *
+	 * @return the entries
+	 */
+	public Map<String, Long> getEntries()
+	{
+		Map<String, Long> ret = new LinkedHashMap<String, Long>();
+		ret.put( "author", this.byAuthor.entries.get() );
+		ret.put( "location", this.byLocation.entries.get() );
+		ret.put( "date", this.byDate.entries.get() );
+		return ret;
+	}
+
+	/**
+	 * Gets an estimate of the memory (in bytes) used by the indexes, not
+	 * counting the names, which are shared with the events.
+	 *
+	 * @return the memory
+	 */
+	public long getMemory()
+	{
+		return this.byAuthor.getMemory() + this.byLocation.getMemory() + this.byDate.getMemory();
+	}
+
+	/**
+	 * Normalizes a location, so differently typed names of the same place
+	 * end up in the same bucket.
+	 *
+	 * @param location the location
+	 * @return the normalized location
+	 */
+	public static String normalize( String location )
+	{
+		return location == null ? "" : location.trim().replaceAll( "\\s+", " " ).toLowerCase( Locale.ENGLISH );
+	}
+}
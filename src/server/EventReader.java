@@ -0,0 +1,20 @@
+package server;
+
+import entities.Event;
+
+
+/**
+ * Reads an event on behalf of another thread, see {@link Server#readEvent(String, EventReader)}.
+ *
+ * @param <T> the type of the result
+ */
+public interface EventReader<T> {
+
+	/**
+	 * Reads the given event.
+	 *
+	 * @param e the event
+	 * @return the result
+	 */
+	T read( Event e );
+}
@@ -0,0 +1,112 @@
+package server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Splits the events into shards, each owned by a single worker thread.
+ * Everything that reads or changes an event runs as a task on the worker
+ * of its shard, in the order the tasks were submitted, so events need no
+ * locks and their changes are visible to all later tasks of the shard.
+ */
+public class EventShards {
+
+	final ThreadPoolExecutor[] workers;
+	final Thread[] threads;
+
+	/**
+	 * Instantiates new event shards and starts their workers.
+	 *
+	 * @param name the name prefix of the worker threads
+	 * @param count the number of shards
+	 */
+	public EventShards( final String name, int count )
+	{
+		this.workers = new ThreadPoolExecutor[ Math.max( 1, count ) ];
+		this.threads = new Thread[ this.workers.length ];
+
+		for( int i=0 ; i < this.workers.length ; i++ )
+		{
+			final int shard = i;
+
+			this.workers[i] = new ThreadPoolExecutor( 1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, name + "-" + shard );
+					t.setDaemon( true );
+					threads[shard] = t;
+					return t;
+				}
+			});
+
+			//Start the worker now, so its thread is known before any task arrives
+			this.workers[i].prestartAllCoreThreads();
+		}
+	}
+
+	/**
+	 * Gets the shard of the given event.
+	 *
+	 * @param event the event name
+	 * @return the shard
+	 */
+	public int shardOf( String event )
+	{
+		return (event.hashCode() & Integer.MAX_VALUE) % this.workers.length;
+	}
+
+	/**
+	 * Runs the given task on the worker of the given event's shard. If the
+	 * calling thread is that worker, the task is run right away.
+	 *
+	 * @param event the event name
+	 * @param task the task
+	 * @return the result of the task
+	 */
+	public <T> Future<T> submit( String event, Callable<T> task )
+	{
+		int shard = shardOf( event );
+
+		if( Thread.currentThread() == this.threads[shard] )
+		{
+			FutureTask<T> ret = new FutureTask<T>( task );
+			ret.run();
+			return ret;
+		}
+
+		return this.workers[shard].submit( task );
+	}
+
+	/**
+	 * Gets the number of shards.
+	 *
+	 * @return the number of shards
+	 */
+	public int size()
+	{
+		return this.workers.length;
+	}
+
+	/**
+	 * Stops the workers after the tasks already submitted.
+	 *
+	 * @param timeout the maximum time (in ms) to wait for the tasks
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public void shutdown( long timeout ) throws InterruptedException
+	{
+		for( ExecutorService w : this.workers )
+			w.shutdown();
+
+		long deadline = System.currentTimeMillis() + timeout;
+		for( ExecutorService w : this.workers )
+			w.awaitTermination( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+	}
+}
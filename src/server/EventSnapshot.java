@@ -0,0 +1,113 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import entities.Event;
+import entities.EventInfo;
+
+
+/**
+ * Immutable information about an event at a given version, together with
+ * its serialized form, so it can be handed out any number of times without
+ * building or serializing it again.
+ */
+public class EventSnapshot {
+
+	final long version;
+	final EventInfo info;
+	final byte[] data;
+
+	/**
+	 * Instantiates a new event snapshot.
+	 *
+	 * @param version the version of the event
+	 * @param info the event info
+	 * @param data the serialized event info
+	 */
+	EventSnapshot( long version, EventInfo info, byte[] data )
+	{
+		this.version = version;
+		this.info = info;
+		this.data = data;
+	}
+
+	/**
+	 * Takes a snapshot of the given event.
+	 *
+	 * @param e the event
+	 * @param version the version of the event
+	 * @return the snapshot
+	 */
+	public static EventSnapshot of( Event e, long version )
+	{
+		EventInfo info = new EventInfo( e );
+
+		try {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream( 512 );
+			ObjectOutputStream out = new ObjectOutputStream( buf );
+			out.writeObject( info );
+			out.close();
+
+			return new EventSnapshot( version, info, buf.toByteArray() );
+		} catch( IOException ioex ) {
+			//Nothing but memory is involved
+			throw new IllegalStateException( "Couldn't serialize " + e.getName(), ioex );
+		}
+	}
+
+	/**
+	 * Reads serialized event info.
+	 *
+	 * @param data the serialized event info
+	 * @return the event info
+	 * @throws IOException if the data is no event info
+	 */
+	public static EventInfo read( byte[] data ) throws IOException
+	{
+		ObjectInputStream in = new ObjectInputStream( new ByteArrayInputStream( data ) );
+
+		try {
+			return (EventInfo)in.readObject();
+		} catch( ClassNotFoundException cnfex ) {
+			throw new IOException( "Unknown class " + cnfex.getMessage() );
+		} catch( ClassCastException ccex ) {
+			throw new IOException( "No event info: " + ccex.getMessage() );
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the version of the event this snapshot was taken at.
+	 *
+	 * @return the version
+	 */
+	public long getVersion()
+	{
+		return this.version;
+	}
+
+	/**
+	 * Gets the event info. It must not be changed.
+	 *
+	 * @return the event info
+	 */
+	public EventInfo getInfo()
+	{
+		return this.info;
+	}
+
+	/**
+	 * Gets a copy of the serialized event info.
+	 *
+	 * @return the serialized event info
+	 */
+	public byte[] getData()
+	{
+		return this.data.clone();
+	}
+}
@@ -0,0 +1,167 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * What a server keeps about each of its events besides the event itself:
+ * the running vote tally, a version counted up with every change, the
+ * latest changes and the snapshot of the newest version read so far.
+ *
+ * Versions start at a random base, so versions of the same event at
+ * different servers, or before and after a restart, don't match.
+ */
+public class EventState {
+
+	static final Random BASES = new Random();
+
+	final VoteTally tally;
+	final long base;
+	volatile long version;
+	/** The latest changes, by version modulo their number. */
+	LogRecord[] history;
+	int historySize;
+	volatile EventSnapshot snapshot;
+	/** The server the event was created at, once known. */
+	volatile String home;
+	/** When the event is finalized automatically, 0 if never. */
+	volatile long deadline;
+
+	/**
+	 * Instantiates a new event state.
+	 *
+	 * @param historySize the number of latest changes to keep
+	 */
+	public EventState( int historySize )
+	{
+		this.tally = new VoteTally();
+		this.base = (BASES.nextLong() & 0x3FFFFFFFFFFFFFFFL) << 1;
+		this.version = this.base;
+		this.historySize = Math.max( 0, historySize );
+	}
+
+	/**
+	 * Counts up the version and keeps the change. Called by the state machine
+	 * after every change of the event, so always by its shard worker or while
+	 * holding its lock.
+	 *
+	 * @param r the change
+	 */
+	void changed( LogRecord r )
+	{
+		if( this.historySize > 0 )
+		{
+			if( this.history == null )
+				this.history = new LogRecord[ this.historySize ];
+			this.history[ (int)((this.version + 1) % this.historySize) ] = r;
+		}
+
+		this.version++;
+	}
+
+	/**
+	 * Gets the changes made after the given version, oldest first. Must be
+	 * called by the shard worker of the event or while holding its lock.
+	 *
+	 * @param known the version
+	 * @return the changes, or null if the version is unknown or too old
+	 */
+	List<LogRecord> getChangesSince( long known )
+	{
+		long current = this.version;
+
+		if( known < this.base || known > current || current - known > this.historySize )
+			return null;
+
+		List<LogRecord> ret = new ArrayList<LogRecord>( (int)(current - known) );
+		for( long v = known + 1 ; v <= current ; v++ )
+			ret.add( this.history[ (int)(v % this.historySize) ] );
+		return ret;
+	}
+
+	/**
+	 * Gets the vote tally.
+	 *
+	 * @return the tally
+	 */
+	public VoteTally getTally()
+	{
+		return this.tally;
+	}
+
+	/**
+	 * Gets the current version.
+	 *
+	 * @return the version
+	 */
+	public long getVersion()
+	{
+		return this.version;
+	}
+
+	/**
+	 * Gets the server the event was created at.
+	 *
+	 * @return the server name, or null if not known yet
+	 */
+	public String getHome()
+	{
+		return this.home;
+	}
+	
+	/**
+	 * Sets the server the event was created at.
+	 *
+	 * @param home the server name
+	 */
+	void setHome( String home )
+	{
+		this.home = home;
+	}
+	
+	/**
+	 * Gets the voting deadline.
+	 *
+	 * @return the time (in ms) the event is finalized at, 0 if it has no deadline
+	 */
+	public long getDeadline()
+	{
+		return this.deadline;
+	}
+	
+	/**
+	 * Sets the voting deadline.
+	 *
+	 * @param deadline the time (in ms) the event is finalized at
+	 */
+	void setDeadline( long deadline )
+	{
+		this.deadline = deadline;
+	}
+	
+	/**
+	 * Gets the snapshot of the current version.
+	 *
+	 * @return the snapshot, or null if the current version hasn't been read yet
+	 */
+	public EventSnapshot getSnapshot()
+	{
+		EventSnapshot ret = this.snapshot;
+		return ret != null && ret.getVersion() == this.version ? ret : null;
+	}
+
+	/**
+	 * Keeps the given snapshot, unless a newer one is kept already.
+	 *
+	 * @param snap the snapshot
+	 */
+	void offer( EventSnapshot snap )
+	{
+		synchronized( this ) {
+			if( this.snapshot == null || this.snapshot.getVersion() < snap.getVersion() )
+				this.snapshot = snap;
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.rmi.Remote;
+import java.rmi.server.RemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import remote.RaftEntry;
+
+
+/**
+ * A frame of the nio transport, being written: a length, followed by the
+ * values put into it. Strings, numbers, byte arrays, collections and log
+ * entries are written in a compact binary form, everything else with
+ * Java serialization, where remote objects are sent as their RMI stubs.
+ * <p>
+ * Frames start in a heap buffer. Once they grow beyond the threshold of
+ * the pool, they move to a direct buffer, which the socket is written from
+ * without another copy, and which goes back to the pool once written.
+ */
+public class Frame {
+
+	static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	static final byte NULL = 0;
+	static final byte STRING = 1;
+	static final byte LONG = 2;
+	static final byte INT = 3;
+	static final byte BOOLEAN = 4;
+	static final byte BYTES = 5;
+	static final byte LONGS = 6;
+	static final byte BOOLEANS = 7;
+	static final byte LIST = 8;
+	static final byte SET = 9;
+	static final byte MAP = 10;
+	static final byte DATE = 11;
+	static final byte RAFT_ENTRY = 12;
+	static final byte OBJECT = 13;
+
+	ByteBuffer buf;
+	BufferPool pool;
+
+	/**
+	 * Starts a new frame.
+	 *
+	 * @param pool the pool the buffers are taken from
+	 * @param size the expected size of the frame
+	 */
+	public Frame( BufferPool pool, int size )
+	{
+		this.pool = pool;
+		this.buf = pool.allocate( size + 4 );
+		this.buf.limit( this.buf.capacity() );
+		this.buf.position( 4 );
+	}
+
+	/**
+	 * Makes room for the given number of bytes.
+	 */
+	private void ensure( int n )
+	{
+		if( this.buf.remaining() >= n )
+			return;
+
+		int size = Math.max( this.buf.capacity() * 2, this.buf.position() + n );
+		ByteBuffer b = this.pool.allocate( size );
+		b.limit( b.capacity() );
+		this.buf.flip();
+		b.put( this.buf );
+		this.pool.release( this.buf );
+		this.buf = b;
+	}
+
+	/**
+	 * Puts a byte.
+	 *
+	 * @param v the value
+	 */
+	public void put( byte v )
+	{
+		ensure( 1 );
+		this.buf.put( v );
+	}
+
+	/**
+	 * Puts a short.
+	 *
+	 * @param v the value
+	 */
+	public void putShort( short v )
+	{
+		ensure( 2 );
+		this.buf.putShort( v );
+	}
+
+	/**
+	 * Puts an int.
+	 *
+	 * @param v the value
+	 */
+	public void putInt( int v )
+	{
+		ensure( 4 );
+		this.buf.putInt( v );
+	}
+
+	/**
+	 * Puts a long.
+	 *
+	 * @param v the value
+	 */
+	public void putLong( long v )
+	{
+		ensure( 8 );
+		this.buf.putLong( v );
+	}
+
+	/**
+	 * Puts a byte array, preceded by its length.
+	 *
+	 * @param v the value
+	 */
+	public void putBytes( byte[] v )
+	{
+		ensure( 4 + v.length );
+		this.buf.putInt( v.length );
+		this.buf.put( v );
+	}
+
+	/**
+	 * Puts the given value, preceded by its type.
+	 *
+	 * @param v the value, may be null
+	 * @throws IOException if the value couldn't be serialized
+	 */
+	public void putValue( Object v ) throws IOException
+	{
+		if( v == null )
+			put( NULL );
+		else if( v instanceof String )
+		{
+			put( STRING );
+			putBytes( ((String)v).getBytes( UTF8 ) );
+		}
+		else if( v instanceof Long )
+		{
+			put( LONG );
+			putLong( (Long)v );
+		}
+		else if( v instanceof Integer )
+		{
+			put( INT );
+			putInt( (Integer)v );
+		}
+		else if( v instanceof Boolean )
+		{
+			put( BOOLEAN );
+			put( (byte)((Boolean)v ? 1 : 0) );
+		}
+		else if( v instanceof byte[] )
+		{
+			put( BYTES );
+			putBytes( (byte[])v );
+		}
+		else if( v instanceof long[] )
+		{
+			long[] a = (long[])v;
+			put( LONGS );
+			putInt( a.length );
+			ensure( 8 * a.length );
+			for( long l : a )
+				this.buf.putLong( l );
+		}
+		else if( v instanceof boolean[] )
+		{
+			boolean[] a = (boolean[])v;
+			put( BOOLEANS );
+			putInt( a.length );
+			ensure( a.length );
+			for( boolean b : a )
+				this.buf.put( (byte)(b ? 1 : 0) );
+		}
+		else if( v instanceof List )
+			putAll( LIST, (List<?>)v );
+		else if( v instanceof Set && !(v instanceof SortedSet) )
+			putAll( SET, (Set<?>)v );
+		else if( v instanceof Map && !(v instanceof SortedMap) )
+		{
+			Map<?, ?> m = (Map<?, ?>)v;
+			put( MAP );
+			putInt( m.size() );
+			for( Map.Entry<?, ?> e : m.entrySet() )
+			{
+				putValue( e.getKey() );
+				putValue( e.getValue() );
+			}
+		}
+		else if( v instanceof Date )
+		{
+			put( DATE );
+			putLong( ((Date)v).getTime() );
+		}
+		else if( v instanceof RaftEntry )
+		{
+			put( RAFT_ENTRY );
+			putLong( ((RaftEntry)v).getTerm() );
+			putBytes( ((RaftEntry)v).getData() );
+		}
+		else
+			putObject( v );
+	}
+
+	/**
+	 * Estimates the size of the given value, so a frame can start large
+	 * enough rather than grow.
+	 *
+	 * @param v the value, may be null
+	 * @return the size (in bytes), exact for most compact values
+	 */
+	public static int estimate( Object v )
+	{
+		if( v == null || v instanceof Boolean )
+			return 2;
+		if( v instanceof Integer )
+			return 5;
+		if( v instanceof Long || v instanceof Date )
+			return 9;
+		if( v instanceof String )
+			return 5 + ((String)v).length();
+		if( v instanceof byte[] )
+			return 5 + ((byte[])v).length;
+		if( v instanceof long[] )
+			return 5 + 8 * ((long[])v).length;
+		if( v instanceof boolean[] )
+			return 5 + ((boolean[])v).length;
+		if( v instanceof RaftEntry )
+			return 13 + ((RaftEntry)v).getData().length;
+		if( v instanceof Collection )
+		{
+			int n = 5;
+			for( Object o : (Collection<?>)v )
+				n += estimate( o );
+			return n;
+		}
+		if( v instanceof Map )
+		{
+			int n = 5;
+			for( Map.Entry<?, ?> e : ((Map<?, ?>)v).entrySet() )
+				n += estimate( e.getKey() ) + estimate( e.getValue() );
+			return n;
+		}
+		return 256;
+	}
+
+	/**
+	 * Puts the elements of the given collection.
+	 */
+	private void putAll( byte type, Collection<?> c ) throws IOException
+	{
+		put( type );
+		putInt( c.size() );
+		for( Object o : c )
+			putValue( o );
+	}
+
+	/**
+	 * Puts the given value with Java serialization, preceded by its length.
+	 */
+	private void putObject( Object v ) throws IOException
+	{
+		put( OBJECT );
+		ensure( 4 );
+		final int start = this.buf.position();
+		this.buf.putInt( 0 );
+
+		ObjectOutputStream out = new ObjectOutputStream( new OutputStream() {
+			@Override
+			public void write( int b ) {
+				put( (byte)b );
+			}
+
+			@Override
+			public void write( byte[] b, int off, int len ) {
+				ensure( len );
+				buf.put( b, off, len );
+			}
+		}) {
+			{
+				enableReplaceObject( true );
+			}
+
+			//Remote objects are sent as their stubs, like RMI does
+			@Override
+			protected Object replaceObject( Object obj ) throws IOException {
+				if( obj instanceof Remote && !(obj instanceof RemoteObject) && !Proxy.isProxyClass( obj.getClass() ) )
+					return RemoteObject.toStub( (Remote)obj );
+				return obj;
+			}
+		};
+		out.writeObject( v );
+		out.close();
+
+		this.buf.putInt( start, this.buf.position() - start - 4 );
+	}
+
+	/**
+	 * Finishes the frame.
+	 *
+	 * @return the frame, ready to be written
+	 */
+	public ByteBuffer finish()
+	{
+		this.buf.putInt( 0, this.buf.position() - 4 );
+		this.buf.flip();
+		return this.buf;
+	}
+
+	/**
+	 * Reads a byte array, preceded by its length.
+	 *
+	 * @param in the frame
+	 * @return the value
+	 */
+	public static byte[] getBytes( ByteBuffer in )
+	{
+		byte[] ret = new byte[ in.getInt() ];
+		in.get( ret );
+		return ret;
+	}
+
+	/**
+	 * Reads a value, preceded by its type.
+	 *
+	 * @param in the frame
+	 * @return the value
+	 * @throws IOException if the value couldn't be read
+	 */
+	public static Object getValue( ByteBuffer in ) throws IOException
+	{
+		byte type = in.get();
+		switch( type )
+		{
+		case NULL:
+			return null;
+		case STRING:
+			return new String( getBytes( in ), UTF8 );
+		case LONG:
+			return in.getLong();
+		case INT:
+			return in.getInt();
+		case BOOLEAN:
+			return in.get() != 0;
+		case BYTES:
+			return getBytes( in );
+		case LONGS:
+		{
+			long[] ret = new long[ in.getInt() ];
+			for( int i=0 ; i < ret.length ; i++ )
+				ret[i] = in.getLong();
+			return ret;
+		}
+		case BOOLEANS:
+		{
+			boolean[] ret = new boolean[ in.getInt() ];
+			for( int i=0 ; i < ret.length ; i++ )
+				ret[i] = in.get() != 0;
+			return ret;
+		}
+		case LIST:
+		{
+			int n = in.getInt();
+			List<Object> ret = new ArrayList<Object>( n );
+			for( int i=0 ; i < n ; i++ )
+				ret.add( getValue( in ) );
+			return ret;
+		}
+		case SET:
+		{
+			int n = in.getInt();
+			Set<Object> ret = new LinkedHashSet<Object>( n * 2 );
+			for( int i=0 ; i < n ; i++ )
+				ret.add( getValue( in ) );
+			return ret;
+		}
+		case MAP:
+		{
+			int n = in.getInt();
+			Map<Object, Object> ret = new LinkedHashMap<Object, Object>( n * 2 );
+			for( int i=0 ; i < n ; i++ )
+				ret.put( getValue( in ), getValue( in ) );
+			return ret;
+		}
+		case DATE:
+			return new Date( in.getLong() );
+		case RAFT_ENTRY:
+		{
+			long term = in.getLong();
+			return new RaftEntry( term, getBytes( in ) );
+		}
+		case OBJECT:
+			return getObject( in );
+		default:
+			throw new StreamCorruptedException( "Unknown type " + type );
+		}
+	}
+
+	/**
+	 * Reads a value written with Java serialization.
+	 */
+	private static Object getObject( final ByteBuffer in ) throws IOException
+	{
+		final int end = in.getInt() + in.position();
+
+		ObjectInputStream ois = new ObjectInputStream( new InputStream() {
+			@Override
+			public int read() {
+				return in.position() < end ? in.get() & 0xff : -1;
+			}
+
+			@Override
+			public int read( byte[] b, int off, int len ) {
+				int n = Math.min( len, end - in.position() );
+				if( n <= 0 )
+					return -1;
+				in.get( b, off, n );
+				return n;
+			}
+		});
+
+		try {
+			return ois.readObject();
+		} catch( ClassNotFoundException cnfex ) {
+			throw new StreamCorruptedException( "Unknown class " + cnfex.getMessage() );
+		} finally {
+			in.position( end );
+		}
+	}
+}
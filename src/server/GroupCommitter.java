@@ -0,0 +1,199 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+
+/**
+ * Collects concurrent registrations and event creations and proposes them
+ * as a single entry of the metadata log. A batch is closed either when the
+ * window has elapsed since its first entry, or when it is full.
+ */
+public class GroupCommitter implements Runnable {
+
+	protected static final Logger logger = Logger.getLogger( GroupCommitter.class.getName() );
+	
+	Server server;
+	long window;
+	int maxSize;
+	
+	LinkedBlockingQueue<PendingWrite> queue;
+	Thread thread;
+	volatile boolean running;
+	
+	/**
+	 * Instantiates a new group committer.
+	 * 
+	 * @param server the server
+	 * @param window the time (in ms) to wait for more entries
+	 * @param maxSize the maximum number of entries per batch
+	 */
+	public GroupCommitter( Server server, long window, int maxSize )
+	{
+		this.server = server;
+		this.window = window;
+		this.maxSize = maxSize;
+		this.queue = new LinkedBlockingQueue<PendingWrite>();
+	}
+	
+	/**
+	 * Start committing.
+	 */
+	public void start()
+	{
+		this.running = true;
+		this.thread = new Thread( this, "group-commit" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+	
+	/**
+	 * Stop committing. Pending entries fail.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		
+		if( this.thread != null )
+			this.thread.interrupt();
+		
+		PendingWrite p;
+		while( (p = this.queue.poll()) != null )
+			p.fail( "The server is shutting down" );
+	}
+	
+	/**
+	 * Submits the given registration or creation and waits until its batch
+	 * has been decided.
+	 * 
+	 * @param entry the registration or creation
+	 * @return true, if the entry took its name
+	 * @throws InterruptedException if the calling thread was interrupted
+	 * @throws RemoteException if the batch couldn't be decided, or it isn't known whether it was
+	 */
+	public boolean submit( LogRecord entry ) throws InterruptedException, RemoteException
+	{
+		if( !this.running )
+			throw new RemoteException( "The server is shutting down" );
+		
+		PendingWrite p = new PendingWrite( entry );
+		this.queue.put( p );
+		
+		//Stopped meanwhile, after the pending entries were failed
+		if( !this.running && this.queue.remove( p ) )
+			throw new RemoteException( "The server is shutting down" );
+		
+		return p.await();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		List<PendingWrite> batch = new ArrayList<PendingWrite>();
+		
+		while( this.running )
+		{
+			try {
+				batch.add( this.queue.take() );
+				
+				//Keep collecting until the window is over or the batch is full
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( this.window );
+				while( batch.size() < this.maxSize )
+				{
+					this.queue.drainTo( batch, this.maxSize - batch.size() );
+					
+					long remaining = deadline - System.nanoTime();
+					if( batch.size() >= this.maxSize || remaining <= 0 )
+						break;
+					
+					PendingWrite p = this.queue.poll( remaining, TimeUnit.NANOSECONDS );
+					if( p == null )
+						break;
+					batch.add( p );
+				}
+				
+				commit( batch );
+			} catch( InterruptedException iex ) {
+				for( PendingWrite p : batch )
+					p.fail( "The server is shutting down" );
+			} catch( RuntimeException rex ) {
+				logger.severe( "Group commit failed: " + rex.getMessage() );
+				for( PendingWrite p : batch )
+					p.fail( "The server couldn't commit " + p.entry );
+			}
+			
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Proposes the given batch to the metadata log and resolves each entry.
+	 * 
+	 * @param batch the batch
+	 */
+	protected void commit( List<PendingWrite> batch )
+	{
+		List<LogRecord> records = new ArrayList<LogRecord>( batch.size() );
+		for( PendingWrite p : batch )
+			records.add( p.entry );
+		
+		boolean[] decisions;
+		try {
+			decisions = this.server.getMetadata().propose( records );
+		} catch( RemoteException rex ) {
+			//Not taking the names might be wrong, so let the clients try again
+			logger.warning( "Couldn't commit " + batch.size() + " entries: " + rex.getMessage() );
+			for( PendingWrite p : batch )
+				p.fail( rex.getMessage() );
+			return;
+		}
+		
+		for( int i=0 ; i < batch.size() ; i++ )
+			batch.get( i ).resolve( decisions[i] );
+	}
+	
+	
+	/**
+	 * An entry waiting for its batch to be decided.
+	 */
+	static class PendingWrite {
+		
+		LogRecord entry;
+		CountDownLatch done;
+		volatile boolean result;
+		volatile String error;
+		
+		PendingWrite( LogRecord entry )
+		{
+			this.entry = entry;
+			this.done = new CountDownLatch( 1 );
+		}
+		
+		void resolve( boolean result )
+		{
+			this.result = result;
+			this.done.countDown();
+		}
+		
+		void fail( String error )
+		{
+			this.error = error;
+			this.done.countDown();
+		}
+		
+		boolean await() throws InterruptedException, RemoteException
+		{
+			this.done.await();
+			if( this.error != null )
+				throw new RemoteException( this.error );
+			return this.result;
+		}
+	}
+}
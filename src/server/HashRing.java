@@ -0,0 +1,135 @@
+package server;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ * Consistent hash ring over the servers of the network. Each server is
+ * placed on the ring several times (virtual nodes), a key belongs to the
+ * first server found clockwise from the key's hash, its replicas are the
+ * next distinct servers after that.
+ */
+public class HashRing {
+
+	int virtualNodes;
+	
+	/** The ring, from hash to server name. Replaced as a whole on changes. */
+	volatile TreeMap<Long, String> ring;
+	volatile int memberCount;
+	
+	/**
+	 * Instantiates a new, empty hash ring.
+	 * 
+	 * @param virtualNodes the number of positions each server gets on the ring
+	 */
+	public HashRing( int virtualNodes )
+	{
+		this.virtualNodes = Math.max( 1, virtualNodes );
+		this.ring = new TreeMap<Long, String>();
+	}
+	
+	/**
+	 * Replaces the members of the ring.
+	 * 
+	 * @param members the server names
+	 */
+	public synchronized void setMembers( Collection<String> members )
+	{
+		TreeMap<Long, String> r = new TreeMap<Long, String>();
+		
+		for( String member : members )
+		{
+			for( int i=0 ; i < this.virtualNodes ; i++ )
+				r.put( hash( member + "#" + i ), member );
+		}
+		
+		this.ring = r;
+		this.memberCount = members.size();
+	}
+	
+	/**
+	 * Gets the servers responsible for the given key, starting with its owner.
+	 * 
+	 * @param key the key
+	 * @param count the number of servers (owner plus replicas)
+	 * @return the responsible servers, at most as many as there are members
+	 */
+	public List<String> getOwners( String key, int count )
+	{
+		TreeMap<Long, String> r = this.ring;
+		count = Math.min( count, this.memberCount );
+		
+		if( r.isEmpty() || count <= 0 )
+			return Collections.emptyList();
+		
+		List<String> ret = new ArrayList<String>( count );
+		long h = hash( key );
+		
+		//Walk clockwise from the key, wrapping around once
+		SortedMap<Long, String> tail = r.tailMap( h );
+		collect( tail, ret, count );
+		if( ret.size() < count )
+			collect( r.headMap( h ), ret, count );
+		
+		return ret;
+	}
+	
+	/**
+	 * Gets the owner of the given key.
+	 * 
+	 * @param key the key
+	 * @return the owner, or null if the ring is empty
+	 */
+	public String getOwner( String key )
+	{
+		List<String> owners = getOwners( key, 1 );
+		return owners.isEmpty() ? null : owners.get( 0 );
+	}
+	
+	/**
+	 * Adds distinct servers of the given part of the ring to the list, until it is full.
+	 */
+	static void collect( SortedMap<Long, String> part, List<String> ret, int count )
+	{
+		for( Map.Entry<Long, String> e : part.entrySet() )
+		{
+			if( !ret.contains( e.getValue() ) )
+			{
+				ret.add( e.getValue() );
+				if( ret.size() >= count )
+					return;
+			}
+		}
+	}
+	
+	/**
+	 * Hashes the given string onto the ring.
+	 * 
+	 * @param str the string
+	 * @return the position on the ring
+	 */
+	static long hash( String str )
+	{
+		try {
+			byte[] d = MessageDigest.getInstance( "MD5" ).digest( str.getBytes( "UTF-8" ) );
+			
+			long h = 0;
+			for( int i=0 ; i < 8 ; i++ )
+				h = (h << 8) | (d[i] & 0xff);
+			return h;
+		} catch( NoSuchAlgorithmException nsaex ) {
+			throw new IllegalStateException( nsaex );
+		} catch( UnsupportedEncodingException ueex ) {
+			throw new IllegalStateException( ueex );
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package server;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The notifications of a user who wasn't logged in when they happened:
+ * finalizations and invitations, at most one per event. Kept in plain
+ * arrays rather than one object per notification, since most users
+ * collect a few and some collect thousands.
+ */
+public class Inbox {
+
+	/** The date of invitations, which don't have one. */
+	static final long NO_DATE = Long.MIN_VALUE;
+
+	final int capacity;
+	String[] events;
+	String[] authors;
+	long[] dates;
+	int size;
+	int dropped;
+
+	/**
+	 * Instantiates a new, empty inbox.
+	 *
+	 * @param capacity the maximum number of notifications, older ones are dropped
+	 */
+	public Inbox( int capacity )
+	{
+		this.capacity = Math.max( 1, capacity );
+		this.events = new String[ Math.min( 4, this.capacity ) ];
+		this.authors = new String[ this.events.length ];
+		this.dates = new long[ this.events.length ];
+	}
+
+	/**
+	 * Adds the finalization of an event. It replaces the invitation to the
+	 * event, if the user didn't see it yet.
+	 *
+	 * @param event the event name
+	 * @param date the final date
+	 */
+	public synchronized void finalized( String event, Date date )
+	{
+		put( event, null, date.getTime() );
+	}
+
+	/**
+	 * Adds an invitation, unless the event is already in the inbox.
+	 *
+	 * @param event the event name
+	 * @param author the author of the event
+	 */
+	public synchronized void invited( String event, String author )
+	{
+		if( indexOf( event ) < 0 )
+			put( event, author, NO_DATE );
+	}
+
+	/**
+	 * Sets the notification of the given event, dropping the oldest one if the inbox is full.
+	 */
+	private void put( String event, String author, long date )
+	{
+		int i = indexOf( event );
+		if( i < 0 )
+		{
+			if( this.size == this.capacity )
+			{
+				remove( 0 );
+				this.dropped++;
+			}
+			if( this.size == this.events.length )
+				grow();
+			i = this.size++;
+		}
+
+		this.events[i] = event;
+		this.authors[i] = author;
+		this.dates[i] = date;
+	}
+
+	/**
+	 * Gets the finalizations in the inbox, in the order they arrived.
+	 *
+	 * @return the final date, by event name
+	 */
+	public synchronized Map<String, Date> getFinalized()
+	{
+		Map<String, Date> ret = new LinkedHashMap<String, Date>();
+		for( int i=0 ; i < this.size ; i++ )
+		{
+			if( this.dates[i] != NO_DATE )
+				ret.put( this.events[i], new Date( this.dates[i] ) );
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the invitations in the inbox, in the order they arrived.
+	 *
+	 * @return the author, by event name
+	 */
+	public synchronized Map<String, String> getInvitations()
+	{
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for( int i=0 ; i < this.size ; i++ )
+		{
+			if( this.dates[i] == NO_DATE )
+				ret.put( this.events[i], this.authors[i] );
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the number of notifications.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Gets the number of notifications dropped because the inbox was full.
+	 *
+	 * @return the number of dropped notifications
+	 */
+	public synchronized int getDropped()
+	{
+		return this.dropped;
+	}
+
+	/**
+	 * Gets an estimate of the memory (in bytes) used by the inbox, not counting the names.
+	 *
+	 * @return the memory
+	 */
+	public synchronized long getMemory()
+	{
+		return 64 + this.events.length * (4 + 4 + 8);
+	}
+
+	private int indexOf( String event )
+	{
+		for( int i=0 ; i < this.size ; i++ )
+		{
+			if( this.events[i].equals( event ) )
+				return i;
+		}
+		return -1;
+	}
+
+	private void remove( int i )
+	{
+		int tail = this.size - i - 1;
+		System.arraycopy( this.events, i + 1, this.events, i, tail );
+		System.arraycopy( this.authors, i + 1, this.authors, i, tail );
+		System.arraycopy( this.dates, i + 1, this.dates, i, tail );
+		this.size--;
+		this.events[ this.size ] = null;
+		this.authors[ this.size ] = null;
+	}
+
+	private void grow()
+	{
+		int length = (int)Math.min( this.capacity, this.events.length * 2L );
+		String[] events = new String[ length ];
+		String[] authors = new String[ length ];
+		long[] dates = new long[ length ];
+		System.arraycopy( this.events, 0, events, 0, this.size );
+		System.arraycopy( this.authors, 0, authors, 0, this.size );
+		System.arraycopy( this.dates, 0, dates, 0, this.size );
+		this.events = events;
+		this.authors = authors;
+		this.dates = dates;
+	}
+}
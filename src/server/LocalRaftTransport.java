@@ -0,0 +1,112 @@
+package server;
+
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import remote.RaftEntry;
+
+
+/**
+ * Carries the messages of the replicated log between members running in
+ * the same process, for trying out elections and replication on a single
+ * machine. Members can be cut off, as if they had crashed or lost the network.
+ */
+public class LocalRaftTransport implements RaftTransport {
+
+	ConcurrentHashMap<String, RaftNode> nodes;
+	Set<String> cut;
+	volatile long latency;
+
+	/**
+	 * Instantiates a new local transport without members.
+	 */
+	public LocalRaftTransport()
+	{
+		this.nodes = new ConcurrentHashMap<String, RaftNode>();
+		this.cut = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+	}
+
+	/**
+	 * Adds the given member.
+	 *
+	 * @param node the member
+	 */
+	public void add( RaftNode node )
+	{
+		this.nodes.put( node.getName(), node );
+	}
+
+	/**
+	 * Cuts the given member off, or connects it again. Messages from and
+	 * to members that are cut off fail.
+	 *
+	 * @param name the member
+	 * @param off true to cut it off
+	 */
+	public void setCut( String name, boolean off )
+	{
+		if( off )
+			this.cut.add( name );
+		else
+			this.cut.remove( name );
+	}
+
+	/**
+	 * Sets the time each message takes.
+	 *
+	 * @param latency the latency (in ms)
+	 */
+	public void setLatency( long latency )
+	{
+		this.latency = latency;
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftTransport#requestVote(java.lang.String, long, java.lang.String, long, long)
+	 */
+	@Override
+	public long[] requestVote( String to, long term, String candidate, long lastIndex, long lastTerm ) throws RemoteException {
+		return reach( candidate, to ).onRequestVote( term, candidate, lastIndex, lastTerm );
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftTransport#appendEntries(java.lang.String, long, java.lang.String, long, long, java.util.List, long)
+	 */
+	@Override
+	public long[] appendEntries( String to, long term, String leader, long prevIndex, long prevTerm, List<RaftEntry> entries, long commitIndex ) throws RemoteException {
+		return reach( leader, to ).onAppendEntries( term, leader, prevIndex, prevTerm, entries, commitIndex );
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftTransport#installSnapshot(java.lang.String, long, java.lang.String, long, long, long, byte[], boolean)
+	 */
+	@Override
+	public long[] installSnapshot( String to, long term, String leader, long index, long lastTerm, long offset, byte[] data, boolean done ) throws RemoteException {
+		return reach( leader, to ).onInstallSnapshot( term, leader, index, lastTerm, offset, data, done );
+	}
+
+	/**
+	 * Gets the receiving member, after the latency.
+	 */
+	private RaftNode reach( String from, String to ) throws RemoteException
+	{
+		RaftNode ret = this.nodes.get( to );
+		if( ret == null || this.cut.contains( from ) || this.cut.contains( to ) )
+			throw new ConnectException( "\"" + to + "\" can't be reached from \"" + from + "\"" );
+
+		if( this.latency > 0 )
+		{
+			try {
+				Thread.sleep( this.latency );
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+				throw new ConnectException( "Interrupted" );
+			}
+		}
+		return ret;
+	}
+}
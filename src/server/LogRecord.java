@@ -0,0 +1,277 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * A single change of the server state, as written to the write-ahead log.
+ */
+public class LogRecord {
+
+	/** The kinds of changes. The ordinal is written to the log, so only append new types. */
+	public enum Type { REGISTER, CREATE, ADD_DATE, INVITE, INVITATION, VOTE, FINALIZE }
+	
+	static final Type[] TYPES = Type.values();
+	static final String[] NO_ARGS = new String[0];
+	static final long[] NO_VALUES = new long[0];
+	
+	Type type;
+	
+	/** The name of the user or event that is changed. */
+	String key;
+	String[] args;
+	long[] values;
+	
+	/**
+	 * Instantiates a new log record.
+	 * 
+	 * @param type the type
+	 * @param key the user or event name
+	 * @param args the string arguments
+	 * @param values the numeric arguments
+	 */
+	public LogRecord( Type type, String key, String[] args, long[] values )
+	{
+		this.type = type;
+		this.key = key;
+		this.args = args;
+		this.values = values;
+	}
+	
+	/**
+	 * A user registration was committed.
+	 */
+	public static LogRecord register( String user, String pwd, String server )
+	{ return new LogRecord( Type.REGISTER, user, new String[]{ pwd, server }, NO_VALUES ); }
+	
+	/**
+	 * An event creation was committed.
+	 */
+	public static LogRecord create( String event, String location, int duration, String author )
+	{ return new LogRecord( Type.CREATE, event, new String[]{ location, author }, new long[]{ duration } ); }
+	
+	/**
+	 * An event creation with a voting deadline was committed.
+	 */
+	public static LogRecord create( String event, String location, int duration, String author, long deadline )
+	{ return new LogRecord( Type.CREATE, event, new String[]{ location, author }, new long[]{ duration, deadline } ); }
+	
+	/**
+	 * A date option was added to an event.
+	 */
+	public static LogRecord addDate( String event, Date dt )
+	{ return new LogRecord( Type.ADD_DATE, event, NO_ARGS, new long[]{ dt.getTime() } ); }
+	
+	/**
+	 * A user was invited to an event (the event's side).
+	 */
+	public static LogRecord invite( String event, String user )
+	{ return new LogRecord( Type.INVITE, event, new String[]{ user }, NO_VALUES ); }
+	
+	/**
+	 * A user was invited to an event (the user's side).
+	 */
+	public static LogRecord invitation( String user, String event, String author )
+	{ return new LogRecord( Type.INVITATION, user, new String[]{ event, author }, NO_VALUES ); }
+	
+	/**
+	 * A user voted on an event.
+	 */
+	public static LogRecord vote( String event, String user, Set<Date> dates )
+	{
+		long[] v = new long[ dates.size() ];
+		int i = 0;
+		for( Date d : dates )
+			v[i++] = d.getTime();
+		
+		return new LogRecord( Type.VOTE, event, new String[]{ user }, v );
+	}
+	
+	/**
+	 * Checks if this record changes an event, rather than a user.
+	 *
+	 * @return true, if the key is an event name
+	 */
+	public boolean isEventRecord()
+	{
+		return this.type != Type.REGISTER && this.type != Type.INVITATION;
+	}
+	
+	/**
+	 * An event was finalized.
+	 */
+	public static LogRecord finalizeEvent( String event )
+	{ return new LogRecord( Type.FINALIZE, event, NO_ARGS, NO_VALUES ); }
+	
+	/**
+	 * An event was finalized on the given date.
+	 */
+	public static LogRecord finalizeEvent( String event, Date date )
+	{ return new LogRecord( Type.FINALIZE, event, NO_ARGS, new long[]{ date.getTime() } ); }
+	
+	
+	/**
+	 * Gets the type.
+	 * 
+	 * @return the type
+	 */
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * Gets the name of the user or event that is changed.
+	 * 
+	 * @return the key
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * Gets the string argument at the given index.
+	 * 
+	 * @param i the index
+	 * @return the argument
+	 */
+	public String getArg( int i ) {
+		return args[i];
+	}
+	
+	/**
+	 * Gets the numeric arguments.
+	 * 
+	 * @return the values
+	 */
+	public long[] getValues() {
+		return values;
+	}
+	
+	/**
+	 * Gets the numeric arguments as dates.
+	 * 
+	 * @return the dates
+	 */
+	public Set<Date> getDates() {
+		Set<Date> ret = new TreeSet<Date>();
+		for( long v : this.values )
+			ret.add( new Date( v ) );
+		return ret;
+	}
+	
+	/**
+	 * Encodes this record.
+	 * 
+	 * @return the encoded record
+	 */
+	public byte[] encode()
+	{
+		ByteArrayOutputStream bos = new ByteArrayOutputStream( 64 );
+		DataOutputStream out = new DataOutputStream( bos );
+		
+		try {
+			out.writeByte( this.type.ordinal() );
+			out.writeUTF( this.key );
+			out.writeByte( this.args.length );
+			for( String arg : this.args )
+				out.writeUTF( arg );
+			out.writeInt( this.values.length );
+			for( long v : this.values )
+				out.writeLong( v );
+		} catch( IOException ioex ) {
+			//Cannot happen for byte arrays
+			throw new IllegalStateException( ioex );
+		}
+		
+		return bos.toByteArray();
+	}
+	
+	/**
+	 * Decodes a record.
+	 * 
+	 * @param data the encoded record
+	 * @return the record
+	 * @throws IOException if the data is no valid record
+	 */
+	public static LogRecord decode( byte[] data ) throws IOException
+	{
+		//Parsed by hand, as this is the hot loop when recovering
+		try {
+			int pos = 0;
+			
+			int t = data[pos++] & 0xff;
+			if( t >= TYPES.length )
+				throw new IOException( "Unknown record type " + t );
+			
+			String key = readUTF( data, pos );
+			pos += 2 + ((data[pos] & 0xff) << 8 | (data[pos+1] & 0xff));
+			
+			String[] args = new String[ data[pos++] & 0xff ];
+			for( int i=0 ; i < args.length ; i++ )
+			{
+				args[i] = readUTF( data, pos );
+				pos += 2 + ((data[pos] & 0xff) << 8 | (data[pos+1] & 0xff));
+			}
+			
+			long[] values = new long[ readInt( data, pos ) ];
+			pos += 4;
+			for( int i=0 ; i < values.length ; i++ )
+			{
+				values[i] = ((long)readInt( data, pos ) << 32) | (readInt( data, pos + 4 ) & 0xffffffffL);
+				pos += 8;
+			}
+			
+			return new LogRecord( TYPES[t], key, args, values );
+		} catch( ArrayIndexOutOfBoundsException aioobex ) {
+			throw new IOException( "Truncated record" );
+		} catch( NegativeArraySizeException nasex ) {
+			throw new IOException( "Damaged record" );
+		}
+	}
+	
+	/**
+	 * Reads a string as written by {@link DataOutputStream#writeUTF(String)}.
+	 */
+	static String readUTF( byte[] data, int pos ) throws IOException
+	{
+		int len = (data[pos] & 0xff) << 8 | (data[pos+1] & 0xff);
+		
+		//Plain ASCII is stored as is
+		boolean ascii = true;
+		for( int i=pos+2 ; i < pos+2+len && ascii ; i++ )
+			ascii = data[i] >= 0;
+		
+		if( ascii )
+		{
+			char[] c = new char[len];
+			for( int i=0 ; i < len ; i++ )
+				c[i] = (char)data[pos+2+i];
+			return new String( c );
+		}
+		
+		return new DataInputStream( new ByteArrayInputStream( data, pos, len + 2 ) ).readUTF();
+	}
+	
+	/**
+	 * Reads a big-endian int.
+	 */
+	static int readInt( byte[] data, int pos )
+	{
+		return (data[pos] & 0xff) << 24 | (data[pos+1] & 0xff) << 16 | (data[pos+2] & 0xff) << 8 | (data[pos+3] & 0xff);
+	}
+	
+	/**
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.type + " \"" + this.key + "\"";
+	}
+}
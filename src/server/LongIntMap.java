@@ -0,0 +1,119 @@
+package server;
+
+import java.util.Arrays;
+
+
+/**
+ * Map from long keys to int values without boxing, using open addressing
+ * with linear probing. Not thread-safe. Entries can't be removed.
+ */
+public class LongIntMap {
+
+	/** Marks an empty slot, so this key can't be stored. */
+	static final long EMPTY = Long.MIN_VALUE;
+
+	long[] keys;
+	int[] values;
+	int size;
+
+	/**
+	 * Instantiates a new map.
+	 *
+	 * @param capacity the expected number of entries
+	 */
+	public LongIntMap( int capacity )
+	{
+		int slots = Integer.highestOneBit( Math.max( 4, capacity * 2 - 1 ) ) << 1;
+
+		this.keys = new long[slots];
+		this.values = new int[slots];
+		Arrays.fill( this.keys, EMPTY );
+	}
+
+	/**
+	 * Gets the value of the given key.
+	 *
+	 * @param key the key
+	 * @param def the value returned for missing keys
+	 * @return the value
+	 */
+	public int get( long key, int def )
+	{
+		int mask = this.keys.length - 1;
+
+		for( int i = slot( key, mask ) ; this.keys[i] != EMPTY ; i = (i + 1) & mask )
+		{
+			if( this.keys[i] == key )
+				return this.values[i];
+		}
+
+		return def;
+	}
+
+	/**
+	 * Sets the value of the given key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put( long key, int value )
+	{
+		if( key == EMPTY )
+			throw new IllegalArgumentException( "Key " + key + " can't be stored" );
+
+		if( (this.size + 1) * 2 > this.keys.length )
+			grow();
+
+		int mask = this.keys.length - 1;
+		int i = slot( key, mask );
+
+		while( this.keys[i] != EMPTY && this.keys[i] != key )
+			i = (i + 1) & mask;
+
+		if( this.keys[i] == EMPTY )
+		{
+			this.keys[i] = key;
+			this.size++;
+		}
+		this.values[i] = value;
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the size
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Doubles the number of slots.
+	 */
+	private void grow()
+	{
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+
+		this.keys = new long[oldKeys.length * 2];
+		this.values = new int[oldValues.length * 2];
+		this.size = 0;
+		Arrays.fill( this.keys, EMPTY );
+
+		for( int i=0 ; i < oldKeys.length ; i++ )
+		{
+			if( oldKeys[i] != EMPTY )
+				put( oldKeys[i], oldValues[i] );
+		}
+	}
+
+	/**
+	 * Gets the first slot to probe for the given key.
+	 */
+	private static int slot( long key, int mask )
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+}
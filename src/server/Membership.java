@@ -0,0 +1,528 @@
+package server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import remote.IDistributor;
+import remote.IRemoteServer;
+import remote.MemberView;
+
+/**
+ * Keeps track of which other servers are alive. Each server announces
+ * itself to the others once it is bound, and from then on sends them a
+ * heartbeat at a fixed interval. A phi accrual failure detector per server
+ * turns the time since its last heartbeat into a suspicion level, which
+ * marks the server as suspected and, later, as down. Servers that are down
+ * are removed from the server's peers until they are heard from again.
+ * <p>
+ * Servers may also join and leave the network at any time. Such changes
+ * of the view are decided in the metadata log, so two servers making a
+ * change at the same time can't both install a view with the same epoch,
+ * and then sent to all members. Heartbeats carry the sender's epoch, so
+ * members that missed a view fetch it from a member that has it. A server
+ * being down doesn't change the view, only leaving does.
+ */
+public class Membership extends TimerTask {
+
+	protected static final Logger logger = Logger.getLogger( Membership.class.getName() );
+
+	/** What is known about another server. */
+	public enum State { ALIVE, SUSPECT, DOWN }
+
+	/** How many times a change of the view is made again after losing to another one. */
+	static final int MAX_CHANGES = 5;
+
+	/**
+	 * Another server of the network.
+	 */
+	class Member {
+		final String name;
+		IRemoteServer stub;
+		long incarnation = -1;
+		PhiAccrualDetector detector;
+		State state = State.DOWN;
+		boolean sending;
+
+		Member( String name ) {
+			this.name = name;
+		}
+	}
+
+	Server server;
+	long interval;
+	int window;
+	long minStdDev;
+	double suspectPhi;
+	double downPhi;
+
+	ConcurrentHashMap<String, Member> members;
+	final Object viewLock = new Object();
+	Timer timer;
+	IRemoteServer self;
+	long incarnation;
+
+	/**
+	 * Instantiates a new membership.
+	 *
+	 * @param server the server
+	 * @param interval the time (in ms) between two heartbeats to each server
+	 * @param window the number of latest heartbeat intervals the failure detector learns from
+	 * @param minStdDev the minimum standard deviation (in ms) of the heartbeat intervals
+	 * @param suspectPhi the suspicion level at which a server is suspected
+	 * @param downPhi the suspicion level at which a server is considered down
+	 */
+	public Membership( Server server, long interval, int window, long minStdDev, double suspectPhi, double downPhi )
+	{
+		this.server = server;
+		this.interval = Math.max( 1, interval );
+		this.window = window;
+		this.minStdDev = minStdDev;
+		this.suspectPhi = suspectPhi;
+		this.downPhi = Math.max( suspectPhi, downPhi );
+		this.members = new ConcurrentHashMap<String, Member>();
+
+		for( String name : server.getView().getMembers() )
+		{
+			if( !name.equals( server.getName() ) )
+				this.members.put( name, new Member( name ) );
+		}
+	}
+
+	/**
+	 * Announces this server to the other servers already bound and starts
+	 * sending heartbeats. Must be called after this server is bound, so
+	 * servers starting at the same time see at least each other's announcement.
+	 *
+	 * @throws RemoteException if this server's remote interface couldn't be exported
+	 */
+	public void start() throws RemoteException
+	{
+		this.self = this.server.getRemoteServer();
+		if( this.self == null )
+			throw new RemoteException( "The remote server is not exported" );
+		this.incarnation = System.currentTimeMillis();
+
+		for( final Member m : this.members.values() )
+		{
+			this.server.getExecutor().submit( new Runnable() {
+				@Override
+				public void run() {
+					announce( m );
+				}
+			});
+		}
+
+		this.timer = new Timer( "membership", true );
+		this.timer.schedule( this, this.interval, this.interval );
+	}
+
+	/**
+	 * Leaves the network, so the other servers take over the users and
+	 * events of this server. A server that just stops is only considered down.
+	 */
+	public void leave()
+	{
+		if( this.self == null || this.server.getView().getMembers().size() < 2 )
+			return;
+
+		//A heartbeat reaching a member that already dropped this server would make it join again
+		stop();
+		try {
+			change( this.server.getName(), null, false );
+		} catch( RemoteException rex ) {
+			logger.warning( "Couldn't leave the network: " + rex.getMessage() );
+		}
+	}
+
+	/**
+	 * Stop sending heartbeats.
+	 */
+	public void stop()
+	{
+		if( this.timer != null )
+			this.timer.cancel();
+	}
+
+	/**
+	 * Looks up the given server once and announces this server to it. If it
+	 * isn't bound yet, it announces itself when it starts.
+	 */
+	private void announce( Member m )
+	{
+		try {
+			IDistributor d = (IDistributor)this.server.getRegistry().lookup( m.name );
+			join( m, d.getRemoteServer() );
+		} catch( NotBoundException nbex ) {
+			logger.fine( "\"" + m.name + "\" is not bound yet, it will announce itself" );
+		} catch( RemoteException rex ) {
+			logger.fine( "Couldn't announce to \"" + m.name + "\": " + rex.getMessage() );
+		}
+	}
+
+	/**
+	 * Announces this server to the given server and, if it accepted, marks it as alive.
+	 */
+	private void join( Member m, IRemoteServer stub ) throws RemoteException
+	{
+		if( stub.join( this.server.getName(), this.self, this.incarnation, this.server.getView().getEpoch() ) )
+			accept( m.name, stub, -1 );
+		else
+			logger.warning( "\"" + m.name + "\" doesn't know \"" + this.server.getName() + "\", check the server names" );
+	}
+
+	/**
+	 * Called when another server announces itself. A server that is not
+	 * part of the view yet is added to it first. If the server has a newer
+	 * view, it is fetched first, as the server may only announce itself
+	 * because it learned about this one.
+	 *
+	 * @param name the server name
+	 * @param stub the server's remote interface
+	 * @param incarnation the time the server was started, -1 if unknown
+	 * @param epoch the epoch of the server's view
+	 * @return false, if the server has this server's name
+	 * @throws RemoteException if the server couldn't be added to the view
+	 */
+	public boolean onJoin( String name, IRemoteServer stub, long incarnation, long epoch ) throws RemoteException
+	{
+		if( name.equals( this.server.getName() ) )
+			return false;
+
+		if( epoch > this.server.getView().getEpoch() )
+			onView( stub.getView() );
+
+		if( !this.server.getView().contains( name ) )
+			change( name, stub, true );
+
+		return accept( name, stub, incarnation );
+	}
+
+	/**
+	 * Marks the given member as alive, with the given remote interface.
+	 *
+	 * @return false, if it is not a member
+	 */
+	private boolean accept( String name, IRemoteServer stub, long incarnation )
+	{
+		Member m = this.members.get( name );
+		if( m == null )
+			return false;
+
+		synchronized( m ) {
+			m.stub = stub;
+			heard( m, incarnation, System.currentTimeMillis() );
+
+			//A server that restarted quickly may still be alive here, with its old interface
+			if( this.members.get( name ) == m )
+				this.server.addServer( name, stub );
+		}
+		this.server.getMetrics().counter( "membership.joined" ).incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Called when another server sends a heartbeat.
+	 *
+	 * @param from the server name
+	 * @param incarnation the time the server was started
+	 * @param epoch the epoch of the sender's view
+	 * @return false, if the sender should announce itself again
+	 */
+	public boolean onHeartbeat( String from, long incarnation, long epoch )
+	{
+		Member m = this.members.get( from );
+		if( m == null )
+			return false;
+
+		final IRemoteServer stub;
+		synchronized( m ) {
+			//A server that restarted has a new interface, which it sends when announcing itself
+			if( m.stub == null || (m.incarnation >= 0 && incarnation != m.incarnation) )
+				return false;
+			heard( m, incarnation, System.currentTimeMillis() );
+			stub = m.stub;
+		}
+
+		//This server missed a change of the view, fetch it
+		if( epoch > this.server.getView().getEpoch() )
+		{
+			this.server.getExecutor().submit( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						onView( stub.getView() );
+					} catch( RemoteException rex ) {
+						logger.fine( "Couldn't fetch the view: " + rex.getMessage() );
+					}
+				}
+			});
+		}
+		return true;
+	}
+
+	/**
+	 * Called when another server sends a new view.
+	 *
+	 * @param v the view
+	 */
+	public void onView( MemberView v )
+	{
+		synchronized( this.viewLock ) {
+			install( v );
+		}
+	}
+
+	/**
+	 * Adds the given server to the view or removes it, through the metadata
+	 * log, and sends the new view to all members, a joining server last, so
+	 * the others already know it when it starts catching up. If another
+	 * server changed the view at the same time and came first, the change
+	 * is made again on top of that view.
+	 */
+	private void change( String name, IRemoteServer stub, boolean add ) throws RemoteException
+	{
+		for( int i=0 ; i < MAX_CHANGES ; i++ )
+		{
+			MemberView cur = this.server.getView();
+			if( cur.contains( name ) == add )
+				return;
+
+			MemberView v = add ? cur.with( name ) : cur.without( name );
+			if( !this.server.getMetadata().proposeView( v ) )
+			{
+				logger.info( "Another change came first, changing " + cur + " again" );
+				continue;
+			}
+
+			List<String> first = new ArrayList<String>();
+			for( String member : v.getMembers() )
+			{
+				if( !member.equals( name ) && !member.equals( this.server.getName() ) )
+					first.add( member );
+			}
+			publish( v, first, null );
+			if( add )
+				publish( v, Collections.singletonList( name ), stub );
+			return;
+		}
+		throw new RemoteException( "The view of the network keeps changing, please try again later." );
+	}
+
+	/**
+	 * Makes the given view the current one, if it is newer, and starts or
+	 * stops watching the servers that joined or left. Must hold the view lock.
+	 */
+	private void install( MemberView v )
+	{
+		if( !this.server.setView( v ) )
+			return;
+
+		logger.info( "The view is now " + v );
+		this.server.getMetrics().counter( "membership.views" ).incrementAndGet();
+
+		for( Iterator<String> it = this.members.keySet().iterator() ; it.hasNext() ; )
+		{
+			if( !v.contains( it.next() ) )
+				it.remove();
+		}
+
+		for( String name : v.getMembers() )
+		{
+			if( name.equals( this.server.getName() ) || this.members.containsKey( name ) )
+				continue;
+
+			final Member m = new Member( name );
+			this.members.put( name, m );
+			if( this.self != null )
+			{
+				this.server.getExecutor().submit( new Runnable() {
+					@Override
+					public void run() {
+						announce( m );
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Sends the given view to the given servers at the same time, and waits
+	 * for them to answer. Servers that miss it fetch it after the next heartbeat.
+	 */
+	private void publish( final MemberView v, List<String> targets, IRemoteServer stub )
+	{
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for( final String name : targets )
+		{
+			final IRemoteServer target = stub != null ? stub : this.server.getServer( name );
+			if( target == null )
+				continue;
+
+			pending.add( this.server.getExecutor().submit( new Callable<Void>() {
+				@Override
+				public Void call() throws RemoteException {
+					target.onView( v );
+					return null;
+				}
+			}));
+		}
+
+		long deadline = System.currentTimeMillis() + this.server.getConfig().getCommitTimeout();
+		for( Future<Void> f : pending )
+		{
+			try {
+				f.get( Math.max( 0, deadline - System.currentTimeMillis() ), TimeUnit.MILLISECONDS );
+			} catch( Exception ex ) {
+				f.cancel( true );
+				logger.fine( "Couldn't send " + v + ": " + ex );
+				if( ex instanceof InterruptedException )
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Feeds the failure detector of the given server and marks it as alive.
+	 * A server that restarted or was down gets a fresh detector, so the long
+	 * silence doesn't spoil what it learned. Must hold the member's lock.
+	 */
+	private void heard( Member m, long incarnation, long now )
+	{
+		if( m.detector == null || m.state == State.DOWN || (incarnation >= 0 && m.incarnation >= 0 && incarnation != m.incarnation) )
+			m.detector = new PhiAccrualDetector( this.window, this.interval, this.minStdDev, now );
+		else
+			m.detector.heartbeat( now );
+		if( incarnation >= 0 )
+			m.incarnation = incarnation;
+
+		if( m.state != State.ALIVE )
+		{
+			logger.info( "\"" + m.name + "\" is alive" );
+			m.state = State.ALIVE;
+			if( this.members.get( m.name ) == m )
+				this.server.addServer( m.name, m.stub );
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.TimerTask#run()
+	 */
+	@Override
+	public void run() {
+		long now = System.currentTimeMillis();
+
+		for( Member m : this.members.values() )
+		{
+			synchronized( m ) {
+				if( m.stub != null && !m.sending )
+				{
+					//Heartbeats bypass the circuit breaker, but use the latest interface
+					PeerConnection c = this.server.getConnections().get( m.name );
+					m.sending = true;
+					send( m, c != null ? c.getStub() : m.stub );
+				}
+
+				if( m.state != State.DOWN )
+					check( m, now );
+			}
+		}
+
+		if( this.server.hasQuorum() )
+			this.server.onQuorum();
+	}
+
+	/**
+	 * Sends a heartbeat to the given server in the background. A server that
+	 * doesn't know this one is announced to again.
+	 */
+	private void send( final Member m, final IRemoteServer stub )
+	{
+		this.server.getExecutor().submit( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if( !stub.heartbeat( server.getName(), incarnation, server.getView().getEpoch() ) )
+						join( m, stub );
+				} catch( RemoteException rex ) {
+					server.getMetrics().counter( "membership.heartbeat.failed" ).incrementAndGet();
+					logger.fine( "Couldn't send heartbeat to \"" + m.name + "\": " + rex.getMessage() );
+				} finally {
+					synchronized( m ) {
+						m.sending = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Updates the state of the given server from its suspicion level. Must
+	 * hold the member's lock.
+	 */
+	private void check( Member m, long now )
+	{
+		double phi = m.detector.phi( now );
+
+		if( phi >= this.downPhi )
+		{
+			logger.warning( "\"" + m.name + "\" is down, no heartbeat for " + (now - m.detector.getLast()) + " ms" );
+			m.state = State.DOWN;
+			this.server.removeServer( m.name );
+			this.server.getMetrics().counter( "membership.down" ).incrementAndGet();
+		}
+		else if( phi >= this.suspectPhi && m.state == State.ALIVE )
+		{
+			logger.info( "\"" + m.name + "\" is suspected, no heartbeat for " + (now - m.detector.getLast()) + " ms" );
+			m.state = State.SUSPECT;
+			this.server.getMetrics().counter( "membership.suspected" ).incrementAndGet();
+		}
+		else if( phi < this.suspectPhi && m.state == State.SUSPECT )
+			m.state = State.ALIVE;
+	}
+
+	/**
+	 * Gets the state of the given server.
+	 *
+	 * @param name the server name
+	 * @return the state, or null if it is not one of the other servers
+	 */
+	public State getState( String name )
+	{
+		Member m = this.members.get( name );
+		if( m == null )
+			return null;
+
+		synchronized( m ) {
+			return m.state;
+		}
+	}
+
+	/**
+	 * Gets the number of other servers that are not down.
+	 *
+	 * @return the number of servers
+	 */
+	public int getAlive()
+	{
+		int ret = 0;
+		for( Member m : this.members.values() )
+		{
+			synchronized( m ) {
+				if( m.state != State.DOWN )
+					ret++;
+			}
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,591 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import remote.IRemoteServer;
+import remote.MemberView;
+import remote.RaftEntry;
+import entities.Event;
+import entities.User;
+
+
+/**
+ * The metadata of the network, kept in a log replicated to all servers:
+ * which user registered at which server, and which user created which
+ * event. Registrations and creations arriving at the same time are
+ * proposed together as one entry. Every server applies the entries in the
+ * same order, and the first registration or creation of a name wins, so
+ * a majority of the servers is enough to decide, and a slow or down
+ * server doesn't hold up the others.
+ * <p>
+ * Names once taken are never given back, so a name found here is always
+ * up to date. Names not found here are looked up at the leader, which can
+ * answer from its own state while it holds its lease.
+ * <p>
+ * Each entry carries the server that proposed it and a number unique at
+ * that server, so the proposer picks up the decisions of its own entries
+ * when it applies them, however many other entries are applied meanwhile.
+ * <p>
+ * Changes of the view go through the log as well. Of the views made with
+ * the same epoch, the first one in the log is installed everywhere and
+ * the others are dropped, so all servers agree on the members.
+ */
+public class Metadata implements RaftNode.Applier, RaftTransport {
+
+	protected static final Logger logger = Logger.getLogger( Metadata.class.getName() );
+
+	/** The kinds of entries. */
+	static final byte RECORDS = 0;
+	static final byte VIEW = 1;
+
+	Server server;
+	RaftNode raft;
+	long timeout;
+	long heartbeat;
+
+	ConcurrentHashMap<String, String> userServers;
+	ConcurrentHashMap<String, String> eventAuthors;
+	ConcurrentHashMap<Long, Proposal> proposals;
+	AtomicLong proposalIds;
+	MemberView view;
+
+	/**
+	 * Instantiates the metadata of the given server.
+	 *
+	 * @param server the server
+	 * @param dir the directory keeping the term, the vote and the log
+	 */
+	public Metadata( Server server, File dir )
+	{
+		this.server = server;
+		this.timeout = server.getConfig().getCommitTimeout();
+		this.heartbeat = server.getConfig().getRaftHeartbeat();
+		this.userServers = new ConcurrentHashMap<String, String>();
+		this.eventAuthors = new ConcurrentHashMap<String, String>();
+		this.proposals = new ConcurrentHashMap<Long, Proposal>();
+		//Entries proposed before a restart may still be applied after it, so
+		//the numbers must not start over
+		this.proposalIds = new AtomicLong( System.currentTimeMillis() << 20 );
+		this.view = server.getView();
+		this.raft = new RaftNode( server.getName(), server.getView().getMembers(), this, this, server.getExecutor(),
+									server.getConfig().getRaftElectionTimeout(), this.heartbeat,
+									server.getConfig().getRaftBatch(), dir, server.getConfig().getRaftSnapshotEntries(),
+									server.getConfig().getTransferChunkSize() );
+	}
+
+	/**
+	 * Starts taking part in the replicated log. The users and events
+	 * recovered by this server are known right away, before the entries
+	 * after the snapshot are committed again.
+	 *
+	 * @throws IOException if the term, the vote or the log couldn't be read
+	 */
+	public void start() throws IOException
+	{
+		for( User u : this.server.getUsers().values() )
+		{
+			if( u.isCommitted() )
+				this.userServers.putIfAbsent( u.getName(), u.getServer() );
+		}
+		for( Event e : this.server.getEvents().values() )
+		{
+			if( e.isCommitted() )
+				this.eventAuthors.putIfAbsent( e.getName(), e.getAuthor() );
+		}
+
+		this.raft.start();
+	}
+
+	/**
+	 * Stops taking part in the replicated log.
+	 */
+	public void stop()
+	{
+		this.raft.stop();
+	}
+
+	/**
+	 * Replaces the servers keeping the log.
+	 *
+	 * @param members the server names
+	 */
+	public void setMembers( Collection<String> members )
+	{
+		this.raft.setMembers( members );
+	}
+
+	/**
+	 * Proposes the given registrations and creations, made at this server,
+	 * as one entry, and waits until it is applied here. An entry that lost
+	 * its place in the log to another one is proposed again.
+	 *
+	 * @param records the registrations and creations
+	 * @return for each record, true if it took its name
+	 * @throws RemoteException if there is no leader, or it isn't known in time whether the entry was committed
+	 */
+	public boolean[] propose( List<LogRecord> records ) throws RemoteException
+	{
+		List<byte[]> encoded = new ArrayList<byte[]>( records.size() );
+		for( LogRecord r : records )
+			encoded.add( r.encode() );
+
+		long id = this.proposalIds.incrementAndGet();
+		return decide( id, encode( this.server.getName(), id, encoded ), records.size() + " registrations and creations" );
+	}
+
+	/**
+	 * Proposes the given view, made at this server from its current one, and
+	 * waits until it is applied here. The first view of an epoch in the log
+	 * wins, so of two servers changing the view at the same time, one has to
+	 * make its change again on top of the other's.
+	 *
+	 * @param v the view
+	 * @return true, if it was the first view of its epoch
+	 * @throws RemoteException if there is no leader, or it isn't known in time whether the entry was committed
+	 */
+	public boolean proposeView( MemberView v ) throws RemoteException
+	{
+		long id = this.proposalIds.incrementAndGet();
+		return decide( id, encode( this.server.getName(), id, v ), "the view " + v )[0];
+	}
+
+	/**
+	 * Proposes the given entry until it keeps its place in the log, and
+	 * gets the decisions this server made when applying it.
+	 */
+	private boolean[] decide( long id, byte[] entry, String what ) throws RemoteException
+	{
+		Proposal p = new Proposal();
+		this.proposals.put( id, p );
+
+		try {
+			long deadline = System.currentTimeMillis() + this.timeout;
+			while( true )
+			{
+				long[] t = append( entry, deadline );
+
+				//The entry is decided once this server applies it. Whether it
+				//lost its place is asked first, as it may be compacted meanwhile.
+				this.raft.awaitApplied( t[0], t[1], Math.max( 0, deadline - System.currentTimeMillis() ) );
+				boolean replaced = this.raft.isReplaced( t[0], t[1] );
+				if( p.taken != null )
+					return p.taken;
+
+				if( !replaced )
+					throw new RemoteException( "It's not known yet whether " + what + " got committed, please try again later." );
+				if( System.currentTimeMillis() >= deadline )
+					throw new RemoteException( "Couldn't commit " + what + " in time, please try again later." );
+				logger.info( "Entry " + t[0] + " of term " + t[1] + " was replaced, proposing it again" );
+			}
+		} catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException( "The server was interrupted while committing" );
+		} finally {
+			this.proposals.remove( id );
+		}
+	}
+
+	/**
+	 * Appends an entry made at another server, at the leader.
+	 *
+	 * @param entry the encoded entry
+	 * @return the index and term of the entry
+	 * @throws RemoteException if there is no leader, or it couldn't be reached
+	 */
+	public long[] append( byte[] entry ) throws RemoteException
+	{
+		return append( entry, System.currentTimeMillis() + this.timeout );
+	}
+
+	/**
+	 * Appends an entry at the leader, waiting until the given time for one
+	 * to be elected.
+	 */
+	private long[] append( byte[] entry, long deadline ) throws RemoteException
+	{
+		while( true )
+		{
+			long[] t = this.raft.propose( entry );
+			if( t != null )
+				return t;
+
+			String leader = this.raft.getLeader();
+			if( leader != null && !leader.equals( this.server.getName() ) )
+			{
+				IRemoteServer l = this.server.getServer( leader );
+				if( l != null )
+					return l.proposeMetadata( entry );
+			}
+
+			//Wait for an election to finish
+			if( System.currentTimeMillis() >= deadline )
+				throw new RemoteException( "The metadata log has no leader, please try again later." );
+			try {
+				Thread.sleep( this.heartbeat );
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException( "The server was interrupted while committing" );
+			}
+		}
+	}
+
+	/**
+	 * Finds the server the given user registered at.
+	 *
+	 * @param name the user name
+	 * @return the server name, or null if there is no such user
+	 * @throws RemoteException if the leader couldn't be asked
+	 */
+	public String findUserServer( String name ) throws RemoteException
+	{
+		return find( true, name );
+	}
+
+	/**
+	 * Finds the user who created the given event.
+	 *
+	 * @param name the event name
+	 * @return the user name, or null if there is no such event
+	 * @throws RemoteException if the leader couldn't be asked
+	 */
+	public String findEventAuthor( String name ) throws RemoteException
+	{
+		return find( false, name );
+	}
+
+	/**
+	 * Looks up a user or event here, or at the leader if it isn't known here.
+	 */
+	private String find( boolean user, String name ) throws RemoteException
+	{
+		String ret = (user ? this.userServers : this.eventAuthors).get( name );
+		if( ret != null )
+			return ret;
+
+		String leader = this.raft.getLeader();
+		if( this.server.getName().equals( leader ) )
+			return onLookup( user, name );
+
+		IRemoteServer l = leader != null ? this.server.getServer( leader ) : null;
+		if( l == null )
+			throw new RemoteException( "The metadata log has no leader, please try again later." );
+		return l.lookupMetadata( user, name );
+	}
+
+	/**
+	 * Looks up a user or event, as the leader.
+	 *
+	 * @param user true for users, false for events
+	 * @param name the name
+	 * @return the server of the user or the author of the event, or null if there is none
+	 * @throws RemoteException if this server is not the leader or has no lease
+	 */
+	public String onLookup( boolean user, String name ) throws RemoteException
+	{
+		try {
+			if( !this.raft.awaitLeaseRead( this.timeout ) )
+				throw new RemoteException( "\"" + this.server.getName() + "\" can't answer for the metadata log right now" );
+		} catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException( "The server was interrupted while looking up \"" + name + "\"" );
+		}
+
+		return (user ? this.userServers : this.eventAuthors).get( name );
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftNode.Applier#apply(long, byte[])
+	 */
+	@Override
+	public void apply( long index, byte[] data ) {
+		String origin;
+		long id;
+		MemberView v = null;
+		List<LogRecord> records = new ArrayList<LogRecord>();
+
+		try {
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+			byte kind = in.readByte();
+			origin = in.readUTF();
+			id = in.readLong();
+			if( kind == VIEW )
+				v = readView( in );
+			else
+			{
+				int count = in.readInt();
+				for( int i=0 ; i < count ; i++ )
+				{
+					byte[] r = new byte[ in.readInt() ];
+					in.readFully( r );
+					records.add( LogRecord.decode( r ) );
+				}
+			}
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't read metadata entry " + index + ": " + ioex.getMessage() );
+			return;
+		}
+
+		boolean[] taken = v != null ? new boolean[]{ install( v ) } : take( origin, records );
+
+		//Only the first copy of an entry proposed twice decides
+		Proposal p = origin.equals( this.server.getName() ) ? this.proposals.get( id ) : null;
+		if( p != null && p.taken == null )
+			p.taken = taken;
+	}
+
+	/**
+	 * Applies the given registrations and creations, the first of each
+	 * name taking it.
+	 */
+	private boolean[] take( String origin, List<LogRecord> records )
+	{
+		boolean[] taken = new boolean[ records.size() ];
+		for( int i=0 ; i < taken.length ; i++ )
+		{
+			LogRecord r = records.get( i );
+			String name = r.getKey();
+
+			if( r.getType() == LogRecord.Type.REGISTER )
+			{
+				taken[i] = this.userServers.putIfAbsent( name, r.getArg( 1 ) ) == null;
+				if( !taken[i] )
+					continue;
+
+				this.server.getUserFilter().add( name );
+				User u = this.server.getUsers().get( name );
+				if( (u == null || !u.isCommitted())
+						&& (origin.equals( this.server.getName() ) || this.server.getUserOwners( name ).contains( this.server.getName() )) )
+					hold( r );
+			}
+			else if( r.getType() == LogRecord.Type.CREATE )
+			{
+				taken[i] = this.eventAuthors.putIfAbsent( name, r.getArg( 1 ) ) == null;
+				if( !taken[i] )
+					continue;
+
+				this.server.getEventFilter().add( name );
+				Event e = this.server.getEvents().get( name );
+				if( (e == null || !e.isCommitted())
+						&& (origin.equals( this.server.getName() ) || this.server.getEventOwners( name ).contains( this.server.getName() )) )
+					hold( r );
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * Installs the given view, if it is the first one of its epoch in the log.
+	 */
+	private boolean install( MemberView v )
+	{
+		if( v.getEpoch() <= this.view.getEpoch() )
+			return false;
+
+		this.view = v;
+		this.server.getMembership().onView( v );
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftNode.Applier#snapshot()
+	 */
+	@Override
+	public byte[] snapshot() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( bytes );
+			for( Map<String, String> names : Arrays.asList( this.userServers, this.eventAuthors ) )
+			{
+				out.writeInt( names.size() );
+				for( Map.Entry<String, String> n : names.entrySet() )
+				{
+					out.writeUTF( n.getKey() );
+					out.writeUTF( n.getValue() );
+				}
+			}
+			writeView( out, this.view );
+			out.flush();
+			return bytes.toByteArray();
+		} catch( IOException ioex ) {
+			throw new IllegalStateException( ioex );
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftNode.Applier#restore(byte[])
+	 */
+	@Override
+	public void restore( byte[] data ) {
+		try {
+			DataInputStream in = new DataInputStream( new ByteArrayInputStream( data ) );
+			for( int count = in.readInt() ; count > 0 ; count-- )
+			{
+				String name = in.readUTF();
+				this.userServers.putIfAbsent( name, in.readUTF() );
+				this.server.getUserFilter().add( name );
+			}
+			for( int count = in.readInt() ; count > 0 ; count-- )
+			{
+				String name = in.readUTF();
+				this.eventAuthors.putIfAbsent( name, in.readUTF() );
+				this.server.getEventFilter().add( name );
+			}
+			install( readView( in ) );
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't restore the metadata snapshot: " + ioex.getMessage() );
+			return;
+		}
+
+		//The snapshot only names the users and events of the entries it
+		//replaced, those held here come from the other servers
+		if( this.server.isReady() )
+			this.server.retryCatchUp();
+	}
+
+	/**
+	 * Applies the given registration or creation to the state of this
+	 * server, which holds the user or event.
+	 */
+	private void hold( LogRecord r )
+	{
+		try {
+			this.server.apply( r );
+		} catch( RemoteException rex ) {
+			logger.severe( "Couldn't apply " + r + ": " + rex.getMessage() );
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftTransport#requestVote(java.lang.String, long, java.lang.String, long, long)
+	 */
+	@Override
+	public long[] requestVote( String to, long term, String candidate, long lastIndex, long lastTerm ) throws RemoteException {
+		return reach( to ).requestVote( term, candidate, lastIndex, lastTerm );
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftTransport#appendEntries(java.lang.String, long, java.lang.String, long, long, java.util.List, long)
+	 */
+	@Override
+	public long[] appendEntries( String to, long term, String leader, long prevIndex, long prevTerm, List<RaftEntry> entries, long commitIndex ) throws RemoteException {
+		return reach( to ).appendEntries( term, leader, prevIndex, prevTerm, entries, commitIndex );
+	}
+
+	/* (non-Javadoc)
+	 * @see server.RaftTransport#installSnapshot(java.lang.String, long, java.lang.String, long, long, long, byte[], boolean)
+	 */
+	@Override
+	public long[] installSnapshot( String to, long term, String leader, long index, long lastTerm, long offset, byte[] data, boolean done ) throws RemoteException {
+		return reach( to ).installSnapshot( term, leader, index, lastTerm, offset, data, done );
+	}
+
+	/**
+	 * Gets the given server, if it is alive.
+	 */
+	private IRemoteServer reach( String name ) throws RemoteException
+	{
+		IRemoteServer ret = this.server.getServer( name );
+		if( ret == null )
+			throw new RemoteException( "\"" + name + "\" is not available" );
+		return ret;
+	}
+
+	/**
+	 * Encodes the records of an entry.
+	 */
+	static byte[] encode( String origin, long id, List<byte[]> records )
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( bytes );
+			out.writeByte( RECORDS );
+			out.writeUTF( origin );
+			out.writeLong( id );
+			out.writeInt( records.size() );
+			for( byte[] r : records )
+			{
+				out.writeInt( r.length );
+				out.write( r );
+			}
+			out.flush();
+			return bytes.toByteArray();
+		} catch( IOException ioex ) {
+			throw new IllegalStateException( ioex );
+		}
+	}
+
+	/**
+	 * Encodes a view as an entry.
+	 */
+	static byte[] encode( String origin, long id, MemberView v )
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream( bytes );
+			out.writeByte( VIEW );
+			out.writeUTF( origin );
+			out.writeLong( id );
+			writeView( out, v );
+			out.flush();
+			return bytes.toByteArray();
+		} catch( IOException ioex ) {
+			throw new IllegalStateException( ioex );
+		}
+	}
+
+	/**
+	 * Writes the epoch and the members of a view.
+	 */
+	static void writeView( DataOutputStream out, MemberView v ) throws IOException
+	{
+		out.writeLong( v.getEpoch() );
+		out.writeInt( v.getMembers().size() );
+		for( String name : v.getMembers() )
+			out.writeUTF( name );
+	}
+
+	/**
+	 * Reads a view written by writeView.
+	 */
+	static MemberView readView( DataInputStream in ) throws IOException
+	{
+		long epoch = in.readLong();
+		List<String> members = new ArrayList<String>();
+		for( int count = in.readInt() ; count > 0 ; count-- )
+			members.add( in.readUTF() );
+		return new MemberView( epoch, members );
+	}
+
+	/**
+	 * Gets the replicated log.
+	 *
+	 * @return the raft node of this server
+	 */
+	public RaftNode getRaft()
+	{
+		return this.raft;
+	}
+
+
+	/**
+	 * A proposal of this server, waiting for its entry to be applied.
+	 */
+	static class Proposal {
+
+		volatile boolean[] taken;
+	}
+}
@@ -0,0 +1,131 @@
+package server;
+
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+
+/**
+ * Named counters and gauges of a server, logged at a fixed interval.
+ */
+public class Metrics extends TimerTask {
+
+	protected static final Logger logger = Logger.getLogger( Metrics.class.getName() );
+	
+	/**
+	 * A value computed when the metrics are read.
+	 */
+	public interface Gauge {
+		
+		/**
+		 * Gets the current value.
+		 * 
+		 * @return the value
+		 */
+		Object getValue();
+	}
+	
+	ConcurrentHashMap<String, AtomicLong> counters;
+	ConcurrentHashMap<String, Gauge> gauges;
+	Timer timer;
+	
+	/**
+	 * Instantiates new metrics.
+	 */
+	public Metrics()
+	{
+		this.counters = new ConcurrentHashMap<String, AtomicLong>();
+		this.gauges = new ConcurrentHashMap<String, Gauge>();
+	}
+	
+	/**
+	 * Gets the counter with the given name, creating it if necessary.
+	 * 
+	 * @param name the name
+	 * @return the counter
+	 */
+	public AtomicLong counter( String name )
+	{
+		AtomicLong ret = this.counters.get( name );
+		if( ret == null )
+		{
+			AtomicLong prev = this.counters.putIfAbsent( name, ret = new AtomicLong() );
+			if( prev != null )
+				ret = prev;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Registers a gauge under the given name, replacing any gauge of that name.
+	 * 
+	 * @param name the name
+	 * @param gauge the gauge
+	 */
+	public void gauge( String name, Gauge gauge )
+	{
+		this.gauges.put( name, gauge );
+	}
+	
+	/**
+	 * Removes the gauge with the given name.
+	 * 
+	 * @param name the name
+	 */
+	public void removeGauge( String name )
+	{
+		this.gauges.remove( name );
+	}
+	
+	/**
+	 * Reads all counters and gauges.
+	 * 
+	 * @return the values, sorted by name
+	 */
+	public Map<String, String> snapshot()
+	{
+		Map<String, String> ret = new TreeMap<String, String>();
+		
+		for( Map.Entry<String, AtomicLong> e : this.counters.entrySet() )
+			ret.put( e.getKey(), String.valueOf( e.getValue().get() ) );
+		for( Map.Entry<String, Gauge> e : this.gauges.entrySet() )
+			ret.put( e.getKey(), String.valueOf( e.getValue().getValue() ) );
+		
+		return ret;
+	}
+	
+	/**
+	 * Start logging the metrics.
+	 * 
+	 * @param interval the time (in ms) between two log messages, 0 to never log them
+	 */
+	public void start( long interval )
+	{
+		if( interval <= 0 )
+			return;
+		
+		this.timer = new Timer( "metrics", true );
+		this.timer.schedule( this, interval, interval );
+	}
+	
+	/**
+	 * Stop logging the metrics.
+	 */
+	public void stop()
+	{
+		if( this.timer != null )
+			this.timer.cancel();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.TimerTask#run()
+	 */
+	@Override
+	public void run() {
+		logger.info( "Metrics: " + snapshot() );
+	}
+}
@@ -0,0 +1,960 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.MarshalException;
+import java.rmi.RemoteException;
+import java.rmi.ServerError;
+import java.rmi.ServerException;
+import java.rmi.UnknownHostException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import remote.IRemoteServer;
+
+
+/**
+ * Calls between servers over non-blocking sockets, as an alternative to
+ * RMI. The operations are the same as those of {@link IRemoteServer}, sent
+ * as length-prefixed binary {@link Frame}s:
+ * <ul>
+ * <li>a call: its id, the index of the method and the arguments</li>
+ * <li>an answer: the id of the call, 0 for a result or 1 for an exception,
+ * and the result or exception</li>
+ * </ul>
+ * Each server keeps a single connection to each other server, shared by
+ * all calls, which are told apart by their ids. A single thread connects,
+ * reads and writes all connections; received calls are run by a small pool
+ * of workers. Calls made while a connection is being set up wait in its
+ * queue, so no caller holds up the calls to other servers. Frames larger
+ * than the threshold are read into and written from direct buffers, which
+ * are kept in a pool for the next frames.
+ * <p>
+ * Servers still find each other through RMI: the remote interface of a
+ * server tells where it listens, and servers not using this transport
+ * keep being called through RMI.
+ */
+public class NioTransport implements Runnable {
+
+	protected static final Logger logger = Logger.getLogger( NioTransport.class.getName() );
+
+	/** Sent first on every connection, followed by the signature of the methods. */
+	static final int MAGIC = 0x4e494f31;
+
+	/**
+	 * The maximum size of a frame, larger frames aren't sent and close the
+	 * connection when received. Snapshot and state transfer chunks and the
+	 * batches of the metadata log are kept to the transfer chunk size.
+	 */
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	/** The maximum number of bytes kept in unused direct buffers. */
+	static final long MAX_POOLED = 64 * 1024 * 1024;
+
+	/** The maximum number of frames written at once. */
+	static final int MAX_GATHER = 64;
+
+	static final Method[] METHODS;
+	static final Map<Method, Short> IDS;
+	static final int SIGNATURE;
+
+	static {
+		//Both sides number the methods the same way, by their signature
+		List<Method> methods = new ArrayList<Method>( Arrays.asList( IRemoteServer.class.getMethods() ) );
+		Collections.sort( methods, new Comparator<Method>() {
+			@Override
+			public int compare( Method a, Method b ) {
+				return signature( a ).compareTo( signature( b ) );
+			}
+		});
+
+		METHODS = methods.toArray( new Method[ methods.size() ] );
+		IDS = new HashMap<Method, Short>();
+		int sig = 0;
+		for( short i=0 ; i < METHODS.length ; i++ )
+		{
+			IDS.put( METHODS[i], i );
+			sig = 31 * sig + signature( METHODS[i] ).hashCode();
+		}
+		SIGNATURE = sig;
+	}
+
+	String host;
+	int port;
+	int workers;
+	int threshold;
+	long timeout;
+
+	Selector selector;
+	ServerSocketChannel listener;
+	IRemoteServer target;
+	ExecutorService pool;
+	Thread thread;
+	volatile boolean running;
+	String endpoint;
+
+	ConcurrentLinkedQueue<Conn> dirty;
+	ConcurrentHashMap<String, Conn> outgoing;
+	AtomicLong callIds;
+	BufferPool buffers;
+
+	/**
+	 * Instantiates a new transport.
+	 *
+	 * @param host the host other servers reach this one at
+	 * @param port the port to listen on, 0 for any free port
+	 * @param workers the number of threads running received calls
+	 * @param threshold the size (in bytes) from which frames are kept in direct buffers
+	 * @param timeout the maximum time (in ms) to wait for an answer
+	 */
+	public NioTransport( String host, int port, int workers, int threshold, long timeout )
+	{
+		this.host = host;
+		this.port = port;
+		this.workers = Math.max( 1, workers );
+		this.threshold = threshold;
+		this.timeout = timeout;
+		this.dirty = new ConcurrentLinkedQueue<Conn>();
+		this.outgoing = new ConcurrentHashMap<String, Conn>();
+		this.callIds = new AtomicLong();
+		this.buffers = new BufferPool( threshold, MAX_FRAME, MAX_POOLED );
+	}
+
+	/**
+	 * Starts the transport. If a target is given, calls of other servers
+	 * are accepted and run on it.
+	 *
+	 * @param target the remote interface of this server, or null to only make calls
+	 * @throws IOException if the port couldn't be opened
+	 */
+	public void start( IRemoteServer target ) throws IOException
+	{
+		this.selector = Selector.open();
+
+		if( target != null )
+		{
+			this.target = target;
+			this.pool = Executors.newFixedThreadPool( this.workers, new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "nio-worker" );
+					t.setDaemon( true );
+					return t;
+				}
+			});
+
+			this.listener = ServerSocketChannel.open();
+			this.listener.socket().bind( new InetSocketAddress( this.port ) );
+			this.listener.configureBlocking( false );
+			this.listener.register( this.selector, SelectionKey.OP_ACCEPT );
+			this.endpoint = this.host + ":" + this.listener.socket().getLocalPort();
+			logger.info( "Listening for other servers at " + this.endpoint );
+		}
+
+		this.running = true;
+		this.thread = new Thread( this, "nio" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the transport. Calls waiting for an answer fail.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		if( this.selector != null )
+			this.selector.wakeup();
+		if( this.pool != null )
+			this.pool.shutdown();
+	}
+
+	/**
+	 * Gets where this server listens.
+	 *
+	 * @return host and port, or null if it doesn't listen
+	 */
+	public String getEndpoint()
+	{
+		return this.endpoint;
+	}
+
+	/**
+	 * Gets an interface calling the server listening at the given endpoint.
+	 *
+	 * @param endpoint host and port
+	 * @return the interface
+	 */
+	public IRemoteServer connect( final String endpoint )
+	{
+		return (IRemoteServer)Proxy.newProxyInstance( IRemoteServer.class.getClassLoader(),
+				new Class<?>[]{ IRemoteServer.class }, new InvocationHandler() {
+					@Override
+					public Object invoke( Object proxy, Method m, Object[] args ) throws Throwable {
+						if( m.getDeclaringClass() == Object.class )
+						{
+							if( m.getName().equals( "equals" ) )
+								return proxy == args[0];
+							if( m.getName().equals( "hashCode" ) )
+								return System.identityHashCode( proxy );
+							return "nio:" + endpoint;
+						}
+						return call( endpoint, m, args );
+					}
+				});
+	}
+
+	/**
+	 * Gets an interface calling the server with the given RMI interface
+	 * over this transport. Where the server listens is asked on the first
+	 * call; servers not using this transport are called through RMI.
+	 *
+	 * @param stub the RMI interface
+	 * @return the interface
+	 */
+	public IRemoteServer wrap( IRemoteServer stub )
+	{
+		return (IRemoteServer)Proxy.newProxyInstance( IRemoteServer.class.getClassLoader(),
+				new Class<?>[]{ IRemoteServer.class }, new Peer( stub ) );
+	}
+
+	/**
+	 * Calls a server over this transport and waits for the answer.
+	 */
+	private Object call( String endpoint, Method m, Object[] args ) throws Throwable
+	{
+		Conn c = connection( endpoint );
+
+		long id = this.callIds.incrementAndGet();
+		int size = 10;
+		for( int i=0 ; args != null && i < args.length ; i++ )
+			size += Frame.estimate( args[i] );
+		Frame f = new Frame( this.buffers, size );
+		f.putLong( id );
+		f.putShort( IDS.get( m ) );
+		ByteBuffer frame;
+		try {
+			for( int i=0 ; args != null && i < args.length ; i++ )
+				f.putValue( args[i] );
+			frame = finish( f );
+		} catch( IOException ioex ) {
+			throw new MarshalException( "Couldn't send the arguments of " + m.getName(), ioex );
+		}
+
+		Call call = new Call();
+		c.calls.put( id, call );
+		send( c, frame, call );
+		if( c.closed && c.calls.remove( id ) != null )
+		{
+			if( !c.connected )
+				throw new ConnectException( "Connection refused to " + endpoint );
+			throw new ConnectIOException( "The connection to " + endpoint + " is closed" );
+		}
+
+		ByteBuffer answer;
+		try {
+			answer = call.await( this.timeout );
+		} catch( InterruptedException iex ) {
+			c.calls.remove( id );
+			Thread.currentThread().interrupt();
+			throw new UnmarshalException( "Interrupted while waiting for " + endpoint );
+		}
+		if( answer == null )
+		{
+			c.calls.remove( id );
+			if( !c.connected )
+			{
+				close( c, new SocketTimeoutException( "Not connected within " + this.timeout + " ms" ) );
+				throw new ConnectException( "Couldn't connect to " + endpoint + " within " + this.timeout + " ms" );
+			}
+			throw new UnmarshalException( "No answer from " + endpoint + " within " + this.timeout + " ms" );
+		}
+
+		byte status = answer.get();
+		Object ret;
+		try {
+			ret = Frame.getValue( answer );
+		} catch( IOException ioex ) {
+			throw new UnmarshalException( "Couldn't read the answer to " + m.getName(), ioex );
+		} finally {
+			this.buffers.release( answer );
+		}
+		if( status == 0 )
+			return ret;
+
+		//Like RMI, tell exceptions of the other server from those of the connection
+		Throwable t = (Throwable)ret;
+		if( t instanceof RemoteException )
+			throw new ServerException( "RemoteException occurred in server thread", (RemoteException)t );
+		if( t instanceof RuntimeException )
+			throw new ServerException( "RuntimeException occurred in server thread", (RuntimeException)t );
+		if( t instanceof Error )
+			throw new ServerError( "Error occurred in server thread", (Error)t );
+		throw t;
+	}
+
+	/**
+	 * Gets the connection to the given endpoint, starting to connect if
+	 * necessary. The selector thread finishes connecting, the frames queued
+	 * meanwhile are written once it is done.
+	 */
+	private Conn connection( String endpoint ) throws RemoteException
+	{
+		Conn c = this.outgoing.get( endpoint );
+		if( c != null && !c.closed )
+			return c;
+
+		if( !this.running )
+			throw new ConnectException( "The transport is stopped" );
+
+		int i = endpoint.lastIndexOf( ':' );
+		InetSocketAddress address = new InetSocketAddress( endpoint.substring( 0, i ), Integer.parseInt( endpoint.substring( i + 1 ) ) );
+		if( address.isUnresolved() )
+			throw new UnknownHostException( "Unknown host of " + endpoint );
+
+		SocketChannel ch = null;
+		try {
+			ch = SocketChannel.open();
+			ch.configureBlocking( false );
+			ch.socket().setTcpNoDelay( true );
+		} catch( IOException ioex ) {
+			close( ch );
+			throw new ConnectException( "Connection refused to " + endpoint, ioex );
+		}
+
+		//Only the first caller connects, the others use its connection. The
+		//greeting is queued before any of their frames.
+		c = new Conn( ch, true, endpoint, this.threshold );
+		ByteBuffer hello = ByteBuffer.allocate( 8 );
+		hello.putInt( MAGIC ).putInt( SIGNATURE ).flip();
+		c.writes.add( new Write( hello, null ) );
+		while( true )
+		{
+			Conn cur = this.outgoing.putIfAbsent( endpoint, c );
+			if( cur == null )
+				break;
+			if( !cur.closed )
+			{
+				close( ch );
+				return cur;
+			}
+			if( this.outgoing.replace( endpoint, cur, c ) )
+				break;
+		}
+
+		try {
+			c.connected = ch.connect( address );
+		} catch( IOException ioex ) {
+			close( c, ioex );
+			throw new ConnectException( "Connection refused to " + endpoint, ioex );
+		}
+		schedule( c );
+		if( !this.running )
+			close( c, new EOFException( "The transport is stopped" ) );
+		return c;
+	}
+
+	/**
+	 * Queues the given frame on the given connection and writes it, unless
+	 * another thread is writing already, which then writes it as well.
+	 * Only what the socket doesn't take right away is left to the selector
+	 * thread.
+	 */
+	private void send( Conn c, ByteBuffer frame, Call call )
+	{
+		c.writes.add( new Write( frame, call ) );
+		try {
+			if( c.connected && c.key != null && write( c ) )
+				return;
+		} catch( IOException ioex ) {
+			logger.fine( "Couldn't write to " + c.endpoint + ": " + ioex.getMessage() );
+		}
+		schedule( c );
+	}
+
+	/**
+	 * Has the selector thread write the given connection, waking it up
+	 * unless it is already going to.
+	 */
+	private void schedule( Conn c )
+	{
+		if( c.scheduled.compareAndSet( false, true ) )
+		{
+			this.dirty.add( c );
+			this.selector.wakeup();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while( this.running )
+		{
+			try {
+				this.selector.select();
+
+				Conn c;
+				while( (c = this.dirty.poll()) != null )
+				{
+					c.scheduled.set( false );
+					if( c.closed )
+						continue;
+
+					try {
+						if( c.key == null )
+							c.key = c.channel.register( this.selector, c.connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, c );
+						if( c.connected )
+							flush( c );
+					} catch( IOException ioex ) {
+						close( c, ioex );
+					}
+				}
+
+				for( Iterator<SelectionKey> it = this.selector.selectedKeys().iterator() ; it.hasNext() ; )
+				{
+					SelectionKey k = it.next();
+					it.remove();
+					if( !k.isValid() )
+						continue;
+
+					if( k.isAcceptable() )
+					{
+						accept();
+						continue;
+					}
+
+					c = (Conn)k.attachment();
+					try {
+						if( k.isConnectable() )
+							connected( c );
+						if( k.isValid() && k.isReadable() )
+							read( c );
+						if( k.isValid() && k.isWritable() )
+							flush( c );
+					} catch( IOException ioex ) {
+						close( c, ioex );
+					}
+				}
+			} catch( ClosedSelectorException csex ) {
+				break;
+			} catch( IOException ioex ) {
+				logger.warning( "Transport failed: " + ioex.getMessage() );
+			}
+		}
+
+		for( SelectionKey k : this.selector.keys() )
+		{
+			if( k.attachment() instanceof Conn )
+				close( (Conn)k.attachment(), new EOFException( "The transport is stopped" ) );
+		}
+		for( Conn c : this.outgoing.values() )
+			close( c, new EOFException( "The transport is stopped" ) );
+		close( this.listener );
+		try {
+			this.selector.close();
+		} catch( IOException ioex ) {
+			logger.fine( "Couldn't close the selector: " + ioex.getMessage() );
+		}
+	}
+
+	/**
+	 * Accepts a connection of another server.
+	 */
+	private void accept() throws IOException
+	{
+		SocketChannel ch = this.listener.accept();
+		if( ch == null )
+			return;
+
+		ch.configureBlocking( false );
+		ch.socket().setTcpNoDelay( true );
+		Conn c = new Conn( ch, false, String.valueOf( ch.socket().getRemoteSocketAddress() ), this.threshold );
+		c.connected = true;
+		c.key = ch.register( this.selector, SelectionKey.OP_READ, c );
+	}
+
+	/**
+	 * Finishes connecting to another server, and writes what was queued
+	 * meanwhile.
+	 */
+	private void connected( Conn c ) throws IOException
+	{
+		if( !c.channel.finishConnect() )
+			return;
+
+		c.connected = true;
+		flush( c );
+	}
+
+	/**
+	 * Reads what arrived on the given connection, and hands on every frame
+	 * read completely. Large frames are read straight into their own buffer.
+	 */
+	private void read( Conn c ) throws IOException
+	{
+		if( c.frame != null )
+		{
+			if( c.channel.read( c.frame ) < 0 )
+				throw new EOFException( "Connection closed by " + c.endpoint );
+			if( c.frame.hasRemaining() )
+				return;
+
+			c.frame.flip();
+			deliver( c, c.frame );
+			c.frame = null;
+		}
+
+		if( c.channel.read( c.in ) < 0 )
+			throw new EOFException( "Connection closed by " + c.endpoint );
+
+		c.in.flip();
+		try {
+			if( !c.outgoing && !c.greeted )
+			{
+				if( c.in.remaining() < 8 )
+					return;
+				if( c.in.getInt() != MAGIC || c.in.getInt() != SIGNATURE )
+					throw new StreamCorruptedException( c.endpoint + " doesn't speak the same protocol" );
+				c.greeted = true;
+			}
+
+			while( c.in.remaining() >= 4 )
+			{
+				int len = c.in.getInt( c.in.position() );
+				if( len < 0 || len > MAX_FRAME )
+					throw new StreamCorruptedException( "Frame of " + len + " bytes from " + c.endpoint );
+
+				if( len > this.threshold )
+				{
+					c.in.getInt();
+					c.frame = this.buffers.allocate( len );
+					ByteBuffer part = c.in.duplicate();
+					part.limit( part.position() + Math.min( len, part.remaining() ) );
+					c.frame.put( part );
+					c.in.position( part.position() );
+					if( c.frame.hasRemaining() )
+						break;
+
+					c.frame.flip();
+					deliver( c, c.frame );
+					c.frame = null;
+				}
+				else if( c.in.remaining() >= 4 + len )
+				{
+					c.in.getInt();
+					byte[] body = new byte[ len ];
+					c.in.get( body );
+					deliver( c, ByteBuffer.wrap( body ) );
+				}
+				else
+					break;
+			}
+		} finally {
+			c.in.compact();
+		}
+	}
+
+	/**
+	 * Hands on a frame read completely: answers go to the waiting call,
+	 * calls to the workers.
+	 */
+	private void deliver( final Conn c, final ByteBuffer frame )
+	{
+		if( c.outgoing )
+		{
+			Call call = c.calls.remove( frame.getLong() );
+			if( call != null )
+				call.answer( frame );
+			else
+				this.buffers.release( frame );
+			return;
+		}
+
+		try {
+			this.pool.submit( new Runnable() {
+				@Override
+				public void run() {
+					serve( c, frame );
+				}
+			});
+		} catch( RejectedExecutionException reex ) {
+			this.buffers.release( frame );
+			logger.fine( "Dropping a call from " + c.endpoint + ", the transport is stopped" );
+		}
+	}
+
+	/**
+	 * Runs a call of another server and sends the answer.
+	 */
+	private void serve( Conn c, ByteBuffer frame )
+	{
+		long id = frame.getLong();
+		byte status;
+		Object ret;
+
+		try {
+			Method m = METHODS[ frame.getShort() ];
+			Object[] args = new Object[ m.getParameterTypes().length ];
+			for( int i=0 ; i < args.length ; i++ )
+				args[i] = Frame.getValue( frame );
+
+			//The arguments are copied out of the frame
+			this.buffers.release( frame );
+			frame = null;
+
+			try {
+				ret = m.invoke( this.target, args );
+				status = 0;
+			} catch( InvocationTargetException itex ) {
+				ret = itex.getCause();
+				status = 1;
+			}
+		} catch( Exception ex ) {
+			ret = new UnmarshalException( "Couldn't run the call", ex );
+			status = 1;
+		} finally {
+			if( frame != null )
+				this.buffers.release( frame );
+		}
+
+		ByteBuffer answer;
+		try {
+			answer = answer( id, status, ret );
+		} catch( IOException ioex ) {
+			try {
+				answer = answer( id, (byte)1, new MarshalException( "Couldn't send the answer: " + ioex.getMessage() ) );
+			} catch( IOException ioex2 ) {
+				logger.warning( "Couldn't answer a call from " + c.endpoint + ": " + ioex2.getMessage() );
+				return;
+			}
+		}
+		send( c, answer, null );
+	}
+
+	/**
+	 * Makes the frame answering a call.
+	 */
+	private ByteBuffer answer( long id, byte status, Object ret ) throws IOException
+	{
+		Frame f = new Frame( this.buffers, 9 + Frame.estimate( ret ) );
+		f.putLong( id );
+		f.put( status );
+		f.putValue( ret );
+		return finish( f );
+	}
+
+	/**
+	 * Finishes the given frame, unless it is too large for the other side
+	 * to read.
+	 */
+	private ByteBuffer finish( Frame f ) throws IOException
+	{
+		ByteBuffer ret = f.finish();
+		if( ret.remaining() - 4 > MAX_FRAME )
+		{
+			this.buffers.release( ret );
+			throw new IOException( "The frame of " + (ret.remaining() - 4) + " bytes is larger than " + MAX_FRAME + " bytes" );
+		}
+		return ret;
+	}
+
+	/**
+	 * Writes the queued frames of the given connection, unless another
+	 * thread is writing them already.
+	 *
+	 * @return false if the socket is full and frames are left
+	 */
+	private boolean write( Conn c ) throws IOException
+	{
+		//Whoever writes checks again after it is done, so no frame is left behind
+		while( !c.writes.isEmpty() )
+		{
+			if( !c.writing.compareAndSet( false, true ) )
+				return true;
+
+			boolean full;
+			try {
+				full = drain( c );
+			} finally {
+				c.writing.set( false );
+			}
+			if( full )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the queued frames of the given connection, as many at once as
+	 * possible, until the socket takes no more. Must be the one writing.
+	 *
+	 * @return true if the socket is full and frames are left
+	 */
+	private boolean drain( Conn c ) throws IOException
+	{
+		while( true )
+		{
+			int n = 0;
+			for( Write w : c.writes )
+			{
+				if( n == MAX_GATHER )
+					break;
+				c.gather[ n++ ] = w.frame;
+			}
+			if( n == 0 )
+				return false;
+
+			c.channel.write( c.gather, 0, n );
+			boolean full = c.gather[ n - 1 ].hasRemaining();
+			Arrays.fill( c.gather, 0, n, null );
+
+			Write w;
+			while( (w = c.writes.peek()) != null && !w.frame.hasRemaining() )
+			{
+				c.writes.poll();
+				this.buffers.release( w.frame );
+				if( w.call != null )
+					w.call.sent = true;
+			}
+
+			if( full )
+				return true;
+		}
+	}
+
+	/**
+	 * Writes the given connection from the selector thread, and waits for
+	 * the socket to take more if it is full.
+	 */
+	private void flush( Conn c ) throws IOException
+	{
+		c.key.interestOps( write( c ) ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+	}
+
+	/**
+	 * Closes the given connection. Calls waiting for an answer fail, as
+	 * sent or not, or as refused if it never connected.
+	 */
+	private void close( Conn c, IOException cause )
+	{
+		synchronized( c ) {
+			if( c.closed )
+				return;
+			c.closed = true;
+		}
+
+		logger.fine( "Connection to " + c.endpoint + " closed: " + cause.getMessage() );
+		if( c.key != null )
+			c.key.cancel();
+		close( c.channel );
+
+		if( c.outgoing )
+		{
+			this.outgoing.remove( c.endpoint, c );
+			for( Long id : c.calls.keySet() )
+			{
+				Call call = c.calls.remove( id );
+				if( call == null )
+					continue;
+				if( !c.connected )
+					call.fail( new ConnectException( "Connection refused to " + c.endpoint, cause ) );
+				else
+					call.fail( call.sent ? new UnmarshalException( "The connection to " + c.endpoint + " broke", cause )
+										: new ConnectIOException( "The connection to " + c.endpoint + " broke", cause ) );
+			}
+		}
+	}
+
+	/**
+	 * Closes a channel, ignoring errors.
+	 */
+	private static void close( java.nio.channels.Channel ch )
+	{
+		if( ch == null )
+			return;
+
+		try {
+			ch.close();
+		} catch( IOException ioex ) {
+			logger.fine( "Couldn't close a channel: " + ioex.getMessage() );
+		}
+	}
+
+	/**
+	 * Describes a method, the same on every server.
+	 */
+	static String signature( Method m )
+	{
+		return m.getName() + Arrays.toString( m.getParameterTypes() );
+	}
+
+
+	/**
+	 * A connection to or from another server.
+	 */
+	static class Conn {
+
+		final SocketChannel channel;
+		final boolean outgoing;
+		final String endpoint;
+		volatile SelectionKey key;
+		volatile boolean connected;
+		volatile boolean closed;
+		boolean greeted;
+
+		final ConcurrentLinkedQueue<Write> writes = new ConcurrentLinkedQueue<Write>();
+		final AtomicBoolean scheduled = new AtomicBoolean();
+		final AtomicBoolean writing = new AtomicBoolean();
+		final ByteBuffer[] gather = new ByteBuffer[ MAX_GATHER ];
+		final ConcurrentHashMap<Long, Call> calls = new ConcurrentHashMap<Long, Call>();
+
+		final ByteBuffer in;
+		ByteBuffer frame;
+
+		Conn( SocketChannel channel, boolean outgoing, String endpoint, int threshold )
+		{
+			this.channel = channel;
+			this.outgoing = outgoing;
+			this.endpoint = endpoint;
+			this.in = ByteBuffer.allocate( Math.max( 64 * 1024, threshold + 4 ) );
+		}
+	}
+
+	/**
+	 * A frame waiting to be written.
+	 */
+	static class Write {
+
+		final ByteBuffer frame;
+		final Call call;
+
+		Write( ByteBuffer frame, Call call )
+		{
+			this.frame = frame;
+			this.call = call;
+		}
+	}
+
+	/**
+	 * A call waiting for its answer.
+	 */
+	static class Call {
+
+		final CountDownLatch done = new CountDownLatch( 1 );
+		volatile boolean sent;
+		volatile ByteBuffer answer;
+		volatile RemoteException error;
+
+		void answer( ByteBuffer frame )
+		{
+			this.answer = frame;
+			this.done.countDown();
+		}
+
+		void fail( RemoteException error )
+		{
+			this.error = error;
+			this.done.countDown();
+		}
+
+		/**
+		 * Waits for the answer.
+		 *
+		 * @return the answer, or null if there was none in time
+		 */
+		ByteBuffer await( long timeout ) throws InterruptedException, RemoteException
+		{
+			if( !this.done.await( timeout, TimeUnit.MILLISECONDS ) )
+				return null;
+			if( this.error != null )
+				throw this.error;
+			return this.answer;
+		}
+	}
+
+	/**
+	 * Calls a server over this transport, if it uses it, or through RMI.
+	 */
+	class Peer implements InvocationHandler {
+
+		final IRemoteServer stub;
+		volatile String endpoint;
+		volatile boolean resolved;
+
+		Peer( IRemoteServer stub )
+		{
+			this.stub = stub;
+		}
+
+		/* (non-Javadoc)
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke( Object proxy, Method m, Object[] args ) throws Throwable {
+			if( m.getDeclaringClass() == Object.class )
+			{
+				//Equal to the RMI interface it wraps, so it isn't replaced by it
+				if( m.getName().equals( "equals" ) )
+				{
+					Object other = args[0];
+					if( other != null && Proxy.isProxyClass( other.getClass() ) && Proxy.getInvocationHandler( other ) instanceof Peer )
+						other = ((Peer)Proxy.getInvocationHandler( other )).stub;
+					return this.stub.equals( other );
+				}
+				if( m.getName().equals( "hashCode" ) )
+					return this.stub.hashCode();
+				return "nio:" + this.stub;
+			}
+
+			if( !this.resolved )
+			{
+				this.endpoint = this.stub.getEndpoint();
+				this.resolved = true;
+			}
+
+			if( this.endpoint != null )
+				return call( this.endpoint, m, args );
+
+			try {
+				return m.invoke( this.stub, args );
+			} catch( InvocationTargetException itex ) {
+				throw itex.getCause();
+			}
+		}
+	}
+}
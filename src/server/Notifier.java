@@ -0,0 +1,595 @@
+package server;
+
+import java.rmi.ConnectException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import remote.IRemoteServer;
+import client.IClientCallback;
+import client.IDigestCallback;
+import entities.ServerConfig;
+import entities.User;
+
+
+/**
+ * Tells the participants of finalized events about the final date, in the
+ * background. Participants are grouped by the server they registered at,
+ * each server gets a single call for all of its participants. There, each
+ * logged in client has a bounded queue of notifications, sent by a small
+ * pool of delivery threads, one call per client at a time, so a slow
+ * client only delays itself. Clients that fail or hang are logged out.
+ * Users who are offline collect their notifications in an inbox, which
+ * is sent as a whole when they log in.
+ */
+public class Notifier extends TimerTask {
+
+	protected static final Logger logger = Logger.getLogger( Notifier.class.getName() );
+
+	Server server;
+	/** The server each user registered at, users never move. */
+	ConcurrentHashMap<String, String> homes;
+	/** The notifications queued for each logged in client. */
+	ConcurrentHashMap<String, ClientQueue> queues;
+	/** The notifications collected for each offline user. */
+	ConcurrentHashMap<String, Inbox> inboxes;
+	/** Locks ordering logins with the notifications of the same user. */
+	Object[] locks;
+	int inboxSize;
+	ThreadPoolExecutor pool;
+	Timer timer;
+	int capacity;
+	ClientQueue.Policy policy;
+	int maxFailures;
+	long timeout;
+
+	/**
+	 * Instantiates a new notifier.
+	 *
+	 * @param server the server
+	 */
+	public Notifier( Server server )
+	{
+		this.server = server;
+		this.homes = new ConcurrentHashMap<String, String>();
+		this.queues = new ConcurrentHashMap<String, ClientQueue>();
+		this.inboxes = new ConcurrentHashMap<String, Inbox>();
+		this.locks = new Object[64];
+		for( int i=0 ; i < this.locks.length ; i++ )
+			this.locks[i] = new Object();
+
+		ServerConfig config = server.getConfig();
+		this.capacity = config.getNotifyQueueSize();
+		this.policy = "drop-newest".equals( config.getNotifyQueuePolicy() ) ? ClientQueue.Policy.DROP_NEWEST : ClientQueue.Policy.DROP_OLDEST;
+		this.maxFailures = Math.max( 1, config.getNotifyMaxFailures() );
+		this.timeout = Math.max( 1, config.getNotifyTimeout() );
+		this.inboxSize = config.getNotifyInboxSize();
+
+		int threads = Math.max( 1, config.getNotifyThreads() );
+		this.pool = new ThreadPoolExecutor( threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			int count;
+
+			@Override
+			public synchronized Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "notifier-" + count++ );
+				t.setDaemon( true );
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Notifies the given participants of the given finalized event. Returns
+	 * right away, the notifications are sent in the background.
+	 *
+	 * @param event the event name
+	 * @param date the final date
+	 * @param users the participants
+	 */
+	public void finalized( String event, Date date, Collection<String> users )
+	{
+		finalized( Collections.singletonMap( event, date ), Collections.singletonMap( event, users ) );
+	}
+
+	/**
+	 * Notifies the participants of several finalized events. Each server
+	 * gets a single call for all events. Returns right away, the
+	 * notifications are sent in the background.
+	 *
+	 * @param dates the final date, by event name
+	 * @param users the participants, by event name
+	 */
+	public void finalized( final Map<String, Date> dates, final Map<String, ? extends Collection<String>> users )
+	{
+		submit( new Runnable() {
+			@Override
+			public void run() {
+				fanOut( dates, users );
+			}
+		});
+	}
+
+	/**
+	 * Groups the participants by their server and sends each group there.
+	 */
+	private void fanOut( Map<String, Date> dates, Map<String, ? extends Collection<String>> users )
+	{
+		Map<String, Map<String, List<String>>> byServer = new LinkedHashMap<String, Map<String, List<String>>>();
+
+		for( Map.Entry<String, ? extends Collection<String>> event : users.entrySet() )
+		{
+			for( String user : event.getValue() )
+			{
+				try {
+					String home = homeOf( user );
+					if( home == null )
+						continue;
+
+					Map<String, List<String>> events = byServer.get( home );
+					if( events == null )
+						byServer.put( home, events = new LinkedHashMap<String, List<String>>() );
+					List<String> group = events.get( event.getKey() );
+					if( group == null )
+						events.put( event.getKey(), group = new ArrayList<String>() );
+					group.add( user );
+				} catch( RemoteException rex ) {
+					this.server.getMetrics().counter( "notifications.failed" ).incrementAndGet();
+					logger.warning( "Couldn't find the server of \"" + user + "\" to notify about \"" + event.getKey() + "\": " + rex.getMessage() );
+				}
+			}
+		}
+
+		for( final Map.Entry<String, Map<String, List<String>>> group : byServer.entrySet() )
+		{
+			if( this.server.getName().equals( group.getKey() ) )
+			{
+				for( Map.Entry<String, List<String>> event : group.getValue().entrySet() )
+					deliver( event.getKey(), dates.get( event.getKey() ), event.getValue() );
+				continue;
+			}
+
+			final Map<String, Date> groupDates = new LinkedHashMap<String, Date>();
+			int count = 0;
+			for( Map.Entry<String, List<String>> event : group.getValue().entrySet() )
+			{
+				groupDates.put( event.getKey(), dates.get( event.getKey() ) );
+				count += event.getValue().size();
+			}
+			final int size = count;
+
+			submit( new Runnable() {
+				@Override
+				public void run() {
+					IRemoteServer peer = server.getServer( group.getKey() );
+					try {
+						if( peer == null )
+							throw new RemoteException( "The server is not available." );
+
+						if( groupDates.size() == 1 )
+						{
+							String event = groupDates.keySet().iterator().next();
+							peer.onFinalizationBatch( event, groupDates.get( event ), group.getValue().get( event ) );
+						}
+						else
+							peer.onFinalizations( groupDates, group.getValue() );
+
+						server.getMetrics().counter( "notifications.forwarded" ).addAndGet( size );
+					} catch( RemoteException rex ) {
+						server.getMetrics().counter( "notifications.failed" ).addAndGet( size );
+						logger.warning( "Couldn't notify the participants of " + groupDates.keySet() + " at \"" + group.getKey() + "\": " + rex.getMessage() );
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Notifies the given participants registered at this server. Returns
+	 * right away, the notifications are queued for each participant's client.
+	 *
+	 * @param event the event name
+	 * @param date the final date
+	 * @param users the participants
+	 */
+	public void deliver( String event, Date date, Collection<String> users )
+	{
+		for( String name : users )
+		{
+			ClientQueue q;
+			synchronized( lockFor( name ) ) {
+				q = this.queues.get( name );
+				if( q == null )
+				{
+					if( this.server.getUsers().get( name ) != null )
+					{
+						inboxFor( name ).finalized( event, date );
+						this.server.getMetrics().counter( "notifications.inboxed" ).incrementAndGet();
+					}
+					else
+						this.server.getMetrics().counter( "notifications.offline" ).incrementAndGet();
+					continue;
+				}
+			}
+
+			switch( q.offer( event, date ) )
+			{
+				case COALESCED:
+					this.server.getMetrics().counter( "notifications.coalesced" ).incrementAndGet();
+					break;
+				case DROPPED:
+					this.server.getMetrics().counter( "notifications.dropped" ).incrementAndGet();
+					break;
+				default:
+					break;
+			}
+
+			if( q.schedule() )
+				send( q );
+		}
+	}
+
+	/**
+	 * Keeps the invitation of the given user of this server for the next
+	 * login, if the user is offline.
+	 *
+	 * @param user the user
+	 * @param event the event name
+	 * @param author the author of the event
+	 */
+	public void invited( String user, String event, String author )
+	{
+		synchronized( lockFor( user ) ) {
+			if( this.queues.get( user ) == null )
+			{
+				inboxFor( user ).invited( event, author );
+				this.server.getMetrics().counter( "notifications.inboxed" ).incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Starts queueing notifications for the given user's client, and sends
+	 * it what the user missed while offline.
+	 *
+	 * @param user the user
+	 * @param callback the callback of the user's client
+	 */
+	public void loggedIn( final String user, IClientCallback callback )
+	{
+		final ClientQueue q = new ClientQueue( user, callback, this.capacity, this.policy );
+
+		synchronized( lockFor( user ) ) {
+			ClientQueue prev = this.queues.put( user, q );
+			if( prev != null )
+				prev.dead = true;
+
+			Inbox missed = this.inboxes.remove( user );
+			if( missed != null )
+				q.setInbox( missed );
+		}
+
+		this.server.getMetrics().gauge( "notify." + user + ".depth", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return q.getDepth();
+			}
+		});
+		this.server.getMetrics().gauge( "notify." + user + ".latency", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return q.getLastLatency();
+			}
+		});
+
+		if( q.schedule() )
+			send( q );
+	}
+
+	/**
+	 * Stops notifying the given user's client, dropping what's still queued.
+	 *
+	 * @param user the user
+	 */
+	public void loggedOut( String user )
+	{
+		ClientQueue q = this.queues.remove( user );
+		if( q != null )
+			forget( q );
+	}
+
+	/**
+	 * Sends the queued notifications of the given client, on a delivery thread.
+	 */
+	private void send( final ClientQueue q )
+	{
+		try {
+			this.pool.submit( new Runnable() {
+				@Override
+				public void run() {
+					drain( q );
+				}
+			});
+		} catch( RejectedExecutionException rex ) {
+			logger.fine( "Dropped notifications for \"" + q.getUser() + "\", the server is shutting down" );
+		}
+	}
+
+	/**
+	 * Sends all notifications queued for the given client, in one call if
+	 * the client takes digests, then schedules the queue again if more
+	 * notifications arrived meanwhile.
+	 */
+	private void drain( ClientQueue q )
+	{
+		Inbox missed = q.takeInbox();
+		if( missed != null && !q.dead )
+			sendInbox( q, missed );
+		
+		LinkedHashMap<String, Date> batch;
+		long queued;
+		synchronized( q ) {
+			queued = q.oldest;
+			batch = q.take();
+		}
+
+		if( !q.dead && !batch.isEmpty() )
+		{
+			q.sendingSince = System.currentTimeMillis();
+			try {
+				if( batch.size() > 1 && q.getCallback() instanceof IDigestCallback )
+				{
+					((IDigestCallback)q.getCallback()).onFinalizations( batch );
+					this.server.getMetrics().counter( "notifications.digests" ).incrementAndGet();
+				}
+				else
+				{
+					for( Map.Entry<String, Date> n : batch.entrySet() )
+						q.getCallback().onFinalization( n.getKey(), n.getValue() );
+				}
+
+				q.failures = 0;
+				q.lastLatency = System.currentTimeMillis() - queued;
+				this.server.getMetrics().counter( "notifications.delivered" ).addAndGet( batch.size() );
+			} catch( RemoteException rex ) {
+				this.server.getMetrics().counter( "notifications.failed" ).addAndGet( batch.size() );
+				logger.fine( "Couldn't notify \"" + q.getUser() + "\": " + rex.getMessage() );
+
+				//A stub without an object behind it, or a client that can't be reached, won't come back
+				q.failures++;
+				if( rex instanceof NoSuchObjectException || rex instanceof ConnectException || q.failures >= this.maxFailures )
+				{
+					evict( q, rex.getMessage() );
+					keep( q.getUser(), batch, Collections.<String, String>emptyMap() );
+				}
+			} finally {
+				q.sendingSince = 0;
+			}
+		}
+
+		synchronized( q ) {
+			q.scheduled = false;
+		}
+		if( q.schedule() )
+			send( q );
+	}
+
+	/**
+	 * Sends the given client everything its user missed while offline, in
+	 * one call if the client takes digests. Clients that don't only get
+	 * the finalizations. If the client can't be reached, the notifications
+	 * are kept for the next login.
+	 */
+	private void sendInbox( ClientQueue q, Inbox missed )
+	{
+		Map<String, Date> finalized = missed.getFinalized();
+		Map<String, String> invitations = missed.getInvitations();
+
+		q.sendingSince = System.currentTimeMillis();
+		try {
+			if( q.getCallback() instanceof IDigestCallback )
+				((IDigestCallback)q.getCallback()).onInbox( finalized, invitations );
+			else
+			{
+				for( Map.Entry<String, Date> n : finalized.entrySet() )
+					q.getCallback().onFinalization( n.getKey(), n.getValue() );
+				this.server.getMetrics().counter( "notifications.unsupported" ).addAndGet( invitations.size() );
+			}
+
+			this.server.getMetrics().counter( "notifications.delivered" ).addAndGet( missed.size() );
+		} catch( RemoteException rex ) {
+			logger.fine( "Couldn't send \"" + q.getUser() + "\" its inbox: " + rex.getMessage() );
+
+			q.failures++;
+			if( rex instanceof NoSuchObjectException || rex instanceof ConnectException || q.failures >= this.maxFailures )
+				evict( q, rex.getMessage() );
+			keep( q.getUser(), finalized, invitations );
+		} finally {
+			q.sendingSince = 0;
+		}
+	}
+
+	/**
+	 * Puts the given notifications back into the user's inbox.
+	 */
+	private void keep( String user, Map<String, Date> finalized, Map<String, String> invitations )
+	{
+		synchronized( lockFor( user ) ) {
+			//Still logged in, the client is tried again until it's given up on
+			ClientQueue q = this.queues.get( user );
+			Inbox into = q == null ? inboxFor( user ) : new Inbox( this.inboxSize );
+			
+			for( Map.Entry<String, String> i : invitations.entrySet() )
+				into.invited( i.getKey(), i.getValue() );
+			for( Map.Entry<String, Date> f : finalized.entrySet() )
+				into.finalized( f.getKey(), f.getValue() );
+			
+			if( q != null )
+				q.setInbox( into );
+		}
+	}
+
+	/**
+	 * Gets the inbox of the given user, creating it if necessary.
+	 */
+	private Inbox inboxFor( String user )
+	{
+		Inbox ret = this.inboxes.get( user );
+		if( ret == null )
+		{
+			ret = new Inbox( this.inboxSize );
+			Inbox prev = this.inboxes.putIfAbsent( user, ret );
+			if( prev != null )
+				ret = prev;
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the lock of the given user.
+	 */
+	private Object lockFor( String user )
+	{
+		return this.locks[ (user.hashCode() & Integer.MAX_VALUE) % this.locks.length ];
+	}
+
+	/**
+	 * Gets the number of notifications kept for offline users.
+	 *
+	 * @return the number of notifications
+	 */
+	public long getInboxSize()
+	{
+		long ret = 0;
+		for( Inbox i : this.inboxes.values() )
+			ret += i.size();
+		return ret;
+	}
+
+	/**
+	 * Gets an estimate of the memory (in bytes) used by the inboxes of offline users.
+	 *
+	 * @return the memory
+	 */
+	public long getInboxMemory()
+	{
+		long ret = 0;
+		for( Inbox i : this.inboxes.values() )
+			ret += i.getMemory();
+		return ret;
+	}
+
+	/**
+	 * Logs out the user of the given client, which doesn't take callbacks anymore.
+	 */
+	private void evict( ClientQueue q, String reason )
+	{
+		if( !this.queues.remove( q.getUser(), q ) )
+			return;
+		forget( q );
+
+		User u = this.server.getUsers().get( q.getUser() );
+		if( u != null && u.getCallback() == q.getCallback() )
+		{
+			u.setCallback( null );
+			u.logout();
+		}
+
+		this.server.getMetrics().counter( "notifications.evicted" ).incrementAndGet();
+		logger.warning( "Logged out \"" + q.getUser() + "\", its client doesn't take callbacks: " + reason );
+	}
+
+	/**
+	 * Drops the given queue and its metrics.
+	 */
+	private void forget( ClientQueue q )
+	{
+		q.dead = true;
+		
+		//What the client didn't get yet waits for the next login
+		Inbox missed = q.takeInbox();
+		if( missed != null )
+			keep( q.getUser(), missed.getFinalized(), missed.getInvitations() );
+		LinkedHashMap<String, Date> pending = q.take();
+		if( !pending.isEmpty() )
+			keep( q.getUser(), pending, Collections.<String, String>emptyMap() );
+
+		this.server.getMetrics().removeGauge( "notify." + q.getUser() + ".depth" );
+		this.server.getMetrics().removeGauge( "notify." + q.getUser() + ".latency" );
+	}
+
+	/* (non-Javadoc)
+	 * @see java.util.TimerTask#run()
+	 */
+	@Override
+	public void run() {
+		//Clients that take too long to answer are stuck, don't wait for them anymore
+		long now = System.currentTimeMillis();
+		for( ClientQueue q : this.queues.values() )
+		{
+			long since = q.sendingSince;
+			if( since > 0 && now - since > this.timeout )
+				evict( q, "no answer for " + (now - since) + "ms" );
+		}
+	}
+
+	/**
+	 * Start the delivery threads and the check for stuck clients.
+	 */
+	public void start()
+	{
+		this.timer = new Timer( "notifier", true );
+		this.timer.schedule( this, this.timeout / 2 + 1, this.timeout / 2 + 1 );
+	}
+
+	/**
+	 * Stop delivering notifications.
+	 */
+	public void stop()
+	{
+		if( this.timer != null )
+			this.timer.cancel();
+		this.pool.shutdown();
+	}
+
+	/**
+	 * Gets the server the given user registered at, remembering it.
+	 */
+	private String homeOf( String user ) throws RemoteException
+	{
+		String ret = this.homes.get( user );
+		if( ret == null )
+		{
+			ret = this.server.findUserServer( user );
+			if( ret != null )
+				this.homes.put( user, ret );
+		}
+		return ret;
+	}
+
+	/**
+	 * Runs the given task on the server's pool, unless the server is shutting down.
+	 */
+	private void submit( Runnable task )
+	{
+		try {
+			this.server.getExecutor().submit( task );
+		} catch( RejectedExecutionException rex ) {
+			logger.fine( "Dropped notifications, the server is shutting down" );
+		}
+	}
+}
@@ -0,0 +1,437 @@
+package server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.MarshalException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.UnmarshalException;
+import java.rmi.registry.Registry;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import remote.IDistributor;
+import remote.IRemoteServer;
+
+
+/**
+ * The connection to another server. Calls go through a proxy, which keeps
+ * the latest remote interface of the server and a circuit breaker:
+ * <ul>
+ * <li>While the circuit is closed, calls go through. A call that never
+ * reached the server, as its interface is gone after a restart, is sent
+ * once more with an interface looked up again in the registry.</li>
+ * <li>After a number of failed calls in a row, the circuit opens, and
+ * calls fail right away. The server is looked up again in the background,
+ * waiting twice as long after every failed attempt.</li>
+ * <li>Each attempt half-opens the circuit and probes the server. If it
+ * answers, the circuit closes again, otherwise it opens once more.</li>
+ * </ul>
+ * Exceptions thrown by the server itself don't count as failures, as
+ * the server was reached. With the nio transport, the remote interfaces
+ * are wrapped to be called over it.
+ */
+public class PeerConnection implements InvocationHandler {
+
+	protected static final Logger logger = Logger.getLogger( PeerConnection.class.getName() );
+
+	/** The state of the circuit breaker. */
+	public enum Circuit { CLOSED, OPEN, HALF_OPEN }
+
+	/** The weight of the latest call in the average latency. */
+	static final double LATENCY_WEIGHT = 0.1;
+
+	final String name;
+	Server server;
+	Timer timer;
+	NioTransport transport;
+	int maxFailures;
+	long minBackoff;
+	long maxBackoff;
+	final IRemoteServer proxy;
+
+	IRemoteServer stub;
+	Circuit circuit = Circuit.CLOSED;
+	int failures;
+	long backoff;
+	long refreshedAt;
+	boolean stopped;
+	volatile double latency;
+
+	/**
+	 * Instantiates a new connection.
+	 *
+	 * @param name the name of the other server
+	 * @param server this server
+	 * @param timer the timer for attempts to reach the server again
+	 * @param transport the nio transport, or null to call the server through RMI
+	 * @param maxFailures the number of failed calls in a row that open the circuit
+	 * @param minBackoff the time (in ms) before the first attempt to reach the server again
+	 * @param maxBackoff the maximum time (in ms) between two attempts
+	 */
+	public PeerConnection( String name, Server server, Timer timer, NioTransport transport, int maxFailures, long minBackoff, long maxBackoff )
+	{
+		this.name = name;
+		this.server = server;
+		this.timer = timer;
+		this.transport = transport;
+		this.maxFailures = Math.max( 1, maxFailures );
+		this.minBackoff = Math.max( 1, minBackoff );
+		this.maxBackoff = Math.max( this.minBackoff, maxBackoff );
+		this.backoff = this.minBackoff;
+		this.proxy = (IRemoteServer)Proxy.newProxyInstance( IRemoteServer.class.getClassLoader(),
+															new Class<?>[]{ IRemoteServer.class }, this );
+	}
+
+	/**
+	 * Replaces the remote interface of the server by the one it sent
+	 * itself. The server was just heard from, so the circuit closes.
+	 *
+	 * @param stub the remote interface
+	 */
+	public synchronized void setStub( IRemoteServer stub )
+	{
+		if( this.stub != null && (stub == this.stub || this.stub.equals( stub )) )
+			return;
+
+		this.stub = wrap( stub );
+		close();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object, java.lang.reflect.Method, java.lang.Object[])
+	 */
+	@Override
+	public Object invoke( Object proxy, Method m, Object[] args ) throws Throwable {
+		if( m.getDeclaringClass() == Object.class )
+		{
+			if( m.getName().equals( "equals" ) )
+				return proxy == args[0];
+			if( m.getName().equals( "hashCode" ) )
+				return System.identityHashCode( proxy );
+			return "connection to \"" + this.name + "\"";
+		}
+
+		IRemoteServer target = acquire();
+		boolean retried = false;
+
+		while( true )
+		{
+			long start = System.nanoTime();
+			try {
+				Object ret = m.invoke( target, args );
+				succeeded( target, System.nanoTime() - start );
+				return ret;
+			} catch( InvocationTargetException itex ) {
+				Throwable t = itex.getCause();
+				if( !isUnreachable( t ) )
+				{
+					succeeded( target, System.nanoTime() - start );
+					throw t;
+				}
+
+				//The call never got to the server, so it may be sent again
+				IRemoteServer fresh = !retried && isUndelivered( t ) ? refresh( target ) : null;
+				if( fresh == null )
+				{
+					failed( target, t );
+					throw t;
+				}
+
+				logger.fine( "Calling \"" + this.name + "\" again with a new interface, after: " + t.getMessage() );
+				target = fresh;
+				retried = true;
+			}
+		}
+	}
+
+	/**
+	 * Gets the interface to call the server with, if the circuit is closed.
+	 */
+	private synchronized IRemoteServer acquire() throws RemoteException
+	{
+		if( this.circuit == Circuit.CLOSED )
+			return this.stub;
+
+		this.server.getMetrics().counter( "peer." + this.name + ".rejected" ).incrementAndGet();
+		throw new ConnectException( "\"" + this.name + "\" is not reachable right now, please try again later." );
+	}
+
+	/**
+	 * Records a call that reached the server.
+	 */
+	private void succeeded( IRemoteServer target, long nanos )
+	{
+		synchronized( this ) {
+			this.latency += LATENCY_WEIGHT * (nanos / 1e6 - this.latency);
+			if( target != this.stub )
+				return;
+
+			this.failures = 0;
+			if( this.circuit != Circuit.CLOSED )
+			{
+				logger.info( "\"" + this.name + "\" is reachable again" );
+				close();
+			}
+		}
+	}
+
+	/**
+	 * Records a call that didn't reach the server, and opens the circuit
+	 * after too many of them.
+	 */
+	private synchronized void failed( IRemoteServer target, Throwable t )
+	{
+		//Calls made with an interface replaced in the meantime say nothing about the new one
+		if( target != this.stub )
+			return;
+
+		this.server.getMetrics().counter( "peer." + this.name + ".failures" ).incrementAndGet();
+		this.failures++;
+		if( this.circuit == Circuit.HALF_OPEN || (this.circuit == Circuit.CLOSED && this.failures >= this.maxFailures) )
+			open( t );
+	}
+
+	/**
+	 * Closes the circuit. Must hold the lock.
+	 */
+	private void close()
+	{
+		this.circuit = Circuit.CLOSED;
+		this.failures = 0;
+		this.backoff = this.minBackoff;
+	}
+
+	/**
+	 * Opens the circuit and schedules the next attempt to reach the server.
+	 * Must hold the lock.
+	 */
+	private void open( Throwable t )
+	{
+		if( this.circuit == Circuit.CLOSED )
+			logger.warning( "\"" + this.name + "\" is not reachable, failing calls for now: " + t.getMessage() );
+		this.circuit = Circuit.OPEN;
+		if( this.stopped )
+			return;
+
+		try {
+			this.timer.schedule( new TimerTask() {
+				@Override
+				public void run() {
+					try {
+						server.getExecutor().submit( new Runnable() {
+							@Override
+							public void run() {
+								probe();
+							}
+						});
+					} catch( RejectedExecutionException reex ) {
+						logger.fine( "Not probing \"" + name + "\", the server is stopping" );
+					}
+				}
+			}, this.backoff );
+		} catch( IllegalStateException isex ) {
+			logger.fine( "Not probing \"" + this.name + "\", the server is stopping" );
+		}
+		this.backoff = Math.min( this.backoff * 2, this.maxBackoff );
+	}
+
+	/**
+	 * Looks up the server again and half-opens the circuit to try it.
+	 */
+	void probe()
+	{
+		IRemoteServer fresh = lookup();
+
+		IRemoteServer target;
+		synchronized( this ) {
+			if( this.circuit != Circuit.OPEN || this.stopped )
+				return;
+
+			if( fresh != null && !fresh.equals( this.stub ) )
+			{
+				this.stub = fresh;
+				this.server.getMetrics().counter( "peer." + this.name + ".reconnects" ).incrementAndGet();
+			}
+			this.circuit = Circuit.HALF_OPEN;
+			target = this.stub;
+		}
+
+		long start = System.nanoTime();
+		try {
+			target.getView();
+			succeeded( target, System.nanoTime() - start );
+		} catch( RemoteException rex ) {
+			if( isUnreachable( rex ) )
+				failed( target, rex );
+			else
+				succeeded( target, System.nanoTime() - start );
+		}
+	}
+
+	/**
+	 * Looks up the server again after a call with the given interface
+	 * failed, unless that was done just before.
+	 *
+	 * @return the new interface, or null if there is none
+	 */
+	private IRemoteServer refresh( IRemoteServer target )
+	{
+		synchronized( this ) {
+			//Someone else already looked it up
+			if( target != this.stub )
+				return this.stub;
+
+			long now = System.currentTimeMillis();
+			if( now - this.refreshedAt < this.minBackoff )
+				return null;
+			this.refreshedAt = now;
+		}
+
+		IRemoteServer fresh = lookup();
+
+		synchronized( this ) {
+			if( fresh == null || fresh.equals( target ) || target != this.stub )
+				return null;
+
+			this.stub = fresh;
+			this.server.getMetrics().counter( "peer." + this.name + ".reconnects" ).incrementAndGet();
+			return fresh;
+		}
+	}
+
+	/**
+	 * Looks up the remote interface of the server in the registry.
+	 *
+	 * @return the interface, or null if the server is not bound or the registry couldn't be reached
+	 */
+	private IRemoteServer lookup()
+	{
+		Registry reg = this.server.getRegistry();
+		if( reg == null )
+			return null;
+
+		try {
+			return wrap( ((IDistributor)reg.lookup( this.name )).getRemoteServer() );
+		} catch( NotBoundException nbex ) {
+			logger.fine( "\"" + this.name + "\" is not bound" );
+		} catch( RemoteException rex ) {
+			logger.fine( "Couldn't look up \"" + this.name + "\": " + rex.getMessage() );
+		}
+		return null;
+	}
+
+	/**
+	 * Wraps the given remote interface to be called over the nio transport, if used.
+	 */
+	private IRemoteServer wrap( IRemoteServer stub )
+	{
+		return this.transport != null && stub != null ? this.transport.wrap( stub ) : stub;
+	}
+
+	/**
+	 * Checks if the given exception means the server couldn't be reached,
+	 * or the connection broke during the call.
+	 *
+	 * @param t the exception
+	 * @return true, if the server couldn't be reached
+	 */
+	public static boolean isUnreachable( Throwable t )
+	{
+		return isUndelivered( t ) || t instanceof MarshalException || t instanceof UnmarshalException;
+	}
+
+	/**
+	 * Checks if the given exception, or one of its causes, means there is
+	 * certainly no server behind the interface anymore: the connection was
+	 * refused, or the interface is no longer exported. A broken connection
+	 * or a garbled answer doesn't say that.
+	 *
+	 * @param t the exception
+	 * @return true, if the server is gone
+	 */
+	public static boolean isGone( Throwable t )
+	{
+		for( ; t != null ; t = t.getCause() )
+		{
+			if( t instanceof ConnectException || t instanceof java.net.ConnectException || t instanceof NoSuchObjectException )
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the given exception means the call never got to the server.
+	 */
+	private static boolean isUndelivered( Throwable t )
+	{
+		return t instanceof ConnectException || t instanceof ConnectIOException
+				|| t instanceof NoSuchObjectException || t instanceof UnknownHostException;
+	}
+
+	/**
+	 * Stops trying to reach the server.
+	 */
+	public synchronized void shutdown()
+	{
+		this.stopped = true;
+	}
+
+	/**
+	 * Gets the proxy to call the server with.
+	 *
+	 * @return the proxy
+	 */
+	public IRemoteServer getProxy()
+	{
+		return this.proxy;
+	}
+
+	/**
+	 * Gets the latest remote interface of the server, bypassing the circuit breaker.
+	 *
+	 * @return the remote interface
+	 */
+	public synchronized IRemoteServer getStub()
+	{
+		return this.stub;
+	}
+
+	/**
+	 * Gets the state of the circuit breaker.
+	 *
+	 * @return the circuit
+	 */
+	public synchronized Circuit getCircuit()
+	{
+		return this.circuit;
+	}
+
+	/**
+	 * Gets the average time (in ms) of the latest calls that reached the server.
+	 *
+	 * @return the latency
+	 */
+	public double getLatency()
+	{
+		return this.latency;
+	}
+
+	/**
+	 * Gets the name of the server.
+	 *
+	 * @return the name
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+}
@@ -0,0 +1,97 @@
+package server;
+
+
+/**
+ * A phi accrual failure detector for a single peer. It learns the
+ * distribution of the times between the peer's heartbeats and tells how
+ * suspicious the time since the last one is: phi is -log10 of the chance
+ * that a heartbeat still arrives this late, so phi 1 means a 10% chance,
+ * phi 8 a chance of 1 in 10^8.
+ */
+public class PhiAccrualDetector {
+
+	final long[] intervals;
+	final long minStdDev;
+	int count;
+	int next;
+	long sum;
+	double sumSquares;
+	volatile long last;
+
+	/**
+	 * Instantiates a new detector.
+	 *
+	 * @param window the number of latest intervals to learn from
+	 * @param firstInterval the interval (in ms) to expect before any was seen
+	 * @param minStdDev the minimum standard deviation (in ms), so very regular heartbeats don't make phi jump
+	 * @param now the current time (in ms)
+	 */
+	public PhiAccrualDetector( int window, long firstInterval, long minStdDev, long now )
+	{
+		this.intervals = new long[ Math.max( 2, window ) ];
+		this.minStdDev = Math.max( 1, minStdDev );
+		this.last = now;
+
+		//Start as if two heartbeats had arrived at the expected interval, a bit apart
+		add( firstInterval - firstInterval / 4 );
+		add( firstInterval + firstInterval / 4 );
+	}
+
+	/**
+	 * Records a heartbeat.
+	 *
+	 * @param now the time (in ms) it arrived
+	 */
+	public synchronized void heartbeat( long now )
+	{
+		add( Math.max( 0, now - this.last ) );
+		this.last = now;
+	}
+
+	/**
+	 * Gets the suspicion level at the given time.
+	 *
+	 * @param now the current time (in ms)
+	 * @return phi, 0 right after a heartbeat, growing until the next one
+	 */
+	public synchronized double phi( long now )
+	{
+		double mean = (double)this.sum / this.count;
+		double variance = this.sumSquares / this.count - mean * mean;
+		double stdDev = Math.max( this.minStdDev, Math.sqrt( Math.max( 0, variance ) ) );
+
+		//Logistic approximation of the normal distribution's tail
+		double y = ((now - this.last) - mean) / stdDev;
+		double e = Math.exp( -y * (1.5976 + 0.070566 * y * y) );
+		if( now - this.last > mean )
+			return -Math.log10( e / (1.0 + e) );
+		return -Math.log10( 1.0 - 1.0 / (1.0 + e) );
+	}
+
+	/**
+	 * Gets the time (in ms) the last heartbeat arrived.
+	 *
+	 * @return the time
+	 */
+	public long getLast()
+	{
+		return this.last;
+	}
+
+	private void add( long interval )
+	{
+		if( this.count == this.intervals.length )
+		{
+			long old = this.intervals[ this.next ];
+			this.sum -= old;
+			this.sumSquares -= (double)old * old;
+		}
+		else
+			this.count++;
+
+		this.intervals[ this.next ] = interval;
+		this.next = (this.next + 1) % this.intervals.length;
+		this.sum += interval;
+		this.sumSquares += (double)interval * interval;
+	}
+}
@@ -0,0 +1,622 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import remote.RaftEntry;
+
+
+/**
+ * The entries of a member of the replicated log, kept in memory and in
+ * segment files on disk. Each entry is stored as the length of its data,
+ * a CRC32 checksum, its term and the data. A segment is named after the
+ * index of its first entry, a new one is started once it is full.
+ * Appending only writes the entry, {@link #sync()} forces all written
+ * entries to disk, so many appends share one fsync.
+ * <p>
+ * Applied entries are compacted into a snapshot of the state they built,
+ * which replaces them. Segments holding only such entries are deleted.
+ * Without a directory, the entries and the snapshot are only kept in memory.
+ */
+public class RaftLog {
+
+	protected static final Logger logger = Logger.getLogger( RaftLog.class.getName() );
+
+	static final String SEGMENT_PREFIX = "raft-";
+	static final String SEGMENT_SUFFIX = ".log";
+	static final String SNAPSHOT_FILE = "raft.snapshot";
+	static final int HEADER_SIZE = 16;
+	static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	final File dir;
+
+	/** The entries after the snapshot. */
+	final ArrayList<RaftEntry> entries;
+	long snapshotIndex;
+	long snapshotTerm;
+	byte[] snapshot;
+
+	/** The segment files, by the index of their first entry. */
+	final TreeMap<Long, File> segments;
+	/** The segment currently written to. */
+	FileChannel channel;
+	/** The index of the last entry forced to disk. */
+	long synced;
+	/** Changes whenever written entries are taken back. */
+	long generation;
+
+	/** Serializes writing the snapshot file. */
+	final Object snapshotLock;
+
+	/**
+	 * Instantiates a new log.
+	 *
+	 * @param dir the directory of the segment and snapshot files, or null to keep the entries in memory
+	 */
+	public RaftLog( File dir )
+	{
+		this.dir = dir;
+		this.entries = new ArrayList<RaftEntry>();
+		this.snapshot = new byte[0];
+		this.segments = new TreeMap<Long, File>();
+		this.snapshotLock = new Object();
+	}
+
+	/**
+	 * Reads the snapshot and the entries written before. A torn entry at
+	 * the end of the last segment, which was never acknowledged, is cut off.
+	 *
+	 * @return false, if entries written before were lost or damaged
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized boolean open() throws IOException
+	{
+		if( this.dir == null )
+			return true;
+
+		this.dir.mkdirs();
+		boolean complete = readSnapshot();
+
+		File[] files = this.dir.listFiles( new FilenameFilter() {
+			@Override
+			public boolean accept( File dir, String name ) {
+				return name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX );
+			}
+		});
+		TreeMap<Long, File> found = new TreeMap<Long, File>();
+		for( File f : files != null ? files : new File[0] )
+			found.put( firstOf( f ), f );
+
+		RandomAccessFile last = null;
+		for( File f : found.values() )
+		{
+			long first = firstOf( f );
+
+			//Segments after a gap or a damaged one can't be used
+			if( !complete || first > lastIndex() + 1 )
+			{
+				complete = false;
+				logger.warning( "Dropping \"" + f.getName() + "\", entries before it are missing" );
+				if( !f.delete() )
+					logger.warning( "Couldn't delete \"" + f.getName() + "\"" );
+				continue;
+			}
+
+			if( last != null )
+				last.close();
+			last = new RandomAccessFile( f, "rw" );
+			long end = readSegment( last, first );
+			if( end < last.length() )
+			{
+				logger.warning( "Cutting off \"" + f.getName() + "\" after " + end + " of " + last.length() + " bytes" );
+				last.setLength( end );
+				complete = f.equals( found.lastEntry().getValue() ) && complete;
+			}
+			this.segments.put( first, f );
+		}
+
+		if( last != null )
+		{
+			this.channel = last.getChannel();
+			this.channel.position( this.channel.size() );
+		}
+		this.synced = lastIndex();
+		return complete;
+	}
+
+	/**
+	 * Reads the entries of the given segment after the snapshot.
+	 *
+	 * @return the length of the intact part of the segment
+	 */
+	private long readSegment( RandomAccessFile f, long first ) throws IOException
+	{
+		byte[] bytes = new byte[ (int)f.length() ];
+		f.seek( 0 );
+		f.readFully( bytes );
+		ByteBuffer b = ByteBuffer.wrap( bytes );
+		CRC32 crc = new CRC32();
+
+		for( long index = first ; b.remaining() >= HEADER_SIZE ; index++ )
+		{
+			int pos = b.position();
+			int len = b.getInt();
+			int checksum = b.getInt();
+			if( len < 0 || len > b.remaining() - 8 )
+				return pos;
+
+			crc.reset();
+			crc.update( bytes, pos + 8, 8 + len );
+			if( (int)crc.getValue() != checksum )
+				return pos;
+
+			long term = b.getLong();
+			byte[] data = new byte[ len ];
+			b.get( data );
+			if( index == lastIndex() + 1 )
+				this.entries.add( new RaftEntry( term, data ) );
+		}
+		return b.position();
+	}
+
+	/**
+	 * Reads the snapshot file, if there is one.
+	 *
+	 * @return false, if it is damaged
+	 */
+	private boolean readSnapshot() throws IOException
+	{
+		File f = new File( this.dir, SNAPSHOT_FILE );
+		if( !f.exists() )
+			return true;
+
+		DataInputStream in = new DataInputStream( new FileInputStream( f ) );
+		try {
+			long index = in.readLong();
+			long term = in.readLong();
+			int len = in.readInt();
+			int checksum = in.readInt();
+			if( len < 0 || len > f.length() )
+			{
+				logger.warning( "The snapshot \"" + f.getName() + "\" is damaged" );
+				return false;
+			}
+
+			byte[] data = new byte[ len ];
+			in.readFully( data );
+			CRC32 crc = new CRC32();
+			crc.update( data );
+			if( (int)crc.getValue() != checksum )
+			{
+				logger.warning( "The snapshot \"" + f.getName() + "\" is damaged" );
+				return false;
+			}
+
+			this.snapshotIndex = index;
+			this.snapshotTerm = term;
+			this.snapshot = data;
+			return true;
+		} catch( IOException ioex ) {
+			logger.warning( "Couldn't read the snapshot \"" + f.getName() + "\": " + ioex.getMessage() );
+			return false;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Appends the given entry. It is on disk after the next {@link #sync()}.
+	 *
+	 * @param e the entry
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void append( RaftEntry e ) throws IOException
+	{
+		if( this.dir != null )
+		{
+			if( this.channel == null || this.channel.size() >= SEGMENT_SIZE )
+				roll( lastIndex() + 1 );
+
+			byte[] data = e.getData();
+			CRC32 crc = new CRC32();
+			crc.update( ByteBuffer.allocate( 8 ).putLong( e.getTerm() ).array() );
+			crc.update( data );
+
+			ByteBuffer b = ByteBuffer.allocate( HEADER_SIZE + data.length );
+			b.putInt( data.length ).putInt( (int)crc.getValue() ).putLong( e.getTerm() ).put( data );
+			b.flip();
+
+			long pos = this.channel.position();
+			try {
+				while( b.hasRemaining() )
+					this.channel.write( b );
+			} catch( IOException ioex ) {
+				//Don't leave a partial entry for the next one to follow
+				this.channel.truncate( pos );
+				this.channel.position( pos );
+				throw ioex;
+			}
+		}
+
+		this.entries.add( e );
+		if( this.dir == null )
+			this.synced = lastIndex();
+	}
+
+	/**
+	 * Forces the segment written to and the one before to disk, and starts
+	 * a new segment with the given entry.
+	 */
+	private void roll( long first ) throws IOException
+	{
+		if( this.channel != null )
+		{
+			this.channel.force( false );
+			this.channel.close();
+			this.synced = lastIndex();
+		}
+
+		File f = new File( this.dir, String.format( "%s%020d%s", SEGMENT_PREFIX, first, SEGMENT_SUFFIX ) );
+		this.channel = new RandomAccessFile( f, "rw" ).getChannel();
+		this.channel.truncate( 0 );
+		this.segments.put( first, f );
+	}
+
+	/**
+	 * Forces the entries written so far to disk. Appending goes on meanwhile.
+	 *
+	 * @return the index of the last entry on disk
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public long sync() throws IOException
+	{
+		FileChannel c;
+		long upTo;
+		long gen;
+
+		synchronized( this ) {
+			if( this.synced >= lastIndex() )
+				return this.synced;
+			c = this.channel;
+			upTo = lastIndex();
+			gen = this.generation;
+		}
+
+		try {
+			if( c != null )
+				c.force( false );
+		} catch( ClosedChannelException ccex ) {
+			//A new segment was started, which forced this one
+		}
+
+		synchronized( this ) {
+			if( gen == this.generation && upTo > this.synced )
+				this.synced = upTo;
+			return this.synced;
+		}
+	}
+
+	/**
+	 * Removes the given entry and all after it, which were never committed.
+	 *
+	 * @param index the index of the first entry to remove
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void truncateFrom( long index ) throws IOException
+	{
+		if( index <= this.snapshotIndex )
+			throw new IllegalArgumentException( "Entry " + index + " is in the snapshot" );
+		if( index > lastIndex() )
+			return;
+
+		this.entries.subList( (int)(index - this.snapshotIndex - 1), this.entries.size() ).clear();
+		this.synced = Math.min( this.synced, index - 1 );
+		this.generation++;
+
+		if( this.dir == null )
+			return;
+
+		if( this.channel != null )
+			this.channel.close();
+		this.channel = null;
+
+		for( Long first : new ArrayList<Long>( this.segments.tailMap( index, true ).keySet() ) )
+		{
+			File f = this.segments.remove( first );
+			if( !f.delete() )
+				throw new IOException( "Couldn't delete \"" + f.getName() + "\"" );
+		}
+
+		//Go on writing the segment holding the entry before
+		if( !this.segments.isEmpty() )
+		{
+			long first = this.segments.lastKey();
+			FileChannel c = new RandomAccessFile( this.segments.get( first ), "rw" ).getChannel();
+			long pos = 0;
+			ByteBuffer len = ByteBuffer.allocate( 4 );
+			for( long i = first ; i < index ; i++ )
+			{
+				len.clear();
+				c.read( len, pos );
+				pos += HEADER_SIZE + len.getInt( 0 );
+			}
+			c.truncate( pos );
+			c.position( pos );
+			this.channel = c;
+		}
+	}
+
+	/**
+	 * Replaces the entries up to the given one, which were applied, by a
+	 * snapshot of the state they built.
+	 *
+	 * @param index the index of the last entry the snapshot covers
+	 * @param term the term of that entry
+	 * @param data the snapshot
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void compact( long index, long term, byte[] data ) throws IOException
+	{
+		synchronized( this.snapshotLock ) {
+			synchronized( this ) {
+				if( index <= this.snapshotIndex )
+					return;
+			}
+
+			writeSnapshot( index, term, data );
+
+			synchronized( this ) {
+				this.entries.subList( 0, (int)(index - this.snapshotIndex) ).clear();
+				this.snapshotIndex = index;
+				this.snapshotTerm = term;
+				this.snapshot = data;
+				deleteCovered();
+			}
+		}
+	}
+
+	/**
+	 * Installs the snapshot of another member, which covers entries this
+	 * member is missing. Entries after it are kept, if they follow it.
+	 *
+	 * @param index the index of the last entry the snapshot covers
+	 * @param term the term of that entry
+	 * @param data the snapshot
+	 * @return false, if this log already covers the snapshot
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public boolean install( long index, long term, byte[] data ) throws IOException
+	{
+		synchronized( this.snapshotLock ) {
+			synchronized( this ) {
+				if( index <= this.snapshotIndex )
+					return false;
+			}
+
+			writeSnapshot( index, term, data );
+
+			synchronized( this ) {
+				if( index <= lastIndex() && termAt( index ) == term )
+				{
+					this.entries.subList( 0, (int)(index - this.snapshotIndex) ).clear();
+					deleteCovered();
+				}
+				else
+				{
+					this.entries.clear();
+					this.synced = index;
+					this.generation++;
+
+					if( this.channel != null )
+						this.channel.close();
+					this.channel = null;
+					for( File f : this.segments.values() )
+					{
+						if( !f.delete() )
+							logger.warning( "Couldn't delete \"" + f.getName() + "\"" );
+					}
+					this.segments.clear();
+				}
+
+				this.snapshotIndex = index;
+				this.snapshotTerm = term;
+				this.snapshot = data;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Writes the snapshot file, replacing the former one at once.
+	 */
+	private void writeSnapshot( long index, long term, byte[] data ) throws IOException
+	{
+		if( this.dir == null )
+			return;
+
+		CRC32 crc = new CRC32();
+		crc.update( data );
+
+		File file = new File( this.dir, SNAPSHOT_FILE );
+		File temp = new File( this.dir, SNAPSHOT_FILE + ".tmp" );
+		RandomAccessFile f = new RandomAccessFile( temp, "rw" );
+		try {
+			f.setLength( 0 );
+			f.writeLong( index );
+			f.writeLong( term );
+			f.writeInt( data.length );
+			f.writeInt( (int)crc.getValue() );
+			f.write( data );
+			f.getFD().sync();
+		} finally {
+			f.close();
+		}
+
+		if( !temp.renameTo( file ) && !(file.delete() && temp.renameTo( file )) )
+			throw new IOException( "Couldn't replace \"" + file.getName() + "\"" );
+	}
+
+	/**
+	 * Deletes the segments holding only entries of the snapshot. The
+	 * segment written to is kept. Must hold the lock.
+	 */
+	private void deleteCovered()
+	{
+		List<Long> firsts = new ArrayList<Long>( this.segments.keySet() );
+		for( int i=0 ; i < firsts.size() - 1 ; i++ )
+		{
+			if( firsts.get( i + 1 ) > this.snapshotIndex + 1 )
+				break;
+
+			File f = this.segments.remove( firsts.get( i ) );
+			if( !f.delete() )
+				logger.warning( "Couldn't delete \"" + f.getName() + "\"" );
+		}
+	}
+
+	/**
+	 * Closes the segment written to.
+	 */
+	public synchronized void close()
+	{
+		try {
+			if( this.channel != null )
+				this.channel.close();
+		} catch( IOException ioex ) {
+			logger.warning( "Couldn't close the log: " + ioex.getMessage() );
+		}
+		this.channel = null;
+	}
+
+	/**
+	 * Gets the index of the last entry.
+	 *
+	 * @return the index, or the index of the snapshot if there are no entries after it
+	 */
+	public synchronized long lastIndex()
+	{
+		return this.snapshotIndex + this.entries.size();
+	}
+
+	/**
+	 * Gets the term of the last entry.
+	 *
+	 * @return the term
+	 */
+	public synchronized long lastTerm()
+	{
+		return this.entries.isEmpty() ? this.snapshotTerm : this.entries.get( this.entries.size() - 1 ).getTerm();
+	}
+
+	/**
+	 * Gets the term of the given entry.
+	 *
+	 * @param index the index
+	 * @return the term, or -1 if the entry was compacted or doesn't exist
+	 */
+	public synchronized long termAt( long index )
+	{
+		if( index <= 0 )
+			return 0;
+		if( index == this.snapshotIndex )
+			return this.snapshotTerm;
+		if( index < this.snapshotIndex || index > lastIndex() )
+			return -1;
+		return this.entries.get( (int)(index - this.snapshotIndex - 1) ).getTerm();
+	}
+
+	/**
+	 * Gets the given entry.
+	 *
+	 * @param index the index, after the snapshot
+	 * @return the entry
+	 */
+	public synchronized RaftEntry get( long index )
+	{
+		return this.entries.get( (int)(index - this.snapshotIndex - 1) );
+	}
+
+	/**
+	 * Gets the entries within the given range, as many as fit into the
+	 * given number of bytes, but at least one.
+	 *
+	 * @param from the index of the first entry, after the snapshot
+	 * @param to the index of the last entry
+	 * @param maxBytes the maximum size (in bytes) of the entries
+	 * @return the entries
+	 */
+	public synchronized List<RaftEntry> slice( long from, long to, int maxBytes )
+	{
+		List<RaftEntry> ret = new ArrayList<RaftEntry>();
+		long bytes = 0;
+		for( RaftEntry e : this.entries.subList( (int)(from - this.snapshotIndex - 1), (int)(to - this.snapshotIndex) ) )
+		{
+			bytes += e.getData().length;
+			if( !ret.isEmpty() && bytes > maxBytes )
+				break;
+			ret.add( e );
+		}
+		return ret;
+	}
+
+	/**
+	 * Gets the index of the last entry on disk.
+	 *
+	 * @return the index
+	 */
+	public synchronized long getSynced()
+	{
+		return this.synced;
+	}
+
+	/**
+	 * Gets the index of the last entry the snapshot covers.
+	 *
+	 * @return the index, or 0 if there is no snapshot
+	 */
+	public synchronized long getSnapshotIndex()
+	{
+		return this.snapshotIndex;
+	}
+
+	/**
+	 * Gets the term of the last entry the snapshot covers.
+	 *
+	 * @return the term
+	 */
+	public synchronized long getSnapshotTerm()
+	{
+		return this.snapshotTerm;
+	}
+
+	/**
+	 * Gets the snapshot.
+	 *
+	 * @return the snapshot, empty if there is none
+	 */
+	public synchronized byte[] getSnapshot()
+	{
+		return this.snapshot;
+	}
+
+	/**
+	 * Gets the index of the first entry of the given segment file.
+	 */
+	private static long firstOf( File f )
+	{
+		String name = f.getName();
+		return Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+	}
+}
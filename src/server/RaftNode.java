@@ -0,0 +1,1128 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import remote.RaftEntry;
+
+
+/**
+ * A member of a log replicated with the Raft consensus algorithm. One
+ * member is elected leader; it appends the proposed commands to its log
+ * and sends them to the others. An entry is committed once a majority
+ * holds it, and then applied on every member in the same order. A leader
+ * that heard from a majority recently holds a lease, during which no other
+ * leader can be elected, so it may answer reads from its own state.
+ * <p>
+ * The term, the vote and the log are kept on disk: a member acknowledges
+ * entries and the leader counts its own only once they are forced to disk.
+ * A member that lost entries it had, as its log was damaged or deleted,
+ * doesn't vote or stand for election until the leader sent them again.
+ * Every so many applied entries, the log is compacted into a snapshot of
+ * the state; members missing compacted entries get the snapshot instead.
+ * Committed entries are applied again after a restart, so applying an
+ * entry twice must have no effect.
+ */
+public class RaftNode implements Runnable {
+
+	protected static final Logger logger = Logger.getLogger( RaftNode.class.getName() );
+
+	/** What a member currently is. */
+	public enum Role { FOLLOWER, CANDIDATE, LEADER }
+
+	/**
+	 * Applies committed entries, in order.
+	 */
+	public interface Applier {
+
+		/**
+		 * Applies the given committed entry.
+		 *
+		 * @param index the index of the entry
+		 * @param data the commands of the entry
+		 */
+		void apply( long index, byte[] data );
+
+		/**
+		 * Takes a snapshot of the state built by the entries applied so far.
+		 *
+		 * @return the snapshot
+		 */
+		byte[] snapshot();
+
+		/**
+		 * Adds the state of the given snapshot, in place of the entries it covers.
+		 *
+		 * @param data the snapshot
+		 */
+		void restore( byte[] data );
+	}
+
+	final String name;
+	final RaftTransport transport;
+	final Applier applier;
+	final ExecutorService pool;
+	final long electionTimeout;
+	final long heartbeat;
+	final int maxBatch;
+	final int snapshotEntries;
+	final int chunkSize;
+	final File stateFile;
+	final Random random;
+
+	List<String> members;
+	long term;
+	String votedFor;
+	/** Whether the log held entries once, so it can't be empty. */
+	boolean logged;
+	/** Whether entries were lost, which the leader has to send again before voting. */
+	boolean recovering;
+	final RaftLog log;
+	boolean compacting;
+	long commitIndex;
+	long lastApplied;
+	Role role;
+	String leader;
+	long electionDeadline;
+	long lastHeard;
+	boolean wake;
+
+	//Only used while leading
+	final Map<String, Long> nextIndex;
+	final Map<String, Long> matchIndex;
+	final Map<String, Long> lastSent;
+	final Map<String, Long> ackedAt;
+	final Set<String> sending;
+	final Set<String> unreachable;
+	final Map<String, Long> snapshotSent;
+
+	//Only used while receiving a snapshot
+	ByteArrayOutputStream received;
+	long receivedIndex;
+
+	Thread thread;
+	volatile boolean running;
+
+	/**
+	 * Instantiates a new member.
+	 *
+	 * @param name the name of this member
+	 * @param members the names of all members, including this one
+	 * @param transport the transport to the other members
+	 * @param applier applies the committed entries
+	 * @param pool the pool used for calling the other members in parallel
+	 * @param electionTimeout the minimum time (in ms) without a leader before starting an election
+	 * @param heartbeat the maximum time (in ms) between two messages of the leader
+	 * @param maxBatch the maximum number of entries sent in one message
+	 * @param dir the directory keeping the term, the vote and the log, or null to keep them in memory
+	 * @param snapshotEntries the number of applied entries compacted into a snapshot, or 0 to never compact
+	 * @param chunkSize the maximum size (in bytes) of the entries or the snapshot sent in one message
+	 */
+	public RaftNode( String name, Collection<String> members, RaftTransport transport, Applier applier, ExecutorService pool,
+						long electionTimeout, long heartbeat, int maxBatch, File dir, int snapshotEntries, int chunkSize )
+	{
+		this.name = name;
+		this.members = new ArrayList<String>( members );
+		this.transport = transport;
+		this.applier = applier;
+		this.pool = pool;
+		this.electionTimeout = Math.max( 2, electionTimeout );
+		this.heartbeat = Math.max( 1, Math.min( heartbeat, this.electionTimeout / 2 ) );
+		this.maxBatch = Math.max( 1, maxBatch );
+		this.snapshotEntries = snapshotEntries;
+		this.chunkSize = Math.max( 1, chunkSize );
+		this.stateFile = dir != null ? new File( dir, "raft.state" ) : null;
+		this.random = new Random();
+
+		this.log = new RaftLog( dir );
+		this.role = Role.FOLLOWER;
+		this.nextIndex = new HashMap<String, Long>();
+		this.matchIndex = new HashMap<String, Long>();
+		this.lastSent = new HashMap<String, Long>();
+		this.ackedAt = new HashMap<String, Long>();
+		this.sending = new HashSet<String>();
+		this.unreachable = new HashSet<String>();
+		this.snapshotSent = new HashMap<String, Long>();
+	}
+
+	/**
+	 * Starts taking part in elections and replication. The state of the
+	 * snapshot is restored first.
+	 *
+	 * @throws IOException if the term, the vote or the log couldn't be read
+	 */
+	public void start() throws IOException
+	{
+		load();
+		boolean complete = this.log.open();
+
+		synchronized( this ) {
+			if( !complete || (this.logged && this.log.lastIndex() == 0) )
+			{
+				logger.warning( "\"" + this.name + "\" lost entries of its log, it won't vote until the leader sent them again" );
+				this.recovering = true;
+			}
+
+			if( this.log.getSnapshotIndex() > 0 )
+			{
+				this.applier.restore( this.log.getSnapshot() );
+				this.commitIndex = this.lastApplied = this.log.getSnapshotIndex();
+			}
+			resetElection( System.currentTimeMillis() );
+		}
+
+		this.running = true;
+		this.thread = new Thread( this, "raft-" + this.name );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Stops taking part. Proposals still waiting fail.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		if( this.thread != null )
+			this.thread.interrupt();
+
+		synchronized( this ) {
+			this.role = Role.FOLLOWER;
+			this.leader = null;
+			wakeUp();
+		}
+		this.log.close();
+	}
+
+	/**
+	 * Replaces the members. Entries are committed by a majority of the new
+	 * members from then on.
+	 *
+	 * @param members the names of all members, including this one
+	 */
+	public synchronized void setMembers( Collection<String> members )
+	{
+		this.members = new ArrayList<String>( members );
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while( this.running )
+		{
+			try {
+				synchronized( this ) {
+					if( !this.wake )
+						wait( Math.max( 1, this.heartbeat / 4 ) );
+					this.wake = false;
+				}
+			} catch( InterruptedException iex ) {
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			boolean elect = false;
+			boolean sync = false;
+
+			synchronized( this ) {
+				if( this.role == Role.LEADER )
+				{
+					for( String m : this.members )
+					{
+						if( m.equals( this.name ) || this.sending.contains( m ) )
+							continue;
+
+						//Members that couldn't be reached only get a message per heartbeat
+						Long sent = this.lastSent.get( m );
+						boolean behind = nextFor( m ) <= lastIndex() && !this.unreachable.contains( m );
+						if( behind || sent == null || now - sent >= this.heartbeat )
+							send( m, now );
+					}
+
+					//The entries go to disk here while they are sent to the others
+					sync = this.log.getSynced() < lastIndex();
+					advanceCommit();
+				}
+				else if( now >= this.electionDeadline && this.members.contains( this.name ) && !this.recovering )
+					elect = true;
+			}
+
+			if( sync )
+				sync();
+			if( elect )
+				elect( now );
+
+			applyCommitted();
+			compact();
+		}
+	}
+
+	/**
+	 * Forces the leader's entries to disk, and commits those a majority holds.
+	 */
+	private void sync()
+	{
+		try {
+			this.log.sync();
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't write the log: " + ioex.getMessage() );
+		}
+
+		synchronized( this ) {
+			synced();
+			if( this.role == Role.LEADER )
+				advanceCommit();
+		}
+	}
+
+	/**
+	 * Notes that the log holds entries on disk. Must hold the lock.
+	 */
+	private void synced()
+	{
+		if( !this.logged && this.log.getSynced() > 0 )
+		{
+			this.logged = true;
+			save();
+		}
+	}
+
+	/**
+	 * Appends the given entry to the log. Must hold the lock.
+	 *
+	 * @return false, if it couldn't be written
+	 */
+	private boolean append( RaftEntry e )
+	{
+		try {
+			this.log.append( e );
+			return true;
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't write the log: " + ioex.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Compacts the applied entries into a snapshot, once there are enough
+	 * of them. The snapshot is taken here, as only this thread applies
+	 * entries, and written in the background.
+	 */
+	private void compact()
+	{
+		final long index;
+		final long t;
+
+		synchronized( this ) {
+			if( this.snapshotEntries <= 0 || this.compacting || this.lastApplied - this.log.getSnapshotIndex() < this.snapshotEntries )
+				return;
+			index = this.lastApplied;
+			t = termAt( index );
+			this.compacting = true;
+		}
+
+		final byte[] data = this.applier.snapshot();
+		submit( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					log.compact( index, t, data );
+					logger.fine( "\"" + name + "\" compacted its log up to entry " + index );
+				} catch( IOException ioex ) {
+					logger.severe( "Couldn't compact the log: " + ioex.getMessage() );
+				} finally {
+					synchronized( RaftNode.this ) {
+						compacting = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Appends the given commands to the log, if this member is the leader.
+	 *
+	 * @param data the commands
+	 * @return the index and term of the new entry, or null if this member is not the leader
+	 */
+	public synchronized long[] propose( byte[] data )
+	{
+		if( this.role != Role.LEADER || !append( new RaftEntry( this.term, data ) ) )
+			return null;
+
+		//Wake up the loop, so the entry is sent right away
+		wakeUp();
+		return new long[]{ lastIndex(), this.term };
+	}
+
+	/**
+	 * Waits until the given entry was applied.
+	 *
+	 * @param index the index of the entry
+	 * @param term the term it was appended in
+	 * @param timeout the maximum time (in ms) to wait
+	 * @return true, if it was committed and applied, false if another entry took its place, the time is up,
+	 *         or it was compacted before it could be told apart
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public synchronized boolean awaitApplied( long index, long term, long timeout ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while( this.lastApplied < index )
+		{
+			if( index <= lastIndex() && termAt( index ) != term )
+				return false;
+
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 || !this.running )
+				return false;
+			wait( remaining );
+		}
+		return termAt( index ) == term;
+	}
+
+	/**
+	 * Checks if another entry took the place of the given one, so it will
+	 * never be committed.
+	 *
+	 * @param index the index of the entry
+	 * @param term the term it was appended in
+	 * @return true, if an entry of another term was applied at that index, or it was compacted
+	 */
+	public synchronized boolean isReplaced( long index, long term )
+	{
+		return this.lastApplied >= index && termAt( index ) != term;
+	}
+
+	/**
+	 * Waits until this member applied the entries up to the given index.
+	 *
+	 * @param index the index
+	 * @param timeout the maximum time (in ms) to wait
+	 * @return true, if they were applied
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public synchronized boolean awaitApplied( long index, long timeout ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while( this.lastApplied < index )
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 || !this.running )
+				return false;
+			wait( remaining );
+		}
+		return true;
+	}
+
+	/**
+	 * Waits until reads from this member's state see every committed
+	 * entry: it holds a lease, the first entry of its term is committed,
+	 * and all committed entries are applied.
+	 *
+	 * @param timeout the maximum time (in ms) to wait for the entries to be applied
+	 * @return false, if this member can't answer reads
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public synchronized boolean awaitLeaseRead( long timeout ) throws InterruptedException
+	{
+		if( !hasLease() || termAt( this.commitIndex ) != this.term )
+			return false;
+		return awaitApplied( this.commitIndex, timeout );
+	}
+
+	/**
+	 * Checks if this member is the leader and holds a lease, so no other
+	 * leader can have been elected in the meantime.
+	 *
+	 * @return true, if reads may be answered from this member's state
+	 */
+	public synchronized boolean hasLease()
+	{
+		if( this.role != Role.LEADER )
+			return false;
+
+		//Followers don't start an election before the election timeout after
+		//a message of the leader, so a majority that acknowledged a message
+		//sent at some time protects the leader until that time plus the timeout
+		List<Long> acks = new ArrayList<Long>();
+		for( String m : this.members )
+		{
+			if( !m.equals( this.name ) )
+			{
+				Long at = this.ackedAt.get( m );
+				acks.add( at != null ? at : 0L );
+			}
+		}
+
+		int needed = majority() - (this.members.contains( this.name ) ? 1 : 0);
+		if( needed <= 0 )
+			return true;
+		if( acks.size() < needed )
+			return false;
+
+		Long[] sorted = acks.toArray( new Long[ acks.size() ] );
+		Arrays.sort( sorted );
+		long confirmed = sorted[ sorted.length - needed ];
+
+		return System.currentTimeMillis() < confirmed + this.electionTimeout * 9 / 10;
+	}
+
+	/**
+	 * Called when a candidate asks for this member's vote.
+	 *
+	 * @param term the candidate's term
+	 * @param candidate the candidate
+	 * @param lastIndex the index of the candidate's last entry
+	 * @param lastTerm the term of the candidate's last entry
+	 * @return this member's term, and 1 if it voted for the candidate, 0 otherwise
+	 */
+	public synchronized long[] onRequestVote( long term, String candidate, long lastIndex, long lastTerm )
+	{
+		long now = System.currentTimeMillis();
+
+		//While a leader is heard from, servers that lost touch can't disrupt it
+		boolean led = this.role == Role.LEADER || (this.leader != null && now - this.lastHeard < this.electionTimeout);
+		if( led && !candidate.equals( this.leader ) )
+			return new long[]{ this.term, 0 };
+
+		if( term > this.term )
+			stepDown( term, now );
+
+		//Entries this member lost might be the ones the candidate is missing
+		if( this.recovering )
+			return new long[]{ this.term, 0 };
+
+		boolean upToDate = lastTerm > lastTerm() || (lastTerm == lastTerm() && lastIndex >= lastIndex());
+		boolean granted = term == this.term && upToDate && (this.votedFor == null || this.votedFor.equals( candidate ));
+
+		if( granted )
+		{
+			this.votedFor = candidate;
+			save();
+			resetElection( now );
+		}
+		return new long[]{ this.term, granted ? 1 : 0 };
+	}
+
+	/**
+	 * Called when the leader sends entries or a heartbeat.
+	 *
+	 * @param term the leader's term
+	 * @param leader the leader
+	 * @param prevIndex the index of the entry before the sent ones
+	 * @param prevTerm the term of that entry
+	 * @param entries the entries
+	 * @param leaderCommit the index up to which the leader knows entries are committed
+	 * @return this member's term, 1 if it accepted the entries, 0 otherwise, and the index of its last entry
+	 */
+	public synchronized long[] onAppendEntries( long term, String leader, long prevIndex, long prevTerm, List<RaftEntry> entries, long leaderCommit )
+	{
+		long now = System.currentTimeMillis();
+
+		if( term < this.term )
+			return new long[]{ this.term, 0, lastIndex() };
+
+		if( term > this.term || this.role != Role.FOLLOWER )
+			stepDown( term, now );
+		if( !leader.equals( this.leader ) )
+			logger.info( "\"" + leader + "\" leads term " + term );
+		this.leader = leader;
+		this.lastHeard = now;
+		resetElection( now );
+
+		//The entries must continue where the log matches the leader's. The
+		//entries of the snapshot were committed, so they match.
+		long snapshot = this.log.getSnapshotIndex();
+		if( prevIndex > lastIndex() )
+			return new long[]{ this.term, 0, lastIndex() };
+		if( prevIndex >= snapshot && termAt( prevIndex ) != prevTerm )
+			return new long[]{ this.term, 0, prevIndex - 1 };
+
+		long index = prevIndex;
+		boolean written = false;
+		try {
+			for( RaftEntry e : entries )
+			{
+				index++;
+				if( index <= snapshot )
+					continue;
+				if( index <= lastIndex() )
+				{
+					if( termAt( index ) == e.getTerm() )
+						continue;
+
+					//A conflicting entry and everything after it was never committed
+					this.log.truncateFrom( index );
+				}
+				this.log.append( e );
+				written = true;
+			}
+
+			//Acknowledge the entries only once they are on disk
+			if( written )
+				this.log.sync();
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't write the log: " + ioex.getMessage() );
+			return new long[]{ this.term, 0, this.log.getSynced() };
+		}
+		synced();
+
+		if( this.recovering && index >= leaderCommit )
+		{
+			logger.info( "\"" + this.name + "\" got the lost entries of its log again" );
+			this.recovering = false;
+		}
+
+		if( leaderCommit > this.commitIndex )
+		{
+			this.commitIndex = Math.min( leaderCommit, index );
+			wakeUp();
+		}
+		return new long[]{ this.term, 1, lastIndex() };
+	}
+
+	/**
+	 * Called when the leader sends a chunk of its snapshot, in place of
+	 * compacted entries this member is missing.
+	 *
+	 * @param term the leader's term
+	 * @param leader the leader
+	 * @param index the index of the last entry the snapshot covers
+	 * @param lastTerm the term of that entry
+	 * @param offset the offset of the chunk within the snapshot
+	 * @param data the chunk
+	 * @param done true for the last chunk
+	 * @return this member's term, 1 if it accepted the chunk, 0 otherwise, and the offset of the next chunk it expects
+	 */
+	public synchronized long[] onInstallSnapshot( long term, String leader, long index, long lastTerm, long offset, byte[] data, boolean done )
+	{
+		long now = System.currentTimeMillis();
+
+		if( term < this.term )
+			return new long[]{ this.term, 0, 0 };
+
+		if( term > this.term || this.role != Role.FOLLOWER )
+			stepDown( term, now );
+		if( !leader.equals( this.leader ) )
+			logger.info( "\"" + leader + "\" leads term " + term );
+		this.leader = leader;
+		this.lastHeard = now;
+		resetElection( now );
+
+		if( offset == 0 )
+		{
+			this.received = new ByteArrayOutputStream();
+			this.receivedIndex = index;
+		}
+		else if( this.received == null || this.receivedIndex != index || this.received.size() != offset )
+			return new long[]{ this.term, 0, this.received != null && this.receivedIndex == index ? this.received.size() : 0 };
+
+		this.received.write( data, 0, data.length );
+		if( !done )
+			return new long[]{ this.term, 1, this.received.size() };
+
+		byte[] snapshot = this.received.toByteArray();
+		this.received = null;
+		try {
+			if( this.log.install( index, lastTerm, snapshot ) )
+				logger.info( "\"" + this.name + "\" got a snapshot up to entry " + index );
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't write the snapshot: " + ioex.getMessage() );
+			return new long[]{ this.term, 0, 0 };
+		}
+		synced();
+
+		//The loop restores the snapshot in place of the entries
+		if( index > this.commitIndex )
+			this.commitIndex = index;
+		wakeUp();
+		return new long[]{ this.term, 1, offset + data.length };
+	}
+
+	/**
+	 * Starts an election for the next term.
+	 */
+	private void elect( long now )
+	{
+		final long t;
+		final long li, lt;
+		List<String> others = new ArrayList<String>();
+
+		synchronized( this ) {
+			this.term++;
+			this.role = Role.CANDIDATE;
+			this.votedFor = this.name;
+			this.leader = null;
+			save();
+			resetElection( now );
+
+			t = this.term;
+			li = lastIndex();
+			lt = lastTerm();
+			for( String m : this.members )
+			{
+				if( !m.equals( this.name ) )
+					others.add( m );
+			}
+
+			if( majority() <= 1 )
+			{
+				becomeLeader();
+				return;
+			}
+		}
+
+		logger.fine( "\"" + this.name + "\" stands for term " + t );
+
+		final int[] votes = { 1 };
+		for( final String m : others )
+		{
+			submit( new Runnable() {
+				@Override
+				public void run() {
+					long[] ret;
+					try {
+						ret = transport.requestVote( m, t, name, li, lt );
+					} catch( RemoteException rex ) {
+						return;
+					}
+
+					synchronized( RaftNode.this ) {
+						if( ret[0] > term )
+							stepDown( ret[0], System.currentTimeMillis() );
+						else if( ret[1] == 1 && term == t && role == Role.CANDIDATE && ++votes[0] >= majority() )
+							becomeLeader();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs the given task on the pool, unless it was shut down.
+	 */
+	private void submit( Runnable task )
+	{
+		try {
+			this.pool.submit( task );
+		} catch( RejectedExecutionException reex ) {
+			logger.fine( "Not sending, the pool is shut down" );
+		}
+	}
+
+	/**
+	 * Becomes the leader of the current term. Must hold the lock.
+	 */
+	private void becomeLeader()
+	{
+		logger.info( "\"" + this.name + "\" leads term " + this.term );
+
+		this.role = Role.LEADER;
+		this.leader = this.name;
+		this.nextIndex.clear();
+		this.matchIndex.clear();
+		this.lastSent.clear();
+		this.ackedAt.clear();
+		this.unreachable.clear();
+		this.snapshotSent.clear();
+
+		//Entries of earlier terms are only committed along with one of this term
+		if( !append( new RaftEntry( this.term, new byte[0] ) ) )
+		{
+			this.role = Role.FOLLOWER;
+			this.leader = null;
+			return;
+		}
+		wakeUp();
+	}
+
+	/**
+	 * Follows the given term. Must hold the lock.
+	 */
+	private void stepDown( long term, long now )
+	{
+		if( term > this.term )
+		{
+			this.term = term;
+			this.votedFor = null;
+			save();
+		}
+
+		if( this.role != Role.FOLLOWER )
+		{
+			this.role = Role.FOLLOWER;
+			this.leader = null;
+			resetElection( now );
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Sends the next entries, or a heartbeat, to the given member in the background. Must hold the lock.
+	 */
+	private void send( final String m, final long now )
+	{
+		//Compacted entries are sent as the snapshot
+		if( nextFor( m ) <= this.log.getSnapshotIndex() )
+		{
+			sendSnapshot( m, now );
+			return;
+		}
+
+		final long t = this.term;
+		final long prev = nextFor( m ) - 1;
+		final long prevTerm = prev > 0 ? termAt( prev ) : 0;
+		final long commit = this.commitIndex;
+
+		long to = Math.min( lastIndex(), prev + this.maxBatch );
+		final List<RaftEntry> entries = this.log.slice( prev + 1, to, this.chunkSize );
+
+		this.sending.add( m );
+		this.lastSent.put( m, now );
+
+		submit( new Runnable() {
+			@Override
+			public void run() {
+				long[] ret = null;
+				try {
+					ret = transport.appendEntries( m, t, name, prev, prevTerm, entries, commit );
+				} catch( RemoteException rex ) {
+					logger.fine( "Couldn't send entries to \"" + m + "\": " + rex.getMessage() );
+				}
+
+				synchronized( RaftNode.this ) {
+					sending.remove( m );
+					if( ret == null )
+						unreachable.add( m );
+					else
+						unreachable.remove( m );
+
+					if( ret == null || role != Role.LEADER || term != t )
+					{
+						if( ret != null && ret[0] > term )
+							stepDown( ret[0], System.currentTimeMillis() );
+						return;
+					}
+
+					if( ret[0] > term )
+						stepDown( ret[0], System.currentTimeMillis() );
+					else if( ret[1] == 1 )
+					{
+						long match = prev + entries.size();
+						if( match > matchFor( m ) )
+							matchIndex.put( m, match );
+						nextIndex.put( m, match + 1 );
+						ackedAt.put( m, now );
+						advanceCommit();
+
+						//Keep sending while the member is behind
+						if( match < lastIndex() )
+							wakeUp();
+					}
+					else
+					{
+						//Go back to where the member's log may still match
+						ackedAt.put( m, now );
+						nextIndex.put( m, Math.max( 1, Math.min( prev, ret[2] + 1 ) ) );
+						wakeUp();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sends the next chunk of the snapshot to the given member in the background. Must hold the lock.
+	 */
+	private void sendSnapshot( final String m, final long now )
+	{
+		final long t = this.term;
+		final long index = this.log.getSnapshotIndex();
+		final long lastTerm = this.log.getSnapshotTerm();
+		byte[] snapshot = this.log.getSnapshot();
+
+		//Members whose transfer broke off start over
+		Long sent = this.snapshotSent.get( m );
+		final long offset = sent != null && sent <= snapshot.length ? sent : 0;
+		int len = (int)Math.min( this.chunkSize, snapshot.length - offset );
+		final byte[] chunk = Arrays.copyOfRange( snapshot, (int)offset, (int)offset + len );
+		final boolean done = offset + len >= snapshot.length;
+
+		this.sending.add( m );
+		this.lastSent.put( m, now );
+
+		submit( new Runnable() {
+			@Override
+			public void run() {
+				long[] ret = null;
+				try {
+					ret = transport.installSnapshot( m, t, name, index, lastTerm, offset, chunk, done );
+				} catch( RemoteException rex ) {
+					logger.fine( "Couldn't send the snapshot to \"" + m + "\": " + rex.getMessage() );
+				}
+
+				synchronized( RaftNode.this ) {
+					sending.remove( m );
+					if( ret == null )
+						unreachable.add( m );
+					else
+						unreachable.remove( m );
+
+					if( ret == null || role != Role.LEADER || term != t )
+					{
+						if( ret != null && ret[0] > term )
+							stepDown( ret[0], System.currentTimeMillis() );
+						if( ret == null )
+							snapshotSent.remove( m );
+						return;
+					}
+
+					if( ret[0] > term )
+					{
+						stepDown( ret[0], System.currentTimeMillis() );
+						return;
+					}
+
+					ackedAt.put( m, now );
+					if( ret[1] == 1 && done )
+					{
+						snapshotSent.remove( m );
+						if( index > matchFor( m ) )
+							matchIndex.put( m, index );
+						nextIndex.put( m, index + 1 );
+						advanceCommit();
+					}
+					else
+						snapshotSent.put( m, ret[2] );
+					wakeUp();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Commits the entries of the current term a majority holds on disk. Must hold the lock.
+	 */
+	private void advanceCommit()
+	{
+		for( long n = lastIndex() ; n > this.commitIndex ; n-- )
+		{
+			if( termAt( n ) != this.term )
+				break;
+
+			int count = 0;
+			for( String m : this.members )
+			{
+				if( m.equals( this.name ) ? this.log.getSynced() >= n : matchFor( m ) >= n )
+					count++;
+			}
+
+			if( count >= majority() )
+			{
+				this.commitIndex = n;
+				wakeUp();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies the committed entries not yet applied, in order.
+	 */
+	private void applyCommitted()
+	{
+		while( true )
+		{
+			long index;
+			byte[] data;
+			boolean snapshot = false;
+
+			synchronized( this ) {
+				if( this.lastApplied < this.log.getSnapshotIndex() )
+				{
+					//The leader sent a snapshot in place of entries not applied here
+					index = this.log.getSnapshotIndex();
+					data = this.log.getSnapshot();
+					snapshot = true;
+				}
+				else if( this.lastApplied >= this.commitIndex )
+					return;
+				else
+				{
+					index = this.lastApplied + 1;
+					data = this.log.get( index ).getData();
+				}
+			}
+
+			try {
+				if( snapshot )
+					this.applier.restore( data );
+				else if( data.length > 0 )
+					this.applier.apply( index, data );
+			} catch( RuntimeException rex ) {
+				logger.severe( "Couldn't apply entry " + index + ": " + rex );
+			}
+
+			synchronized( this ) {
+				if( index > this.lastApplied )
+					this.lastApplied = index;
+				wakeUp();
+			}
+		}
+	}
+
+	/**
+	 * Wakes up the loop and everybody waiting for entries. Must hold the lock.
+	 */
+	private void wakeUp()
+	{
+		this.wake = true;
+		notifyAll();
+	}
+
+	private long nextFor( String m )
+	{
+		Long ret = this.nextIndex.get( m );
+		return ret != null ? ret : lastIndex() + 1;
+	}
+
+	private long matchFor( String m )
+	{
+		Long ret = this.matchIndex.get( m );
+		return ret != null ? ret : 0;
+	}
+
+	private int majority()
+	{
+		return this.members.size() / 2 + 1;
+	}
+
+	private void resetElection( long now )
+	{
+		this.electionDeadline = now + this.electionTimeout + (long)(this.random.nextDouble() * this.electionTimeout);
+	}
+
+	private long lastIndex()
+	{
+		return this.log.lastIndex();
+	}
+
+	private long lastTerm()
+	{
+		return this.log.lastTerm();
+	}
+
+	private long termAt( long index )
+	{
+		return this.log.termAt( index );
+	}
+
+	/**
+	 * Reads the term, the vote and whether the log held entries, if they are kept on disk.
+	 */
+	private synchronized void load() throws IOException
+	{
+		if( this.stateFile == null || !this.stateFile.exists() )
+			return;
+
+		RandomAccessFile f = new RandomAccessFile( this.stateFile, "r" );
+		try {
+			this.term = f.readLong();
+			String vote = f.readUTF();
+			this.votedFor = vote.length() > 0 ? vote : null;
+			this.logged = f.getFilePointer() < f.length() && f.readBoolean();
+		} finally {
+			f.close();
+		}
+	}
+
+	/**
+	 * Writes the term, the vote and whether the log held entries to disk, before answering anybody. Must hold the lock.
+	 */
+	private void save()
+	{
+		if( this.stateFile == null )
+			return;
+
+		try {
+			this.stateFile.getParentFile().mkdirs();
+			RandomAccessFile f = new RandomAccessFile( this.stateFile, "rw" );
+			try {
+				f.setLength( 0 );
+				f.writeLong( this.term );
+				f.writeUTF( this.votedFor != null ? this.votedFor : "" );
+				f.writeBoolean( this.logged );
+				f.getFD().sync();
+			} finally {
+				f.close();
+			}
+		} catch( IOException ioex ) {
+			logger.severe( "Couldn't save the term: " + ioex.getMessage() );
+		}
+	}
+
+	/**
+	 * Gets the name of the current leader.
+	 *
+	 * @return the leader, or null if unknown
+	 */
+	public synchronized String getLeader() {
+		return leader;
+	}
+
+	/**
+	 * Gets the role of this member.
+	 *
+	 * @return the role
+	 */
+	public synchronized Role getRole() {
+		return role;
+	}
+
+	/**
+	 * Gets the current term.
+	 *
+	 * @return the term
+	 */
+	public synchronized long getTerm() {
+		return term;
+	}
+
+	/**
+	 * Gets the index of the last committed entry.
+	 *
+	 * @return the commit index
+	 */
+	public synchronized long getCommitIndex() {
+		return commitIndex;
+	}
+
+	/**
+	 * Gets the name of this member.
+	 *
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+}
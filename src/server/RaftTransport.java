@@ -0,0 +1,58 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+import remote.RaftEntry;
+
+
+/**
+ * Carries the messages of the replicated log between its members.
+ */
+public interface RaftTransport {
+
+	/**
+	 * Asks the given member for its vote.
+	 *
+	 * @param to the member
+	 * @param term the candidate's term
+	 * @param candidate the candidate
+	 * @param lastIndex the index of the candidate's last entry
+	 * @param lastTerm the term of the candidate's last entry
+	 * @return the member's term, and 1 if it voted for the candidate, 0 otherwise
+	 * @throws RemoteException if the member couldn't be reached
+	 */
+	long[] requestVote( String to, long term, String candidate, long lastIndex, long lastTerm ) throws RemoteException;
+
+	/**
+	 * Sends entries to the given member, or nothing as a heartbeat.
+	 *
+	 * @param to the member
+	 * @param term the leader's term
+	 * @param leader the leader
+	 * @param prevIndex the index of the entry before the sent ones
+	 * @param prevTerm the term of that entry
+	 * @param entries the entries
+	 * @param commitIndex the index up to which the leader knows entries are committed
+	 * @return the member's term, 1 if it accepted the entries, 0 otherwise, and the index of its last entry
+	 * @throws RemoteException if the member couldn't be reached
+	 */
+	long[] appendEntries( String to, long term, String leader, long prevIndex, long prevTerm, List<RaftEntry> entries, long commitIndex ) throws RemoteException;
+
+	/**
+	 * Sends a chunk of the leader's snapshot to the given member, in place
+	 * of compacted entries it is missing.
+	 *
+	 * @param to the member
+	 * @param term the leader's term
+	 * @param leader the leader
+	 * @param index the index of the last entry the snapshot covers
+	 * @param lastTerm the term of that entry
+	 * @param offset the offset of the chunk within the snapshot
+	 * @param data the chunk
+	 * @param done true for the last chunk
+	 * @return the member's term, 1 if it accepted the chunk, 0 otherwise, and the offset of the next chunk it expects
+	 * @throws RemoteException if the member couldn't be reached
+	 */
+	long[] installSnapshot( String to, long term, String leader, long index, long lastTerm, long offset, byte[] data, boolean done ) throws RemoteException;
+}
@@ -0,0 +1,320 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import remote.IRemoteServer;
+
+
+/**
+ * Sends the changes of the events created at this server to the other
+ * servers holding them, in the background. Changes are queued per peer and
+ * sent in batches, one batch per peer at a time, so every peer receives
+ * them in the order they were applied here. Peers that received nothing
+ * for a while get an empty batch, which tells them they are up to date.
+ */
+public class Replicator implements Runnable {
+
+	protected static final Logger logger = Logger.getLogger( Replicator.class.getName() );
+
+	Server server;
+	long interval;
+	long heartbeat;
+	int maxBatch;
+	int maxPending;
+
+	ConcurrentHashMap<String, Peer> peers;
+	Thread thread;
+	volatile boolean running;
+
+	/**
+	 * The changes not yet sent to a single peer.
+	 */
+	class Peer {
+		final String name;
+		final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+		/** The resent changes not yet sent, and how many of them are queued. */
+		final Set<byte[]> resent = Collections.newSetFromMap( new IdentityHashMap<byte[], Boolean>() );
+		int resentQueued;
+		boolean busy;
+		long lastSent;
+		int dropped;
+		/** The number of changes ever queued, and of those sent or dropped. */
+		long queued;
+		long done;
+
+		Peer( String name ) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Instantiates a new replicator.
+	 *
+	 * @param server the server
+	 * @param interval the time (in ms) between two batches
+	 * @param heartbeat the maximum time (in ms) between two batches to the same peer
+	 * @param maxBatch the maximum number of changes per batch
+	 * @param maxPending the maximum number of changes queued for a peer, older ones are dropped
+	 */
+	public Replicator( Server server, long interval, long heartbeat, int maxBatch, int maxPending )
+	{
+		this.server = server;
+		this.interval = Math.max( 1, interval );
+		this.heartbeat = heartbeat;
+		this.maxBatch = Math.max( 1, maxBatch );
+		this.maxPending = Math.max( this.maxBatch, maxPending );
+		this.peers = new ConcurrentHashMap<String, Peer>();
+	}
+
+	/**
+	 * Start replicating.
+	 */
+	public void start()
+	{
+		this.running = true;
+		this.thread = new Thread( this, "replicator" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Stop replicating. Changes not yet sent are dropped, the peers get the
+	 * current state when they catch up.
+	 */
+	public void stop()
+	{
+		this.running = false;
+		if( this.thread != null )
+			this.thread.interrupt();
+	}
+
+	/**
+	 * Queues the given change for the given servers. Must be called in the
+	 * order the changes were applied, that is by the shard worker of the
+	 * changed event or while holding its lock.
+	 *
+	 * @param r the change
+	 * @param targets the servers
+	 */
+	public void replicate( LogRecord r, List<String> targets )
+	{
+		byte[] data = null;
+
+		for( String target : targets )
+		{
+			if( target.equals( this.server.getName() ) )
+				continue;
+
+			if( data == null )
+				data = r.encode();
+
+			Peer p = peerFor( target );
+			synchronized( p ) {
+				p.queue.add( data );
+				p.queued++;
+				trim( p );
+			}
+		}
+	}
+
+	/**
+	 * Queues the given changes rebuilding an event for the given server,
+	 * which lost changes before. These are never dropped and don't count
+	 * towards the maximum number of queued changes, their number is
+	 * bounded by the events the server holds. Must be called like
+	 * {@link #replicate(LogRecord, List)}.
+	 *
+	 * @param records the changes
+	 * @param target the server
+	 * @return the number of changes queued for the server so far
+	 */
+	public long resend( List<LogRecord> records, String target )
+	{
+		Peer p = peerFor( target );
+		synchronized( p ) {
+			for( LogRecord r : records )
+			{
+				byte[] data = r.encode();
+				p.queue.add( data );
+				p.resent.add( data );
+			}
+			p.resentQueued += records.size();
+			p.queued += records.size();
+			return p.queued;
+		}
+	}
+
+	/**
+	 * Waits until the given number of changes queued for the given server
+	 * was sent (or dropped).
+	 *
+	 * @param target the server
+	 * @param count the number of changes
+	 * @param timeout the maximum time (in ms) to wait without any change being sent
+	 * @return true, if they were sent, false if sending got stuck
+	 * @throws InterruptedException if the thread was interrupted
+	 */
+	public boolean awaitSent( String target, long count, long timeout ) throws InterruptedException
+	{
+		Peer p = peerFor( target );
+		synchronized( p ) {
+			while( p.done < count )
+			{
+				long before = p.done;
+				p.wait( timeout );
+				if( p.done == before )
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while( this.running )
+		{
+			try {
+				Thread.sleep( this.interval );
+			} catch( InterruptedException iex ) {
+				continue;
+			}
+
+			for( String name : this.server.getPeers().keySet() )
+				peerFor( name );
+
+			long now = System.currentTimeMillis();
+			for( Peer p : this.peers.values() )
+				send( p, now );
+		}
+	}
+
+	/**
+	 * Sends the next batch to the given peer, unless the previous one is still on its way.
+	 */
+	private void send( final Peer p, long now )
+	{
+		final List<byte[]> batch;
+		final boolean gap;
+
+		synchronized( p ) {
+			if( p.busy || (p.queue.isEmpty() && now - p.lastSent < this.heartbeat) )
+				return;
+
+			gap = p.dropped > 0;
+			if( gap )
+			{
+				logger.warning( "Dropped " + p.dropped + " changes for \"" + p.name + "\", it will only see them after catching up" );
+				p.dropped = 0;
+			}
+
+			batch = new ArrayList<byte[]>( Math.min( p.queue.size(), this.maxBatch ) );
+			while( batch.size() < this.maxBatch && !p.queue.isEmpty() )
+			{
+				byte[] data = p.queue.removeFirst();
+				if( p.resent.contains( data ) )
+					p.resentQueued--;
+				batch.add( data );
+			}
+
+			p.busy = true;
+			p.lastSent = now;
+		}
+
+		final IRemoteServer peer = this.server.getServer( p.name );
+		if( peer == null )
+		{
+			requeue( p, batch, gap );
+			return;
+		}
+
+		this.server.getExecutor().submit( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					peer.replicate( server.getName(), batch, gap );
+					server.getMetrics().counter( "replication.sent" ).addAndGet( batch.size() );
+
+					synchronized( p ) {
+						p.busy = false;
+						p.done += batch.size();
+						p.resent.removeAll( batch );
+						p.notifyAll();
+					}
+				} catch( RemoteException rex ) {
+					server.getMetrics().counter( "replication.failed" ).incrementAndGet();
+					logger.fine( "Couldn't replicate to \"" + p.name + "\": " + rex.getMessage() );
+					requeue( p, batch, gap );
+				} catch( RuntimeException rex ) {
+					//Thrown by the peer and passed on unwrapped by RMI
+					server.getMetrics().counter( "replication.failed" ).incrementAndGet();
+					logger.warning( "Couldn't replicate to \"" + p.name + "\": " + rex );
+					requeue( p, batch, gap );
+				}
+			}
+		});
+	}
+
+	/**
+	 * Puts a batch that couldn't be sent back in front of the queue, to be sent again.
+	 */
+	private void requeue( Peer p, List<byte[]> batch, boolean gap )
+	{
+		synchronized( p ) {
+			p.queue.addAll( 0, batch );
+			for( byte[] data : batch )
+			{
+				if( p.resent.contains( data ) )
+					p.resentQueued++;
+			}
+			if( gap )
+				p.dropped++;
+			trim( p );
+			p.busy = false;
+		}
+	}
+
+	/**
+	 * Drops the oldest changes queued for the given peer while there are
+	 * more than the maximum, except resent ones. Must hold the peer.
+	 */
+	private void trim( Peer p )
+	{
+		Iterator<byte[]> it = p.queue.iterator();
+		while( p.queue.size() - p.resentQueued > this.maxPending && it.hasNext() )
+		{
+			if( p.resent.contains( it.next() ) )
+				continue;
+			it.remove();
+			p.dropped++;
+			p.done++;
+		}
+	}
+
+	/**
+	 * Gets the queue of the given peer, creating it if necessary.
+	 */
+	private Peer peerFor( String name )
+	{
+		Peer ret = this.peers.get( name );
+		if( ret == null )
+		{
+			ret = new Peer( name );
+			Peer prev = this.peers.putIfAbsent( name, ret );
+			if( prev != null )
+				ret = prev;
+		}
+		return ret;
+	}
+}
@@ -1,26 +1,52 @@
 package server;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.rmi.AlreadyBoundException;
 import java.rmi.NoSuchObjectException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import remote.Distributor;
+import remote.EventPage;
+import remote.EventQuery;
+import remote.EventSummary;
+import remote.EventUpdate;
 import remote.IDistributor;
 import remote.IRemoteServer;
+import remote.MemberView;
 import cmd.BooleanParameter;
 import cmd.CommandLineParser;
 import cmd.StringParameter;
 import entities.Event;
+import entities.EventInfo;
 import entities.RegistryInfo;
+import entities.ServerConfig;
 import entities.User;
 import exceptions.ParseException;
 import exceptions.ValidationException;
@@ -32,12 +58,15 @@ public class Server {
 	
 	static final Logger logger = Logger.getLogger( Server.class.getName() );
 	static final String PROPERTIES_FILE = "registry.properties";
+	static final String CONFIG_FILE = "server.properties";
 	
 	
 	private String bindingName;
 	private boolean initRegistry;
-	private String[] serverNames;
+	/** The servers of the network, including this one. Replaced as a whole on changes. */
+	private volatile MemberView view;
 	private RegistryInfo regInfo;
+	private ServerConfig config;
 	private Registry reg;
 	
 	/** servers. */
@@ -46,9 +75,58 @@ public class Server {
 	private ConcurrentHashMap<String, User> users;
 	/** events. */
 	private ConcurrentHashMap<String, Event> events;
+	/** vote tallies, versions and snapshots of the events. */
+	private ConcurrentHashMap<String, EventState> eventStates;
 	
 	/** The distributor interface. */
 	Distributor dist;
+	
+	/** The pool used for calling other servers in parallel. */
+	private ExecutorService executor;
+	/** Batches registrations and event creations. */
+	private GroupCommitter groupCommitter;
+	/** Decides which servers hold which users and events. */
+	private HashRing ring;
+	/** Applies all changes to users and events. */
+	private StateMachine stateMachine;
+	/** Records all changes to users and events. */
+	private WriteAheadLog wal;
+	/** Takes snapshots and compacts the log. */
+	private Snapshotter snapshotter;
+	/** The directory for the log, snapshots and transfers. */
+	private File dataDir;
+	/** Sends the state to servers catching up. */
+	private StateTransfer stateTransfer;
+	/** The user and event names taken anywhere in the network. */
+	private BloomFilter userFilter;
+	private BloomFilter eventFilter;
+	/** The events of each user, for listing them. */
+	private UserIndex userIndex;
+	/** The events by author, location and date option. */
+	private EventIndex eventIndex;
+	/** Tells participants about finalized events. */
+	private Notifier notifier;
+	/** Finalizes events at their voting deadline. */
+	private Deadlines deadlines;
+	/** Counters and gauges. */
+	private Metrics metrics;
+	/** Whether catching up with the other servers has been started or finished. */
+	private AtomicBoolean catchingUp;
+	private AtomicLong catchUpRound;
+	private Set<String> caughtUpWith;
+	private volatile boolean caughtUp;
+	/** Locks ordering the changes of the same user or event in the log. */
+	private Object[] locks;
+	/** Workers owning the events, null if events are locked instead. */
+	private EventShards shards;
+	/** Sends changes of the events created here to the other servers holding them. */
+	private Replicator replicator;
+	/** When each server last sent all changes of its events, servers that lost some are missing. */
+	private ConcurrentHashMap<String, Long> replicatedAt;
+	/** The servers changes were lost from, with the number of the last gap noticed. */
+	private ConcurrentHashMap<String, Long> replicationGaps;
+	private AtomicLong gapCounter;
+	private Set<String> resyncing;
 
 	
 	/**
@@ -68,10 +146,115 @@ public class Server {
 	public ConcurrentHashMap<String, Event> getEvents() {
 		return this.events;
 	}
+	
+	/**
+	 * Gets the vote tally, version and snapshot of the given event.
+	 * 
+	 * @param name the event name
+	 * @return the event state, or null if this server doesn't hold the event
+	 */
+	public EventState getEventState( String name ) {
+		return this.eventStates.get( name );
+	}
+	
+	/**
+	 * Gets the date currently leading the votes of the given event, or its
+	 * final date, if the event is finalized.
+	 * 
+	 * @param name the event name
+	 * @return the date, or null if this server doesn't hold the event or it has no date options
+	 */
+	public Date getLeader( final String name ) throws RemoteException {
+		return readEvent( name, new EventReader<Date>() {
+			@Override
+			public Date read( Event e ) {
+				if( e.isFinalized() )
+					return e.getFinalizedDate();
+				
+				EventState state = eventStates.get( name );
+				return state != null ? state.getTally().getLeader() : null;
+			}
+		});
+	}
+	
+	/**
+	 * Gets information about the given event.
+	 * 
+	 * @param name the event name
+	 * @return the event info, or null if this server doesn't hold the event
+	 * @throws RemoteException the remote exception
+	 */
+	public EventInfo getEventInfo( String name ) throws RemoteException {
+		EventSnapshot snap = getEventSnapshot( name );
+		return snap != null ? snap.getInfo() : null;
+	}
+	
+	/**
+	 * Gets a snapshot of the current version of the given event. Snapshots
+	 * are only taken when a version is read for the first time, reading an
+	 * unchanged event again just returns the same snapshot.
+	 * 
+	 * @param name the event name
+	 * @return the snapshot, or null if this server doesn't hold the event
+	 * @throws RemoteException the remote exception
+	 */
+	public EventSnapshot getEventSnapshot( String name ) throws RemoteException {
+		final EventState state = this.eventStates.get( name );
+		if( state == null )
+			return null;
+		
+		EventSnapshot ret = state.getSnapshot();
+		if( ret != null )
+		{
+			this.metrics.counter( "snapshots.hits" ).incrementAndGet();
+			return ret;
+		}
+		
+		//Changed since the last read, take a new snapshot where no change can interfere
+		ret = readEvent( name, new EventReader<EventSnapshot>() {
+			@Override
+			public EventSnapshot read( Event e ) {
+				return EventSnapshot.of( e, state.getVersion() );
+			}
+		});
+		
+		if( ret != null )
+		{
+			this.metrics.counter( "snapshots.taken" ).incrementAndGet();
+			state.offer( ret );
+		}
+		return ret;
+	}
+	
+	/**
+	 * Gets the vote tally, version and snapshot of the given event, creating them if necessary.
+	 * 
+	 * @param name the event name
+	 * @return the event state
+	 */
+	EventState stateFor( String name ) {
+		EventState ret = this.eventStates.get( name );
+		if( ret == null )
+		{
+			EventState prev = this.eventStates.putIfAbsent( name, ret = new EventState( this.config.getEventHistory() ) );
+			if( prev != null )
+				ret = prev;
+		}
+		return ret;
+	}
 
 
-	/** The lookup task. */
-	private LookupTask lookupTask;
+	/** Keeps track of which other servers are alive. */
+	private Membership membership;
+	
+	/** The users and events of the network, replicated to all servers. */
+	private Metadata metadata;
+	
+	/** The connections to the other servers, alive or not. */
+	private Connections connections;
+	
+	/** The nio transport for calls between servers, or null to use RMI. */
+	private NioTransport transport;
 	
 	/** The stub. */
 	private IDistributor stub;
@@ -83,19 +266,135 @@ public class Server {
 	 * @param bindingName the binding name
 	 * @param initRegistry the init registry
 	 * @param regInfo the reg info
-	 * @param serverNames the server names
+	 * @param config the server config
+	 * @param serverNames the names of the other servers to start with, more may join later
 	 */
-	public Server( String bindingName, boolean initRegistry, RegistryInfo regInfo, String...serverNames )
+	public Server( String bindingName, boolean initRegistry, RegistryInfo regInfo, ServerConfig config, String...serverNames )
 	{
 		this.bindingName = bindingName;
 		this.initRegistry = initRegistry;
-		this.serverNames = serverNames;
 		this.regInfo = regInfo;
+		this.config = config;
 		
 		this.servers = new ConcurrentHashMap<String, IRemoteServer>();
+		if( "nio".equals( config.getTransport() ) )
+			this.transport = new NioTransport( hostName(), config.getTransportPort(), config.getTransportWorkers(),
+												config.getTransportDirectThreshold(), config.getTransportTimeout() );
+		else if( !"rmi".equals( config.getTransport() ) )
+			logger.warning( "Unknown transport \"" + config.getTransport() + "\", using rmi" );
+		this.connections = new Connections( this, this.transport, config.getPeerFailures(), config.getPeerBackoffMin(), config.getPeerBackoffMax() );
 		this.users = new ConcurrentHashMap<String, User>();
 		this.events = new ConcurrentHashMap<String, Event>();
-		this.lookupTask = new LookupTask( this );
+		this.eventStates = new ConcurrentHashMap<String, EventState>();
+		this.replicator = new Replicator( this, config.getReplicationInterval(), config.getReplicationHeartbeat(),
+											config.getReplicationBatch(), config.getReplicationMaxPending() );
+		this.replicatedAt = new ConcurrentHashMap<String, Long>();
+		this.replicationGaps = new ConcurrentHashMap<String, Long>();
+		this.gapCounter = new AtomicLong();
+		this.resyncing = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+		if( config.getEventShards() > 0 )
+			this.shards = new EventShards( "event-shard", config.getEventShards() );
+		this.executor = Executors.newCachedThreadPool();
+		this.groupCommitter = new GroupCommitter( this, config.getBatchWindow(), config.getBatchSize() );
+		
+		//Servers started together with the same names agree on the first view
+		List<String> members = new ArrayList<String>();
+		members.add( bindingName );
+		for( String name : serverNames )
+		{
+			if( name.length() > 0 && !name.equals( "-" ) )
+				members.add( name );
+		}
+		this.view = new MemberView( 0, members );
+		this.ring = new HashRing( config.getRingVirtualNodes() );
+		this.ring.setMembers( this.view.getMembers() );
+		this.membership = new Membership( this, config.getMembershipHeartbeat(), config.getMembershipWindow(), config.getMembershipMinStdDev(),
+											config.getMembershipPhiSuspect(), config.getMembershipPhiDown() );
+		
+		this.stateMachine = new StateMachine( this );
+		this.dataDir = new File( config.getWalDir(), bindingName );
+		this.stateTransfer = new StateTransfer( this, this.dataDir, config.getTransferChunkSize(), config.getTransferExpiry() );
+		this.metadata = new Metadata( this, this.dataDir );
+		this.catchingUp = new AtomicBoolean();
+		this.catchUpRound = new AtomicLong();
+		this.caughtUpWith = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+		
+		this.userFilter = new BloomFilter( config.getFilterBits(), config.getFilterHashes() );
+		this.eventFilter = new BloomFilter( config.getFilterBits(), config.getFilterHashes() );
+		this.userIndex = new UserIndex();
+		this.eventIndex = new EventIndex();
+		this.notifier = new Notifier( this );
+		this.deadlines = new Deadlines( this, config.getDeadlineTick() );
+		this.metrics = new Metrics();
+		this.metrics.gauge( "membership.alive", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return membership.getAlive();
+			}
+		});
+		this.metrics.gauge( "metadata.leader", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return metadata.getRaft().getLeader();
+			}
+		});
+		this.metrics.gauge( "metadata.commit", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return metadata.getRaft().getCommitIndex();
+			}
+		});
+		this.metrics.gauge( "inbox.size", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return notifier.getInboxSize();
+			}
+		});
+		this.metrics.gauge( "inbox.memory", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return notifier.getInboxMemory();
+			}
+		});
+		this.metrics.gauge( "deadlines.pending", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return deadlines.size();
+			}
+		});
+		this.metrics.gauge( "index.entries", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return eventIndex.getEntries();
+			}
+		});
+		this.metrics.gauge( "index.memory", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return eventIndex.getMemory();
+			}
+		});
+		this.metrics.gauge( "filter.users.fpr", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return String.format( "%.6f", userFilter.getFalsePositiveRate() );
+			}
+		});
+		this.metrics.gauge( "filter.events.fpr", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return String.format( "%.6f", eventFilter.getFalsePositiveRate() );
+			}
+		});
+		this.metrics.gauge( "filter.memory", new Metrics.Gauge() {
+			@Override
+			public Object getValue() {
+				return userFilter.getMemory() + eventFilter.getMemory();
+			}
+		});
+		this.locks = new Object[64];
+		for( int i=0 ; i < this.locks.length ; i++ )
+			this.locks[i] = new Object();
 	}
 	
 
@@ -108,7 +407,7 @@ public class Server {
 	
 		final StringParameter PRM_BINDINGNAME = new StringParameter( "bindingName", "the name this server shall use to bind its remote reference in the RMI registry." );;
 		final BooleanParameter PRM_INITREGISTRY = new BooleanParameter( "initRegistry", "a boolean value, i.e. either true or false, indicating whether this server is responsible for creating the RMI registry or not." );
-		final StringParameter PRM_SERVERNAMES = new StringParameter( "serverNames", "a list of names, separated by space characters, indicating the name of the other servers' remote references." );
+		final StringParameter PRM_SERVERNAMES = new StringParameter( "serverNames", "a list of names, separated by space characters, indicating the name of the other servers' remote references. It is enough to name some servers of a running network, or - to start a new network." );
 		final CommandLineParser clp = new CommandLineParser( "java server.Server", "Server for the lab2 event scheduling system." );
 		clp.addParameters( PRM_BINDINGNAME, PRM_INITREGISTRY, PRM_SERVERNAMES );
 		
@@ -132,8 +431,10 @@ public class Server {
 		}
 		
 		RegistryInfo regInfo = null;
+		ServerConfig config = null;
 		try{
 			regInfo = RegistryInfo.readRegistryInfo( PROPERTIES_FILE );
+			config = ServerConfig.readServerConfig( CONFIG_FILE );
 		}catch( ParseException pex )
 		{
 			logger.severe( "Couldn't read properties file: " + pex.getMessage() );
@@ -152,6 +453,7 @@ public class Server {
 		Server srv = new Server(	PRM_BINDINGNAME.getValue(),
 									PRM_INITREGISTRY.getValue(),
 									regInfo,
+									config,
 									PRM_SERVERNAMES.getValue().split( "\\s" ) );
 
 		if( !srv.start() )
@@ -184,17 +486,41 @@ public class Server {
 	{
 		reg = null;
 		
+		//Restore the state from the log before accepting any requests
+		try{
+			recover();
+		}catch( IOException ioex )
+		{
+			logger.severe( "Couldn't read the write-ahead log: " + ioex.getMessage() );
+			return false;
+		}
+		
+		try{
+			this.metadata.start();
+		}catch( IOException ioex )
+		{
+			logger.severe( "Couldn't read the state of the metadata log: " + ioex.getMessage() );
+			return false;
+		}
+		
 		//Create or connect to the registry
 		try{
 			reg = this.regInfo.connect( this.initRegistry );
 			this.dist = new Distributor( this );
 			this.stub = (IDistributor)UnicastRemoteObject.exportObject( dist, 0 );
-			reg.bind( this.bindingName, this.stub );
+			if( this.transport != null )
+				this.transport.start( this.dist.getRemoteServer() );
+			bind();
 			
+			this.membership.start();
 		}catch( RemoteException rex )
 		{
 			logger.severe( "Remote error: " + rex.getMessage() );
 			return false;
+		}catch( IOException ioex )
+		{
+			logger.severe( "Couldn't start the nio transport: " + ioex.getMessage() );
+			return false;
 		}catch( AlreadyBoundException abex )
 		{
 			logger.severe( "The binding name \"" + this.bindingName + "\" is already in use. Maybe this server is already started?" );
@@ -203,19 +529,112 @@ public class Server {
 		
 		logger.info( "\"" + this.bindingName + "\" started up" );
 		
-		this.lookupTask.start();
+		this.groupCommitter.start();
+		this.replicator.start();
+		this.metrics.start( this.config.getMetricsInterval() );
+		this.notifier.start();
+		this.deadlines.start();
 		
 		
 		return true;
 	}
 	
 	
+	/**
+	 * Gets the host other servers reach this one at, the same RMI uses.
+	 * 
+	 * @return the host name or address
+	 */
+	private static String hostName()
+	{
+		String host = System.getProperty( "java.rmi.server.hostname" );
+		if( host != null )
+			return host;
+		
+		try {
+			return InetAddress.getLocalHost().getHostAddress();
+		} catch( UnknownHostException uhex ) {
+			return "127.0.0.1";
+		}
+	}
+	
+	/**
+	 * Binds this server in the registry. A server that crashed leaves its
+	 * binding behind, which is taken over if the server is gone, twice a
+	 * heartbeat apart, so a server that only paused keeps its name.
+	 * 
+	 * @throws RemoteException if the registry couldn't be reached
+	 * @throws AlreadyBoundException if the name is used by a running server
+	 */
+	private void bind() throws RemoteException, AlreadyBoundException
+	{
+		try {
+			this.reg.bind( this.bindingName, this.stub );
+		} catch( AlreadyBoundException abex ) {
+			if( !isBindingGone() )
+				throw abex;
+			
+			try {
+				Thread.sleep( this.config.getMembershipHeartbeat() );
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+				throw abex;
+			}
+			if( !isBindingGone() )
+				throw abex;
+			
+			logger.warning( "Taking over the binding of \"" + this.bindingName + "\" from a server that is gone" );
+			this.reg.rebind( this.bindingName, this.stub );
+		}
+	}
+	
+	/**
+	 * Checks if the server bound with this server's name is gone.
+	 */
+	private boolean isBindingGone() throws RemoteException
+	{
+		try {
+			((IDistributor)this.reg.lookup( this.bindingName )).getRemoteServer();
+			return false;
+		} catch( NotBoundException nbex ) {
+			logger.fine( "The old binding of \"" + this.bindingName + "\" is gone" );
+			return true;
+		} catch( RemoteException rex ) {
+			return PeerConnection.isGone( rex );
+		}
+	}
+	
 	/**
 	 * Stop.
 	 */
 	public void stop()
 	{
-		this.lookupTask.stop();
+		this.membership.leave();
+		this.membership.stop();
+		this.groupCommitter.stop();
+		this.metadata.stop();
+		this.connections.stop();
+		if( this.transport != null )
+			this.transport.stop();
+		this.replicator.stop();
+		this.metrics.stop();
+		this.notifier.stop();
+		this.deadlines.stop();
+		this.executor.shutdown();
+		if( this.shards != null )
+		{
+			try {
+				this.shards.shutdown( this.config.getCommitTimeout() );
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		this.stateTransfer.close();
+		if( this.snapshotter != null )
+			this.snapshotter.stop();
+		if( this.wal != null )
+			this.wal.close();
 		
 		if( this.stub != null )
 		{
@@ -248,56 +667,1004 @@ public class Server {
 	}
 	
 	/**
-	 * Adds the server.
+	 * Loads the newest snapshot, replays the write-ahead log written after
+	 * it and opens the log for appending.
 	 * 
-	 * @param name the name
-	 * @param server the server
-	 * @return true, if successful
+	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	public boolean addServer( String name, IRemoteServer server )
+	protected void recover() throws IOException
 	{
-		return this.servers.put( name, server ) == null;
+		File dir = this.dataDir;
+		this.wal = new WriteAheadLog( dir, this.config.getWalSegmentSize(), this.config.getWalSyncInterval() );
+		
+		int threads = Math.max( 1, this.config.getRecoveryThreads() );
+		ExecutorService pool = Executors.newFixedThreadPool( threads );
+		try {
+			long start = System.nanoTime();
+			int from = 0;
+			int count = 0;
+			
+			File snap = Snapshotter.latest( dir );
+			if( snap != null )
+			{
+				List<LogRecord> records = new Snapshot( snap ).read();
+				this.stateMachine.replay( records, pool, threads );
+				from = Snapshot.indexOf( snap );
+				count = records.size();
+			}
+			long loaded = System.nanoTime();
+			
+			List<LogRecord> tail = this.wal.read( from, Integer.MAX_VALUE );
+			this.stateMachine.replay( tail, pool, threads );
+			long end = System.nanoTime();
+			
+			logger.info( String.format( "Recovered %d snapshot records in %d ms and %d log records (%d bytes) in %d ms on %d threads",
+										count, (loaded - start) / 1000000,
+										tail.size(), this.wal.getSize(), (end - loaded) / 1000000, threads ) );
+			
+			this.wal.open( from );
+		} catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+			throw new IOException( "Interrupted while replaying the log" );
+		} finally {
+			pool.shutdown();
+		}
+		
+		this.snapshotter = new Snapshotter( this, this.wal, this.config.getSnapshotInterval(), this.config.getSnapshotMinRecords() );
+		this.snapshotter.start();
 	}
 	
 	/**
-	 * Gets the server.
+	 * Applies the given change and records it in the write-ahead log.
+	 * Changes that have no effect are not recorded. Waits until the change
+	 * is on disk, at most for the configured time.
 	 * 
-	 * @param name the name
-	 * @return the server
+	 * @param r the change
+	 * @return true, if the change had an effect
+	 * @throws RemoteException if the change couldn't be recorded
 	 */
-	public IRemoteServer getServer( String name )
+	public boolean apply( final LogRecord r ) throws RemoteException
 	{
-		return this.servers.get( name );
+		long seq;
+		
+		if( this.shards != null && r.isEventRecord() )
+		{
+			seq = onShard( r.getKey(), new Callable<Long>() {
+				@Override
+				public Long call() throws RemoteException {
+					return record( r );
+				}
+			});
+		}else
+		{
+			synchronized( lockFor( r.getKey() ) ) {
+				seq = record( r );
+			}
+		}
+		
+		if( seq < 0 )
+			return false;
+		
+		long wait = this.config.getWalSyncWait();
+		if( seq > 0 && wait > 0 )
+		{
+			try {
+				if( !this.wal.awaitDurable( seq, wait ) )
+					logger.fine( r + " is not yet on disk" );
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		return true;
 	}
-
+	
 	/**
-	 * Checks if is network complete.
+	 * Applies the given change and appends it to the log. The caller must
+	 * hold the lock or be the shard worker of the changed user or event.
 	 * 
-	 * @return true, if is network complete
+	 * @return the sequence number in the log, 0 if there is no log, -1 if the change had no effect
+	 */
+	private long record( LogRecord r ) throws RemoteException
+	{
+		if( !this.stateMachine.apply( r ) )
+			return -1;
+		
+		//Changes of events created here go to the other servers holding them,
+		//queued right here, so they leave in the order they were applied
+		if( r.isEventRecord() && r.getType() != LogRecord.Type.CREATE && isHomeOf( r.getKey() ) )
+		{
+			LogRecord change = r;
+			if( r.getType() == LogRecord.Type.FINALIZE && r.getValues().length == 0 )
+				change = LogRecord.finalizeEvent( r.getKey(), this.events.get( r.getKey() ).getFinalizedDate() );
+			
+			this.replicator.replicate( change, getEventOwners( r.getKey() ) );
+		}
+		
+		if( this.wal == null )
+			return 0;
+		
+		try {
+			return this.wal.append( r );
+		} catch( IOException ioex ) {
+			throw new RemoteException( "Couldn't record " + r, ioex );
+		}
+	}
+	
+	/**
+	 * Checks if the given event was created at this server, without asking other servers.
 	 */
-	public boolean isNetworkComplete()
+	boolean isHomeOf( String event )
 	{
-		return this.servers.size() == this.serverNames.length;
+		Event e = this.events.get( event );
+		if( e == null )
+			return false;
+		
+		User author = this.users.get( e.getAuthor() );
+		return author != null && this.bindingName.equals( author.getServer() );
 	}
-
+	
 	/**
-	 * Gets the registry.
+	 * Applies changes of events created at the given server, sent by its replicator.
 	 * 
-	 * @return the registry
+	 * @param from the server the events were created at
+	 * @param records the encoded changes, in the order they were applied there
+	 * @param gap true, if changes before these were lost
+	 * @throws RemoteException if a change couldn't be applied
 	 */
-	public Registry getRegistry() {
-		return this.reg;
+	public void onReplicated( String from, List<byte[]> records, boolean gap ) throws RemoteException
+	{
+		for( byte[] data : records )
+		{
+			LogRecord r;
+			try {
+				r = LogRecord.decode( data );
+			} catch( IOException ioex ) {
+				throw new RemoteException( "Couldn't read a change from \"" + from + "\"", ioex );
+			}
+			
+			EventState state = this.eventStates.get( r.getKey() );
+			if( state != null )
+				state.setHome( from );
+			
+			apply( r );
+		}
+		
+		if( gap )
+		{
+			logger.warning( "Lost changes of events created at \"" + from + "\", reading them from there until resynced" );
+			this.replicationGaps.put( from, this.gapCounter.incrementAndGet() );
+		}
+		
+		this.replicatedAt.put( from, System.currentTimeMillis() );
+		
+		//Also retries a resync that failed before
+		if( this.replicationGaps.containsKey( from ) )
+			resync( from );
+	}
+	
+	/**
+	 * Asks the given server to send the events it created again, in the
+	 * stream of its changes, unless already asking. Once they arrived, reads
+	 * of these events are answered here again, unless more changes were
+	 * lost in the meantime.
+	 * 
+	 * @param from the server the events were created at
+	 */
+	private void resync( final String from )
+	{
+		if( !this.resyncing.add( from ) )
+			return;
+		
+		try {
+			this.executor.submit( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Long gap = replicationGaps.get( from );
+						IRemoteServer peer = getServer( from );
+						if( gap == null || peer == null )
+							return;
+						
+						peer.resyncEvents( bindingName );
+						if( replicationGaps.remove( from, gap ) )
+							logger.info( "Resynced the events created at \"" + from + "\"" );
+					} catch( RemoteException rex ) {
+						logger.warning( "Couldn't resync the events created at \"" + from + "\": " + rex.getMessage() );
+					} finally {
+						resyncing.remove( from );
+					}
+				}
+			});
+		} catch( RejectedExecutionException reex ) {
+			this.resyncing.remove( from );
+		}
+	}
+	
+	/**
+	 * Starts the given event, created at another server, over from its
+	 * creation after this copy turned out to differ from there, and asks
+	 * that server to send its changes again. Until they arrived, its reads
+	 * are answered there. Must be called by the shard worker of the event
+	 * or while holding its lock.
+	 *
+	 * @param name the event name
+	 */
+	void diverged( String name )
+	{
+		Event e = this.events.get( name );
+		EventState state = this.eventStates.get( name );
+		String home = state != null ? state.getHome() : null;
+		if( e == null || home == null || home.equals( this.bindingName ) )
+			return;
+		
+		Event fresh = new Event( e.getName(), e.getLocation(), e.getDuration(), e.getAuthor() );
+		fresh.commit();
+		EventState reset = new EventState( this.config.getEventHistory() );
+		reset.setHome( home );
+		this.events.put( name, fresh );
+		this.eventStates.put( name, reset );
+		
+		this.replicationGaps.put( home, this.gapCounter.incrementAndGet() );
+		resync( home );
 	}
 
-
 	/**
-	 * Gets the server names.
+	 * Sends the events created here and held by the given server to it
+	 * again, queued with their other changes, so none of them is undone.
+	 * Returns once they were sent.
+	 * 
+	 * @param requester the name of the server that lost changes
+	 * @throws RemoteException if the events couldn't be sent
+	 */
+	public void resyncEvents( final String requester ) throws RemoteException
+	{
+		long count = 0;
+		int events = 0;
+		
+		for( final String name : this.events.keySet() )
+		{
+			if( !isHomeOf( name ) || !getEventOwners( name ).contains( requester ) )
+				continue;
+			
+			//Queued by the shard worker or while holding the lock, like any change
+			final EventState state = this.eventStates.get( name );
+			Long queued = readEvent( name, new EventReader<Long>() {
+				@Override
+				public Long read( Event e ) {
+					List<LogRecord> records = Snapshotter.eventRecords( e, state );
+					if( records.isEmpty() )
+						return null;
+					
+					//The creation itself went through the metadata log
+					return replicator.resend( records.subList( 1, records.size() ), requester );
+				}
+			});
+			
+			if( queued != null )
+			{
+				count = Math.max( count, queued );
+				events++;
+			}
+		}
+		
+		logger.info( "Resending " + events + " events to \"" + requester + "\"" );
+		
+		try {
+			if( events > 0 && !this.replicator.awaitSent( requester, count, this.config.getCommitTimeout() ) )
+				throw new RemoteException( "The events couldn't be sent to \"" + requester + "\"" );
+		} catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException( "Interrupted while resending events" );
+		}
+	}
+	
+	/**
+	 * Gets a snapshot of the given event, if this server may answer reads of it:
+	 * it must hold the event and either have created it, or have heard from the
+	 * server that created it within the given time.
+	 * 
+	 * @param name the event name
+	 * @param maxStaleness the maximum staleness (in ms), 0 to only answer as the event's server
+	 * @return the snapshot, or null if the read has to go elsewhere
+	 * @throws RemoteException the remote exception
+	 */
+	public EventSnapshot getLocalSnapshot( String name, long maxStaleness ) throws RemoteException
+	{
+		return mayAnswer( name, maxStaleness ) ? getEventSnapshot( name ) : null;
+	}
+	
+	/**
+	 * Gets what changed in the given event since the given version, if this
+	 * server may answer reads of it (see {@link #getLocalSnapshot(String, long)}).
+	 * Versions are only known to the server that handed them out.
+	 * 
+	 * @param name the event name
+	 * @param known the version the client knows
+	 * @param maxStaleness the maximum staleness (in ms), 0 to only answer as the event's server
+	 * @return the update, or null if the read has to go elsewhere
+	 * @throws RemoteException the remote exception
+	 */
+	public EventUpdate getEventUpdate( final String name, final long known, long maxStaleness ) throws RemoteException
+	{
+		if( !mayAnswer( name, maxStaleness ) )
+			return null;
+		
+		final EventState state = this.eventStates.get( name );
+		if( state.getVersion() == known )
+		{
+			this.metrics.counter( "updates.unmodified" ).incrementAndGet();
+			return EventUpdate.notModified( name, known );
+		}
+		
+		return readEvent( name, new EventReader<EventUpdate>() {
+			@Override
+			public EventUpdate read( Event e ) {
+				long version = state.getVersion();
+				List<LogRecord> changes = state.getChangesSince( known );
+				
+				if( changes == null )
+				{
+					metrics.counter( "updates.full" ).incrementAndGet();
+					EventSnapshot snap = EventSnapshot.of( e, version );
+					state.offer( snap );
+					return EventUpdate.full( name, version, snap.getInfo() );
+				}
+				
+				metrics.counter( "updates.delta" ).incrementAndGet();
+				EventUpdate ret = EventUpdate.delta( name, version );
+				for( LogRecord r : changes )
+				{
+					switch( r.getType() )
+					{
+						case ADD_DATE:
+							ret.addDate( new Date( r.getValues()[0] ) );
+							break;
+						case INVITE:
+							ret.addInvitation( r.getArg( 0 ) );
+							break;
+						case VOTE:
+							ret.addVote( r.getArg( 0 ), r.getDates() );
+							break;
+						case FINALIZE:
+							ret.setFinalizedDate( e.getFinalizedDate() );
+							break;
+						default:
+							break;
+					}
+				}
+				return ret;
+			}
+		});
+	}
+	
+	/**
+	 * Checks if this server holds the given event and either created it, or
+	 * heard from the server that created it within the given time.
+	 */
+	private boolean mayAnswer( String name, long maxStaleness ) throws RemoteException
+	{
+		Event e = this.events.get( name );
+		if( e == null || !e.isCommitted() || this.eventStates.get( name ) == null )
+			return false;
+		
+		String home = getEventHome( name );
+		if( home == null )
+			return false;
+		
+		if( !home.equals( this.bindingName ) )
+		{
+			if( maxStaleness <= 0 || this.replicationGaps.containsKey( home ) )
+				return false;
+			
+			Long at = this.replicatedAt.get( home );
+			if( at == null || System.currentTimeMillis() - at > maxStaleness )
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Gets the server the given event was created at, remembering it for held events.
+	 * 
+	 * @param name the event name
+	 * @return the server name, or null if there is no such event
+	 * @throws RemoteException the remote exception
+	 */
+	public String getEventHome( String name ) throws RemoteException
+	{
+		EventState state = this.eventStates.get( name );
+		if( state != null && state.getHome() != null )
+			return state.getHome();
+		
+		String ret = findEventServer( name );
+		if( state != null && ret != null )
+			state.setHome( ret );
+		return ret;
+	}
+	
+	/**
+	 * Reads the given event, on the worker of its shard or holding its lock,
+	 * so the reader sees all changes made before and none is made meanwhile.
 	 * 
-	 * @return the server names
+	 * @param name the event name
+	 * @param reader the reader
+	 * @return the result of the reader, null if this server doesn't hold the event
+	 * @throws RemoteException if the reader fails
 	 */
-	public String[] getServerNames() {
-		return this.serverNames;
+	public <T> T readEvent( final String name, final EventReader<T> reader ) throws RemoteException
+	{
+		Callable<T> task = new Callable<T>() {
+			@Override
+			public T call() {
+				Event e = events.get( name );
+				return e != null ? reader.read( e ) : null;
+			}
+		};
+		
+		if( this.shards != null )
+			return onShard( name, task );
+		
+		synchronized( lockFor( name ) ) {
+			try {
+				return task.call();
+			} catch( RuntimeException rex ) {
+				throw rex;
+			} catch( Exception ex ) {
+				throw new RemoteException( "Couldn't read " + name, ex );
+			}
+		}
 	}
+	
+	/**
+	 * Runs the given task on the worker of the given event's shard and waits for it.
+	 */
+	private <T> T onShard( String event, Callable<T> task ) throws RemoteException
+	{
+		try {
+			return this.shards.submit( event, task ).get();
+		} catch( InterruptedException iex ) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException( "Interrupted while waiting for \"" + event + "\"" );
+		} catch( RejectedExecutionException reex ) {
+			throw new RemoteException( "The server is shutting down" );
+		} catch( ExecutionException eex ) {
+			Throwable cause = eex.getCause();
+			if( cause instanceof RemoteException )
+				throw (RemoteException)cause;
+			if( cause instanceof RuntimeException )
+				throw (RuntimeException)cause;
+			if( cause instanceof Error )
+				throw (Error)cause;
+			throw new RemoteException( "Couldn't process \"" + event + "\"", cause );
+		}
+	}
+	
+	/**
+	 * Gets the lock ordering the changes of the given user or event.
+	 * 
+	 * @param key the user or event name
+	 * @return the lock
+	 */
+	public Object lockFor( String key )
+	{
+		return this.locks[ (key.hashCode() & Integer.MAX_VALUE) % this.locks.length ];
+	}
+	
+	/**
+	 * Adds the server, after it was heard from. It is called through its
+	 * connection, which keeps the given remote interface up to date.
+	 * 
+	 * @param name the name
+	 * @param server the remote interface the server sent
+	 * @return true, if successful
+	 */
+	public boolean addServer( String name, IRemoteServer server )
+	{
+		return this.servers.put( name, this.connections.connect( name, server ) ) == null;
+	}
+	
+	/**
+	 * Removes the given server, after it went down.
+	 * 
+	 * @param name the name
+	 */
+	public void removeServer( String name )
+	{
+		this.servers.remove( name );
+	}
+	
+	/**
+	 * Gets the server.
+	 * 
+	 * @param name the name
+	 * @return the server
+	 */
+	public IRemoteServer getServer( String name )
+	{
+		return this.servers.get( name );
+	}
+
+	/**
+	 * Gets the other servers of the current view that are not down, by name.
+	 * 
+	 * @return the peers
+	 */
+	public Map<String, IRemoteServer> getPeers()
+	{
+		Map<String, IRemoteServer> ret = new LinkedHashMap<String, IRemoteServer>();
+		
+		for( String name : this.view.getMembers() )
+		{
+			IRemoteServer s = this.servers.get( name );
+			if( s != null )
+				ret.put( name, s );
+		}
+		
+		return ret;
+	}
+	
+	/**
+	 * Gets the current view of the network.
+	 * 
+	 * @return the view
+	 */
+	public MemberView getView()
+	{
+		return this.view;
+	}
+	
+	/**
+	 * Replaces the view of the network by the given one, if it is newer.
+	 * Users and events are moved between servers by the hash ring. If
+	 * servers left, their users and events now belong to servers that
+	 * didn't hold them, so this server catches up once more.
+	 * 
+	 * @param v the new view
+	 * @return true, if the view was replaced
+	 */
+	synchronized boolean setView( MemberView v )
+	{
+		MemberView old = this.view;
+		if( v.getEpoch() <= old.getEpoch() )
+			return false;
+		
+		this.view = v;
+		this.ring.setMembers( v.getMembers() );
+		this.metadata.setMembers( v.getMembers() );
+		
+		for( String name : old.getMembers() )
+		{
+			if( !v.contains( name ) )
+			{
+				this.servers.remove( name );
+				this.connections.remove( name );
+				retryCatchUp();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the servers holding the given user, starting with its owner.
+	 * The server the user registered at always holds it as well.
+	 * 
+	 * @param name the user name
+	 * @return the owner and replicas
+	 */
+	public List<String> getUserOwners( String name )
+	{
+		return this.ring.getOwners( "user:" + name, this.config.getRingReplicas() );
+	}
+	
+	/**
+	 * Gets the servers holding the given event, starting with its owner.
+	 * The server the event was created at always holds it as well.
+	 * 
+	 * @param name the event name
+	 * @return the owner and replicas
+	 */
+	public List<String> getEventOwners( String name )
+	{
+		return this.ring.getOwners( "event:" + name, this.config.getRingReplicas() );
+	}
+	
+	/**
+	 * Finds the server the given user registered at. The metadata log is
+	 * asked first; if it has no leader right now, the owners of the user
+	 * are asked.
+	 * 
+	 * @param name the user name
+	 * @return the server name, or null if there is no such user
+	 * @throws RemoteException if none of the owners could be reached
+	 */
+	public String findUserServer( String name ) throws RemoteException
+	{
+		User u = this.users.get( name );
+		if( u != null && u.isCommitted() )
+			return u.getServer();
+		
+		try {
+			return this.metadata.findUserServer( name );
+		} catch( RemoteException rex ) {
+			logger.fine( "Couldn't ask the metadata log about \"" + name + "\": " + rex.getMessage() );
+		}
+		
+		List<String> owners = getUserOwners( name );
+		return owners.contains( this.bindingName ) ? null : askOwners( owners, name, true );
+	}
+	
+	/**
+	 * Finds the server the given event was created at. The metadata log is
+	 * asked first; if it has no leader right now, the owners of the event
+	 * are asked.
+	 * 
+	 * @param name the event name
+	 * @return the server name, or null if there is no such event
+	 * @throws RemoteException if none of the owners could be reached
+	 */
+	public String findEventServer( String name ) throws RemoteException
+	{
+		String author = null;
+		
+		Event e = this.events.get( name );
+		if( e != null && e.isCommitted() )
+			author = e.getAuthor();
+		else
+		{
+			try {
+				author = this.metadata.findEventAuthor( name );
+			} catch( RemoteException rex ) {
+				logger.fine( "Couldn't ask the metadata log about \"" + name + "\": " + rex.getMessage() );
+				
+				List<String> owners = getEventOwners( name );
+				if( !owners.contains( this.bindingName ) )
+					author = askOwners( owners, name, false );
+			}
+		}
+		
+		//Events live on the server of their author
+		return author == null ? null : findUserServer( author );
+	}
+	
+	/**
+	 * Asks the given owners about a user or an event, until one of them answers.
+	 * 
+	 * @param owners the owners
+	 * @param name the name of the user or event
+	 * @param user true for users, false for events
+	 * @return the answer of the first owner reached
+	 * @throws RemoteException if none of the owners could be reached
+	 */
+	private String askOwners( List<String> owners, String name, boolean user ) throws RemoteException
+	{
+		RemoteException last = null;
+		
+		for( String owner : owners )
+		{
+			IRemoteServer s = this.servers.get( owner );
+			if( s == null )
+				continue;
+			
+			try {
+				return user ? s.locateUser( name ) : s.locateEvent( name );
+			} catch( RemoteException rex ) {
+				logger.warning( "Couldn't ask \"" + owner + "\" about \"" + name + "\": " + rex.getMessage() );
+				last = rex;
+			}
+		}
+		
+		if( last != null )
+			throw last;
+		return null;
+	}
+	
+	/**
+	 * Gets the group committer for registrations and event creations.
+	 * 
+	 * @return the group committer
+	 */
+	public GroupCommitter getGroupCommitter()
+	{
+		return this.groupCommitter;
+	}
+	
+	/**
+	 * Gets the pool used for calling other servers in parallel.
+	 * 
+	 * @return the executor
+	 */
+	public ExecutorService getExecutor()
+	{
+		return this.executor;
+	}
+	
+	/**
+	 * Gets the server config.
+	 * 
+	 * @return the config
+	 */
+	public ServerConfig getConfig()
+	{
+		return this.config;
+	}
+
+	/**
+	 * Gets the remote interface of this server, as handed to the other servers.
+	 * 
+	 * @return the remote server, or null if it couldn't be exported
+	 * @throws RemoteException the remote exception
+	 */
+	public IRemoteServer getRemoteServer() throws RemoteException
+	{
+		return this.dist.getRemoteServer();
+	}
+	
+	/**
+	 * Gets the membership, which knows which other servers are alive.
+	 * 
+	 * @return the membership
+	 */
+	public Membership getMembership()
+	{
+		return this.membership;
+	}
+	
+	/**
+	 * Gets where this server takes calls of other servers over the nio transport.
+	 * 
+	 * @return host and port, or null if it only takes them through RMI
+	 */
+	public String getEndpoint()
+	{
+		return this.transport != null ? this.transport.getEndpoint() : null;
+	}
+	
+	/**
+	 * Gets the connections to the other servers.
+	 * 
+	 * @return the connections
+	 */
+	public Connections getConnections()
+	{
+		return this.connections;
+	}
+	
+	/**
+	 * Gets the metadata log.
+	 * 
+	 * @return the metadata
+	 */
+	public Metadata getMetadata()
+	{
+		return this.metadata;
+	}
+	
+	/**
+	 * Called whenever a majority of the servers of the view is available.
+	 * Catching up is started with the available servers this server didn't
+	 * catch up with yet: all of them the first time and after servers left,
+	 * later the servers that were down before.
+	 */
+	public void onQuorum()
+	{
+		if( !this.catchingUp.compareAndSet( false, true ) )
+			return;
+		
+		Map<String, IRemoteServer> peers = getPeers();
+		peers.keySet().removeAll( this.caughtUpWith );
+		if( peers.isEmpty() && this.caughtUp )
+		{
+			this.catchingUp.set( false );
+			return;
+		}
+		
+		logger.info( "Catching up with " + peers.keySet() );
+		this.executor.submit( new CatchUp( this, peers, this.catchUpRound.get(), this.dataDir, this.config.getTransferChunkSize() ) );
+	}
+	
+	/**
+	 * Catches up with all servers again, after servers left.
+	 */
+	void retryCatchUp()
+	{
+		this.catchUpRound.incrementAndGet();
+		this.caughtUpWith.clear();
+		this.catchingUp.set( false );
+	}
+	
+	/**
+	 * Marks this server as caught up with the given servers. Once caught up
+	 * with a majority of the view, this server is ready. Catching up with
+	 * the others is started when they are available.
+	 * 
+	 * @param with the servers caught up with
+	 * @param round the round of catching up, see {@link #retryCatchUp()}
+	 */
+	void setCaughtUp( Collection<String> with, long round )
+	{
+		if( round == this.catchUpRound.get() )
+		{
+			this.caughtUpWith.addAll( with );
+			if( !this.caughtUp && this.caughtUpWith.size() + 1 > this.view.getMembers().size() / 2 )
+			{
+				logger.info( "Caught up with " + this.caughtUpWith + ", ready" );
+				this.caughtUp = true;
+			}
+		}
+		this.catchingUp.set( false );
+	}
+	
+	/**
+	 * Checks if this server is ready to serve clients, that is, it has
+	 * caught up with a majority of the servers once. Servers going down or
+	 * joining later don't make it unready.
+	 * 
+	 * @return true, if ready
+	 */
+	public boolean isReady()
+	{
+		return this.caughtUp;
+	}
+	
+	/**
+	 * Gets the filter of user names taken anywhere in the network.
+	 * 
+	 * @return the user filter
+	 */
+	public BloomFilter getUserFilter()
+	{
+		return this.userFilter;
+	}
+	
+	/**
+	 * Gets the filter of event names taken anywhere in the network.
+	 * 
+	 * @return the event filter
+	 */
+	public BloomFilter getEventFilter()
+	{
+		return this.eventFilter;
+	}
+	
+	/**
+	 * Gets the events of each user.
+	 * 
+	 * @return the user index
+	 */
+	public UserIndex getUserIndex()
+	{
+		return this.userIndex;
+	}
+	
+	/**
+	 * Gets the secondary indexes on the events.
+	 * 
+	 * @return the event index
+	 */
+	public EventIndex getEventIndex()
+	{
+		return this.eventIndex;
+	}
+	
+	/**
+	 * Gets a page of the events held here that match the given query,
+	 * ordered by name.
+	 * 
+	 * @param q the query
+	 * @param cursor the last event name of the previous page, null for the first page
+	 * @param limit the maximum number of events on the page
+	 * @return the page
+	 */
+	public EventPage findEvents( EventQuery q, String cursor, int limit )
+	{
+		NavigableSet<String> names = this.eventIndex.find( q );
+		List<EventSummary> ret = new ArrayList<EventSummary>( Math.min( limit, names.size() ) );
+		
+		for( String name : cursor == null ? names : names.tailSet( cursor, false ) )
+		{
+			Event e = this.events.get( name );
+			if( e == null )
+				continue;
+			
+			if( ret.size() == limit )
+				return new EventPage( ret, ret.get( ret.size() - 1 ).getName() );
+			
+			ret.add( new EventSummary( name, e.getAuthor(), false ) );
+		}
+		
+		return new EventPage( ret, null );
+	}
+	
+	/**
+	 * Gets the notifier telling participants about finalized events.
+	 * 
+	 * @return the notifier
+	 */
+	public Notifier getNotifier()
+	{
+		return this.notifier;
+	}
+	
+	/**
+	 * Gets the deadlines of the events.
+	 * 
+	 * @return the deadlines
+	 */
+	public Deadlines getDeadlines()
+	{
+		return this.deadlines;
+	}
+	
+	/**
+	 * Gets the users invited to the given event.
+	 * 
+	 * @param name the event name
+	 * @return the users, null if this server doesn't hold the event
+	 * @throws RemoteException the remote exception
+	 */
+	public List<String> getParticipants( String name ) throws RemoteException
+	{
+		return readEvent( name, new EventReader<List<String>>() {
+			@Override
+			public List<String> read( Event e ) {
+				return new ArrayList<String>( e.getInvited().keySet() );
+			}
+		});
+	}
+	
+	/**
+	 * Gets the metrics.
+	 * 
+	 * @return the metrics
+	 */
+	public Metrics getMetrics()
+	{
+		return this.metrics;
+	}
+	
+	/**
+	 * Gets the state transfer serving servers catching up.
+	 * 
+	 * @return the state transfer
+	 */
+	public StateTransfer getStateTransfer()
+	{
+		return this.stateTransfer;
+	}
+	
+	/**
+	 * Checks if this server is part of the current view and, together with
+	 * it, a majority of the servers of the view is available.
+	 * 
+	 * @return true, if a majority is available
+	 */
+	public boolean hasQuorum()
+	{
+		MemberView v = this.view;
+		
+		if( !v.contains( this.bindingName ) )
+			return false;
+		
+		int available = 1;
+		for( String name : v.getMembers() )
+		{
+			if( !name.equals( this.bindingName ) && this.servers.containsKey( name ) )
+				available++;
+		}
+		return available > v.getMembers().size() / 2;
+	}
+
+	/**
+	 * Gets the registry.
+	 * 
+	 * @return the registry
+	 */
+	public Registry getRegistry() {
+		return this.reg;
+	}
+
 
 	/**
 	 * Gets the name.
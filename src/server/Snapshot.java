@@ -0,0 +1,209 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * A snapshot of the state of a server, stored as the shortest sequence of
+ * log records that rebuilds it. The records use the same framing as the
+ * write-ahead log. A snapshot covers all log segments before its index.
+ */
+public class Snapshot {
+
+	static final String PREFIX = "snapshot-";
+	static final String SUFFIX = ".snap";
+	static final int MAGIC = 0x534e4150;
+	static final int VERSION = 1;
+	
+	File file;
+	DataOutputStream out;
+	FileOutputStream fos;
+	CRC32 crc;
+	int count;
+	
+	/**
+	 * Instantiates a new snapshot.
+	 * 
+	 * @param file the file
+	 */
+	public Snapshot( File file )
+	{
+		this.file = file;
+		this.crc = new CRC32();
+	}
+	
+	/**
+	 * Gets the file of the snapshot, that covers all segments before the given index.
+	 * 
+	 * @param dir the directory
+	 * @param segmentIndex the index of the first segment not covered
+	 * @return the file
+	 */
+	public static File fileFor( File dir, int segmentIndex )
+	{
+		return new File( dir, String.format( "%s%010d%s", PREFIX, segmentIndex, SUFFIX ) );
+	}
+	
+	/**
+	 * Gets the index of the first segment not covered by the given snapshot file.
+	 * 
+	 * @param f the file
+	 * @return the segment index
+	 */
+	public static int indexOf( File f )
+	{
+		String name = f.getName();
+		return Integer.parseInt( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) );
+	}
+	
+	/**
+	 * Checks if the given file name belongs to a snapshot.
+	 * 
+	 * @param name the file name
+	 * @return true, if it is a snapshot
+	 */
+	public static boolean isSnapshot( String name )
+	{
+		return name.startsWith( PREFIX ) && name.endsWith( SUFFIX );
+	}
+	
+	/**
+	 * Starts writing the snapshot into a temporary file.
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void create() throws IOException
+	{
+		this.fos = new FileOutputStream( tempFile() );
+		this.out = new DataOutputStream( new BufferedOutputStream( this.fos, 1 << 16 ) );
+		this.out.writeInt( MAGIC );
+		this.out.writeInt( VERSION );
+	}
+	
+	/**
+	 * Writes a record into the snapshot.
+	 * 
+	 * @param r the record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write( LogRecord r ) throws IOException
+	{
+		byte[] data = r.encode();
+		
+		this.crc.reset();
+		this.crc.update( data );
+		
+		this.out.writeInt( data.length );
+		this.out.writeInt( (int)this.crc.getValue() );
+		this.out.write( data );
+		this.count++;
+	}
+	
+	/**
+	 * Finishes writing the snapshot. The snapshot is forced to disk and
+	 * only then replaces the temporary file, so a crash never leaves a
+	 * partial snapshot behind.
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void commit() throws IOException
+	{
+		this.out.writeInt( 0 );
+		this.out.flush();
+		this.fos.getFD().sync();
+		this.out.close();
+		
+		if( !tempFile().renameTo( this.file ) )
+			throw new IOException( "Couldn't rename snapshot to \"" + this.file + "\"" );
+	}
+	
+	/**
+	 * Discards a snapshot that couldn't be written completely.
+	 */
+	public void abort()
+	{
+		try {
+			if( this.out != null )
+				this.out.close();
+		} catch( IOException ioex ) {
+			//Deleted anyway
+		}
+		
+		tempFile().delete();
+	}
+	
+	/**
+	 * Gets the number of records written.
+	 * 
+	 * @return the count
+	 */
+	public int getCount()
+	{
+		return this.count;
+	}
+	
+	/**
+	 * Reads all records of the snapshot using a memory-mapped reader.
+	 * 
+	 * @return the records
+	 * @throws IOException if the snapshot is damaged
+	 */
+	public List<LogRecord> read() throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( this.file, "r" );
+		
+		try {
+			MappedByteBuffer b = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+			
+			if( b.remaining() < 8 || b.getInt() != MAGIC || b.getInt() != VERSION )
+				throw new IOException( "\"" + this.file.getName() + "\" is no valid snapshot" );
+			
+			List<LogRecord> ret = new ArrayList<LogRecord>();
+			CRC32 crc = new CRC32();
+			
+			while( true )
+			{
+				if( b.remaining() < 4 )
+					throw new IOException( "\"" + this.file.getName() + "\" is truncated" );
+				
+				int len = b.getInt();
+				if( len == 0 )
+					return ret;
+				
+				if( len < 0 || len + 4 > b.remaining() )
+					throw new IOException( "\"" + this.file.getName() + "\" is truncated" );
+				
+				int sum = b.getInt();
+				byte[] data = new byte[len];
+				b.get( data );
+				
+				crc.reset();
+				crc.update( data );
+				if( (int)crc.getValue() != sum )
+					throw new IOException( "\"" + this.file.getName() + "\" is damaged" );
+				
+				ret.add( LogRecord.decode( data ) );
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * Gets the temporary file the snapshot is written to.
+	 */
+	File tempFile()
+	{
+		return new File( this.file.getPath() + ".tmp" );
+	}
+}
@@ -0,0 +1,266 @@
+package server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import entities.Event;
+import entities.User;
+
+
+/**
+ * Timertask for taking snapshots of the server state and compacting the
+ * write-ahead log. Request handling goes on while a snapshot is taken: the
+ * log is first switched to a new segment, then each user and event is
+ * written while holding only its own lock. Changes made meanwhile end up
+ * both in the snapshot and in the new segments, replaying them again on
+ * startup has no further effect.
+ */
+public class Snapshotter extends TimerTask {
+	
+	protected static final Logger logger = Logger.getLogger( Snapshotter.class.getName() );
+	
+	Server server;
+	WriteAheadLog wal;
+	long interval;
+	long minRecords;
+	
+	Timer timer;
+	long lastAppended;
+	
+	/**
+	 * Instantiates a new snapshotter.
+	 * 
+	 * @param server the server
+	 * @param wal the write-ahead log
+	 * @param interval the time (in ms) between two snapshots
+	 * @param minRecords the minimum number of new log records for taking a snapshot
+	 */
+	public Snapshotter( Server server, WriteAheadLog wal, long interval, long minRecords )
+	{
+		this.server = server;
+		this.wal = wal;
+		this.interval = interval;
+		this.minRecords = minRecords;
+	}
+	
+	/**
+	 * Start taking snapshots.
+	 */
+	public void start()
+	{
+		this.timer = new Timer( "snapshot", true );
+		this.timer.schedule( this, this.interval, this.interval );
+	}
+	
+	/**
+	 * Stop taking snapshots.
+	 */
+	public void stop()
+	{
+		if( this.timer != null )
+			this.timer.cancel();
+	}
+	
+	/* (non-Javadoc)
+	 * @see java.util.TimerTask#run()
+	 */
+	@Override
+	public void run() {
+		if( this.wal.getAppended() - this.lastAppended < this.minRecords )
+			return;
+		
+		try {
+			snapshot();
+		} catch( IOException ioex ) {
+			logger.warning( "Couldn't take snapshot: " + ioex.getMessage() );
+		}
+	}
+	
+	/**
+	 * Takes a snapshot and deletes the log segments and snapshots it replaces.
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized void snapshot() throws IOException
+	{
+		long start = System.nanoTime();
+		File dir = this.wal.getDir();
+		
+		File prev = latest( dir );
+		int prevIndex = prev == null ? 0 : Snapshot.indexOf( prev );
+		
+		//Everything before this segment is covered by the snapshot
+		this.lastAppended = this.wal.getAppended();
+		int index = this.wal.rollSegment();
+		
+		Snapshot snap = new Snapshot( Snapshot.fileFor( dir, index ) );
+		snap.create();
+		try {
+			writeState( this.server, snap, null );
+			
+			//Users keep their invitations to themselves, so they are carried over from the log
+			if( prev != null )
+				writeInvitations( snap, new Snapshot( prev ).read() );
+			writeInvitations( snap, this.wal.read( prevIndex, index ) );
+			
+			snap.commit();
+		} catch( IOException ioex ) {
+			snap.abort();
+			throw ioex;
+		}
+		
+		//Only now the old files are not needed anymore
+		for( File f : listSnapshots( dir ) )
+		{
+			if( Snapshot.indexOf( f ) < index && !f.delete() )
+				logger.warning( "Couldn't delete \"" + f.getName() + "\"" );
+		}
+		this.wal.deleteSegmentsBefore( index );
+		
+		logger.info( String.format( "Took snapshot of %d records in %d ms", snap.getCount(), (System.nanoTime() - start) / 1000000 ) );
+	}
+	
+	/**
+	 * Writes the records rebuilding all committed users and events of the
+	 * given server. Each user is written while holding its lock, each event
+	 * is read by the worker of its shard.
+	 * 
+	 * @param server the server
+	 * @param snap the snapshot to write to
+	 * @param forServer if not null, only users and events held by this server are written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void writeState( Server server, Snapshot snap, String forServer ) throws IOException
+	{
+		for( User u : server.getUsers().values() )
+		{
+			if( forServer != null && !forServer.equals( u.getServer() ) && !server.getUserOwners( u.getName() ).contains( forServer ) )
+				continue;
+			
+			synchronized( server.lockFor( u.getName() ) ) {
+				if( u.isCommitted() )
+					snap.write( LogRecord.register( u.getName(), u.getPassword(), u.getServer() ) );
+			}
+		}
+		
+		for( String name : server.getEvents().keySet() )
+		{
+			if( forServer != null && !server.getEventOwners( name ).contains( forServer ) )
+				continue;
+			
+			EventState state = server.getEventState( name );
+			List<LogRecord> records = server.readEvent( name, eventRecords( state ) );
+			if( records != null )
+			{
+				//The deadline is kept beside the event
+				if( !records.isEmpty() && state != null && state.getDeadline() > 0 )
+				{
+					LogRecord c = records.get( 0 );
+					records.set( 0, LogRecord.create( c.getKey(), c.getArg( 0 ), (int)c.getValues()[0], c.getArg( 1 ), state.getDeadline() ) );
+				}
+				
+				for( LogRecord r : records )
+					snap.write( r );
+			}
+		}
+	}
+	
+	/**
+	 * Gets a reader creating the records rebuilding an event, none if the
+	 * event is not committed. The date options are taken from the tally of
+	 * the given state, which got them from the same records as the event.
+	 */
+	static EventReader<List<LogRecord>> eventRecords( final EventState state )
+	{
+		return new EventReader<List<LogRecord>>() {
+			@Override
+			public List<LogRecord> read( Event e ) {
+				return eventRecords( e, state );
+			}
+		};
+	}
+	
+	/**
+	 * Creates the records rebuilding the given event, none if the event is not committed.
+	 */
+	static List<LogRecord> eventRecords( Event e, EventState state )
+	{
+		List<LogRecord> ret = new ArrayList<LogRecord>();
+		if( !e.isCommitted() )
+			return ret;
+		
+		ret.add( LogRecord.create( e.getName(), e.getLocation(), e.getDuration(), e.getAuthor() ) );
+		
+		if( state != null )
+		{
+			for( Date d : state.getTally().getOptions() )
+				ret.add( LogRecord.addDate( e.getName(), d ) );
+		}
+		
+		for( Map.Entry<String, Set<Date>> invited : e.getInvited().entrySet() )
+		{
+			ret.add( LogRecord.invite( e.getName(), invited.getKey() ) );
+			
+			if( invited.getValue() != null && !invited.getValue().isEmpty() )
+				ret.add( LogRecord.vote( e.getName(), invited.getKey(), invited.getValue() ) );
+		}
+		
+		if( e.isFinalized() )
+			ret.add( LogRecord.finalizeEvent( e.getName(), e.getFinalizedDate() ) );
+		
+		return ret;
+	}
+	
+	/**
+	 * Writes all invitation records of the given records.
+	 */
+	static void writeInvitations( Snapshot snap, Iterable<LogRecord> records ) throws IOException
+	{
+		for( LogRecord r : records )
+		{
+			if( r.getType() == LogRecord.Type.INVITATION )
+				snap.write( r );
+		}
+	}
+	
+	/**
+	 * Gets the newest snapshot in the given directory.
+	 * 
+	 * @param dir the directory
+	 * @return the snapshot file, or null if there is none
+	 */
+	public static File latest( File dir )
+	{
+		File[] snaps = listSnapshots( dir );
+		return snaps.length == 0 ? null : snaps[ snaps.length - 1 ];
+	}
+	
+	/**
+	 * Lists the snapshot files in the given directory, oldest first.
+	 */
+	static File[] listSnapshots( File dir )
+	{
+		File[] ret = dir.listFiles( new FilenameFilter() {
+			@Override
+			public boolean accept( File dir, String name ) {
+				return Snapshot.isSnapshot( name );
+			}
+		});
+		
+		if( ret == null )
+			return new File[0];
+		
+		Arrays.sort( ret );
+		return ret;
+	}
+}
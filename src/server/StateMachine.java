@@ -0,0 +1,193 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import entities.Event;
+import entities.User;
+
+
+/**
+ * Applies log records to the users and events of a server. All changes of
+ * committed users and events go through here, both while running and when
+ * replaying the write-ahead log, so both end up in the same state.
+ */
+public class StateMachine {
+
+	protected static final Logger logger = Logger.getLogger( StateMachine.class.getName() );
+
+	Server server;
+
+	/**
+	 * Instantiates a new state machine.
+	 *
+	 * @param server the server
+	 */
+	public StateMachine( Server server )
+	{
+		this.server = server;
+	}
+
+	/**
+	 * Applies the given record.
+	 *
+	 * @param r the record
+	 * @return true, if the record changed the state
+	 */
+	public boolean apply( LogRecord r )
+	{
+		switch( r.getType() )
+		{
+			case REGISTER:
+			{
+				User u = this.server.getUsers().get( r.getKey() );
+				if( u == null )
+				{
+					u = new User( r.getKey(), r.getArg( 0 ), r.getArg( 1 ) );
+					User prev = this.server.getUsers().putIfAbsent( r.getKey(), u );
+					if( prev != null )
+						u = prev;
+				}
+				u.commit();
+				this.server.getUserFilter().add( r.getKey() );
+				return true;
+			}
+			case CREATE:
+			{
+				Event e = this.server.getEvents().get( r.getKey() );
+				if( e == null )
+				{
+					e = new Event( r.getKey(), r.getArg( 0 ), (int)r.getValues()[0], r.getArg( 1 ) );
+					Event prev = this.server.getEvents().putIfAbsent( r.getKey(), e );
+					if( prev != null )
+						e = prev;
+				}
+				e.commit();
+				EventState state = this.server.stateFor( r.getKey() );
+				state.changed( r );
+				if( r.getValues().length > 1 && !e.isFinalized() )
+				{
+					state.setDeadline( r.getValues()[1] );
+					this.server.getDeadlines().schedule( r.getKey(), r.getValues()[1] );
+				}
+				this.server.getEventFilter().add( r.getKey() );
+				this.server.getUserIndex().authored( r.getArg( 1 ), r.getKey() );
+				this.server.getEventIndex().created( r.getKey(), r.getArg( 1 ), r.getArg( 0 ) );
+				return true;
+			}
+			case ADD_DATE:
+			{
+				Event e = this.server.getEvents().get( r.getKey() );
+				Date dt = new Date( r.getValues()[0] );
+				if( e == null || !e.addDate( dt ) )
+					return false;
+				EventState state = this.server.stateFor( r.getKey() );
+				state.getTally().addOption( dt );
+				state.changed( r );
+				this.server.getEventIndex().dateAdded( r.getKey(), dt );
+				return true;
+			}
+			case INVITE:
+			{
+				Event e = this.server.getEvents().get( r.getKey() );
+				if( e == null )
+					return false;
+				e.invite( r.getArg( 0 ) );
+				this.server.stateFor( r.getKey() ).changed( r );
+				return true;
+			}
+			case INVITATION:
+			{
+				User u = this.server.getUsers().get( r.getKey() );
+				if( u == null )
+					return false;
+				u.invite( r.getArg( 0 ), r.getArg( 1 ) );
+				this.server.getUserIndex().invited( r.getKey(), r.getArg( 0 ), r.getArg( 1 ) );
+				return true;
+			}
+			case VOTE:
+			{
+				Event e = this.server.getEvents().get( r.getKey() );
+				Set<Date> dates = r.getDates();
+				if( e == null || e.isFinalized() || !e.vote( r.getArg( 0 ), dates ) )
+					return false;
+				EventState state = this.server.stateFor( r.getKey() );
+				state.getTally().vote( r.getArg( 0 ), dates );
+				state.changed( r );
+				return true;
+			}
+			case FINALIZE:
+			{
+				//The event picks the date itself, its options are known from the tally
+				Event e = this.server.getEvents().get( r.getKey() );
+				if( e == null || e.isFinalized() || !e.finalizeDate() )
+					return false;
+				Date dt = e.getFinalizedDate();
+				//The date logged by the server the event was created at counts,
+				//picking another one means this copy missed some of its changes
+				if( r.getValues().length > 0 && r.getValues()[0] != dt.getTime() )
+				{
+					logger.warning( "\"" + r.getKey() + "\" was finalized at " + dt + " instead of the logged " + new Date( r.getValues()[0] ) + ", reading it again" );
+					this.server.diverged( r.getKey() );
+					return false;
+				}
+				EventState state = this.server.stateFor( r.getKey() );
+				state.changed( r );
+				this.server.getEventIndex().finalized( r.getKey(), state.getTally().getOptions(), dt );
+				this.server.getDeadlines().cancel( r.getKey() );
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Replays the given records using the given pool. Records are split by
+	 * the user or event they change, the records of each part are applied in
+	 * their original order, the parts are applied in parallel.
+	 *
+	 * @param records the records
+	 * @param pool the pool
+	 * @param parts the number of parts
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public void replay( List<LogRecord> records, ExecutorService pool, int parts ) throws InterruptedException
+	{
+		final List<List<LogRecord>> partitions = new ArrayList<List<LogRecord>>( parts );
+		for( int i=0 ; i < parts ; i++ )
+			partitions.add( new ArrayList<LogRecord>( records.size() / parts + 1 ) );
+
+		for( LogRecord r : records )
+			partitions.get( (r.getKey().hashCode() & Integer.MAX_VALUE) % parts ).add( r );
+
+		List<Future<Void>> done = new ArrayList<Future<Void>>( parts );
+		for( final List<LogRecord> part : partitions )
+		{
+			done.add( pool.submit( new Callable<Void>() {
+				@Override
+				public Void call() {
+					for( LogRecord r : part )
+						apply( r );
+					return null;
+				}
+			}));
+		}
+
+		for( Future<Void> f : done )
+		{
+			try {
+				f.get();
+			} catch( ExecutionException eex ) {
+				logger.severe( "Replaying the log failed: " + eex.getCause() );
+			}
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import remote.StateChunk;
+import remote.UnknownTransferException;
+
+
+/**
+ * Serves the state of this server to servers catching up. For each
+ * transfer, the users and events the requesting server holds are written
+ * into a file once, which is then sent in chunks. The requesting server
+ * asks for the next chunk only after storing the previous one, and can
+ * resume an interrupted transfer at any offset. A transfer is deleted once
+ * its last chunk was sent, or when not asked for within the expiry time.
+ */
+public class StateTransfer {
+
+	protected static final Logger logger = Logger.getLogger( StateTransfer.class.getName() );
+	
+	Server server;
+	File dir;
+	int maxChunkSize;
+	long expiry;
+	
+	ConcurrentHashMap<String, Transfer> transfers;
+	AtomicLong counter;
+	
+	/**
+	 * Instantiates a new state transfer.
+	 * 
+	 * @param server the server
+	 * @param dir the directory for the transfer files
+	 * @param maxChunkSize the maximum size of a chunk (in bytes)
+	 * @param expiry the time (in ms) after which unused transfers are deleted
+	 */
+	public StateTransfer( Server server, File dir, int maxChunkSize, long expiry )
+	{
+		this.server = server;
+		this.dir = dir;
+		this.maxChunkSize = maxChunkSize;
+		this.expiry = expiry;
+		this.transfers = new ConcurrentHashMap<String, Transfer>();
+		this.counter = new AtomicLong();
+	}
+	
+	/**
+	 * Gets a chunk of the state for the given server.
+	 * 
+	 * @param requester the name of the requesting server
+	 * @param transferId the id of the transfer to resume, or null to start a new one
+	 * @param offset the offset of the chunk
+	 * @param maxBytes the maximum size of the chunk
+	 * @return the chunk
+	 * @throws UnknownTransferException if the transfer is unknown, completed or expired
+	 * @throws IOException if the transfer couldn't be read
+	 */
+	public StateChunk fetch( String requester, String transferId, long offset, int maxBytes ) throws IOException
+	{
+		expire();
+		
+		Transfer t;
+		if( transferId == null )
+			t = begin( requester );
+		else
+		{
+			t = this.transfers.get( transferId );
+			if( t == null )
+				throw new UnknownTransferException( transferId );
+		}
+		
+		t.lastAccess = System.currentTimeMillis();
+		
+		long total = t.file.length();
+		int len = (int)Math.max( 0, Math.min( Math.min( maxBytes, this.maxChunkSize ), total - offset ) );
+		byte[] data = new byte[len];
+		
+		RandomAccessFile raf = new RandomAccessFile( t.file, "r" );
+		try {
+			raf.seek( offset );
+			raf.readFully( data );
+		} finally {
+			raf.close();
+		}
+		
+		//Resuming after the last chunk starts over, so there's no need to keep it
+		if( offset + len >= total && this.transfers.remove( t.id, t ) )
+			t.file.delete();
+		
+		return new StateChunk( t.id, offset, total, data );
+	}
+	
+	/**
+	 * Writes the state for the given server into a new transfer file.
+	 */
+	private Transfer begin( String requester ) throws IOException
+	{
+		if( !this.dir.isDirectory() && !this.dir.mkdirs() )
+			throw new IOException( "Couldn't create directory \"" + this.dir + "\"" );
+		
+		Transfer t = new Transfer();
+		t.id = this.server.getName() + "-" + requester + "-" + this.counter.incrementAndGet();
+		t.file = new File( this.dir, "transfer-" + t.id + ".snap" );
+		
+		Snapshot snap = new Snapshot( t.file );
+		snap.create();
+		try {
+			Snapshotter.writeState( this.server, snap, requester );
+			snap.commit();
+		} catch( IOException ioex ) {
+			snap.abort();
+			throw ioex;
+		}
+		
+		logger.info( "Sending " + snap.getCount() + " records (" + t.file.length() + " bytes) to \"" + requester + "\"" );
+		
+		t.lastAccess = System.currentTimeMillis();
+		this.transfers.put( t.id, t );
+		return t;
+	}
+	
+	/**
+	 * Deletes transfers that were not used for a while.
+	 */
+	private void expire()
+	{
+		long now = System.currentTimeMillis();
+		
+		for( Iterator<Map.Entry<String, Transfer>> it = this.transfers.entrySet().iterator() ; it.hasNext() ; )
+		{
+			Transfer t = it.next().getValue();
+			if( now - t.lastAccess > this.expiry )
+			{
+				it.remove();
+				t.file.delete();
+			}
+		}
+	}
+	
+	/**
+	 * Deletes all transfers.
+	 */
+	public void close()
+	{
+		for( Transfer t : this.transfers.values() )
+			t.file.delete();
+		this.transfers.clear();
+	}
+	
+	
+	/**
+	 * A single transfer.
+	 */
+	static class Transfer {
+		String id;
+		File file;
+		volatile long lastAccess;
+	}
+}
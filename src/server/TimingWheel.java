@@ -0,0 +1,192 @@
+package server;
+
+import java.util.List;
+
+
+/**
+ * A hierarchical hashed timing wheel: timeouts are kept in slots of
+ * several wheels of growing granularity, so adding and cancelling a
+ * timeout takes constant time, however many are pending. Advancing the
+ * wheel expires the slot of each tick, and moves the timeouts of a
+ * coarser slot down once its time comes.
+ */
+public class TimingWheel<T> {
+
+	/** Bits per wheel, each wheel has 2^BITS slots. */
+	static final int BITS = 8;
+	static final int SLOTS = 1 << BITS;
+	static final int MASK = SLOTS - 1;
+
+	/**
+	 * A pending timeout, linked into the slot it waits in.
+	 */
+	public static class Timeout<T> {
+		final T item;
+		final long tick;
+		Timeout<T> prev;
+		Timeout<T> next;
+
+		Timeout( T item, long tick ) {
+			this.item = item;
+			this.tick = tick;
+		}
+
+		/**
+		 * Gets the item.
+		 *
+		 * @return the item
+		 */
+		public T getItem() {
+			return item;
+		}
+
+		void unlink() {
+			this.prev.next = this.next;
+			this.next.prev = this.prev;
+			this.prev = null;
+			this.next = null;
+		}
+	}
+
+	final long tickMs;
+	final Timeout<T>[][] wheels;
+	long current;
+	int size;
+
+	/**
+	 * Instantiates a new, empty timing wheel.
+	 *
+	 * @param tickMs the duration (in ms) of a tick
+	 * @param levels the number of wheels, together they span 2^(8*levels) ticks
+	 * @param now the current time (in ms)
+	 */
+	@SuppressWarnings( "unchecked" )
+	public TimingWheel( long tickMs, int levels, long now )
+	{
+		this.tickMs = Math.max( 1, tickMs );
+		this.wheels = (Timeout<T>[][])new Timeout<?>[ Math.max( 1, Math.min( 7, levels ) ) ][ SLOTS ];
+		this.current = now / this.tickMs;
+
+		//Each slot is a ring with a sentinel, so unlinking needs no checks
+		for( Timeout<T>[] wheel : this.wheels )
+		{
+			for( int i=0 ; i < SLOTS ; i++ )
+			{
+				Timeout<T> head = new Timeout<T>( null, 0 );
+				head.prev = head;
+				head.next = head;
+				wheel[i] = head;
+			}
+		}
+	}
+
+	/**
+	 * Adds a timeout.
+	 *
+	 * @param item the item to expire
+	 * @param deadline the time (in ms) to expire it at
+	 * @return the timeout, for cancelling it
+	 */
+	public synchronized Timeout<T> add( T item, long deadline )
+	{
+		//Rounded up, so nothing expires early
+		Timeout<T> ret = new Timeout<T>( item, (deadline + this.tickMs - 1) / this.tickMs );
+		link( ret, this.current + 1 );
+		this.size++;
+		return ret;
+	}
+
+	/**
+	 * Cancels a timeout, if it didn't expire yet.
+	 *
+	 * @param t the timeout
+	 * @return true, if it was cancelled
+	 */
+	public synchronized boolean cancel( Timeout<T> t )
+	{
+		if( t.next == null )
+			return false;
+		t.unlink();
+		this.size--;
+		return true;
+	}
+
+	/**
+	 * Advances the wheel to the given time, collecting the items that expired.
+	 *
+	 * @param now the current time (in ms)
+	 * @param expired the list to add the expired items to
+	 */
+	public synchronized void advance( long now, List<T> expired )
+	{
+		long target = now / this.tickMs;
+
+		while( this.current < target )
+		{
+			this.current++;
+
+			//Move down the timeouts of the coarser slots starting now, coarsest first
+			int level = 0;
+			while( level + 1 < this.wheels.length && ((this.current >>> (BITS * (level + 1))) << (BITS * (level + 1))) == this.current )
+				level++;
+			for( ; level > 0 ; level-- )
+				cascade( this.wheels[level][ (int)(this.current >>> (BITS * level)) & MASK ] );
+
+			Timeout<T> head = this.wheels[0][ (int)this.current & MASK ];
+			while( head.next != head )
+			{
+				Timeout<T> t = head.next;
+				t.unlink();
+				this.size--;
+				expired.add( t.item );
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of pending timeouts.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * Links the given timeout into the slot of the finest wheel it fits in,
+	 * overdue timeouts into the slot of the given tick.
+	 */
+	private void link( Timeout<T> t, long earliest )
+	{
+		long tick = Math.max( t.tick, earliest );
+		long delta = tick - this.current;
+
+		int level = 0;
+		while( level + 1 < this.wheels.length && delta >= 1L << (BITS * (level + 1)) )
+			level++;
+
+		//Beyond the coarsest wheel, wait in its last slot and look again from there
+		if( delta >= 1L << (BITS * (level + 1)) )
+			tick = this.current + (1L << (BITS * (level + 1))) - 1;
+
+		Timeout<T> head = this.wheels[level][ (int)(tick >>> (BITS * level)) & MASK ];
+		t.prev = head.prev;
+		t.next = head;
+		head.prev.next = t;
+		head.prev = t;
+	}
+
+	/**
+	 * Moves the timeouts of the given slot to finer wheels.
+	 */
+	private void cascade( Timeout<T> head )
+	{
+		while( head.next != head )
+		{
+			Timeout<T> t = head.next;
+			t.unlink();
+			link( t, this.current );
+		}
+	}
+}
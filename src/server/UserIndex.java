@@ -0,0 +1,132 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import remote.EventPage;
+import remote.EventSummary;
+import remote.ListFilter;
+
+
+/**
+ * The events each user created or was invited to, ordered by name, so they
+ * can be listed page by page. Both are known at the user's server: events
+ * are created there and invitations are recorded there.
+ */
+public class UserIndex {
+
+	ConcurrentHashMap<String, ConcurrentSkipListMap<String, EventSummary>> users;
+
+	/**
+	 * Instantiates a new, empty index.
+	 */
+	public UserIndex()
+	{
+		this.users = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, EventSummary>>();
+	}
+
+	/**
+	 * Adds an event created by the given user.
+	 *
+	 * @param user the author
+	 * @param event the event name
+	 */
+	public void authored( String user, String event )
+	{
+		add( user, event, user, false );
+	}
+
+	/**
+	 * Adds an event the given user was invited to.
+	 *
+	 * @param user the invited user
+	 * @param event the event name
+	 * @param author the author of the event
+	 */
+	public void invited( String user, String event, String author )
+	{
+		add( user, event, author, true );
+	}
+
+	/**
+	 * Adds the event to the user's events, keeping an earlier invitation.
+	 */
+	private void add( String user, String event, String author, boolean invited )
+	{
+		ConcurrentSkipListMap<String, EventSummary> events = eventsOf( user );
+
+		synchronized( events ) {
+			EventSummary prev = events.get( event );
+			if( prev == null || (invited && !prev.isInvited()) )
+				events.put( event, new EventSummary( event, author, invited ) );
+		}
+	}
+
+	/**
+	 * Gets a page of the given user's events, ordered by name.
+	 *
+	 * @param user the user
+	 * @param filter which events to list
+	 * @param cursor the cursor of the previous page, null for the first page
+	 * @param limit the maximum number of events on the page
+	 * @return the page
+	 */
+	public EventPage page( String user, ListFilter filter, String cursor, int limit )
+	{
+		List<EventSummary> ret = new ArrayList<EventSummary>( Math.min( limit, 64 ) );
+
+		ConcurrentSkipListMap<String, EventSummary> events = this.users.get( user );
+		if( events == null )
+			return new EventPage( ret, null );
+
+		Map<String, EventSummary> rest = cursor == null ? events : events.tailMap( cursor, false );
+		for( EventSummary s : rest.values() )
+		{
+			if( !matches( s, user, filter ) )
+				continue;
+
+			//One more than fits tells whether there is a next page
+			if( ret.size() == limit )
+				return new EventPage( ret, ret.get( ret.size() - 1 ).getName() );
+
+			ret.add( s );
+		}
+
+		return new EventPage( ret, null );
+	}
+
+	/**
+	 * Checks whether the given event of the given user passes the filter.
+	 */
+	private static boolean matches( EventSummary s, String user, ListFilter filter )
+	{
+		switch( filter )
+		{
+			case AUTHORED:
+				return user.equals( s.getAuthor() );
+			case INVITED:
+				return s.isInvited();
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Gets the events of the given user, creating the entry if necessary.
+	 */
+	private ConcurrentSkipListMap<String, EventSummary> eventsOf( String user )
+	{
+		ConcurrentSkipListMap<String, EventSummary> ret = this.users.get( user );
+		if( ret == null )
+		{
+			ret = new ConcurrentSkipListMap<String, EventSummary>();
+			ConcurrentSkipListMap<String, EventSummary> prev = this.users.putIfAbsent( user, ret );
+			if( prev != null )
+				ret = prev;
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,275 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+
+/**
+ * Running vote counts of the date options of a single event. The counts
+ * are updated with every vote, an indexed max-heap over the options keeps
+ * the current leader at its top, so finding the leader doesn't have to
+ * look at the votes again. The leader is only what the votes look like
+ * while the event is open, finalizing is left to the event, which picks
+ * the date by its own rule.
+ *
+ * Options are stored as minutes since the epoch. The leader is the option
+ * with the most votes, the earliest one on ties. Votes for dates that
+ * are no option are ignored.
+ */
+public class VoteTally {
+
+	static final long MINUTE = 60 * 1000;
+
+	/** Index of each option by its minute. */
+	LongIntMap index;
+	/** Minute, date and number of votes of each option, by index. */
+	long[] minutes;
+	Date[] dates;
+	int[] counts;
+	int options;
+
+	/** Option indices ordered as max-heap, and the position of each option in it. */
+	int[] heap;
+	int[] pos;
+
+	/** Options each user voted for. */
+	Map<String, int[]> ballots;
+
+	/**
+	 * Instantiates a new, empty vote tally.
+	 */
+	public VoteTally()
+	{
+		this.index = new LongIntMap( 8 );
+		this.minutes = new long[8];
+		this.dates = new Date[8];
+		this.counts = new int[8];
+		this.heap = new int[8];
+		this.pos = new int[8];
+		this.ballots = new HashMap<String, int[]>();
+	}
+
+	/**
+	 * Adds the given date option.
+	 *
+	 * @param date the date
+	 * @return true, if the option didn't exist before
+	 */
+	public synchronized boolean addOption( Date date )
+	{
+		long minute = toMinute( date );
+		if( this.index.get( minute, -1 ) >= 0 )
+			return false;
+
+		if( this.options == this.minutes.length )
+		{
+			int n = this.options * 2;
+			this.minutes = Arrays.copyOf( this.minutes, n );
+			this.dates = Arrays.copyOf( this.dates, n );
+			this.counts = Arrays.copyOf( this.counts, n );
+			this.heap = Arrays.copyOf( this.heap, n );
+			this.pos = Arrays.copyOf( this.pos, n );
+		}
+
+		int opt = this.options++;
+		this.index.put( minute, opt );
+		this.minutes[opt] = minute;
+		this.dates[opt] = date;
+		this.counts[opt] = 0;
+		this.heap[opt] = opt;
+		this.pos[opt] = opt;
+		siftUp( opt );
+
+		return true;
+	}
+
+	/**
+	 * Replaces the vote of the given user.
+	 *
+	 * @param user the user
+	 * @param dates the dates the user votes for
+	 */
+	public synchronized void vote( String user, Set<Date> dates )
+	{
+		int[] prev = this.ballots.get( user );
+		if( prev != null )
+		{
+			for( int opt : prev )
+				change( opt, -1 );
+		}
+
+		int[] ballot = new int[dates.size()];
+		int n = 0;
+		for( Date d : dates )
+		{
+			int opt = this.index.get( toMinute( d ), -1 );
+			if( opt >= 0 )
+			{
+				ballot[n++] = opt;
+				change( opt, 1 );
+			}
+		}
+
+		this.ballots.put( user, n == ballot.length ? ballot : Arrays.copyOf( ballot, n ) );
+	}
+
+	/**
+	 * Gets the option currently leading.
+	 *
+	 * @return the leader, or null if there are no options
+	 */
+	public synchronized Date getLeader()
+	{
+		return this.options == 0 ? null : toDate( this.minutes[ this.heap[0] ] );
+	}
+
+	/**
+	 * Gets the given number of leading options, best first.
+	 *
+	 * @param k the number of options
+	 * @return the options
+	 */
+	public synchronized List<Date> getLeaders( int k )
+	{
+		List<Date> ret = new ArrayList<Date>( Math.min( k, this.options ) );
+		if( this.options == 0 )
+			return ret;
+
+		//Walk the heap best first, only children of taken options can be next
+		PriorityQueue<Integer> next = new PriorityQueue<Integer>( 2 * k + 1, new Comparator<Integer>() {
+			@Override
+			public int compare( Integer a, Integer b ) {
+				return better( heap[a], heap[b] ) ? -1 : 1;
+			}
+		});
+		next.add( 0 );
+
+		while( ret.size() < k && !next.isEmpty() )
+		{
+			int i = next.poll();
+			ret.add( toDate( this.minutes[ this.heap[i] ] ) );
+
+			if( 2 * i + 1 < this.options )
+				next.add( 2 * i + 1 );
+			if( 2 * i + 2 < this.options )
+				next.add( 2 * i + 2 );
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Gets the number of votes for the given option.
+	 *
+	 * @param date the date
+	 * @return the number of votes, 0 if the date is no option
+	 */
+	public synchronized int getVotes( Date date )
+	{
+		int opt = this.index.get( toMinute( date ), -1 );
+		return opt < 0 ? 0 : this.counts[opt];
+	}
+
+	/**
+	 * Gets the options as they were added, in the order they were added.
+	 *
+	 * @return the options
+	 */
+	public synchronized List<Date> getOptions()
+	{
+		return new ArrayList<Date>( Arrays.asList( this.dates ).subList( 0, this.options ) );
+	}
+
+	/**
+	 * Gets the number of options.
+	 *
+	 * @return the number of options
+	 */
+	public synchronized int getOptionCount()
+	{
+		return this.options;
+	}
+
+	/**
+	 * Changes the count of the given option and restores the heap.
+	 */
+	private void change( int opt, int delta )
+	{
+		this.counts[opt] += delta;
+
+		if( delta > 0 )
+			siftUp( this.pos[opt] );
+		else
+			siftDown( this.pos[opt] );
+	}
+
+	private void siftUp( int i )
+	{
+		while( i > 0 )
+		{
+			int parent = (i - 1) / 2;
+			if( !better( this.heap[i], this.heap[parent] ) )
+				break;
+			swap( i, parent );
+			i = parent;
+		}
+	}
+
+	private void siftDown( int i )
+	{
+		while( true )
+		{
+			int best = i;
+			int l = 2 * i + 1;
+			int r = l + 1;
+
+			if( l < this.options && better( this.heap[l], this.heap[best] ) )
+				best = l;
+			if( r < this.options && better( this.heap[r], this.heap[best] ) )
+				best = r;
+			if( best == i )
+				break;
+
+			swap( i, best );
+			i = best;
+		}
+	}
+
+	private void swap( int i, int j )
+	{
+		int a = this.heap[i];
+		int b = this.heap[j];
+
+		this.heap[i] = b;
+		this.heap[j] = a;
+		this.pos[b] = i;
+		this.pos[a] = j;
+	}
+
+	/**
+	 * Checks if option a ranks before option b.
+	 */
+	private boolean better( int a, int b )
+	{
+		if( this.counts[a] != this.counts[b] )
+			return this.counts[a] > this.counts[b];
+		return this.minutes[a] < this.minutes[b];
+	}
+
+	static long toMinute( Date date )
+	{
+		return date.getTime() / MINUTE;
+	}
+
+	static Date toDate( long minute )
+	{
+		return new Date( minute * MINUTE );
+	}
+}
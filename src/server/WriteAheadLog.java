@@ -0,0 +1,390 @@
+package server;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only log of all changes of a server, stored in memory-mapped
+ * segment files. Appending only copies the record into the mapped segment,
+ * a background thread forces the written segments to disk at a fixed
+ * interval, so many appends share one fsync.
+ *
+ * Each record is stored as its length, a CRC32 checksum and the data.
+ * A length of 0 marks the end of a segment. Segments are numbered, older
+ * segments can be deleted once a {@link Snapshot} covers them.
+ */
+public class WriteAheadLog implements Runnable {
+
+	protected static final Logger logger = Logger.getLogger( WriteAheadLog.class.getName() );
+
+	static final String SEGMENT_PREFIX = "segment-";
+	static final String SEGMENT_SUFFIX = ".wal";
+	static final int HEADER_SIZE = 8;
+
+	File dir;
+	int segmentSize;
+	long syncInterval;
+
+	/** The segment currently written to. */
+	int segmentIndex;
+	RandomAccessFile file;
+	MappedByteBuffer buffer;
+
+	/** Full segments, that still have to be forced to disk. */
+	List<MappedByteBuffer> unforced;
+
+	/** Sequence number of the last appended record. */
+	long appended;
+	/** Sequence number of the last record forced to disk. */
+	long durable;
+
+	Thread thread;
+	volatile boolean running;
+
+	/**
+	 * Instantiates a new write ahead log.
+	 *
+	 * @param dir the directory for the segment files
+	 * @param segmentSize the size of a single segment (in bytes)
+	 * @param syncInterval the time (in ms) between two forces to disk
+	 */
+	public WriteAheadLog( File dir, int segmentSize, long syncInterval )
+	{
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.syncInterval = Math.max( 1, syncInterval );
+		this.unforced = new ArrayList<MappedByteBuffer>();
+	}
+
+	/**
+	 * Reads all records of the existing segments.
+	 *
+	 * @return the records, in the order they were appended
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public List<LogRecord> read() throws IOException
+	{
+		return read( 0, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Reads all records of the existing segments within the given range.
+	 *
+	 * @param from the index of the first segment to read
+	 * @param to the index of the first segment not to read
+	 * @return the records, in the order they were appended
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public List<LogRecord> read( int from, int to ) throws IOException
+	{
+		List<LogRecord> ret = new ArrayList<LogRecord>();
+
+		for( File f : listSegments() )
+		{
+			int idx = indexOf( f );
+			if( idx >= from && idx < to )
+				readSegment( f, ret );
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Deletes all segments before the given index.
+	 *
+	 * @param index the index of the first segment to keep
+	 */
+	public void deleteSegmentsBefore( int index )
+	{
+		for( File f : listSegments() )
+		{
+			if( indexOf( f ) < index && !f.delete() )
+				logger.warning( "Couldn't delete \"" + f.getName() + "\"" );
+		}
+	}
+
+	/**
+	 * Starts a new segment. All records appended before are in older segments.
+	 *
+	 * @return the index of the new segment
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized int rollSegment() throws IOException
+	{
+		roll( 0 );
+		return this.segmentIndex;
+	}
+
+	/**
+	 * Gets the number of records appended since the log was opened.
+	 *
+	 * @return the number of records
+	 */
+	public synchronized long getAppended()
+	{
+		return this.appended;
+	}
+
+	/**
+	 * Gets the directory of the segment files.
+	 *
+	 * @return the directory
+	 */
+	public File getDir()
+	{
+		return this.dir;
+	}
+
+	/**
+	 * Gets the total size of the existing segments.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getSize()
+	{
+		long ret = 0;
+		for( File f : listSegments() )
+			ret += f.length();
+		return ret;
+	}
+
+	/**
+	 * Opens a new segment for appending and starts forcing to disk.
+	 * Existing segments are never appended to.
+	 *
+	 * @param minIndex the minimum index of the new segment
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void open( int minIndex ) throws IOException
+	{
+		if( !this.dir.isDirectory() && !this.dir.mkdirs() )
+			throw new IOException( "Couldn't create directory \"" + this.dir + "\"" );
+
+		File[] existing = listSegments();
+		this.segmentIndex = existing.length == 0 ? 0 : indexOf( existing[ existing.length - 1 ] );
+		this.segmentIndex = Math.max( this.segmentIndex, minIndex - 1 );
+
+		synchronized( this ) {
+			roll( 0 );
+		}
+
+		this.running = true;
+		this.thread = new Thread( this, "wal-sync" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Appends the given record. The record is not yet durable when this method returns.
+	 *
+	 * @param record the record
+	 * @return the sequence number of the record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized long append( LogRecord record ) throws IOException
+	{
+		byte[] data = record.encode();
+
+		if( this.buffer.remaining() < data.length + 2 * HEADER_SIZE )
+			roll( data.length );
+
+		CRC32 crc = new CRC32();
+		crc.update( data );
+
+		this.buffer.putInt( data.length );
+		this.buffer.putInt( (int)crc.getValue() );
+		this.buffer.put( data );
+
+		return ++this.appended;
+	}
+
+	/**
+	 * Waits until the record with the given sequence number is forced to disk.
+	 *
+	 * @param seq the sequence number
+	 * @param timeout the maximum time to wait (in ms)
+	 * @return true, if the record is durable
+	 * @throws InterruptedException if the calling thread was interrupted
+	 */
+	public synchronized boolean awaitDurable( long seq, long timeout ) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while( this.durable < seq )
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if( remaining <= 0 )
+				return false;
+			wait( remaining );
+		}
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while( this.running )
+		{
+			try {
+				Thread.sleep( this.syncInterval );
+			} catch( InterruptedException iex ) {
+				//Stopping, force one last time
+			}
+
+			sync();
+		}
+	}
+
+	/**
+	 * Forces all appended records to disk.
+	 */
+	public void sync()
+	{
+		long seq;
+		MappedByteBuffer current;
+		List<MappedByteBuffer> full;
+
+		synchronized( this ) {
+			seq = this.appended;
+			if( seq == this.durable )
+				return;
+
+			current = this.buffer;
+			full = new ArrayList<MappedByteBuffer>( this.unforced );
+			this.unforced.clear();
+		}
+
+		//Force outside the lock, so appending can go on meanwhile
+		for( MappedByteBuffer b : full )
+			b.force();
+		current.force();
+
+		synchronized( this ) {
+			this.durable = Math.max( this.durable, seq );
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Stops forcing and closes the log. All appended records are forced to disk.
+	 */
+	public void close()
+	{
+		this.running = false;
+
+		if( this.thread != null )
+		{
+			this.thread.interrupt();
+			try {
+				this.thread.join();
+			} catch( InterruptedException iex ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		sync();
+
+		try {
+			if( this.file != null )
+				this.file.close();
+		} catch( IOException ioex ) {
+			logger.warning( "Couldn't close write-ahead log: " + ioex.getMessage() );
+		}
+	}
+
+	/**
+	 * Starts a new segment, that is big enough for a record of the given size.
+	 */
+	private void roll( int recordSize ) throws IOException
+	{
+		if( this.buffer != null )
+			this.unforced.add( this.buffer );
+		if( this.file != null )
+			this.file.close();
+
+		this.segmentIndex++;
+		File f = new File( this.dir, String.format( "%s%010d%s", SEGMENT_PREFIX, this.segmentIndex, SEGMENT_SUFFIX ) );
+		int size = Math.max( this.segmentSize, recordSize + 2 * HEADER_SIZE );
+
+		this.file = new RandomAccessFile( f, "rw" );
+		this.buffer = this.file.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+	}
+
+	/**
+	 * Reads the records of a single segment, up to its end or the first damaged record.
+	 */
+	private static void readSegment( File f, List<LogRecord> ret ) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+
+		try {
+			MappedByteBuffer b = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+			CRC32 crc = new CRC32();
+
+			while( b.remaining() >= HEADER_SIZE )
+			{
+				int len = b.getInt();
+				int sum = b.getInt();
+
+				if( len <= 0 || len > b.remaining() )
+					break;
+
+				byte[] data = new byte[len];
+				b.get( data );
+
+				crc.reset();
+				crc.update( data );
+				if( (int)crc.getValue() != sum )
+				{
+					logger.warning( "Damaged record in \"" + f.getName() + "\", ignoring the rest of the segment" );
+					break;
+				}
+
+				ret.add( LogRecord.decode( data ) );
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Lists the existing segment files, oldest first.
+	 */
+	File[] listSegments()
+	{
+		File[] ret = this.dir.listFiles( new FilenameFilter() {
+			@Override
+			public boolean accept( File dir, String name ) {
+				return name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX );
+			}
+		});
+
+		if( ret == null )
+			return new File[0];
+
+		Arrays.sort( ret );
+		return ret;
+	}
+
+	/**
+	 * Gets the index of the given segment file.
+	 */
+	static int indexOf( File segment )
+	{
+		String name = segment.getName();
+		return Integer.parseInt( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+	}
+}